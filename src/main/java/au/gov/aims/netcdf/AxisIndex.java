@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import java.util.Arrays;
+
+/**
+ * Snap coordinates to the index of a sorted axis,
+ * using a binary search within an epsilon.
+ *
+ * Coordinates computed with float arithmetic (see {@link Generator#getCoordinates(float, float, int)})
+ * may differ slightly from the axis values. They are matched to the closest axis value,
+ * using the epsilons defined in {@link au.gov.aims.netcdf.bean.NetCDFPointCoordinate}.
+ * The epsilon is never smaller than the precision of the coordinate (its ulp):
+ * a float coordinate >= 128 can not be closer than 1.5E-5 to another value.
+ */
+public class AxisIndex {
+
+    private AxisIndex() {}
+
+    /**
+     * Find the index of the axis value closest to a coordinate.
+     * @param axis Sorted axis values.
+     * @param value The coordinate.
+     * @param epsilon The maximum distance between the coordinate and the axis value.
+     *     Scaled up to the precision of the coordinate, for large coordinates.
+     * @return The index of the axis value, or -1 if no axis value is within epsilon of the coordinate.
+     */
+    public static int indexOf(float[] axis, float value, float epsilon) {
+        if (axis == null || axis.length == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(axis, value);
+        if (index >= 0) {
+            return index;
+        }
+
+        // Not found: compare with the axis values before and after the insertion point
+        int insertionPoint = -index - 1;
+        int closestIndex = -1;
+        float closestDistance = Math.max(epsilon, Math.ulp(value));
+        for (int candidate = insertionPoint - 1; candidate <= insertionPoint; candidate++) {
+            if (candidate >= 0 && candidate < axis.length) {
+                float distance = Math.abs(axis[candidate] - value);
+                if (distance <= closestDistance) {
+                    closestIndex = candidate;
+                    closestDistance = distance;
+                }
+            }
+        }
+        return closestIndex;
+    }
+
+    /**
+     * Find the index of the axis value closest to a coordinate.
+     * @param axis Sorted axis values.
+     * @param value The coordinate.
+     * @param epsilon The maximum distance between the coordinate and the axis value.
+     *     Scaled up to the precision of the coordinate, for large coordinates.
+     * @return The index of the axis value, or -1 if no axis value is within epsilon of the coordinate.
+     */
+    public static int indexOf(double[] axis, double value, double epsilon) {
+        if (axis == null || axis.length == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(axis, value);
+        if (index >= 0) {
+            return index;
+        }
+
+        int insertionPoint = -index - 1;
+        int closestIndex = -1;
+        double closestDistance = Math.max(epsilon, Math.ulp(value));
+        for (int candidate = insertionPoint - 1; candidate <= insertionPoint; candidate++) {
+            if (candidate >= 0 && candidate < axis.length) {
+                double distance = Math.abs(axis[candidate] - value);
+                if (distance <= closestDistance) {
+                    closestIndex = candidate;
+                    closestDistance = distance;
+                }
+            }
+        }
+        return closestIndex;
+    }
+}
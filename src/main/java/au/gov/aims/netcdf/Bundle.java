@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import org.joda.time.DateTime;
+import org.joda.time.Hours;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+// Simple class to keep generation variables together: a hypercube, or a partition of a hypercube
+class Bundle {
+    public NetCDFDataset dataset;
+    public float[] lats;
+    public float[] lons;
+    public double[] heights;
+
+    // Variables written in the hypercube, and the dates used across those variables
+    public List<AbstractNetCDFVariable> variables;
+    public Map<AbstractNetCDFVariable, SortedSet<DateTime>> variableDates;
+    public SortedSet<DateTime> dates;
+
+    public String latVariableName;
+    public String lonVariableName;
+    public String heightVariableName;
+    public String timeVariableName;
+    public DimensionOrder dimensionOrder;
+
+    // Names of the axes declared by a previous hypercube
+    public Set<String> sharedAxes;
+
+    // Dates of the records of the whole dataset, in milliseconds, and the index of the first record of the hypercube.
+    //     The records of a partition by date are a slice of the records of the dataset.
+    public long[] recordMillis;
+    public int recordOffset;
+
+    // Readers of the records of the variables, shared by the partitions of the dataset
+    public SharedRecordReaders readers;
+
+    public Bundle(NetCDFDataset dataset, int datasetIndex, NetCDFDataset.Dimensions datasetDimensions,
+            DimensionOrder dimensionOrder, Runnable checkpoint) {
+        this.dataset = dataset;
+        this.dimensionOrder = dimensionOrder;
+        this.sharedAxes = new HashSet<String>();
+
+        this.lats = datasetDimensions.getLatitudes();
+        this.lons = datasetDimensions.getLongitudes();
+        this.heights = datasetDimensions.getHeights();
+
+        // Create a list of all dates used across variables (some variables might have time gap)
+        this.variables = new ArrayList<AbstractNetCDFVariable>();
+        this.variableDates = new HashMap<AbstractNetCDFVariable, SortedSet<DateTime>>();
+        this.dates = new TreeSet<DateTime>();
+        for (AbstractNetCDFVariable variable : dataset) {
+            SortedSet<DateTime> variableDates = variable.getDates();
+            this.variables.add(variable);
+            this.variableDates.put(variable, variableDates);
+            this.dates.addAll(variableDates);
+            checkpoint.run();
+        }
+
+        // Create a unique name for the dimensions / variables (to prevent clashes between hypercubes)
+        this.latVariableName = "lat";
+        this.lonVariableName = "lon";
+        this.timeVariableName = "time";
+        this.heightVariableName = "zc"; // as defined in eReefs NetCDF files
+        if (datasetIndex > 0) {
+            this.latVariableName += datasetIndex;
+            this.lonVariableName += datasetIndex;
+            this.timeVariableName += datasetIndex;
+            this.heightVariableName += datasetIndex;
+        }
+
+        this.recordMillis = RecordIndex.getRecordMillis(this.dates);
+        this.recordOffset = 0;
+        this.readers = new SharedRecordReaders(Collections.singletonList(this));
+    }
+
+    // Create a partition of a bundle, sharing its axes and its records.
+    //     The readers of the partitions are set once all the partitions are created, see PartitionPolicy.
+    public Bundle(Bundle bundle, SortedSet<DateTime> dates, List<AbstractNetCDFVariable> variables) {
+        this.dataset = bundle.dataset;
+        this.lats = bundle.lats;
+        this.lons = bundle.lons;
+        this.heights = bundle.heights;
+
+        this.variables = variables;
+        this.variableDates = bundle.variableDates;
+        this.dates = dates;
+
+        this.latVariableName = bundle.latVariableName;
+        this.lonVariableName = bundle.lonVariableName;
+        this.timeVariableName = bundle.timeVariableName;
+        this.heightVariableName = bundle.heightVariableName;
+        this.dimensionOrder = bundle.dimensionOrder;
+        this.sharedAxes = bundle.sharedAxes;
+
+        this.recordMillis = bundle.recordMillis;
+        this.recordOffset = dates.isEmpty() ? 0 : RecordIndex.getRecordIndex(dates.first(), bundle.recordMillis);
+    }
+
+    public boolean isShared(String axisName) {
+        return this.sharedAxes.contains(axisName);
+    }
+
+    // Hypercubes without time variables (such as a bathymetry partition) have no time axis
+    public boolean hasTime() {
+        for (AbstractNetCDFVariable variable : this.variables) {
+            if (variable.hasTime()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Use the axis of a previous hypercube
+    public String share(String axisName) {
+        this.sharedAxes.add(axisName);
+        return axisName;
+    }
+
+    // Calculate the number of hours that elapsed since NetCDF epoch and each dates
+    // (that's how dates are recorded in NetCDF files)
+    public int[] getTimeValues() {
+        int[] timeValues = new int[this.dates.size()];
+        int recordIndex = 0;
+        for (DateTime date : this.dates) {
+            timeValues[recordIndex] = Hours.hoursBetween(this.dataset.getTimeEpoch(), date).getHours();
+            recordIndex++;
+        }
+        return timeValues;
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+/**
+ * Cooperative cancellation of a generation.
+ * See {@link Generator#setCancellationToken(CancellationToken)}.
+ *
+ * The token can be cancelled from any thread. The {@link Generator} checks it
+ * while the hypercubes are prepared, while the variables are filled and between record writes,
+ * then stops by throwing a {@link java.util.concurrent.CancellationException}
+ * and deletes the partial output file.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SHA-256 digest of the logical content of a variable,
+ * computed while the variable is written.
+ *
+ * Values are digested as big-endian IEEE 754 numbers, in canonical order,
+ * so the digest doesn't depend on the NetCDF file format.
+ * NaN values are all digested as the canonical NaN.
+ */
+public class ContentDigest {
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private MessageDigest messageDigest;
+    private ByteBuffer buffer;
+
+    public ContentDigest() {
+        try {
+            this.messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 digest algorithm not available", ex);
+        }
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public void update(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.update(bytes.length);
+        this.flush();
+        this.messageDigest.update(bytes);
+    }
+
+    public void update(int value) {
+        this.ensureCapacity(4);
+        this.buffer.putInt(value);
+    }
+
+    public void update(long value) {
+        this.ensureCapacity(8);
+        this.buffer.putLong(value);
+    }
+
+    public void update(double value) {
+        this.ensureCapacity(8);
+        this.buffer.putLong(Double.doubleToLongBits(value));
+    }
+
+    // Axes are digested with their length, to distinguish a missing axis (null) from an empty one.
+    public void update(float[] values) {
+        if (values == null) {
+            this.update(-1);
+            return;
+        }
+        this.update(values.length);
+        for (float value : values) {
+            this.ensureCapacity(4);
+            this.buffer.putInt(Float.floatToIntBits(value));
+        }
+    }
+
+    public void update(double[] values) {
+        if (values == null) {
+            this.update(-1);
+            return;
+        }
+        this.update(values.length);
+        this.update(values, 0, values.length);
+    }
+
+    public void update(double[] values, int offset, int length) {
+        for (int i=offset; i<offset+length; i++) {
+            this.ensureCapacity(8);
+            this.buffer.putLong(Double.doubleToLongBits(values[i]));
+        }
+    }
+
+    /**
+     * Complete the digest computation.
+     * The digest can not be updated after calling this method.
+     * @return The digest, as a lower case hexadecimal string.
+     */
+    public String getHexDigest() {
+        this.flush();
+        return ContentDigest.toHex(this.messageDigest.digest());
+    }
+
+    private void ensureCapacity(int length) {
+        if (this.buffer.remaining() < length) {
+            this.flush();
+        }
+    }
+
+    private void flush() {
+        if (this.buffer.position() > 0) {
+            this.messageDigest.update(this.buffer.array(), 0, this.buffer.position());
+            this.buffer.clear();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i=0; i<bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Order of the dimensions of the variables with height, in the generated NetCDF files.
+ * See {@link Generator#setDimensionOrder(DimensionOrder)}
+ *
+ * The data is held in memory indexed [lat][lon][height] (see {@link au.gov.aims.netcdf.bean.NetCDFFrame}),
+ * whatever the order of the dimensions in the file.
+ */
+public enum DimensionOrder {
+    // Order recommended by the CF conventions, used in eReefs files: time, zc, lat, lon.
+    //     Each 2D map (one height of one record) is contiguous in the file.
+    //     http://cfconventions.org/Data/cf-conventions/cf-conventions-1.8/cf-conventions.html#dimensions
+    TIME_HEIGHT_LAT_LON(true),
+
+    // Height as the fastest-varying dimension: time, lat, lon, zc.
+    //     Each vertical profile is contiguous in the file.
+    TIME_LAT_LON_HEIGHT(false);
+
+    private boolean heightFirst;
+
+    DimensionOrder(boolean heightFirst) {
+        this.heightFirst = heightFirst;
+    }
+
+    /**
+     * @return True if the height dimension comes before the lat and lon dimensions.
+     */
+    public boolean isHeightFirst() {
+        return this.heightFirst;
+    }
+
+    /**
+     * @param timeDimension The time dimension name, or null if the variable has no time.
+     * @param heightDimension The height dimension name, or null if the variable has no height.
+     * @param latDimension The latitude dimension name.
+     * @param lonDimension The longitude dimension name.
+     * @return The dimension names of a variable, in this order.
+     */
+    public List<String> getDimensionNames(String timeDimension, String heightDimension, String latDimension, String lonDimension) {
+        List<String> dimensionNames = new ArrayList<String>();
+        if (timeDimension != null) {
+            dimensionNames.add(timeDimension);
+        }
+        if (heightDimension != null && this.heightFirst) {
+            dimensionNames.add(heightDimension);
+        }
+        dimensionNames.add(latDimension);
+        dimensionNames.add(lonDimension);
+        if (heightDimension != null && !this.heightFirst) {
+            dimensionNames.add(heightDimension);
+        }
+        return dimensionNames;
+    }
+
+    /**
+     * Copy a record from the memory layout [lat][lon][height] to the file layout.
+     * @param record The record, indexed [lat][lon][height].
+     * @param fileRecord The array receiving the record, in the file layout.
+     * @param nbHeight The number of heights.
+     */
+    public void toFileLayout(double[] record, double[] fileRecord, int nbHeight) {
+        if (!this.heightFirst || nbHeight == 1) {
+            System.arraycopy(record, 0, fileRecord, 0, record.length);
+            return;
+        }
+        int mapSize = record.length / nbHeight;
+        for (int mapIndex=0; mapIndex<mapSize; mapIndex++) {
+            for (int heightIndex=0; heightIndex<nbHeight; heightIndex++) {
+                fileRecord[heightIndex * mapSize + mapIndex] = record[mapIndex * nbHeight + heightIndex];
+            }
+        }
+    }
+
+    /**
+     * Copy a record from the file layout to the memory layout [lat][lon][height].
+     * @param fileRecord The record, in the file layout.
+     * @param record The array receiving the record, indexed [lat][lon][height].
+     * @param nbHeight The number of heights.
+     */
+    public void toMemoryLayout(double[] fileRecord, double[] record, int nbHeight) {
+        if (!this.heightFirst || nbHeight == 1) {
+            System.arraycopy(fileRecord, 0, record, 0, fileRecord.length);
+            return;
+        }
+        int mapSize = fileRecord.length / nbHeight;
+        for (int heightIndex=0; heightIndex<nbHeight; heightIndex++) {
+            for (int mapIndex=0; mapIndex<mapSize; mapIndex++) {
+                record[mapIndex * nbHeight + heightIndex] = fileRecord[heightIndex * mapSize + mapIndex];
+            }
+        }
+    }
+}
@@ -4,10 +4,13 @@
  */
 package au.gov.aims.netcdf;
 
+import au.gov.aims.netcdf.bean.NetCDFDataset;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /*
  * Class used to generate small NetCDF files used with DownloadManager tests
@@ -20,34 +23,44 @@ public class DownloadManagerGenerator {
         Generator netCDFGenerator = new Generator();
 
         // For the DownloadManager
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator,
+        // Monthly files are aggregated in a NcML file
+        List<GeneratorResult> monthlyResults = new ArrayList<GeneratorResult>();
+
+        NetCDFDataset firstDataset = NcAnimateGenerator.createGbr4v2Dataset(
                 new DateTime(2018, 10, 1, 0, 0, TIMEZONE_BRISBANE),
-                new DateTime(2018, 10, 2, 0, 0, TIMEZONE_BRISBANE),
-                new File("/tmp/gbr4_simple_2018-10.nc"), false);
-
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator,
-                new DateTime(2018, 11, 1, 0, 0, TIMEZONE_BRISBANE),
-                new DateTime(2018, 11, 2, 0, 0, TIMEZONE_BRISBANE),
-                new File("/tmp/gbr4_simple_2018-11.nc"), false);
-
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator,
-                new DateTime(2018, 12, 1, 0, 0, TIMEZONE_BRISBANE),
-                new DateTime(2018, 12, 2, 0, 0, TIMEZONE_BRISBANE),
-                new File("/tmp/gbr4_simple_2018-12.nc"), false);
-
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator,
-                new DateTime(2018, 12, 1, 0, 0, TIMEZONE_BRISBANE),
-                new DateTime(2018, 12, 2, 0, 0, TIMEZONE_BRISBANE),
-                new File("/tmp/gbr4_simple_2018-12_modified.nc"), false, 1000);
-
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator,
-                new DateTime(2019, 1, 1, 0, 0, TIMEZONE_BRISBANE),
-                new DateTime(2019, 1, 2, 0, 0, TIMEZONE_BRISBANE),
-                new File("/tmp/gbr4_simple_2019-01.nc"), false);
-
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator,
-                new DateTime(2019, 2, 1, 0, 0, TIMEZONE_BRISBANE),
-                new DateTime(2019, 2, 2, 0, 0, TIMEZONE_BRISBANE),
-                new File("/tmp/gbr4_simple_2019-02.nc"), false);
+                new DateTime(2018, 10, 2, 0, 0, TIMEZONE_BRISBANE), false);
+
+        // All the files have the same header: dimensions, variables and attributes.
+        // Compile it once and reuse it for every file.
+        NetCDFHeaderTemplate gbr4Template = netCDFGenerator.compileTemplate(firstDataset);
+
+        monthlyResults.add(netCDFGenerator.generate(new File("/tmp/gbr4_simple_2018-10.nc"), gbr4Template, firstDataset));
+
+        monthlyResults.add(netCDFGenerator.generate(new File("/tmp/gbr4_simple_2018-11.nc"), gbr4Template,
+                NcAnimateGenerator.createGbr4v2Dataset(
+                        new DateTime(2018, 11, 1, 0, 0, TIMEZONE_BRISBANE),
+                        new DateTime(2018, 11, 2, 0, 0, TIMEZONE_BRISBANE), false)));
+
+        monthlyResults.add(netCDFGenerator.generate(new File("/tmp/gbr4_simple_2018-12.nc"), gbr4Template,
+                NcAnimateGenerator.createGbr4v2Dataset(
+                        new DateTime(2018, 12, 1, 0, 0, TIMEZONE_BRISBANE),
+                        new DateTime(2018, 12, 2, 0, 0, TIMEZONE_BRISBANE), false)));
+
+        netCDFGenerator.generate(new File("/tmp/gbr4_simple_2018-12_modified.nc"), gbr4Template,
+                NcAnimateGenerator.createGbr4v2Dataset(
+                        new DateTime(2018, 12, 1, 0, 0, TIMEZONE_BRISBANE),
+                        new DateTime(2018, 12, 2, 0, 0, TIMEZONE_BRISBANE), false, 1000));
+
+        monthlyResults.add(netCDFGenerator.generate(new File("/tmp/gbr4_simple_2019-01.nc"), gbr4Template,
+                NcAnimateGenerator.createGbr4v2Dataset(
+                        new DateTime(2019, 1, 1, 0, 0, TIMEZONE_BRISBANE),
+                        new DateTime(2019, 1, 2, 0, 0, TIMEZONE_BRISBANE), false)));
+
+        monthlyResults.add(netCDFGenerator.generate(new File("/tmp/gbr4_simple_2019-02.nc"), gbr4Template,
+                NcAnimateGenerator.createGbr4v2Dataset(
+                        new DateTime(2019, 2, 1, 0, 0, TIMEZONE_BRISBANE),
+                        new DateTime(2019, 2, 2, 0, 0, TIMEZONE_BRISBANE), false)));
+
+        NcMLAggregation.writeJoinExisting(new File("/tmp/gbr4_simple.ncml"), monthlyResults);
     }
 }
@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Long-lived local server, generating NetCDF fixtures on demand.
+ *
+ * Test JVMs request fixtures using a one line text protocol, over a socket bound to localhost:
+ *     Request:  <scenario> <start date> <end date> [seed] [missingData]
+ *     Response: OK <file path> [<file path> ...]
+ *           or: ERROR <message>
+ *
+ * Example:
+ *     Request:  gbr4v2 2018-10-01T00:00+10:00 2018-10-02T00:00+10:00 4280 false
+ *     Response: OK /tmp/fixtures/gbr4v2_20181001T000000Z_20181002T000000Z_4280_false.nc
+ *
+ * Dates are in ISO 8601 format. Scenarios are generated using {@link NcAnimateGenerator}:
+ *     gbr4v2, gbr1v2, gbr4v2MultiHypercubes, gbr4bgc, noaa (2 files).
+ * Only "gbr4v2" supports the seed and missingData parameters.
+ *
+ * Generated files are kept in a cache directory, so they survive server restarts.
+ * Concurrent identical requests are coalesced: the fixture is only generated once.
+ *
+ * NOTE: Each connection is handled by its own thread (connections mostly wait for a fixture),
+ *     while the fixtures are generated by a bounded thread pool. Unix domain sockets are
+ *     not available in Java 8, so the server listens on the loopback interface.
+ */
+public class FixtureServer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(FixtureServer.class);
+
+    private static final DateTimeFormatter DATE_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+    private static final String DATE_KEY_PATTERN = "yyyyMMdd'T'HHmmss'Z'";
+    private static final long DEFAULT_GBR4V2_SEED = 4280;
+
+    private File cacheDirectory;
+    private Generator generator;
+    private ServerSocket serverSocket;
+    // Accept and handle the connections, unbounded
+    private ExecutorService connectionExecutor;
+    // Generate the fixtures, bounded by the thread count
+    private ExecutorService generationExecutor;
+
+    // Fixtures generated, or being generated. Used to coalesce identical requests.
+    //     Key: cache key (see FixtureRequest.getCacheKey)
+    private ConcurrentMap<String, FutureTask<List<File>>> fixtures;
+
+    public FixtureServer(File cacheDirectory) {
+        this(cacheDirectory, new Generator());
+    }
+
+    public FixtureServer(File cacheDirectory, Generator generator) {
+        if (cacheDirectory == null) {
+            throw new IllegalArgumentException("No cache directory provided");
+        }
+        if (generator == null) {
+            throw new IllegalArgumentException("No generator provided");
+        }
+        this.cacheDirectory = cacheDirectory;
+        this.generator = generator;
+        this.fixtures = new ConcurrentHashMap<String, FutureTask<List<File>>>();
+    }
+
+    /**
+     * Start listening for requests on the loopback interface.
+     * @param port The port number, or 0 to use any free port. See {@link #getPort()}.
+     * @param threadCount The number of fixtures generated concurrently.
+     *     The number of connections is not limited: requests wait for a generation thread.
+     * @throws IOException
+     */
+    public synchronized void start(int port, int threadCount) throws IOException {
+        if (this.serverSocket != null) {
+            throw new IllegalStateException("The fixture server is already started");
+        }
+        if (!this.cacheDirectory.isDirectory() && !this.cacheDirectory.mkdirs()) {
+            throw new IOException(String.format("Can not create the cache directory: %s", this.cacheDirectory));
+        }
+
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.connectionExecutor = Executors.newCachedThreadPool();
+        this.generationExecutor = Executors.newFixedThreadPool(threadCount);
+
+        final ServerSocket listeningSocket = this.serverSocket;
+        this.connectionExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                FixtureServer.this.acceptConnections(listeningSocket);
+            }
+        });
+
+        LOGGER.info(String.format("Fixture server listening on %s:%d, cache directory: %s",
+                listeningSocket.getInetAddress().getHostAddress(), listeningSocket.getLocalPort(), this.cacheDirectory));
+    }
+
+    public synchronized int getPort() {
+        return this.serverSocket == null ? -1 : this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.serverSocket != null) {
+            try {
+                this.serverSocket.close();
+            } finally {
+                this.connectionExecutor.shutdownNow();
+                // Fixtures waiting for a generation thread are cancelled, so they are generated again after a restart
+                for (Runnable waitingFixture : this.generationExecutor.shutdownNow()) {
+                    ((Future<?>)waitingFixture).cancel(false);
+                }
+                this.serverSocket = null;
+                this.connectionExecutor = null;
+                this.generationExecutor = null;
+            }
+        }
+    }
+
+    private synchronized ExecutorService getGenerationExecutor() {
+        return this.generationExecutor;
+    }
+
+    private void acceptConnections(ServerSocket listeningSocket) {
+        ExecutorService connectionExecutor;
+        synchronized (this) {
+            connectionExecutor = this.connectionExecutor;
+        }
+        while (!listeningSocket.isClosed()) {
+            try {
+                final Socket socket = listeningSocket.accept();
+                connectionExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        FixtureServer.this.handleConnection(socket);
+                    }
+                });
+            } catch (SocketException ex) {
+                // The server socket was closed
+                return;
+            } catch (Exception ex) {
+                LOGGER.error("Error occurred while accepting a connection", ex);
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket autoCloseSocket = socket;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(autoCloseSocket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(autoCloseSocket.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                writer.print(this.handleRequest(line));
+                writer.print('\n');
+                writer.flush();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Error occurred while handling a connection", ex);
+        }
+    }
+
+    private String handleRequest(String line) {
+        try {
+            List<File> files = this.getFixture(FixtureRequest.parse(line));
+            StringBuilder response = new StringBuilder("OK");
+            for (File file : files) {
+                response.append(' ').append(file.getAbsolutePath());
+            }
+            return response.toString();
+        } catch (Exception ex) {
+            LOGGER.warn(String.format("Invalid fixture request: %s", line), ex);
+            String message = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+            return "ERROR " + message.replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Return the files of a fixture, generating them if needed.
+     * Concurrent calls for the same fixture wait for a single generation.
+     * Once the server is started, fixtures are generated by its generation threads (see {@link #start(int, int)}),
+     * otherwise by the calling thread.
+     * Failed generations, generations cancelled when the server was closed, and fixtures which files
+     * were deleted since they were generated, are forgotten: they are generated again on the next request.
+     * @param request The fixture request.
+     * @return The fixture files.
+     * @throws IOException
+     */
+    public List<File> getFixture(final FixtureRequest request) throws IOException {
+        String cacheKey = request.getCacheKey();
+
+        while (true) {
+            FutureTask<List<File>> fixture = this.fixtures.get(cacheKey);
+            if (fixture == null) {
+                FutureTask<List<File>> newFixture = new FutureTask<List<File>>(new Callable<List<File>>() {
+                    @Override
+                    public List<File> call() throws Exception {
+                        return FixtureServer.this.generateFixture(request);
+                    }
+                });
+                fixture = this.fixtures.putIfAbsent(cacheKey, newFixture);
+                if (fixture == null) {
+                    fixture = newFixture;
+                    ExecutorService generationExecutor = this.getGenerationExecutor();
+                    if (generationExecutor == null) {
+                        fixture.run();
+                    } else {
+                        try {
+                            generationExecutor.execute(fixture);
+                        } catch (RejectedExecutionException ex) {
+                            // The server was closed
+                            fixture.cancel(false);
+                        }
+                    }
+                }
+            }
+
+            List<File> files;
+            try {
+                files = fixture.get();
+            } catch (CancellationException ex) {
+                // Cancelled when the server was closed: generated again if the server was restarted
+                this.fixtures.remove(cacheKey, fixture);
+                if (this.getGenerationExecutor() == null) {
+                    throw new IOException(String.format("The generation of the fixture %s was cancelled, the server is closed", cacheKey), ex);
+                }
+                continue;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the fixture", ex);
+            } catch (ExecutionException ex) {
+                // Forget failed generations, so the request can be retried
+                this.fixtures.remove(cacheKey, fixture);
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                throw new IOException(String.format("Error occurred while generating the fixture %s", cacheKey), cause);
+            }
+
+            if (FixtureServer.exists(files)) {
+                return files;
+            }
+
+            // The files were deleted from the cache: forget the stale fixture, and generate it again
+            LOGGER.info(String.format("Fixture %s was deleted from the cache", cacheKey));
+            this.fixtures.remove(cacheKey, fixture);
+        }
+    }
+
+    private static boolean exists(List<File> files) {
+        for (File file : files) {
+            if (!file.isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<File> generateFixture(FixtureRequest request) throws Exception {
+        String cacheKey = request.getCacheKey();
+        List<File> files = new ArrayList<File>();
+        if ("noaa".equals(request.getScenario())) {
+            files.add(new File(this.cacheDirectory, cacheKey + "_dp.nc"));
+            files.add(new File(this.cacheDirectory, cacheKey + "_hs.nc"));
+        } else {
+            files.add(new File(this.cacheDirectory, cacheKey + ".nc"));
+        }
+
+        // Disk cache, from a previous server run
+        if (FixtureServer.exists(files)) {
+            return files;
+        }
+
+        // Generate in temporary files, moved in the cache once complete,
+        //     to never serve partially written files.
+        String tmpSuffix = ".tmp-" + UUID.randomUUID();
+        List<File> tmpFiles = new ArrayList<File>();
+        for (File file : files) {
+            tmpFiles.add(new File(file.getPath() + tmpSuffix));
+        }
+
+        try {
+            LOGGER.info(String.format("Generating fixture %s", cacheKey));
+            this.generateScenario(request, tmpFiles);
+
+            for (int i=0; i<files.size(); i++) {
+                Files.move(tmpFiles.get(i).toPath(), files.get(i).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            for (File tmpFile : tmpFiles) {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Generate the files of a fixture.
+     * @param request The fixture request.
+     * @param outputFiles Where the files must be saved.
+     * @throws Exception
+     */
+    protected void generateScenario(FixtureRequest request, List<File> outputFiles) throws Exception {
+        String scenario = request.getScenario();
+        DateTime startDate = request.getStartDate();
+        DateTime endDate = request.getEndDate();
+
+        if ("gbr4v2".equals(scenario)) {
+            NcAnimateGenerator.generateGbr4v2(this.generator, startDate, endDate, outputFiles.get(0),
+                    request.isMissingData(), request.getSeed());
+            return;
+        }
+
+        if (request.getSeed() != null || request.isMissingData()) {
+            throw new IllegalArgumentException(String.format("Scenario %s doesn't support seed or missingData parameters", scenario));
+        }
+
+        if ("gbr1v2".equals(scenario)) {
+            NcAnimateGenerator.generateGbr1v2(this.generator, startDate, endDate, outputFiles.get(0));
+        } else if ("gbr4v2MultiHypercubes".equals(scenario)) {
+            NcAnimateGenerator.generateGbr4v2MultiHypercubes(this.generator, startDate, endDate, outputFiles.get(0));
+        } else if ("gbr4bgc".equals(scenario)) {
+            NcAnimateGenerator.generateGbr4bgc(this.generator, startDate, endDate, outputFiles.get(0));
+        } else if ("noaa".equals(scenario)) {
+            NcAnimateGenerator.generateNoaa(this.generator, startDate, endDate, outputFiles.get(0), outputFiles.get(1));
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown scenario: %s", scenario));
+        }
+    }
+
+    /**
+     * Request a fixture from a running server.
+     * @param port The server port.
+     * @param request The request line. Example: "gbr4v2 2018-10-01T00:00+10:00 2018-10-02T00:00+10:00"
+     * @return The fixture files.
+     * @throws IOException If the server can not be reached, or if the server could not generate the fixture.
+     */
+    public static List<File> request(int port, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            writer.print(request.replace('\n', ' '));
+            writer.print('\n');
+            writer.flush();
+
+            String response = reader.readLine();
+            if (response == null) {
+                throw new IOException("The fixture server closed the connection");
+            }
+            if (!response.startsWith("OK ")) {
+                throw new IOException(String.format("The fixture server returned an error: %s", response));
+            }
+
+            List<File> files = new ArrayList<File>();
+            for (String path : response.substring(3).trim().split(" ")) {
+                files.add(new File(path));
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Start a fixture server.
+     * Arguments: <port> <cache directory> [thread count]
+     */
+    public static void main(String ... args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: FixtureServer <port> <cache directory> [thread count]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        File cacheDirectory = new File(args[1]);
+        int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final FixtureServer server = new FixtureServer(cacheDirectory);
+        server.start(port, threadCount);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.close();
+                } catch (IOException ex) {
+                    LOGGER.error("Error occurred while stopping the fixture server", ex);
+                }
+            }
+        });
+    }
+
+    // A parsed fixture request
+    public static class FixtureRequest {
+        private String scenario;
+        private DateTime startDate;
+        private DateTime endDate;
+        private Long seed;
+        private boolean missingData;
+
+        public FixtureRequest(String scenario, DateTime startDate, DateTime endDate, Long seed, boolean missingData) {
+            if (scenario == null || startDate == null || endDate == null) {
+                throw new IllegalArgumentException("Scenario, start date and end date are mandatory");
+            }
+            this.scenario = scenario;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.seed = seed;
+            this.missingData = missingData;
+        }
+
+        public static FixtureRequest parse(String line) {
+            List<String> parts = new ArrayList<String>(Arrays.asList(line.trim().split("\\s+")));
+            if (parts.size() < 3 || parts.size() > 5) {
+                throw new IllegalArgumentException("Expected: <scenario> <start date> <end date> [seed] [missingData]");
+            }
+
+            return new FixtureRequest(
+                    parts.get(0),
+                    DATE_PARSER.parseDateTime(parts.get(1)),
+                    DATE_PARSER.parseDateTime(parts.get(2)),
+                    parts.size() > 3 ? Long.valueOf(parts.get(3)) : null,
+                    parts.size() > 4 && Boolean.parseBoolean(parts.get(4)));
+        }
+
+        public String getScenario() {
+            return this.scenario;
+        }
+
+        public DateTime getStartDate() {
+            return this.startDate;
+        }
+
+        public DateTime getEndDate() {
+            return this.endDate;
+        }
+
+        public Long getSeed() {
+            return this.seed;
+        }
+
+        public boolean isMissingData() {
+            return this.missingData;
+        }
+
+        // Unique name of the fixture, used as the cache file name
+        public String getCacheKey() {
+            String seedKey;
+            if ("gbr4v2".equals(this.scenario)) {
+                seedKey = String.format("_%d_%b", this.seed == null ? DEFAULT_GBR4V2_SEED : this.seed, this.missingData);
+            } else {
+                seedKey = this.seed == null && !this.missingData ? "" : String.format("_%d_%b", this.seed, this.missingData);
+            }
+
+            return String.format("%s_%s_%s%s",
+                    this.scenario.replaceAll("[^A-Za-z0-9]", "-"),
+                    this.startDate.toString(DATE_KEY_PATTERN),
+                    this.endDate.toString(DATE_KEY_PATTERN),
+                    seedKey);
+        }
+    }
+}
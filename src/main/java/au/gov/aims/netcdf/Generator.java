@@ -6,34 +6,44 @@ package au.gov.aims.netcdf;
 
 import au.gov.aims.netcdf.bean.NetCDFDataset;
 import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFPointCoordinate;
 import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
 import au.gov.aims.netcdf.bean.NetCDFTimeVariable;
 import au.gov.aims.netcdf.bean.NetCDFVariable;
-import org.joda.time.DateTime;
-import org.joda.time.Hours;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
 import ucar.ma2.Array;
-import ucar.ma2.ArrayDouble;
 import ucar.ma2.DataType;
-import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
-import ucar.nc2.Dimension;
+import ucar.nc2.Attribute;
 import ucar.nc2.NetcdfFileWriter;
 import ucar.nc2.Variable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Generate NetCDF file containing a single data hypercube.
+ * Generate NetCDF files containing one or more data hypercubes, one per dataset.
  *
  * To simplify the library, some assumptions were made:
- * - Every variable have the following dimensions: time, lat, lon
+ * - Every variable have the dimensions lat and lon, and optionally time and height
+ *   (in the order defined by {@link DimensionOrder})
  * - Values are type Double
  *
  * Unidata example:
@@ -46,8 +56,16 @@ import java.util.TreeSet;
  *     https://github.com/Unidata/netcdf-java/tree/master/cdm/core/src/main/java/ucar
  */
 public class Generator {
-    // Switch to "netcdf3" if you are getting error with the generation of NetCDF4 files
-    private static final NetcdfFileWriter.Version NETCDF_VERSION = NetcdfFileWriter.Version.netcdf4;
+    // Use "NETCDF3" if you are getting error with the generation of NetCDF4 files
+    //     (or if the native libnetcdf library is not installed)
+    static final NetCDFFormat DEFAULT_FORMAT = NetCDFFormat.NETCDF4;
+
+    // Files generated in memory are written in NetCDF 3 when the generator format is native,
+    //     since NetCDF 3 is written in pure Java.
+    private static final NetCDFFormat IN_MEMORY_FORMAT = NetCDFFormat.NETCDF3;
+
+    // Memory backed file system, used for scratch files when available (Linux)
+    private static final File SHARED_MEMORY_DIRECTORY = new File("/dev/shm");
 
     // NOTE: Null value can be set using attribute "_FillValue", "missing_value", etc,
     //     by adding the following line (for example) in the definition of the variable:
@@ -61,17 +79,176 @@ public class Generator {
     //     was expected never appeared, but missing_value where the creator of the data intends data to be
     //     missing, as around an irregular region represented by a rectangular grid.
     //     https://www.bic.mni.mcgill.ca/users/sean/Docs/netcdf/guide.txn_59.html
-    private static final Double NULL_VALUE = Double.NaN;
+    static final Double NULL_VALUE = Double.NaN;
+
+    // Space reserved in the header for the statistics attributes of a variable, in bytes
+    private static final int STATISTICS_HEADER_SIZE = 128;
+
+    private int threadCount;
+    private NetCDFFormat format;
+    // Null: written for the formats which reserve space in the header (see NetCDFFormat#isExtraHeaderSizeSupported)
+    private Boolean writeStatistics;
+    private WriteOrder writeOrder;
+    private DimensionOrder dimensionOrder;
+
+    private GeneratorProgress.Listener progressListener;
+    private CancellationToken cancellationToken;
+    private long timeLimit;
+
+    public Generator() {
+        this(DEFAULT_FORMAT);
+    }
+
+    public Generator(NetCDFFormat format) {
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.writeStatistics = null;
+        this.writeOrder = WriteOrder.VARIABLE_MAJOR;
+        this.dimensionOrder = DimensionOrder.TIME_HEIGHT_LAT_LON;
+        this.setFormat(format);
+    }
+
+    public boolean isWriteStatistics() {
+        return this.isWriteStatistics(this.format);
+    }
+
+    private boolean isWriteStatistics(NetCDFFormat format) {
+        return this.writeStatistics == null ? format.isExtraHeaderSizeSupported() : this.writeStatistics;
+    }
+
+    /**
+     * Write the range of each variable in its attributes "actual_range", "valid_min" and "valid_max",
+     * so consumers can get the range of the values from the header, without reading the data.
+     * The attributes are added once the data is written, which reopens the header of the file.
+     * The NetCDF 3 formats write them in space reserved in the header. The NetCDF 4 formats can not
+     * reserve header space, the native library may have to move the data to grow the header.
+     * The statistics are always available in the {@link GeneratorResult}.
+     * @param writeStatistics True to write the range attributes.
+     *     Default: true for the NetCDF 3 formats, false for the NetCDF 4 formats.
+     */
+    public void setWriteStatistics(boolean writeStatistics) {
+        this.writeStatistics = writeStatistics;
+    }
+
+    public WriteOrder getWriteOrder() {
+        return this.writeOrder;
+    }
+
+    /**
+     * Set the order in which the records of the variables are written.
+     * See {@link WriteOrder}
+     * @param writeOrder The write order. Default: VARIABLE_MAJOR.
+     */
+    public void setWriteOrder(WriteOrder writeOrder) {
+        if (writeOrder == null) {
+            throw new IllegalArgumentException("No write order provided");
+        }
+        this.writeOrder = writeOrder;
+    }
+
+    public DimensionOrder getDimensionOrder() {
+        return this.dimensionOrder;
+    }
+
+    /**
+     * Set the order of the dimensions of the variables with height.
+     * Files generated with a template use the dimension order of the template.
+     * See {@link DimensionOrder}
+     * @param dimensionOrder The dimension order. Default: TIME_HEIGHT_LAT_LON.
+     */
+    public void setDimensionOrder(DimensionOrder dimensionOrder) {
+        if (dimensionOrder == null) {
+            throw new IllegalArgumentException("No dimension order provided");
+        }
+        this.dimensionOrder = dimensionOrder;
+    }
+
+    public NetCDFFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Set the format of the files generated by this generator.
+     * @param format The NetCDF format. Default: NETCDF4.
+     */
+    public void setFormat(NetCDFFormat format) {
+        if (format == null) {
+            throw new IllegalArgumentException("No format provided");
+        }
+        this.format = format;
+    }
+
+    public GeneratorProgress.Listener getProgressListener() {
+        return this.progressListener;
+    }
+
+    /**
+     * Set a listener notified after each record written,
+     * with the number of records and variables written, the ETA and the throughput.
+     * @param progressListener The listener, or null to disable progress reporting.
+     */
+    public void setProgressListener(GeneratorProgress.Listener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return this.cancellationToken;
+    }
+
+    /**
+     * Set a token used to cancel the generation from another thread.
+     * The token is checked while the hypercubes are prepared, while the variables are filled
+     * (every {@link RecordIndex#CHECKPOINT_INTERVAL} data points) and between record writes.
+     * When it's cancelled, the generation throws a {@link CancellationException}
+     * and the partial output file is deleted, once every task has stopped.
+     * @param cancellationToken The token, or null to disable cancellation.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public long getTimeLimit() {
+        return this.timeLimit;
+    }
+
+    /**
+     * Set the maximum time allowed to write a file. The time limit is checked
+     * while the variables are filled and between record writes.
+     * When it's exceeded, the generation throws a {@link CancellationException}
+     * and the partial output file is deleted.
+     * @param timeLimit The time limit, in milliseconds. 0 for no limit. Default: 0.
+     */
+    public void setTimeLimit(long timeLimit) {
+        if (timeLimit < 0) {
+            throw new IllegalArgumentException(String.format("Invalid time limit: %d", timeLimit));
+        }
+        this.timeLimit = timeLimit;
+    }
+
+    public int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Set the maximum number of threads used to write files concurrently.
+     * @param threadCount Number of threads, at least 1.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(String.format("Invalid thread count: %d", threadCount));
+        }
+        this.threadCount = threadCount;
+    }
 
     /**
      * Generate a NetCDF file containing at least one data hypercube
      * @param outputFile Where the NetCDF file will be saved.
      * @param datasets Data to save in the file. Only specify one,
      *     unless you want multiple data hypercubes in the NetCDF file.
+     * @return Information about the generated file, such as its time values.
      * @throws IOException
      * @throws InvalidRangeException
      */
-    public void generate(File outputFile, NetCDFDataset ... datasets) throws IOException, InvalidRangeException {
+    public GeneratorResult generate(File outputFile, NetCDFDataset ... datasets) throws IOException, InvalidRangeException {
         // Validate arguments
         if (outputFile == null) {
             throw new IllegalArgumentException("No output file provided");
@@ -80,239 +257,981 @@ public class Generator {
             throw new IllegalArgumentException("No dataset provided");
         }
 
-        // Instantiate the UCAR NetCDF writer (with a try-with-resource to ensure it gets closed)
-        try (NetcdfFileWriter writer = NetcdfFileWriter.createNew(NETCDF_VERSION, outputFile.getAbsolutePath())) {
+        return this.write(outputFile, this.format, null, this.prepare(null, datasets), new GeneratorResult(outputFile));
+    }
 
-            List<Bundle> bundleList = new ArrayList<Bundle>();
+    /**
+     * Generate a NetCDF file in a given format, ignoring the format of the generator.
+     * @param outputFile Where the NetCDF file will be saved.
+     * @param format The NetCDF format of the file.
+     * @param datasets Data to save in the file. One dataset per hypercube.
+     * @return Information about the generated file, such as its time values.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public GeneratorResult generate(File outputFile, NetCDFFormat format, NetCDFDataset ... datasets)
+            throws IOException, InvalidRangeException {
 
-            // Initialise the NetCDF header
-            // - Declare UCAR Dimensions
-            // - Declare UCAR Variables
-            int datasetCount = 0;
-            for (NetCDFDataset dataset : datasets) {
-                Bundle bundle = new Bundle(dataset);
-                bundleList.add(bundle);
-
-                // Set attributes
-                for (Map.Entry<String, String> attributeEntry : dataset.getGlobalAttributes().entrySet()) {
-                    writer.addGlobalAttribute(attributeEntry.getKey(), attributeEntry.getValue());
+        // Validate arguments
+        if (outputFile == null) {
+            throw new IllegalArgumentException("No output file provided");
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("No format provided");
+        }
+        if (datasets == null || datasets.length < 1) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+
+        return this.write(outputFile, format, null, this.prepare(null, datasets), new GeneratorResult(outputFile));
+    }
+
+    /**
+     * Generate a NetCDF file using a header template compiled with {@link #compileTemplate(NetCDFDataset...)}.
+     * The header is replayed from the template, and the lat / lon / height axes
+     * of the template are used instead of being computed from the data.
+     * Only the time dimension length depends on the datasets.
+     *
+     * NOTE: Data points which are not on the template axes are ignored.
+     *
+     * @param outputFile Where the NetCDF file will be saved.
+     * @param template The header template.
+     * @param datasets Data to save in the file. The datasets must have the same
+     *     variables and time unit as the datasets used to compile the template.
+     * @return Information about the generated file, such as its time values.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public GeneratorResult generate(File outputFile, NetCDFHeaderTemplate template, NetCDFDataset ... datasets)
+            throws IOException, InvalidRangeException {
+
+        // Validate arguments
+        if (outputFile == null) {
+            throw new IllegalArgumentException("No output file provided");
+        }
+        if (template == null) {
+            throw new IllegalArgumentException("No template provided");
+        }
+        if (datasets == null || datasets.length < 1) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+
+        return this.write(outputFile, this.format, template, this.prepare(template, datasets), new GeneratorResult(outputFile));
+    }
+
+    /**
+     * Generate a NetCDF file in memory, without an output file.
+     * The content of the file is available with {@link GeneratorResult#getContent()}
+     * and can be opened with {@code NetcdfFile.openInMemory} or {@link NetCDFLoader#load(String, byte[])}.
+     *
+     * Useful for tests which only need a file transiently,
+     * since it doesn't need a unique output path.
+     *
+     * NOTE: The file is generated in NetCDF 3 format, unless the generator format is
+     *     NETCDF3_64BIT_OFFSET. The UCAR writer can only write to a path, so the file is written in a scratch file
+     *     (in "/dev/shm" when available), loaded in memory and deleted immediately.
+     *
+     * @param datasets Data to save in the file. One dataset per hypercube.
+     * @return Information about the generated file, including its content.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public GeneratorResult generateInMemory(NetCDFDataset ... datasets) throws IOException, InvalidRangeException {
+        if (datasets == null || datasets.length < 1) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+
+        return this.writeInMemory(null, this.prepare(null, datasets));
+    }
+
+    /**
+     * Generate a NetCDF file in memory, using a header template.
+     * See {@link #generateInMemory(NetCDFDataset...)} and {@link #generate(File, NetCDFHeaderTemplate, NetCDFDataset...)}.
+     * @param template The header template.
+     * @param datasets Data to save in the file.
+     * @return Information about the generated file, including its content.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public GeneratorResult generateInMemory(NetCDFHeaderTemplate template, NetCDFDataset ... datasets)
+            throws IOException, InvalidRangeException {
+
+        if (template == null) {
+            throw new IllegalArgumentException("No template provided");
+        }
+        if (datasets == null || datasets.length < 1) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+
+        return this.writeInMemory(template, this.prepare(template, datasets));
+    }
+
+    private GeneratorResult writeInMemory(NetCDFHeaderTemplate template, List<Bundle> bundleList)
+            throws IOException, InvalidRangeException {
+
+        File scratchDirectory = SHARED_MEMORY_DIRECTORY.isDirectory() && SHARED_MEMORY_DIRECTORY.canWrite() ?
+                SHARED_MEMORY_DIRECTORY : null;
+        File scratchFile = File.createTempFile("netcdf-generator-", ".nc", scratchDirectory);
+        try {
+            NetCDFFormat inMemoryFormat = this.format.isNative() ? IN_MEMORY_FORMAT : this.format;
+            GeneratorResult result = this.write(scratchFile, inMemoryFormat, template, bundleList, new GeneratorResult(null));
+            result.setContent(Files.readAllBytes(scratchFile.toPath()));
+            return result;
+        } finally {
+            Files.deleteIfExists(scratchFile.toPath());
+        }
+    }
+
+    /**
+     * Compile the header of the NetCDF file that would be generated for the datasets,
+     * to be reused with {@link #generate(File, NetCDFHeaderTemplate, NetCDFDataset...)}
+     * for files which only differ by their data and time length.
+     * @param datasets Data used to define the header. One dataset per hypercube.
+     * @return The header template.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public NetCDFHeaderTemplate compileTemplate(NetCDFDataset ... datasets) throws IOException, InvalidRangeException {
+        if (datasets == null || datasets.length < 1) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+
+        return Generator.compileTemplate(this.prepare(null, datasets));
+    }
+
+    // Prepare the hypercubes concurrently (axes and dates).
+    private List<Bundle> prepare(final NetCDFHeaderTemplate template, NetCDFDataset ... datasets)
+            throws IOException, InvalidRangeException {
+
+        final Runnable checkpoint = this.getCheckpoint(String.format("Preparation of %d hypercube(s)", datasets.length));
+
+        if (template != null && template.getHypercubes().size() != datasets.length) {
+            throw new IllegalArgumentException(String.format("The template contains %d hypercube(s), %d dataset(s) provided",
+                    template.getHypercubes().size(), datasets.length));
+        }
+
+        final Bundle[] bundles = new Bundle[datasets.length];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int datasetIndex=0; datasetIndex<datasets.length; datasetIndex++) {
+            final NetCDFDataset dataset = datasets[datasetIndex];
+            final int bundleIndex = datasetIndex;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    checkpoint.run();
+                    if (template == null) {
+                        NetCDFDataset.Dimensions dimensions = dataset.getDimensions();
+                        checkpoint.run();
+                        bundles[bundleIndex] = new Bundle(dataset, bundleIndex, dimensions,
+                                Generator.this.dimensionOrder, checkpoint);
+                    } else {
+                        NetCDFHeaderTemplate.Hypercube hypercube = template.getHypercubes().get(bundleIndex);
+                        Generator.validate(hypercube, dataset);
+                        checkpoint.run();
+                        bundles[bundleIndex] = new Bundle(dataset, bundleIndex, hypercube.getAxes(),
+                                hypercube.getDimensionOrder(), checkpoint);
+                    }
+                    return null;
+                }
+            });
+        }
+        this.invokeAll(tasks);
+
+        List<Bundle> bundleList = Arrays.asList(bundles);
+        Generator.shareAxes(bundleList, template);
+        if (template != null) {
+            for (int bundleIndex=0; bundleIndex<bundles.length; bundleIndex++) {
+                String templateTimeVariableName = template.getHypercubes().get(bundleIndex).getTimeVariableName();
+                if (!bundles[bundleIndex].timeVariableName.equals(templateTimeVariableName)) {
+                    throw new IllegalArgumentException(String.format("The dataset %d time axis \"%s\" doesn't match the template time axis \"%s\"",
+                            bundleIndex, bundles[bundleIndex].timeVariableName, templateTimeVariableName));
                 }
+            }
+        }
+
+        return bundleList;
+    }
 
-                // Create a unique name for the dimensions / variables (to prevent clashes between hypercubes)
-                bundle.latVariableName = "lat";
-                bundle.lonVariableName = "lon";
-                bundle.timeVariableName = "time";
-                bundle.heightVariableName = "zc"; // as defined in eReefs NetCDF files
-                if (datasetCount > 0) {
-                    bundle.latVariableName += datasetCount;
-                    bundle.lonVariableName += datasetCount;
-                    bundle.timeVariableName += datasetCount;
-                    bundle.heightVariableName += datasetCount;
+    /**
+     * Reuse the axes of a previous hypercube when they are identical,
+     * so they are declared and written only once, and readers can use a single coordinate system.
+     * The time axis is shared when the dates and the time unit are identical.
+     *
+     * With a template, the time axes are shared as declared in the template:
+     * a hypercube which uses the time axis of a previous hypercube must have the same dates and time unit.
+     * The other axes are compared by value, since the template axes are used.
+     */
+    private static void shareAxes(List<Bundle> bundleList, NetCDFHeaderTemplate template) {
+        for (int i=1; i<bundleList.size(); i++) {
+            Bundle bundle = bundleList.get(i);
+            for (int j=0; j<i; j++) {
+                Bundle previousBundle = bundleList.get(j);
+                if (!bundle.isShared(bundle.latVariableName) && Arrays.equals(bundle.lats, previousBundle.lats)) {
+                    bundle.latVariableName = bundle.share(previousBundle.latVariableName);
+                }
+                if (!bundle.isShared(bundle.lonVariableName) && Arrays.equals(bundle.lons, previousBundle.lons)) {
+                    bundle.lonVariableName = bundle.share(previousBundle.lonVariableName);
+                }
+                if (!bundle.isShared(bundle.heightVariableName) && bundle.heights != null &&
+                        Arrays.equals(bundle.heights, previousBundle.heights)) {
+                    bundle.heightVariableName = bundle.share(previousBundle.heightVariableName);
+                }
+                if (!bundle.isShared(bundle.timeVariableName) && bundle.hasTime() && previousBundle.hasTime()) {
+                    boolean sameTime = bundle.dates.equals(previousBundle.dates) &&
+                            bundle.dataset.getTimeUnit().equals(previousBundle.dataset.getTimeUnit());
+                    if (template == null) {
+                        if (sameTime) {
+                            bundle.timeVariableName = bundle.share(previousBundle.timeVariableName);
+                        }
+                    } else if (previousBundle.timeVariableName.equals(template.getHypercubes().get(i).getTimeVariableName())) {
+                        if (!sameTime) {
+                            throw new IllegalArgumentException(String.format(
+                                    "The dataset %d time axis doesn't match the time axis \"%s\" of the dataset %d, shared in the template",
+                                    i, previousBundle.timeVariableName, j));
+                        }
+                        bundle.timeVariableName = bundle.share(previousBundle.timeVariableName);
+                    }
                 }
+            }
+        }
+    }
 
-                float[] lats = bundle.lats;
-                float[] lons = bundle.lons;
-                double[] heights = bundle.heights;
+    // Check that a dataset matches a template hypercube
+    private static void validate(NetCDFHeaderTemplate.Hypercube hypercube, NetCDFDataset dataset) {
+        List<String> variableNames = new ArrayList<String>();
+        for (AbstractNetCDFVariable variable : dataset) {
+            variableNames.add(variable.getName());
+        }
+        if (!hypercube.getVariableNames().equals(variableNames)) {
+            throw new IllegalArgumentException(String.format("The dataset variables %s doesn't match the template variables %s",
+                    variableNames, hypercube.getVariableNames()));
+        }
+        List<String> variableTypes = new ArrayList<String>();
+        for (AbstractNetCDFVariable variable : dataset) {
+            variableTypes.add(Generator.getVariableType(variable));
+        }
+        if (!hypercube.getVariableTypes().equals(variableTypes)) {
+            throw new IllegalArgumentException(String.format("The dataset variable types %s doesn't match the template variable types %s",
+                    variableTypes, hypercube.getVariableTypes()));
+        }
+        if (!hypercube.getTimeUnit().equals(dataset.getTimeUnit())) {
+            throw new IllegalArgumentException(String.format("The dataset time unit \"%s\" doesn't match the template time unit \"%s\"",
+                    dataset.getTimeUnit(), hypercube.getTimeUnit()));
+        }
 
-                // Declare lat / lon / time dimensions
-                bundle.latDimension = writer.addDimension(bundle.latVariableName, lats.length);
-                bundle.lonDimension = writer.addDimension(bundle.lonVariableName, lons.length);
-                Dimension timeDimension = writer.addUnlimitedDimension(bundle.timeVariableName);
+        // The data must be on the template axes, otherwise it would be silently dropped
+        NetCDFDataset.Dimensions datasetAxes = dataset.getDimensions();
+        NetCDFDataset.Dimensions templateAxes = hypercube.getAxes();
+        Generator.validateAxis("latitude", datasetAxes.getLatitudes(), templateAxes.getLatitudes());
+        Generator.validateAxis("longitude", datasetAxes.getLongitudes(), templateAxes.getLongitudes());
+        if (datasetAxes.getHeights() != null) {
+            if (templateAxes.getHeights() == null) {
+                throw new IllegalArgumentException("The dataset has heights, the template has no height axis");
+            }
+            for (double height : datasetAxes.getHeights()) {
+                if (AxisIndex.indexOf(templateAxes.getHeights(), height, NetCDFPointCoordinate.HEIGHT_EPSILON) < 0) {
+                    throw new IllegalArgumentException(String.format("The dataset height %s is not on the template height axis", height));
+                }
+            }
+        }
+    }
 
-                bundle.heightDimension = null;
-                if (heights != null) {
-                    bundle.heightDimension = writer.addDimension(bundle.heightVariableName, heights.length);
+    private static void validateAxis(String axisName, float[] datasetAxis, float[] templateAxis) {
+        if (datasetAxis != null) {
+            for (float value : datasetAxis) {
+                if (AxisIndex.indexOf(templateAxis, value, NetCDFPointCoordinate.COORDINATE_EPSILON) < 0) {
+                    throw new IllegalArgumentException(String.format("The dataset %s %s is not on the template %s axis",
+                            axisName, value, axisName));
                 }
+            }
+        }
+    }
+
+    // Type of a variable, as declared in the NetCDF file: with or without time and height
+    private static String getVariableType(AbstractNetCDFVariable variable) {
+        if (variable instanceof NetCDFTimeDepthVariable) {
+            return NetCDFTimeDepthVariable.class.getSimpleName();
+        }
+        if (variable instanceof NetCDFTimeVariable) {
+            return NetCDFTimeVariable.class.getSimpleName();
+        }
+        return NetCDFVariable.class.getSimpleName();
+    }
+
+    /**
+     * Generate a set of NetCDF files, one file per partition of the dataset.
+     * The lat / lon / height axes, and the record dates, are computed once and shared by every partition.
+     * The data points of each variable are indexed once, against the records of the whole dataset,
+     * and each DAY / MONTH partition reads its own slice of the records (see {@link SharedRecordReaders}).
+     * Partitions are written concurrently,
+     * using up to {@link #getThreadCount()} threads.
+     *
+     * Output files are named: {@code <filePrefix><partition key>.nc}
+     * Examples:
+     *     DAY:      gbr4_simple_2018-10-01.nc
+     *     MONTH:    gbr4_simple_2018-10.nc
+     *     VARIABLE: gbr4_simple_temp.nc
+     *
+     * A NcML file aggregating the partitions is saved in the output directory,
+     * named after the file prefix: {@code <filePrefix>.ncml}
+     * (trailing "_", "-" and "." are removed from the prefix).
+     * It's a "joinExisting" aggregation for DAY and MONTH partitions,
+     * or a "union" aggregation for VARIABLE partitions.
+     * See {@link NcMLAggregation}.
+     *
+     * NOTE: Dates are partitioned using the timezone of the dataset time epoch.
+     *     Variables without time (such as bathymetry "botz") are added to every time partition.
+     *     Vector variables are kept together, in a partition named after the vector group name.
+     *     VARIABLE partitions all use the dates of the whole dataset, so their time axes can be combined;
+     *     partitions without time variables have no time axis.
+     *
+     * @param outputDirectory Directory where the NetCDF files will be saved.
+     * @param filePrefix Prefix of the output file names.
+     * @param partitionPolicy How the dataset is split between files.
+     * @param dataset Data to save in the files.
+     * @return The list of generated files, in partition order.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public List<File> generatePartitions(File outputDirectory, String filePrefix, PartitionPolicy partitionPolicy, NetCDFDataset dataset)
+            throws IOException, InvalidRangeException {
+
+        // Validate arguments
+        if (outputDirectory == null) {
+            throw new IllegalArgumentException("No output directory provided");
+        }
+        if (partitionPolicy == null) {
+            throw new IllegalArgumentException("No partition policy provided");
+        }
+        if (dataset == null) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException(String.format("Can not create the output directory: %s", outputDirectory));
+        }
 
-                // Coordinate axis attributes.
-                //     It seems to work without them (except for the vertical axis).
-                //     I added them for all axes to follow the documentation.
-                //     https://www.unidata.ucar.edu/software/netcdf-java/v4.6/reference/CoordinateAttributes.html
-                //     https://www.unidata.ucar.edu/software/netcdf-java/v4.6/tutorial/CoordinateAttributes.html
-
-                // Declare dimension variables (seams redundant, but it's required)
-                List<Dimension> latDimensions = new ArrayList<Dimension>();
-                latDimensions.add(bundle.latDimension);
-                bundle.latVariable = writer.addVariable(bundle.latVariableName, DataType.FLOAT, latDimensions);
-                writer.addVariableAttribute(bundle.latVariableName, "units", "degrees_north");
-                writer.addVariableAttribute(bundle.latVariableName, "_CoordinateAxisType", "Lat");
-
-                List<Dimension> lonDimensions = new ArrayList<Dimension>();
-                lonDimensions.add(bundle.lonDimension);
-                bundle.lonVariable = writer.addVariable(bundle.lonVariableName, DataType.FLOAT, lonDimensions);
-                writer.addVariableAttribute(bundle.lonVariableName, "units", "degrees_east");
-                writer.addVariableAttribute(bundle.lonVariableName, "_CoordinateAxisType", "Lon");
-
-                List<Dimension> timeDimensions = new ArrayList<Dimension>();
-                timeDimensions.add(timeDimension);
-                writer.addVariable(bundle.timeVariableName, DataType.INT, timeDimensions);
-                writer.addVariableAttribute(bundle.timeVariableName, "units", dataset.getTimeUnit());
-                writer.addVariableAttribute(bundle.timeVariableName, "_CoordinateAxisType", "Time");
-
-                if (bundle.heightDimension != null) {
-                    List<Dimension> heightDimensions = new ArrayList<Dimension>();
-                    heightDimensions.add(bundle.heightDimension);
-                    bundle.heightVariable = writer.addVariable(bundle.heightVariableName, DataType.DOUBLE, heightDimensions);
-                    writer.addVariableAttribute(bundle.heightVariableName, "units", "m");
-                    writer.addVariableAttribute(bundle.heightVariableName, "_CoordinateAxisType", "Height");
-                    writer.addVariableAttribute(bundle.heightVariableName, "_CoordinateZisPositive", "up");
+        // Axes and dates are computed once, for all partitions. The partitions share the record readers.
+        Runnable checkpoint = this.getCheckpoint(String.format("Partitioning of %s", outputDirectory));
+        NetCDFDataset.Dimensions dimensions = dataset.getDimensions();
+        checkpoint.run();
+        Bundle bundle = new Bundle(dataset, 0, dimensions, this.dimensionOrder, checkpoint);
+        Map<String, Bundle> partitions = partitionPolicy.partition(bundle);
+
+        final List<File> outputFiles = new ArrayList<File>();
+        final GeneratorResult[] results = new GeneratorResult[partitions.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Map.Entry<String, Bundle> partitionEntry : partitions.entrySet()) {
+            final File outputFile = new File(outputDirectory,
+                    (filePrefix == null ? "" : filePrefix) + partitionEntry.getKey() + ".nc");
+            final Bundle partitionBundle = partitionEntry.getValue();
+            final int partitionIndex = outputFiles.size();
+            outputFiles.add(outputFile);
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    results[partitionIndex] = Generator.this.write(outputFile, Generator.this.format, null,
+                            Collections.singletonList(partitionBundle), new GeneratorResult(outputFile));
+                    return null;
                 }
+            });
+        }
 
-                // Declare data variables (such as temp, salt, current, etc)
-                // NOTE: This is the declaration only. The data will be added later.
-                for (AbstractNetCDFVariable variable : dataset) {
-                    String variableName = variable.getName();
-                    DataType dataType = DataType.DOUBLE;
-                    List<Dimension> varDimensions = new ArrayList<Dimension>();
-                    if ((variable instanceof NetCDFTimeVariable) || (variable instanceof NetCDFTimeDepthVariable)) {
-                        varDimensions.add(timeDimension);
-                    }
-                    varDimensions.add(bundle.latDimension);
-                    varDimensions.add(bundle.lonDimension);
-                    if (bundle.heightDimension != null && (variable instanceof NetCDFTimeDepthVariable)) {
-                        varDimensions.add(bundle.heightDimension);
-                    }
+        this.invokeAll(tasks);
 
-                    writer.addVariable(variableName, dataType, varDimensions);
+        File ncmlFile = new File(outputDirectory, NcMLAggregation.getFilename(filePrefix));
+        if (partitionPolicy.isByDate()) {
+            NcMLAggregation.writeJoinExisting(ncmlFile, Arrays.asList(results));
+        } else {
+            NcMLAggregation.writeUnion(ncmlFile, Arrays.asList(results));
+        }
 
-                    for (Map.Entry<String, String> attributeEntry : variable.getAttributes().entrySet()) {
-                        // Set variable attributes such as "units", "standard_name", etc
-                        writer.addVariableAttribute(variableName, attributeEntry.getKey(), attributeEntry.getValue());
-                    }
+        return outputFiles;
+    }
+
+    /**
+     * Generate a NetCDF file and lower resolution copies of it, in sibling files.
+     * The lower resolution datasets are computed in a single pass over the dataset
+     * (see {@link NetCDFDownsampler}), then all the files are written concurrently.
+     *
+     * Example: outputFile "gbr4.nc" with factors 2 and 4 generates
+     *     "gbr4.nc", "gbr4_2x.nc" and "gbr4_4x.nc".
+     *
+     * @param outputFile Where the full resolution NetCDF file will be saved.
+     * @param method How the cells are combined.
+     * @param factors The downsampling factors.
+     * @param dataset Data to save in the files.
+     * @return Information about the generated files, starting with the full resolution file.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public List<GeneratorResult> generatePyramid(File outputFile, NetCDFDownsampler.Method method, int[] factors, NetCDFDataset dataset)
+            throws IOException, InvalidRangeException {
+
+        // Validate arguments
+        if (outputFile == null) {
+            throw new IllegalArgumentException("No output file provided");
+        }
+        if (dataset == null) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+
+        List<NetCDFDataset> levels = NetCDFDownsampler.downsample(dataset, method, factors);
+
+        final List<File> outputFiles = new ArrayList<File>();
+        final List<List<Bundle>> bundleLists = new ArrayList<List<Bundle>>();
+        outputFiles.add(outputFile);
+        bundleLists.add(this.prepare(null, dataset));
+        for (int level=0; level<factors.length; level++) {
+            outputFiles.add(NetCDFDownsampler.getLevelFile(outputFile, factors[level]));
+            bundleLists.add(this.prepare(null, levels.get(level)));
+        }
+
+        final GeneratorResult[] results = new GeneratorResult[outputFiles.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i=0; i<outputFiles.size(); i++) {
+            final int levelIndex = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    File levelFile = outputFiles.get(levelIndex);
+                    results[levelIndex] = Generator.this.write(levelFile, Generator.this.format, null,
+                            bundleLists.get(levelIndex), new GeneratorResult(levelFile));
+                    return null;
+                }
+            });
+        }
+
+        this.invokeAll(tasks);
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Stop the generation when it's cancelled, or when the task is interrupted
+     * because another task failed (see {@link #invokeAll(List)}).
+     * @param operation The operation checked, used in the exception message.
+     */
+    void checkCancelled(String operation) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException(String.format("%s interrupted", operation));
+        }
+        CancellationToken token = this.cancellationToken;
+        if (token != null && token.isCancelled()) {
+            throw new CancellationException(String.format("%s cancelled", operation));
+        }
+    }
+
+    // Cancellation check, run periodically by long loops which don't write records
+    private Runnable getCheckpoint(final String operation) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Generator.this.checkCancelled(operation);
+            }
+        };
+    }
+
+    /**
+     * Run the tasks using up to {@link #getThreadCount()} threads,
+     * and wait for all of them to finish.
+     * The first exception thrown by a task is re-thrown, once the other tasks are cancelled
+     * and stopped: the caller can safely close the NetCDF writer, or delete the output file.
+     */
+    private void invokeAll(List<Callable<Void>> tasks) throws IOException, InvalidRangeException {
+        ExecutorService executor = this.createExecutor(tasks.size());
+        try {
+            Generator.invokeAll(executor, tasks);
+        } finally {
+            Generator.shutdown(executor);
+        }
+    }
+
+    // Executor used to run up to taskCount tasks at the time, or null when the tasks run in the calling thread
+    private ExecutorService createExecutor(int taskCount) {
+        if (taskCount <= 1 || this.threadCount == 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(Math.min(this.threadCount, taskCount));
+    }
+
+    /**
+     * Run the tasks using an executor, and wait for all of them to finish.
+     * The first exception thrown by a task is re-thrown, once the other tasks are cancelled.
+     * The executor must be shut down (see {@link #shutdown(ExecutorService)}) before the NetCDF writer is closed.
+     * @param executor The executor, or null to run the tasks in the calling thread.
+     * @param tasks The tasks.
+     */
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException, InvalidRangeException {
+        if (executor == null || tasks.size() == 1) {
+            for (Callable<Void> task : tasks) {
+                Generator.call(task);
+            }
+            return;
+        }
+
+        CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        boolean success = false;
+        try {
+            for (Callable<Void> task : tasks) {
+                futures.add(completionService.submit(task));
+            }
+
+            // Get the results in completion order, to stop at the first failure
+            for (int i=0; i<futures.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the NetCDF files to be written", ex);
+                } catch (ExecutionException ex) {
+                    Generator.rethrow(ex.getCause());
+                }
+            }
+            success = true;
+        } finally {
+            // Cancel the tasks which are still waiting or running (they are interrupted, see ProgressTracker.check)
+            if (!success) {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
                 }
+            }
+        }
+    }
+
+    // Stop the tasks of an executor, and wait for them to stop
+    private static void shutdown(ExecutorService executor) {
+        if (executor != null) {
+            executor.shutdownNow();
+            Generator.awaitTermination(executor);
+        }
+    }
 
-                datasetCount++;
+    // Wait for the tasks of a shut down executor to stop, even if the current thread is interrupted
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                interrupted = true;
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void call(Callable<Void> task) throws IOException, InvalidRangeException {
+        try {
+            task.call();
+        } catch (Exception ex) {
+            Generator.rethrow(ex);
+        }
+    }
 
+    private static void rethrow(Throwable throwable) throws IOException, InvalidRangeException {
+        if (throwable instanceof IOException) {
+            throw (IOException)throwable;
+        }
+        if (throwable instanceof InvalidRangeException) {
+            throw (InvalidRangeException)throwable;
+        }
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException)throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error)throwable;
+        }
+        throw new IOException(throwable);
+    }
+
+    private GeneratorResult write(File outputFile, NetCDFFormat format, NetCDFHeaderTemplate template,
+            List<Bundle> bundleList, final GeneratorResult result) throws IOException, InvalidRangeException {
+
+        final ProgressTracker progress = new ProgressTracker(this, outputFile, bundleList);
+
+        // Instantiate the UCAR NetCDF writer (with a try-with-resource to ensure it gets closed)
+        boolean success = false;
+        try (final NetcdfFileWriter writer = format.createWriter(outputFile)) {
+
+            // Initialise the NetCDF header
+            // - Declare UCAR Dimensions
+            // - Declare UCAR Variables
+            if (template == null) {
+                template = Generator.compileTemplate(bundleList);
+            }
+            Map<String, Integer> timeLengths = new HashMap<String, Integer>();
+            for (Bundle bundle : bundleList) {
+                if (bundle.hasTime()) {
+                    timeLengths.put(bundle.timeVariableName, bundle.dates.size());
+                }
+            }
+            template.apply(writer, timeLengths);
+
+            // Reserve space in the header for the statistics attributes, added once the data is written.
+            //     Without it, NetCDF 3 files would have to be rewritten to grow the header.
+            boolean writeStatistics = this.isWriteStatistics(format);
+            if (writeStatistics && format.isExtraHeaderSizeSupported()) {
+                writer.setExtraHeaderSize(STATISTICS_HEADER_SIZE * Generator.countVariables(bundleList));
+            }
 
             // Create the file and switch off "define mode":
             // It's no longer possible to define dimensions / variables pass this point.
             writer.create();
 
+            if (this.writeOrder == WriteOrder.RECORD_MAJOR) {
+                this.writeRecordMajor(writer, bundleList, result, progress);
+            } else {
+                // Fill the hypercubes data concurrently.
+                //     The hypercubes share nothing except the writer, which is synchronised.
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (final Bundle bundle : bundleList) {
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            Generator.writeData(writer, bundle, result, progress);
+                            return null;
+                        }
+                    });
+                }
+                this.invokeAll(tasks);
+            }
 
             for (Bundle bundle : bundleList) {
-                float[] lats = bundle.lats;
-                float[] lons = bundle.lons;
-                double[] heights = bundle.heights;
-
-                // Write all the lat / lon / heights (depths) values that will be used with the data.
-                writer.write(bundle.latVariable, Array.factory(DataType.FLOAT, new int [] {lats.length}, lats));
-                writer.write(bundle.lonVariable, Array.factory(DataType.FLOAT, new int [] {lons.length}, lons));
-                if (heights != null) {
-                    writer.write(bundle.heightVariable, Array.factory(DataType.DOUBLE, new int [] {heights.length}, heights));
+                if (bundle.hasTime()) {
+                    result.setTimeValues(bundle.timeVariableName, bundle.dataset.getTimeUnit(), bundle.getTimeValues());
                 }
+            }
 
-                // Create a list of all dates used across variables (some variables might have time gap)
-                Set<DateTime> allDateTime = new TreeSet<DateTime>();
-                for (AbstractNetCDFVariable variable : bundle.dataset) {
-                    allDateTime.addAll(variable.getDates());
-                }
+            if (writeStatistics) {
+                Generator.writeStatistics(writer, bundleList, result);
+            }
 
-                // Write the time dimension data to the NetCDF file
-                if (!allDateTime.isEmpty()) {
-                    // Initialise the data array for the time variable
-                    Array timeData = Array.factory(DataType.INT, new int[] {1});
+            // Flush the writer, to be sure all the data is written in the file, before closing it.
+            writer.flush();
+            success = true;
+        } finally {
+            // Delete the partial file when the generation failed or was cancelled.
+            //     The writer is already closed at this point.
+            if (!success) {
+                Files.deleteIfExists(outputFile.toPath());
+            }
+        }
 
-                    // Write all the dates to the NetCDF file
-                    int recordIndex = 0;
-                    Index timeIndex = timeData.getIndex();
-                    for (DateTime date : allDateTime) {
-                        // Calculate the number of hours that elapsed since NetCDF epoch and the provided date
-                        // (that's how dates are recorded in NetCDF files)
-                        int timeOffset = Hours.hoursBetween(bundle.dataset.getTimeEpoch(), date).getHours();
+        return result;
+    }
 
-                        // Set the time data for the current record
-                        timeData.setInt(timeIndex, timeOffset);
+    private static int countVariables(List<Bundle> bundleList) {
+        int count = 0;
+        for (Bundle bundle : bundleList) {
+            count += bundle.variables.size();
+        }
+        return count;
+    }
 
-                        writer.write(bundle.timeVariableName, new int[] {recordIndex}, timeData);
-                        recordIndex++;
-                    }
+    // Add the CF range attributes (actual_range, valid_min, valid_max) of each variable,
+    //     using the statistics accumulated while the data was written.
+    //     http://cfconventions.org/Data/cf-conventions/cf-conventions-1.8/cf-conventions.html#attribute-appendix
+    private static void writeStatistics(NetcdfFileWriter writer, List<Bundle> bundleList, GeneratorResult result)
+            throws IOException {
+
+        writer.setRedefineMode(true);
+        for (Bundle bundle : bundleList) {
+            for (AbstractNetCDFVariable variable : bundle.variables) {
+                VariableStatistics statistics = result.getStatistics(variable.getName());
+                Variable ncVariable = writer.findVariable(variable.getName());
+                if (statistics != null && statistics.getCount() > 0 && ncVariable != null) {
+                    double min = statistics.getMin();
+                    double max = statistics.getMax();
+                    writer.addVariableAttribute(ncVariable, new Attribute("actual_range",
+                            Array.factory(DataType.DOUBLE, new int[] {2}, new double[] {min, max})));
+                    writer.addVariableAttribute(ncVariable, new Attribute("valid_min", min));
+                    writer.addVariableAttribute(ncVariable, new Attribute("valid_max", max));
                 }
+            }
+        }
+        writer.setRedefineMode(false);
+    }
 
-                // Write each variable to the NetCDF file, one variable at the time.
-                for (AbstractNetCDFVariable abstractVariable : bundle.dataset) {
-
-                    if (abstractVariable instanceof NetCDFVariable) {
-                        // Variables without time nor depth (such as bathymetry "botz")
-                        ArrayDouble.D2 variableData = new ArrayDouble.D2(
-                                bundle.latDimension.getLength(), bundle.lonDimension.getLength());
-
-                        for (int latIndex=0; latIndex<bundle.latDimension.getLength(); latIndex++) {
-                            float latValue = lats[latIndex];
-                            for (int lonIndex=0; lonIndex<bundle.lonDimension.getLength(); lonIndex++) {
-                                float lonValue = lons[lonIndex];
-                                NetCDFVariable variable = (NetCDFVariable)abstractVariable;
-                                Double value = variable.getValue(latValue, lonValue);
-                                variableData.set(latIndex, lonIndex, value == null ? NULL_VALUE : value);
-                            }
-                        }
+    private static NetCDFHeaderTemplate compileTemplate(List<Bundle> bundleList) {
+        NetCDFHeaderTemplate template = new NetCDFHeaderTemplate();
+        for (Bundle bundle : bundleList) {
+            Generator.declare(template, bundle);
+        }
+        return template;
+    }
 
-                        // Write the data out for the current record
-                        writer.write(abstractVariable.getName(), new int[] {0, 0}, variableData);
-
-                    } else if (abstractVariable instanceof NetCDFTimeVariable) {
-                        // Variables with time, but no depth (such as wind)
-                        int recordIndex = 0;
-                        ArrayDouble.D3 variableData = new ArrayDouble.D3(
-                                1, bundle.latDimension.getLength(), bundle.lonDimension.getLength());
-                        for (DateTime date : allDateTime) {
-                            // Set the data for each coordinate (lon / lat),
-                            //     for each variable (temp, salt, current, etc),
-                            //     for the specified record time.
-                            for (int latIndex=0; latIndex<bundle.latDimension.getLength(); latIndex++) {
-                                float latValue = lats[latIndex];
-                                for (int lonIndex=0; lonIndex<bundle.lonDimension.getLength(); lonIndex++) {
-                                    float lonValue = lons[lonIndex];
-                                    NetCDFTimeVariable variable = (NetCDFTimeVariable)abstractVariable;
-                                    Double value = variable.getValue(latValue, lonValue, date);
-                                    variableData.set(0, latIndex, lonIndex, value == null ? NULL_VALUE : value);
-                                }
-                            }
+    private static void declare(NetCDFHeaderTemplate template, Bundle bundle) {
+        NetCDFDataset dataset = bundle.dataset;
 
-                            // Write the data out for the current record
-                            writer.write(abstractVariable.getName(), new int[] {recordIndex, 0, 0}, variableData);
+        // Set attributes
+        for (Map.Entry<String, String> attributeEntry : dataset.getGlobalAttributes().entrySet()) {
+            template.addGlobalAttribute(attributeEntry.getKey(), attributeEntry.getValue());
+        }
 
-                            // Increase the record index count
-                            recordIndex++;
-                        }
+        float[] lats = bundle.lats;
+        float[] lons = bundle.lons;
+        double[] heights = bundle.heights;
 
-                    } else if (abstractVariable instanceof NetCDFTimeDepthVariable) {
-                        // Variables with time and depth (such as salinity, temperature, current)
-                        int recordIndex = 0;
-                        ArrayDouble.D4 variableData = new ArrayDouble.D4(
-                                1, bundle.latDimension.getLength(), bundle.lonDimension.getLength(),
-                                bundle.heightDimension.getLength());
-                        for (DateTime date : allDateTime) {
-                            // Set the data for each coordinate (lon / lat),
-                            //     for each variable (temp, salt, current, etc),
-                            //     for the specified record time.
-                            for (int latIndex=0; latIndex<bundle.latDimension.getLength(); latIndex++) {
-                                float latValue = lats[latIndex];
-                                for (int lonIndex=0; lonIndex<bundle.lonDimension.getLength(); lonIndex++) {
-                                    float lonValue = lons[lonIndex];
-                                    NetCDFTimeDepthVariable depthVariable = (NetCDFTimeDepthVariable)abstractVariable;
-                                    for (int heightIndex=0; heightIndex<bundle.heightDimension.getLength(); heightIndex++) {
-                                        double heightValue = heights[heightIndex];
-                                        Double value = depthVariable.getValue(latValue, lonValue, date, heightValue);
-                                        variableData.set(0, latIndex, lonIndex, heightIndex, value == null ? NULL_VALUE : value);
-                                    }
-                                }
-                            }
+        // Declare lat / lon / time dimensions.
+        //     Axes shared with a previous hypercube are already declared.
+        //     Hypercubes without time variables (such as bathymetry) have no time dimension.
+        boolean declareTime = bundle.hasTime() && !bundle.isShared(bundle.timeVariableName);
+        if (!bundle.isShared(bundle.latVariableName)) {
+            template.addDimension(bundle.latVariableName, lats.length);
+        }
+        if (!bundle.isShared(bundle.lonVariableName)) {
+            template.addDimension(bundle.lonVariableName, lons.length);
+        }
+        if (declareTime) {
+            template.addUnlimitedDimension(bundle.timeVariableName);
+        }
 
-                            // Write the data out for the current record
-                            writer.write(abstractVariable.getName(), new int[] {recordIndex, 0, 0, 0}, variableData);
+        if (heights != null && !bundle.isShared(bundle.heightVariableName)) {
+            template.addDimension(bundle.heightVariableName, heights.length);
+        }
+
+        // Coordinate axis attributes.
+        //     It seems to work without them (except for the vertical axis).
+        //     I added them for all axes to follow the documentation.
+        //     https://www.unidata.ucar.edu/software/netcdf-java/v4.6/reference/CoordinateAttributes.html
+        //     https://www.unidata.ucar.edu/software/netcdf-java/v4.6/tutorial/CoordinateAttributes.html
+
+        // Declare dimension variables (seams redundant, but it's required)
+        if (!bundle.isShared(bundle.latVariableName)) {
+            template.addVariable(bundle.latVariableName, DataType.FLOAT, Collections.singletonList(bundle.latVariableName));
+            template.addVariableAttribute(bundle.latVariableName, "units", "degrees_north");
+            template.addVariableAttribute(bundle.latVariableName, "_CoordinateAxisType", "Lat");
+        }
+
+        if (!bundle.isShared(bundle.lonVariableName)) {
+            template.addVariable(bundle.lonVariableName, DataType.FLOAT, Collections.singletonList(bundle.lonVariableName));
+            template.addVariableAttribute(bundle.lonVariableName, "units", "degrees_east");
+            template.addVariableAttribute(bundle.lonVariableName, "_CoordinateAxisType", "Lon");
+        }
+
+        if (declareTime) {
+            template.addVariable(bundle.timeVariableName, DataType.INT, Collections.singletonList(bundle.timeVariableName));
+            template.addVariableAttribute(bundle.timeVariableName, "units", dataset.getTimeUnit());
+            template.addVariableAttribute(bundle.timeVariableName, "_CoordinateAxisType", "Time");
+        }
+
+        if (heights != null && !bundle.isShared(bundle.heightVariableName)) {
+            template.addVariable(bundle.heightVariableName, DataType.DOUBLE, Collections.singletonList(bundle.heightVariableName));
+            template.addVariableAttribute(bundle.heightVariableName, "units", "m");
+            template.addVariableAttribute(bundle.heightVariableName, "_CoordinateAxisType", "Height");
+            template.addVariableAttribute(bundle.heightVariableName, "_CoordinateZisPositive", "up");
+        }
+
+        // Declare data variables (such as temp, salt, current, etc)
+        // NOTE: This is the declaration only. The data will be added later.
+        List<String> variableNames = new ArrayList<String>();
+        List<String> variableTypes = new ArrayList<String>();
+        for (AbstractNetCDFVariable variable : bundle.variables) {
+            String variableName = variable.getName();
+            DataType dataType = DataType.DOUBLE;
+            boolean hasTime = variable.hasTime();
+            boolean hasHeight = heights != null && variable.hasHeight();
+            List<String> varDimensions = bundle.dimensionOrder.getDimensionNames(
+                    hasTime ? bundle.timeVariableName : null,
+                    hasHeight ? bundle.heightVariableName : null,
+                    bundle.latVariableName, bundle.lonVariableName);
+
+            template.addVariable(variableName, dataType, varDimensions);
+            variableNames.add(variableName);
+            variableTypes.add(Generator.getVariableType(variable));
+
+            for (Map.Entry<String, String> attributeEntry : variable.getAttributes().entrySet()) {
+                // Set variable attributes such as "units", "standard_name", etc
+                template.addVariableAttribute(variableName, attributeEntry.getKey(), attributeEntry.getValue());
+            }
+        }
+
+        template.addHypercube(new NetCDFDataset.Dimensions(lats, lons, heights), dataset.getTimeUnit(),
+                bundle.timeVariableName, bundle.dimensionOrder, variableNames, variableTypes);
+    }
+
+    private static void writeData(NetcdfFileWriter writer, Bundle bundle, GeneratorResult result, ProgressTracker progress)
+            throws IOException, InvalidRangeException {
+        Generator.writeAxes(writer, bundle);
+
+        // Write the time dimension data to the NetCDF file
+        if (bundle.hasTime() && !bundle.isShared(bundle.timeVariableName)) {
+            int[] timeValues = bundle.getTimeValues();
+            for (int recordIndex=0; recordIndex<timeValues.length; recordIndex++) {
+                Generator.writeTimeValue(writer, bundle, recordIndex, timeValues[recordIndex]);
+            }
+        }
+
+        // Write each variable to the NetCDF file, one variable at the time.
+        //     The variable writers are created one at the time, so only one variable is filled in memory.
+        Map<AbstractNetCDFVariable, NetCDFVectorVariable<?>> fusedVectors = Generator.getFusedVectors(bundle);
+        for (AbstractNetCDFVariable variable : bundle.variables) {
+            NetCDFVectorVariable<?> fusedVector = fusedVectors.get(variable);
+            if (fusedVector != null && fusedVector.getV() == variable) {
+                // v component, written with its u component
+                continue;
+            }
+            VariableWriter variableWriter = new VariableWriter(writer, bundle, variable, fusedVector,
+                    progress.getCheckpoint());
+            for (int recordIndex=0; recordIndex<variableWriter.getRecordCount(); recordIndex++) {
+                variableWriter.writeRecord(recordIndex, progress);
+            }
+            variableWriter.finish(result, progress);
+        }
+    }
+
+    /**
+     * Write the hypercubes record by record: for each time record, the time value and the record
+     * of every variable are written before the next record. Variables without time are written first.
+     * Variables are filled one record at the time, when the record is written: the records of the hypercubes
+     * are filled concurrently, one hypercube per thread, then written by the calling thread.
+     */
+    private void writeRecordMajor(NetcdfFileWriter writer, List<Bundle> bundleList,
+            GeneratorResult result, ProgressTracker progress) throws IOException, InvalidRangeException {
 
-                            // Increase the record index count
-                            recordIndex++;
+        // The variable writers only hold the record buffers until their first record is filled
+        List<List<VariableWriter>> bundleWriters = new ArrayList<List<VariableWriter>>();
+        for (Bundle bundle : bundleList) {
+            bundleWriters.add(Generator.getVariableWriters(writer, bundle, progress));
+        }
+
+        // Axes, and variables without time
+        int nbRecords = 0;
+        List<int[]> bundleTimeValues = new ArrayList<int[]>();
+        for (int i=0; i<bundleList.size(); i++) {
+            Bundle bundle = bundleList.get(i);
+            Generator.writeAxes(writer, bundle);
+            for (VariableWriter variableWriter : bundleWriters.get(i)) {
+                if (!variableWriter.hasTime()) {
+                    variableWriter.writeRecord(0, progress);
+                }
+            }
+            bundleTimeValues.add(bundle.getTimeValues());
+            nbRecords = Math.max(nbRecords, bundle.dates.size());
+        }
+
+        // Records. The executor is shared by the records, and shut down before the writer is closed.
+        ExecutorService executor = this.createExecutor(bundleList.size());
+        try {
+            Generator.writeRecords(writer, bundleList, bundleWriters, bundleTimeValues, nbRecords, executor, progress);
+        } finally {
+            Generator.shutdown(executor);
+        }
+
+        for (List<VariableWriter> variableWriters : bundleWriters) {
+            for (VariableWriter variableWriter : variableWriters) {
+                variableWriter.finish(result, progress);
+            }
+        }
+    }
+
+    private static void writeRecords(NetcdfFileWriter writer, List<Bundle> bundleList, List<List<VariableWriter>> bundleWriters,
+            List<int[]> bundleTimeValues, int nbRecords, ExecutorService executor, ProgressTracker progress)
+            throws IOException, InvalidRangeException {
+
+        for (int r=0; r<nbRecords; r++) {
+            final int recordIndex = r;
+
+            // Fill the record of each hypercube
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i=0; i<bundleList.size(); i++) {
+                if (recordIndex < bundleTimeValues.get(i).length) {
+                    final List<VariableWriter> variableWriters = bundleWriters.get(i);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            for (VariableWriter variableWriter : variableWriters) {
+                                if (variableWriter.hasTime()) {
+                                    variableWriter.fillRecord(recordIndex);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+            Generator.invokeAll(executor, tasks);
+
+            for (int i=0; i<bundleList.size(); i++) {
+                int[] timeValues = bundleTimeValues.get(i);
+                if (recordIndex < timeValues.length) {
+                    Bundle bundle = bundleList.get(i);
+                    if (!bundle.isShared(bundle.timeVariableName)) {
+                        Generator.writeTimeValue(writer, bundle, recordIndex, timeValues[recordIndex]);
+                    }
+                    for (VariableWriter variableWriter : bundleWriters.get(i)) {
+                        if (variableWriter.hasTime()) {
+                            variableWriter.writeFilledRecord(recordIndex, progress);
                         }
                     }
                 }
+            }
+        }
+    }
+
+    private static List<VariableWriter> getVariableWriters(NetcdfFileWriter writer, Bundle bundle, ProgressTracker progress) {
+        Map<AbstractNetCDFVariable, NetCDFVectorVariable<?>> fusedVectors = Generator.getFusedVectors(bundle);
+        List<VariableWriter> variableWriters = new ArrayList<VariableWriter>();
+        for (AbstractNetCDFVariable variable : bundle.variables) {
+            NetCDFVectorVariable<?> fusedVector = fusedVectors.get(variable);
+            // The v component is written with its u component
+            if (fusedVector == null || fusedVector.getU() == variable) {
+                variableWriters.add(new VariableWriter(writer, bundle, variable, fusedVector,
+                        progress.getCheckpoint()));
+            }
+        }
+        return variableWriters;
+    }
+
+    // Write all the lat / lon / heights (depths) values that will be used with the data.
+    //     Axes shared with a previous hypercube are written by that hypercube.
+    private static void writeAxes(NetcdfFileWriter writer, Bundle bundle) throws IOException, InvalidRangeException {
+        float[] lats = bundle.lats;
+        float[] lons = bundle.lons;
+        double[] heights = bundle.heights;
+
+        if (!bundle.isShared(bundle.latVariableName)) {
+            Generator.write(writer, bundle.latVariableName, new int[] {0}, Array.factory(DataType.FLOAT, new int [] {lats.length}, lats));
+        }
+        if (!bundle.isShared(bundle.lonVariableName)) {
+            Generator.write(writer, bundle.lonVariableName, new int[] {0}, Array.factory(DataType.FLOAT, new int [] {lons.length}, lons));
+        }
+        if (heights != null && !bundle.isShared(bundle.heightVariableName)) {
+            Generator.write(writer, bundle.heightVariableName, new int[] {0}, Array.factory(DataType.DOUBLE, new int [] {heights.length}, heights));
+        }
+    }
 
+    private static void writeTimeValue(NetcdfFileWriter writer, Bundle bundle, int recordIndex, int timeValue)
+            throws IOException, InvalidRangeException {
+        Generator.write(writer, bundle.timeVariableName, new int[] {recordIndex},
+                Array.factory(DataType.INT, new int[] {1}, new int[] {timeValue}));
+    }
 
+    // Vector variables which u and v components are written together, in a single pass.
+    //     Key: u and v components, value: vector variable
+    private static Map<AbstractNetCDFVariable, NetCDFVectorVariable<?>> getFusedVectors(Bundle bundle) {
+        Map<AbstractNetCDFVariable, NetCDFVectorVariable<?>> fusedVectors = new HashMap<AbstractNetCDFVariable, NetCDFVectorVariable<?>>();
+        for (NetCDFVectorVariable<?> vectorVariable : bundle.dataset.getVectorVariables()) {
+            AbstractNetCDFVariable u = vectorVariable.getU();
+            AbstractNetCDFVariable v = vectorVariable.getV();
+            // Spilled and concurrent data points are stored per component, see NetCDFVectorVariable
+            if (u.hasTime() && vectorVariable.isPaired() && u.getClass().equals(v.getClass()) &&
+                    bundle.variables.contains(u) && bundle.variables.contains(v)) {
+                fusedVectors.put(u, vectorVariable);
+                fusedVectors.put(v, vectorVariable);
             }
+        }
+        return fusedVectors;
+    }
 
-            // Flush the writer, to be sure all the data is written in the file, before closing it.
-            writer.flush();
+    // The NetCDF writer is not thread safe. Hypercubes are filled concurrently, but written one record at the time.
+    static void write(NetcdfFileWriter writer, String variableName, int[] origin, Array data)
+            throws IOException, InvalidRangeException {
+        synchronized (writer) {
+            writer.write(variableName, origin, data);
         }
     }
 
@@ -381,36 +1300,4 @@ public class Generator {
         // Value between [min, max]
         return min + ratioValue * (max - min);
     }
-
-
-    // Simple class to keep generation variables together
-    private static class Bundle {
-        public NetCDFDataset dataset;
-        public float[] lats;
-        public float[] lons;
-        public double[] heights;
-
-        public String latVariableName;
-        public Dimension latDimension;
-        public Variable latVariable;
-
-        public String lonVariableName;
-        public Dimension lonDimension;
-        public Variable lonVariable;
-
-        public String heightVariableName;
-        public Dimension heightDimension;
-        public Variable heightVariable;
-
-        public String timeVariableName;
-
-        public Bundle(NetCDFDataset dataset) {
-            this.dataset = dataset;
-
-            NetCDFDataset.Dimensions datasetDimensions = dataset.getDimensions();
-            this.lats = datasetDimensions.getLatitudes();
-            this.lons = datasetDimensions.getLongitudes();
-            this.heights = datasetDimensions.getHeights();
-        }
-    }
 }
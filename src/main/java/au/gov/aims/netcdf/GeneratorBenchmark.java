@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.File;
+
+/*
+ * Compare the generation time of the NetCDF formats.
+ *
+ * The first generation of each format is reported separately, since it includes
+ * the initialisation of the writer (and the loading of libnetcdf for NetCDF 4 formats).
+ * The pure Java formats are measured first, so their first run doesn't pay for the native library.
+ *
+ * Arguments: [number of days] [number of iterations]
+ */
+
+public class GeneratorBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(GeneratorBenchmark.class);
+
+    private static final NetCDFFormat[] FORMATS = {
+        NetCDFFormat.NETCDF3,
+        NetCDFFormat.NETCDF3_64BIT_OFFSET,
+        NetCDFFormat.NETCDF4,
+        NetCDFFormat.NETCDF4_CLASSIC
+    };
+
+    public static void main(String ... args) throws Exception {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFDataset dataset = NcAnimateGenerator.createGbr4v2Dataset(startDate, startDate.plusDays(days), false);
+
+        Generator netCDFGenerator = new Generator();
+        File outputFile = File.createTempFile("netcdf-benchmark-", ".nc");
+        try {
+            for (NetCDFFormat format : FORMATS) {
+                try {
+                    GeneratorBenchmark.benchmark(netCDFGenerator, format, dataset, outputFile, iterations);
+                } catch (Throwable ex) {
+                    // NetCDF 4 formats fail when libnetcdf is not installed
+                    LOGGER.warn(String.format("%s: generation failed: %s", format, ex));
+                }
+            }
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    private static void benchmark(Generator netCDFGenerator, NetCDFFormat format, NetCDFDataset dataset,
+            File outputFile, int iterations) throws Exception {
+
+        long start = System.nanoTime();
+        netCDFGenerator.generate(outputFile, format, dataset);
+        long firstRunNanos = System.nanoTime() - start;
+
+        long totalNanos = 0;
+        for (int i=0; i<iterations; i++) {
+            start = System.nanoTime();
+            netCDFGenerator.generate(outputFile, format, dataset);
+            totalNanos += System.nanoTime() - start;
+        }
+
+        double averageMillis = iterations > 0 ? totalNanos / 1e6 / iterations : Double.NaN;
+        double fileMegaBytes = outputFile.length() / (1024.0 * 1024);
+
+        LOGGER.info(String.format("%-20s first run: %8.1f ms, average: %8.1f ms, file size: %6.2f MB, throughput: %6.1f MB/s",
+                format, firstRunNanos / 1e6, averageMillis, fileMegaBytes, fileMegaBytes / (averageMillis / 1000)));
+    }
+}
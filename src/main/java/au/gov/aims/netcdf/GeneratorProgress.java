@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import java.io.File;
+
+/**
+ * Progress of the generation of a NetCDF file, sent to a {@link Listener}
+ * after each record written.
+ * See {@link Generator#setProgressListener(GeneratorProgress.Listener)}.
+ *
+ * A record is a time step of a variable. Variables without time have a single record.
+ */
+public class GeneratorProgress {
+    private File outputFile;
+
+    private int recordCount;
+    private int totalRecordCount;
+    private int variableCount;
+    private int totalVariableCount;
+    private long byteCount;
+    private long elapsedMillis;
+
+    public GeneratorProgress(File outputFile, int recordCount, int totalRecordCount,
+            int variableCount, int totalVariableCount, long byteCount, long elapsedMillis) {
+        this.outputFile = outputFile;
+        this.recordCount = recordCount;
+        this.totalRecordCount = totalRecordCount;
+        this.variableCount = variableCount;
+        this.totalVariableCount = totalVariableCount;
+        this.byteCount = byteCount;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return The file being generated. Scratch file when the file is generated in memory.
+     */
+    public File getOutputFile() {
+        return this.outputFile;
+    }
+
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    public int getTotalRecordCount() {
+        return this.totalRecordCount;
+    }
+
+    public int getVariableCount() {
+        return this.variableCount;
+    }
+
+    public int getTotalVariableCount() {
+        return this.totalVariableCount;
+    }
+
+    /**
+     * @return The size of the data written so far, in bytes (before compression).
+     */
+    public long getByteCount() {
+        return this.byteCount;
+    }
+
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+
+    /**
+     * @return Ratio of records written, between [0, 1].
+     */
+    public double getRatio() {
+        return this.totalRecordCount <= 0 ? 1 : (double)this.recordCount / this.totalRecordCount;
+    }
+
+    /**
+     * @return Estimated time before the end of the generation, in milliseconds,
+     *     or -1 if no record was written yet.
+     */
+    public long getEstimatedRemainingMillis() {
+        if (this.recordCount <= 0) {
+            return -1;
+        }
+        return this.elapsedMillis * (this.totalRecordCount - this.recordCount) / this.recordCount;
+    }
+
+    /**
+     * @return Write throughput, in megabytes per second.
+     */
+    public double getThroughput() {
+        return this.elapsedMillis <= 0 ? 0 : this.byteCount / (1024.0 * 1024) / (this.elapsedMillis / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d records, %d/%d variables, %.1f%%, ETA: %d ms, throughput: %.1f MB/s",
+                this.outputFile, this.recordCount, this.totalRecordCount, this.variableCount, this.totalVariableCount,
+                this.getRatio() * 100, this.getEstimatedRemainingMillis(), this.getThroughput());
+    }
+
+    public interface Listener {
+        /**
+         * Called after each record written. Hypercubes are written concurrently,
+         * the listener may be called from different threads, but never concurrently.
+         * @param progress The progress of the generation.
+         */
+        void progress(GeneratorProgress progress);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Information collected while generating a NetCDF file,
+ * available without having to re-open the file.
+ */
+public class GeneratorResult {
+    private File outputFile;
+
+    // Time values and time units, for each time variable (one per hypercube).
+    //     Key: time variable name (i.e. "time", "time1", etc)
+    private Map<String, int[]> timeValues;
+    private Map<String, String> timeUnits;
+
+    // Digest of the content of each variable (see ContentDigest)
+    //     Key: variable name
+    private Map<String, String> digests;
+
+    // Statistics of the values of each variable
+    //     Key: variable name
+    private Map<String, VariableStatistics> statistics;
+
+    // Content of the file, when generated in memory
+    private byte[] content;
+
+    public GeneratorResult(File outputFile) {
+        this.outputFile = outputFile;
+        this.timeValues = new LinkedHashMap<String, int[]>();
+        this.timeUnits = new LinkedHashMap<String, String>();
+        this.digests = new TreeMap<String, String>();
+        this.statistics = new TreeMap<String, VariableStatistics>();
+    }
+
+    /**
+     * @return The generated file, or null if the file was generated in memory.
+     */
+    public File getOutputFile() {
+        return this.outputFile;
+    }
+
+    /**
+     * @return The content of the file generated in memory,
+     *     or null if the file was generated on disk.
+     */
+    public byte[] getContent() {
+        return this.content;
+    }
+
+    public void setContent(byte[] content) {
+        this.content = content;
+    }
+
+    public Map<String, int[]> getTimeValues() {
+        return this.timeValues;
+    }
+
+    public int[] getTimeValues(String timeVariableName) {
+        return this.timeValues.get(timeVariableName);
+    }
+
+    public String getTimeUnit(String timeVariableName) {
+        return this.timeUnits.get(timeVariableName);
+    }
+
+    public void setTimeValues(String timeVariableName, String timeUnit, int[] timeValues) {
+        this.timeValues.put(timeVariableName, timeValues);
+        this.timeUnits.put(timeVariableName, timeUnit);
+    }
+
+    /**
+     * Return the digest of the content of each variable: axes and values, in canonical order.
+     * Digests are stable across NetCDF file formats and can be used
+     * to assert that a generated file hasn't changed,
+     * without having to read the file.
+     * @return Map of hexadecimal SHA-256 digests. Key: variable name.
+     */
+    public synchronized Map<String, String> getDigests() {
+        return new TreeMap<String, String>(this.digests);
+    }
+
+    public synchronized String getDigest(String variableName) {
+        return this.digests.get(variableName);
+    }
+
+    public synchronized void setDigest(String variableName, String digest) {
+        this.digests.put(variableName, digest);
+    }
+
+    /**
+     * Return the statistics of each variable (min, max, mean, number of missing values),
+     * accumulated while the file was written.
+     * @return Map of statistics. Key: variable name.
+     */
+    public synchronized Map<String, VariableStatistics> getStatistics() {
+        return new TreeMap<String, VariableStatistics>(this.statistics);
+    }
+
+    public synchronized VariableStatistics getStatistics(String variableName) {
+        return this.statistics.get(variableName);
+    }
+
+    public synchronized void setStatistics(String variableName, VariableStatistics statistics) {
+        this.statistics.put(variableName, statistics);
+    }
+
+    /**
+     * Return a digest of the content of the whole file,
+     * combining the digests of every variable.
+     * Can be used as a cache key.
+     * @return Hexadecimal SHA-256 digest.
+     */
+    public synchronized String getDigest() {
+        ContentDigest fileDigest = new ContentDigest();
+        for (Map.Entry<String, String> digestEntry : this.digests.entrySet()) {
+            fileDigest.update(digestEntry.getKey());
+            fileDigest.update(digestEntry.getValue());
+        }
+        return fileDigest.getHexDigest();
+    }
+}
@@ -5,9 +5,10 @@
 package au.gov.aims.netcdf;
 
 import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFFrameBuilder;
+import au.gov.aims.netcdf.bean.NetCDFLazyVariable;
 import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
 import au.gov.aims.netcdf.bean.NetCDFTimeVariable;
-import au.gov.aims.netcdf.bean.NetCDFVariable;
 import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -30,6 +31,14 @@ public class NcAnimateGenerator {
     private static final Logger LOGGER = Logger.getLogger(NcAnimateGenerator.class);
     private static final DateTimeZone TIMEZONE_BRISBANE = DateTimeZone.forID("Australia/Brisbane");
 
+    // Bathymetry, computed when the file is written
+    private static final NetCDFLazyVariable.Expression BOTZ_EXPRESSION = new NetCDFLazyVariable.Expression() {
+        @Override
+        public double getValue(float lat, float lon) {
+            return lat % 10 + lon % 10;
+        }
+    };
+
     public static void main(String ... args) throws Exception {
         Generator netCDFGenerator = new Generator();
 
@@ -86,22 +95,39 @@ public class NcAnimateGenerator {
                 new File("/tmp/multi_1.glo_30m.hs.201412.nc"));
     }
 
-    public static void generateGbr4v2(
+    public static GeneratorResult generateGbr4v2(
             Generator netCDFGenerator,
             DateTime startDate,
             DateTime endDate,
             File outputFile,
             boolean missingData) throws IOException, InvalidRangeException {
-        NcAnimateGenerator.generateGbr4v2(netCDFGenerator, startDate, endDate, outputFile, missingData, 4280);
+        return NcAnimateGenerator.generateGbr4v2(netCDFGenerator, startDate, endDate, outputFile, missingData, 4280);
     }
 
-    public static void generateGbr4v2(
+    public static GeneratorResult generateGbr4v2(
             Generator netCDFGenerator,
             DateTime startDate,
             DateTime endDate,
             File outputFile,
             boolean missingData,
             long seed) throws IOException, InvalidRangeException {
+
+        NetCDFDataset dataset = NcAnimateGenerator.createGbr4v2Dataset(startDate, endDate, missingData, seed);
+        return netCDFGenerator.generate(outputFile, dataset);
+    }
+
+    public static NetCDFDataset createGbr4v2Dataset(
+            DateTime startDate,
+            DateTime endDate,
+            boolean missingData) {
+        return NcAnimateGenerator.createGbr4v2Dataset(startDate, endDate, missingData, 4280);
+    }
+
+    public static NetCDFDataset createGbr4v2Dataset(
+            DateTime startDate,
+            DateTime endDate,
+            boolean missingData,
+            long seed) {
         Random rng = new Random(seed);
 
         float[] lats = Generator.getCoordinates(-28, -7.6f, 15); // y
@@ -153,87 +179,127 @@ public class NcAnimateGenerator {
         //NetCDFTimeDepthVariable temp_exposeVar = new NetCDFTimeDepthVariable("temp_expose", "DegC week");
         //dataset.addVariable(temp_exposeVar);
 
-        NetCDFVariable botzVar = new NetCDFVariable("botz", "metre");
+        NetCDFLazyVariable botzVar = new NetCDFLazyVariable("botz", "metre", BOTZ_EXPRESSION);
         botzVar.setAttribute("long_name", "Depth of sea-bed");
         dataset.addVariable(botzVar);
 
 
         int startHour = Hours.hoursBetween(dataset.getTimeEpoch(), startDate).getHours();
         int endHour = Hours.hoursBetween(dataset.getTimeEpoch(), endDate).getHours();
-        for (float lat : lats) {
-            for (float lon : lons) {
-                // Set data for NetCDFVariable
-                double botzValue = lat % 10 + lon % 10;
-                botzVar.addDataPoint(lat, lon, botzValue);
-
-                for (int hour=startHour; hour<endHour; hour++) {
-                    DateTime frameDate = dataset.getTimeEpoch().plusHours(hour);
-
-                    // Skip some frames (if needed)
-                    // NOTE: Skipped frames were chosen to highlight different scenarios, verified in tests.
-                    boolean skipTemp = false;
-                    boolean skipWind = false;
-                    boolean skipSalt = false;
-                    boolean skipCurrent = false;
-                    if (missingData) {
-                        if (hour == startHour+2 || hour == startHour+3) {
-                            continue;
-                        }
+        int nbHours = Math.max(0, endHour - startHour);
+
+        // Open the time records, and the frames of the variables which are not skipped
+        NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons, depths);
+        NetCDFFrameBuilder.Record[] records = new NetCDFFrameBuilder.Record[nbHours];
+        double[][] tempFrames = new double[nbHours][];
+        double[][] saltFrames = new double[nbHours][];
+        double[][] windUFrames = new double[nbHours][];
+        double[][] windVFrames = new double[nbHours][];
+        double[][] currentUFrames = new double[nbHours][];
+        double[][] currentVFrames = new double[nbHours][];
+        for (int hourIndex=0; hourIndex<nbHours; hourIndex++) {
+            int hour = startHour + hourIndex;
+
+            // Skip some frames (if needed)
+            // NOTE: Skipped frames were chosen to highlight different scenarios, verified in tests.
+            boolean skipTemp = false;
+            boolean skipWind = false;
+            boolean skipSalt = false;
+            boolean skipCurrent = false;
+            if (missingData) {
+                if (hour == startHour+2 || hour == startHour+3) {
+                    continue;
+                }
 
-                        if (hour == startHour+5) {
-                            skipTemp = true;
-                        }
-                        if (hour == startHour+1) {
-                            skipWind = true;
-                        }
-                        if (hour == startHour+7 || hour == startHour+8) {
-                            skipSalt = true;
-                        }
-                        if (hour == startHour+8 || hour == startHour+9) {
-                            skipCurrent = true;
-                        }
+                if (hour == startHour+5) {
+                    skipTemp = true;
+                }
+                if (hour == startHour+1) {
+                    skipWind = true;
+                }
+                if (hour == startHour+7 || hour == startHour+8) {
+                    skipSalt = true;
+                }
+                if (hour == startHour+8 || hour == startHour+9) {
+                    skipCurrent = true;
+                }
+            }
+
+            NetCDFFrameBuilder.Record record = frameBuilder.openRecord(dataset.getTimeEpoch().plusHours(hour));
+            records[hourIndex] = record;
+            if (!skipTemp) {
+                tempFrames[hourIndex] = record.getFrame(tempVar);
+            }
+            if (!skipWind) {
+                windUFrames[hourIndex] = record.getFrame(wspeed_uVar);
+                windVFrames[hourIndex] = record.getFrame(wspeed_vVar);
+            }
+            if (!skipSalt) {
+                saltFrames[hourIndex] = record.getFrame(saltVar);
+            }
+            if (!skipCurrent) {
+                currentUFrames[hourIndex] = record.getFrame(uVar);
+                currentVFrames[hourIndex] = record.getFrame(vVar);
+            }
+        }
+
+        // NOTE: The values are drawn in the same order as before the frames were introduced (lat, lon, hour, depth),
+        //     to keep the random noise, and therefore the generated files, identical.
+        for (int latIndex=0; latIndex<lats.length; latIndex++) {
+            float lat = lats[latIndex];
+            for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                float lon = lons[lonIndex];
+                int index2D = frameBuilder.getIndex(latIndex, lonIndex);
+                for (int hourIndex=0; hourIndex<nbHours; hourIndex++) {
+                    if (records[hourIndex] == null) {
+                        continue;
                     }
+                    int hour = startHour + hourIndex;
 
                     // Set data for NetCDFTimeVariable
 
                     // Wind
-                    if (!skipWind) {
-                        double windUValue = Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0);
-                        double windVValue = Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0);
-                        wspeed_uVar.addDataPoint(lat, lon, frameDate, windUValue);
-                        wspeed_vVar.addDataPoint(lat, lon, frameDate, windVValue);
+                    if (windUFrames[hourIndex] != null) {
+                        windUFrames[hourIndex][index2D] = Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0);
+                        windVFrames[hourIndex][index2D] = Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0);
                     }
 
-                    for (double depth : depths) {
+                    for (int depthIndex=0; depthIndex<depths.length; depthIndex++) {
+                        double depth = depths[depthIndex];
+                        int index3D = frameBuilder.getIndex(latIndex, lonIndex, depthIndex);
+
                         // Set data for NetCDFTimeDepthVariable
 
                         // Temperature
-                        if (!skipTemp) {
+                        if (tempFrames[hourIndex] != null) {
                             double worldTempValue = Generator.drawLinearGradient(rng, lat+45, lon, 0, 30, 180, 0, (-depth + 2) / 5000); // Hot at the equator, cold at the poles
                             double qldTempValue = Generator.drawLinearGradient(rng, lat, lon+31, -4, 4, 20, 60, (-depth + 2) / 5000); // Hotter closer to the coastline
                             double dayNight = (Math.abs((hour + 12) % 24 - 12) - 6) / 4.0; // Temperature varies +/- 1 degree between day and night
-                            tempVar.addDataPoint(lat, lon, frameDate, depth, worldTempValue + qldTempValue + dayNight + depth/10);
+                            tempFrames[hourIndex][index3D] = worldTempValue + qldTempValue + dayNight + depth/10;
                         }
 
                         // Salt
-                        if (!skipSalt) {
-                            double saltValue = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon-(hour/4.0f), 32, 36, 10, (-depth + 2) / 5000);
-                            saltVar.addDataPoint(lat, lon, frameDate, depth, saltValue);
+                        if (saltFrames[hourIndex] != null) {
+                            saltFrames[hourIndex][index3D] = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon-(hour/4.0f), 32, 36, 10, (-depth + 2) / 5000);
                         }
 
                         // Current
-                        if (!skipCurrent) {
-                            double currentUValue = Generator.drawRadialGradient(rng, lat-(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
-                            double currentVValue = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
-                            uVar.addDataPoint(lat, lon, frameDate, depth, currentUValue);
-                            vVar.addDataPoint(lat, lon, frameDate, depth, currentVValue);
+                        if (currentUFrames[hourIndex] != null) {
+                            currentUFrames[hourIndex][index3D] = Generator.drawRadialGradient(rng, lat-(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
+                            currentVFrames[hourIndex][index3D] = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
                         }
                     }
                 }
             }
         }
 
-        netCDFGenerator.generate(outputFile, dataset);
+        for (NetCDFFrameBuilder.Record record : records) {
+            if (record != null) {
+                record.commit();
+            }
+        }
+
+        return dataset;
     }
 
     public static void generateGbr1v2(Generator netCDFGenerator, DateTime startDate, DateTime endDate, File outputFile) throws IOException, InvalidRangeException {
@@ -276,53 +342,68 @@ public class NcAnimateGenerator {
         vVar.setAttribute("long_name", "Northward current");
         dataset.addVectorVariable(new NetCDFVectorVariable<NetCDFTimeDepthVariable>("sea_water_velocity", uVar, vVar));
 
-        NetCDFVariable botzVar = new NetCDFVariable("botz", "metre");
+        NetCDFLazyVariable botzVar = new NetCDFLazyVariable("botz", "metre", BOTZ_EXPRESSION);
         botzVar.setAttribute("long_name", "Depth of sea-bed");
         dataset.addVariable(botzVar);
 
 
         int startHour = Hours.hoursBetween(dataset.getTimeEpoch(), startDate).getHours();
         int endHour = Hours.hoursBetween(dataset.getTimeEpoch(), endDate).getHours();
-        for (float lat : lats) {
-            for (float lon : lons) {
-                // Set data for NetCDFVariable
-                double botzValue = lat % 10 + lon % 10;
-                botzVar.addDataPoint(lat, lon, botzValue);
+        int nbHours = Math.max(0, endHour - startHour);
+
+        NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons, depths);
+        NetCDFFrameBuilder.Record[] records = new NetCDFFrameBuilder.Record[nbHours];
+        for (int hourIndex=0; hourIndex<nbHours; hourIndex++) {
+            records[hourIndex] = frameBuilder.openRecord(dataset.getTimeEpoch().plusHours(startHour + hourIndex));
+        }
 
-                for (int hour=startHour; hour<endHour; hour++) {
-                    DateTime frameDate = dataset.getTimeEpoch().plusHours(hour);
+        // NOTE: The values are drawn in lat, lon, hour, depth order, to keep the random noise unchanged.
+        for (int latIndex=0; latIndex<lats.length; latIndex++) {
+            float lat = lats[latIndex];
+            for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                float lon = lons[lonIndex];
+                int index2D = frameBuilder.getIndex(latIndex, lonIndex);
+                for (int hourIndex=0; hourIndex<nbHours; hourIndex++) {
+                    NetCDFFrameBuilder.Record record = records[hourIndex];
+                    int hour = startHour + hourIndex;
 
                     // Set data for NetCDFTimeVariable
 
                     // Wind
-                    double windUValue = Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0);
-                    double windVValue = Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0);
-                    wspeed_uVar.addDataPoint(lat, lon, frameDate, windUValue);
-                    wspeed_vVar.addDataPoint(lat, lon, frameDate, windVValue);
+                    record.getFrame(wspeed_uVar)[index2D] = Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0);
+                    record.getFrame(wspeed_vVar)[index2D] = Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0);
+
+                    double[] tempFrame = record.getFrame(tempVar);
+                    double[] saltFrame = record.getFrame(saltVar);
+                    double[] currentUFrame = record.getFrame(uVar);
+                    double[] currentVFrame = record.getFrame(vVar);
+                    for (int depthIndex=0; depthIndex<depths.length; depthIndex++) {
+                        double depth = depths[depthIndex];
+                        int index3D = frameBuilder.getIndex(latIndex, lonIndex, depthIndex);
 
-                    for (double depth : depths) {
                         // Set data for NetCDFTimeDepthVariable
 
                         // Temperature
                         double worldTempValue = Generator.drawLinearGradient(rng, lat+45, lon, 0, 30, 180, 0, (-depth + 2) / 5000); // Hot at the equator, cold at the poles
                         double qldTempValue = Generator.drawLinearGradient(rng, lat, lon+31, -4, 4, 20, 60, (-depth + 2) / 5000); // Hotter closer to the coastline
                         double dayNight = (Math.abs((hour + 12) % 24 - 12) - 6) / 4.0; // Temperature varies +/- 1 degree between day and night
-                        tempVar.addDataPoint(lat, lon, frameDate, depth, worldTempValue + qldTempValue + dayNight + depth/10);
+                        tempFrame[index3D] = worldTempValue + qldTempValue + dayNight + depth/10;
 
                         // Salt
-                        double saltValue = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon-(hour/4.0f), 32, 36, 10, (-depth + 2) / 5000);
-                        saltVar.addDataPoint(lat, lon, frameDate, depth, saltValue);
+                        saltFrame[index3D] = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon-(hour/4.0f), 32, 36, 10, (-depth + 2) / 5000);
 
                         // Current
-                        double currentUValue = Generator.drawRadialGradient(rng, lat-(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
-                        double currentVValue = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
-                        uVar.addDataPoint(lat, lon, frameDate, depth, currentUValue);
-                        vVar.addDataPoint(lat, lon, frameDate, depth, currentVValue);
+                        currentUFrame[index3D] = Generator.drawRadialGradient(rng, lat-(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
+                        currentVFrame[index3D] = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
                     }
                 }
             }
         }
 
+        for (NetCDFFrameBuilder.Record record : records) {
+            record.commit();
+        }
+
         netCDFGenerator.generate(outputFile, dataset);
     }
 
@@ -370,55 +451,89 @@ public class NcAnimateGenerator {
 
         int startHour0 = Hours.hoursBetween(dataset0.getTimeEpoch(), startDate).getHours();
         int endHour0 = Hours.hoursBetween(dataset0.getTimeEpoch(), endDate).getHours();
-        for (float lat : lats0) {
-            for (float lon : lons0) {
-                for (int hour=startHour0; hour<endHour0; hour++) {
-                    DateTime frameDate = dataset0.getTimeEpoch().plusHours(hour);
+        int nbHours0 = Math.max(0, endHour0 - startHour0);
+
+        NetCDFFrameBuilder frameBuilder0 = new NetCDFFrameBuilder(lats0, lons0, depths0);
+        NetCDFFrameBuilder.Record[] records0 = new NetCDFFrameBuilder.Record[nbHours0];
+        for (int hourIndex=0; hourIndex<nbHours0; hourIndex++) {
+            records0[hourIndex] = frameBuilder0.openRecord(dataset0.getTimeEpoch().plusHours(startHour0 + hourIndex));
+        }
+
+        for (int latIndex=0; latIndex<lats0.length; latIndex++) {
+            float lat = lats0[latIndex];
+            for (int lonIndex=0; lonIndex<lons0.length; lonIndex++) {
+                float lon = lons0[lonIndex];
+                int index2D = frameBuilder0.getIndex(latIndex, lonIndex);
+                for (int hourIndex=0; hourIndex<nbHours0; hourIndex++) {
+                    NetCDFFrameBuilder.Record record = records0[hourIndex];
+                    int hour = startHour0 + hourIndex;
 
                     // Set data for NetCDFTimeVariable
 
                     // Wind
-                    double windUValue = Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0);
-                    double windVValue = Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0);
-                    wspeed_uVar.addDataPoint(lat, lon, frameDate, windUValue);
-                    wspeed_vVar.addDataPoint(lat, lon, frameDate, windVValue);
+                    record.getFrame(wspeed_uVar)[index2D] = Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0);
+                    record.getFrame(wspeed_vVar)[index2D] = Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0);
+
+                    double[] tempFrame = record.getFrame(tempVar);
+                    for (int depthIndex=0; depthIndex<depths0.length; depthIndex++) {
+                        double depth = depths0[depthIndex];
 
-                    for (double depth : depths0) {
                         // Set data for NetCDFTimeDepthVariable
 
                         // Temperature
                         double worldTempValue = Generator.drawLinearGradient(rng, lat+45, lon, 0, 30, 180, 0, (-depth + 2) / 5000); // Hot at the equator, cold at the poles
                         double qldTempValue = Generator.drawLinearGradient(rng, lat, lon+31, -4, 4, 20, 60, (-depth + 2) / 5000); // Hotter closer to the coastline
                         double dayNight = (Math.abs((hour + 12) % 24 - 12) - 6) / 4.0; // Temperature varies +/- 1 degree between day and night
-                        tempVar.addDataPoint(lat, lon, frameDate, depth, worldTempValue + qldTempValue + dayNight + depth/10);
+                        tempFrame[frameBuilder0.getIndex(latIndex, lonIndex, depthIndex)] = worldTempValue + qldTempValue + dayNight + depth/10;
                     }
                 }
             }
         }
+        for (NetCDFFrameBuilder.Record record : records0) {
+            record.commit();
+        }
 
-        int startHour1 = Hours.hoursBetween(dataset1.getTimeEpoch(), startDate).getHours();
+        // Data every 3 hours
+        int startHour1 = Hours.hoursBetween(dataset1.getTimeEpoch(), startDate).getHours() + 2;
         int endHour1 = Hours.hoursBetween(dataset1.getTimeEpoch(), endDate).getHours();
-        for (float lat : lats1) {
-            for (float lon : lons1) {
-                for (int hour=startHour1+2; hour<endHour1; hour+=3) {
-                    DateTime frameDate = dataset1.getTimeEpoch().plusHours(hour);
+        int nbHours1 = Math.max(0, (endHour1 - startHour1 + 2) / 3);
+
+        NetCDFFrameBuilder frameBuilder1 = new NetCDFFrameBuilder(lats1, lons1, depths1);
+        NetCDFFrameBuilder.Record[] records1 = new NetCDFFrameBuilder.Record[nbHours1];
+        for (int hourIndex=0; hourIndex<nbHours1; hourIndex++) {
+            records1[hourIndex] = frameBuilder1.openRecord(dataset1.getTimeEpoch().plusHours(startHour1 + hourIndex*3));
+        }
+
+        for (int latIndex=0; latIndex<lats1.length; latIndex++) {
+            float lat = lats1[latIndex];
+            for (int lonIndex=0; lonIndex<lons1.length; lonIndex++) {
+                float lon = lons1[lonIndex];
+                for (int hourIndex=0; hourIndex<nbHours1; hourIndex++) {
+                    NetCDFFrameBuilder.Record record = records1[hourIndex];
+                    int hour = startHour1 + hourIndex*3;
+
+                    double[] saltFrame = record.getFrame(saltVar);
+                    double[] currentUFrame = record.getFrame(uVar);
+                    double[] currentVFrame = record.getFrame(vVar);
+                    for (int depthIndex=0; depthIndex<depths1.length; depthIndex++) {
+                        double depth = depths1[depthIndex];
+                        int index3D = frameBuilder1.getIndex(latIndex, lonIndex, depthIndex);
 
-                    for (double depth : depths1) {
                         // Set data for NetCDFTimeDepthVariable
 
                         // Salt
-                        double saltValue = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon-(hour/4.0f), 32, 36, 10, (-depth + 2) / 5000);
-                        saltVar.addDataPoint(lat, lon, frameDate, depth, saltValue);
+                        saltFrame[index3D] = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon-(hour/4.0f), 32, 36, 10, (-depth + 2) / 5000);
 
                         // Current
-                        double currentUValue = Generator.drawRadialGradient(rng, lat-(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
-                        double currentVValue = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
-                        uVar.addDataPoint(lat, lon, frameDate, depth, currentUValue);
-                        vVar.addDataPoint(lat, lon, frameDate, depth, currentVValue);
+                        currentUFrame[index3D] = Generator.drawRadialGradient(rng, lat-(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
+                        currentVFrame[index3D] = Generator.drawRadialGradient(rng, lat+(hour/4.0f), lon+(hour/4.0f), -0.6, 0.6, 15, (-depth + 2) / 5000);
                     }
                 }
             }
         }
+        for (NetCDFFrameBuilder.Record record : records1) {
+            record.commit();
+        }
 
         netCDFGenerator.generate(outputFile, dataset0, dataset1);
     }
@@ -465,13 +580,23 @@ public class NcAnimateGenerator {
         dataset.addVariable(r645Var);
 
 
+        // Daily data
         int startHour = Hours.hoursBetween(dataset.getTimeEpoch(), startDate).getHours();
         int endHour = Hours.hoursBetween(dataset.getTimeEpoch(), endDate).getHours();
-        for (float lat : lats) {
-            for (float lon : lons) {
-                for (int hour=startHour; hour<endHour; hour+=24) {
-                    DateTime frameDate = dataset.getTimeEpoch().plusHours(hour);
+        int nbDays = Math.max(0, (endHour - startHour + 23) / 24);
+
+        NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons, depths);
+        NetCDFFrameBuilder.Record[] records = new NetCDFFrameBuilder.Record[nbDays];
+        for (int dayIndex=0; dayIndex<nbDays; dayIndex++) {
+            records[dayIndex] = frameBuilder.openRecord(dataset.getTimeEpoch().plusHours(startHour + dayIndex*24));
+        }
 
+        for (int latIndex=0; latIndex<lats.length; latIndex++) {
+            float lat = lats[latIndex];
+            for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                float lon = lons[lonIndex];
+                int index2D = frameBuilder.getIndex(latIndex, lonIndex);
+                for (NetCDFFrameBuilder.Record record : records) {
                     // Set data for NetCDFTimeVariable
 
                     // True colour variables
@@ -479,12 +604,9 @@ public class NcAnimateGenerator {
                     //     Blue wavelength goes deep:                  values [0, 1]
                     //     Green penetrate about half as deep as blue: values [0, 0.5]
                     //     Red get pretty much all absorb:             values [0, 0.1]
-                    double r470Value = Generator.drawLinearGradient(rng, lat, lon+102, 0, 1, 360, 90, 0.05); // Violet (used for Blue)
-                    double r555Value = Generator.drawLinearGradient(rng, lat, lon+102, 0, 0.5, 360, 90, 0.05); // Green
-                    double r645Value = Generator.drawLinearGradient(rng, lat, lon+102, 0, 0.1, 360, 90, 0.05); // Red
-                    r470Var.addDataPoint(lat, lon, frameDate, r470Value);
-                    r555Var.addDataPoint(lat, lon, frameDate, r555Value);
-                    r645Var.addDataPoint(lat, lon, frameDate, r645Value);
+                    record.getFrame(r470Var)[index2D] = Generator.drawLinearGradient(rng, lat, lon+102, 0, 1, 360, 90, 0.05); // Violet (used for Blue)
+                    record.getFrame(r555Var)[index2D] = Generator.drawLinearGradient(rng, lat, lon+102, 0, 0.5, 360, 90, 0.05); // Green
+                    record.getFrame(r645Var)[index2D] = Generator.drawLinearGradient(rng, lat, lon+102, 0, 0.1, 360, 90, 0.05); // Red
 
                     for (double depth : depths) {
                         // Set data for NetCDFTimeDepthVariable
@@ -495,6 +617,10 @@ public class NcAnimateGenerator {
             }
         }
 
+        for (NetCDFFrameBuilder.Record record : records) {
+            record.commit();
+        }
+
         netCDFGenerator.generate(outputFile, dataset);
     }
 
@@ -530,27 +656,42 @@ public class NcAnimateGenerator {
         waveHeightDataset.addVariable(waveHeightVar);
 
 
+        // Data every 3 hours
         int endHour = Hours.hoursBetween(startDate, endDate).getHours();
         int hourOffset = Hours.hoursBetween(new DateTime(1990, 1, 1, 0, 0), startDate).getHours();
-        for (float lat : lats) {
-            for (float lon : lons) {
-                for (int hour=0; hour<endHour; hour+=3) {
-                    DateTime frameDate = startDate.plusHours(hour);
+        int nbRecords = Math.max(0, (endHour + 2) / 3);
+
+        NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons);
+        NetCDFFrameBuilder.Record[] records = new NetCDFFrameBuilder.Record[nbRecords];
+        for (int recordIndex=0; recordIndex<nbRecords; recordIndex++) {
+            records[recordIndex] = frameBuilder.openRecord(startDate.plusHours(recordIndex*3));
+        }
+
+        for (int latIndex=0; latIndex<lats.length; latIndex++) {
+            float lat = lats[latIndex];
+            for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                float lon = lons[lonIndex];
+                int index2D = frameBuilder.getIndex(latIndex, lonIndex);
+                for (int recordIndex=0; recordIndex<nbRecords; recordIndex++) {
+                    NetCDFFrameBuilder.Record record = records[recordIndex];
+                    int hour = recordIndex*3;
 
                     // Set data for NetCDFTimeVariable
 
                     // Wave direction: pointing towards Qld coastline (50 deg) with some random variations (+/-20 deg)
                     // In NOAA datasets, 0 deg is pointing South (for some reason...)
-                    double waveDirValue = 50 + (rng.nextDouble() * 40 - 5);
-                    waveDirVar.addDataPoint(lat, lon, frameDate, waveDirValue);
+                    record.getFrame(waveDirVar)[index2D] = 50 + (rng.nextDouble() * 40 - 5);
 
                     // Wave height varies between [0, 4] and moves up and down like the tides (sort of)
-                    double waveHeightValue = Generator.drawLinearGradient(rng, lat, lon+(hourOffset+hour)/3.0f, 0, 4, 60, 70.0, 0.05);
-                    waveHeightVar.addDataPoint(lat, lon, frameDate, waveHeightValue);
+                    record.getFrame(waveHeightVar)[index2D] = Generator.drawLinearGradient(rng, lat, lon+(hourOffset+hour)/3.0f, 0, 4, 60, 70.0, 0.05);
                 }
             }
         }
 
+        for (NetCDFFrameBuilder.Record record : records) {
+            record.commit();
+        }
+
         netCDFGenerator.generate(outputWaveDirFile, waveDirDataset);
         netCDFGenerator.generate(outputWaveHeightFile, waveHeightDataset);
     }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Write NcML aggregation files, describing a virtual dataset made of generated NetCDF files.
+ *
+ * The "joinExisting" aggregation contains the number of time records ("ncoords")
+ * and the time values ("coordValue") of each file, so clients can open the virtual
+ * dataset without having to open every file to read its time axis.
+ *
+ * NcML aggregation documentation:
+ *     https://docs.unidata.ucar.edu/netcdf-java/current/userguide/ncml_aggregation.html
+ */
+public class NcMLAggregation {
+    private static final String NCML_NAMESPACE = "http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2";
+
+    // Name of the time dimension of the first hypercube (see Generator)
+    private static final String TIME_DIMENSION_NAME = "time";
+
+    /**
+     * Write a NcML file which aggregates the files along their time dimension.
+     * Files must be listed in chronological order and share the same time unit.
+     * @param ncmlFile Where the NcML file will be saved.
+     * @param members The result of the generation of each file to aggregate.
+     * @throws IOException
+     */
+    public static void writeJoinExisting(File ncmlFile, List<GeneratorResult> members) throws IOException {
+        NcMLAggregation.validateMembers(ncmlFile, members);
+
+        String timeUnit = null;
+        for (GeneratorResult member : members) {
+            int[] timeValues = member.getTimeValues(TIME_DIMENSION_NAME);
+            if (timeValues == null) {
+                throw new IllegalArgumentException(String.format("The file has no time dimension: %s",
+                        member.getOutputFile()));
+            }
+
+            String memberTimeUnit = member.getTimeUnit(TIME_DIMENSION_NAME);
+            if (timeUnit == null) {
+                timeUnit = memberTimeUnit;
+            } else if (!timeUnit.equals(memberTimeUnit)) {
+                throw new IllegalArgumentException(String.format("Time unit mismatch. Expected \"%s\", found \"%s\" in file: %s",
+                        timeUnit, memberTimeUnit, member.getOutputFile()));
+            }
+        }
+
+        NcMLAggregation.write(ncmlFile, members, "joinExisting");
+    }
+
+    /**
+     * Write a NcML file which combines the variables of the files,
+     * such as the files generated using {@link PartitionPolicy#VARIABLE}.
+     * @param ncmlFile Where the NcML file will be saved.
+     * @param members The result of the generation of each file to aggregate.
+     * @throws IOException
+     */
+    public static void writeUnion(File ncmlFile, List<GeneratorResult> members) throws IOException {
+        NcMLAggregation.validateMembers(ncmlFile, members);
+        NcMLAggregation.write(ncmlFile, members, "union");
+    }
+
+    /**
+     * Return the name of the NcML file of a set of partitions, named after the file prefix
+     * of the partitions (trailing "_", "-" and "." are removed from the prefix).
+     * @param filePrefix Prefix of the partition file names, or null.
+     * @return The NcML file name. Example: "gbr4_simple_" => "gbr4_simple.ncml"
+     */
+    static String getFilename(String filePrefix) {
+        String basename = filePrefix == null ? "" : filePrefix.replaceAll("[-_.]+$", "");
+        return (basename.isEmpty() ? "aggregation" : basename) + ".ncml";
+    }
+
+    private static void validateMembers(File ncmlFile, List<GeneratorResult> members) {
+        if (ncmlFile == null) {
+            throw new IllegalArgumentException("No NcML file provided");
+        }
+        if (members == null || members.isEmpty()) {
+            throw new IllegalArgumentException("No file to aggregate");
+        }
+    }
+
+    private static void write(File ncmlFile, List<GeneratorResult> members, String aggregationType) throws IOException {
+        URI ncmlDirectoryURI = ncmlFile.getAbsoluteFile().getParentFile().toURI();
+        boolean joinExisting = "joinExisting".equals(aggregationType);
+
+        try (OutputStream outputStream = new FileOutputStream(ncmlFile)) {
+            XMLStreamWriter xmlWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, "UTF-8");
+            try {
+                xmlWriter.writeStartDocument("UTF-8", "1.0");
+                xmlWriter.writeCharacters("\n");
+                xmlWriter.writeStartElement("netcdf");
+                xmlWriter.writeDefaultNamespace(NCML_NAMESPACE);
+
+                xmlWriter.writeCharacters("\n    ");
+                xmlWriter.writeStartElement("aggregation");
+                if (joinExisting) {
+                    xmlWriter.writeAttribute("dimName", TIME_DIMENSION_NAME);
+                }
+                xmlWriter.writeAttribute("type", aggregationType);
+
+                for (GeneratorResult member : members) {
+                    // Location relative to the NcML file, when the file is in the same directory (or sub directory)
+                    URI memberURI = ncmlDirectoryURI.relativize(member.getOutputFile().getAbsoluteFile().toURI());
+
+                    xmlWriter.writeCharacters("\n        ");
+                    xmlWriter.writeEmptyElement("netcdf");
+                    xmlWriter.writeAttribute("location", memberURI.toString());
+                    if (joinExisting) {
+                        int[] timeValues = member.getTimeValues(TIME_DIMENSION_NAME);
+                        xmlWriter.writeAttribute("ncoords", String.valueOf(timeValues.length));
+                        xmlWriter.writeAttribute("coordValue", NcMLAggregation.join(timeValues));
+                    }
+                }
+
+                xmlWriter.writeCharacters("\n    ");
+                xmlWriter.writeEndElement(); // aggregation
+                xmlWriter.writeCharacters("\n");
+                xmlWriter.writeEndElement(); // netcdf
+                xmlWriter.writeCharacters("\n");
+                xmlWriter.writeEndDocument();
+                xmlWriter.flush();
+            } finally {
+                xmlWriter.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException(String.format("Error occurred while writing the NcML file: %s", ncmlFile), ex);
+        }
+    }
+
+    private static String join(int[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<values.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+}
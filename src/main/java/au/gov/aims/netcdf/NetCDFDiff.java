@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import org.joda.time.DateTime;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compare two NetCDF files, such as a baseline file and the file generated
+ * after a change of scenario (i.e. {@code gbr4_simple_2018-12.nc} and {@code gbr4_simple_2018-12_modified.nc}).
+ *
+ * The schema is compared first: global attributes, dimensions, variables and their attributes.
+ * The data of the variables found in both files, with the same type and shape, is then compared
+ * in blocks of records, using large hyperslab reads. Only two blocks are held in memory at the time,
+ * so multi-GB files can be compared.
+ *
+ * In quick mode, the comparison stops at the first difference.
+ * In full mode, the differences of each variable are summarised by region:
+ * the dates, heights and bounding box of the values which differ.
+ *
+ * Usage: NetCDFDiff [--quick] [--tolerance=<tolerance>] <file 1> <file 2>
+ */
+public class NetCDFDiff {
+    // Maximum size of a block of records read at once, from each file
+    private static final long BLOCK_SIZE = 32L * 1024 * 1024; // 32 MB
+
+    private double tolerance;
+    private boolean quick;
+    private Set<String> ignoredAttributes;
+
+    public NetCDFDiff() {
+        this.tolerance = 0;
+        this.quick = false;
+        this.ignoredAttributes = new HashSet<String>();
+    }
+
+    public double getTolerance() {
+        return this.tolerance;
+    }
+
+    /**
+     * Set the maximum absolute difference between two values considered equal.
+     * @param tolerance The tolerance. Default: 0.
+     */
+    public void setTolerance(double tolerance) {
+        if (tolerance < 0 || Double.isNaN(tolerance)) {
+            throw new IllegalArgumentException(String.format("Invalid tolerance: %s", tolerance));
+        }
+        this.tolerance = tolerance;
+    }
+
+    public boolean isQuick() {
+        return this.quick;
+    }
+
+    /**
+     * @param quick True to stop at the first difference. Default: false.
+     */
+    public void setQuick(boolean quick) {
+        this.quick = quick;
+    }
+
+    public Set<String> getIgnoredAttributes() {
+        return this.ignoredAttributes;
+    }
+
+    /**
+     * Set the attributes which are not compared, such as "history" or "date_created".
+     * Applies to global attributes and variable attributes.
+     * @param attributeNames The names of the ignored attributes.
+     */
+    public void setIgnoredAttributes(String ... attributeNames) {
+        this.ignoredAttributes = new HashSet<String>(Arrays.asList(attributeNames));
+    }
+
+    public Result diff(File file1, File file2) throws IOException, InvalidRangeException {
+        if (file1 == null || file2 == null) {
+            throw new IllegalArgumentException("No file provided");
+        }
+
+        try (
+            NetcdfFile netcdfFile1 = NetcdfFile.open(file1.getAbsolutePath());
+            NetcdfFile netcdfFile2 = NetcdfFile.open(file2.getAbsolutePath())
+        ) {
+            return this.diff(netcdfFile1, netcdfFile2);
+        }
+    }
+
+    public Result diff(NetcdfFile netcdfFile1, NetcdfFile netcdfFile2) throws IOException, InvalidRangeException {
+        Result result = new Result();
+
+        this.compareSchema(netcdfFile1, netcdfFile2, result);
+
+        for (Variable variable1 : netcdfFile1.getVariables()) {
+            if (this.isDone(result)) {
+                break;
+            }
+            Variable variable2 = netcdfFile2.findVariable(variable1.getShortName());
+            // Differences in type and shape are reported with the schema
+            if (variable2 != null && variable1.getDataType() == variable2.getDataType() &&
+                    Arrays.equals(variable1.getShape(), variable2.getShape())) {
+                VariableDifference difference = this.compareData(variable1, variable2);
+                if (difference != null) {
+                    difference.resolve(netcdfFile1);
+                    result.variableDifferences.put(difference.variableName, difference);
+                }
+            }
+        }
+
+        result.complete = !this.isDone(result);
+        return result;
+    }
+
+    private boolean isDone(Result result) {
+        return this.quick && !result.isIdentical();
+    }
+
+    private void compareSchema(NetcdfFile netcdfFile1, NetcdfFile netcdfFile2, Result result) {
+        this.compareAttributes("global", netcdfFile1.getGlobalAttributes(), netcdfFile2.getGlobalAttributes(), result);
+
+        Map<String, Dimension> dimensions2 = new LinkedHashMap<String, Dimension>();
+        for (Dimension dimension2 : netcdfFile2.getDimensions()) {
+            dimensions2.put(dimension2.getShortName(), dimension2);
+        }
+        for (Dimension dimension1 : netcdfFile1.getDimensions()) {
+            Dimension dimension2 = dimensions2.remove(dimension1.getShortName());
+            if (dimension2 == null) {
+                result.addSchemaDifference(String.format("Dimension %s only in the first file", dimension1.getShortName()));
+            } else if (dimension1.getLength() != dimension2.getLength() || dimension1.isUnlimited() != dimension2.isUnlimited()) {
+                result.addSchemaDifference(String.format("Dimension %s differs: %d%s / %d%s", dimension1.getShortName(),
+                        dimension1.getLength(), dimension1.isUnlimited() ? " (unlimited)" : "",
+                        dimension2.getLength(), dimension2.isUnlimited() ? " (unlimited)" : ""));
+            }
+        }
+        for (String dimensionName : dimensions2.keySet()) {
+            result.addSchemaDifference(String.format("Dimension %s only in the second file", dimensionName));
+        }
+
+        Map<String, Variable> variables2 = new LinkedHashMap<String, Variable>();
+        for (Variable variable2 : netcdfFile2.getVariables()) {
+            variables2.put(variable2.getShortName(), variable2);
+        }
+        for (Variable variable1 : netcdfFile1.getVariables()) {
+            String variableName = variable1.getShortName();
+            Variable variable2 = variables2.remove(variableName);
+            if (variable2 == null) {
+                result.addSchemaDifference(String.format("Variable %s only in the first file", variableName));
+                continue;
+            }
+            if (variable1.getDataType() != variable2.getDataType()) {
+                result.addSchemaDifference(String.format("Variable %s type differs: %s / %s",
+                        variableName, variable1.getDataType(), variable2.getDataType()));
+            }
+            if (!NetCDFDiff.getDimensionNames(variable1).equals(NetCDFDiff.getDimensionNames(variable2))) {
+                result.addSchemaDifference(String.format("Variable %s dimensions differ: %s / %s",
+                        variableName, NetCDFDiff.getDimensionNames(variable1), NetCDFDiff.getDimensionNames(variable2)));
+            }
+            this.compareAttributes(variableName, variable1.getAttributes(), variable2.getAttributes(), result);
+        }
+        for (String variableName : variables2.keySet()) {
+            result.addSchemaDifference(String.format("Variable %s only in the second file", variableName));
+        }
+    }
+
+    private void compareAttributes(String owner, List<Attribute> attributes1, List<Attribute> attributes2, Result result) {
+        Map<String, Attribute> attributeMap2 = new LinkedHashMap<String, Attribute>();
+        for (Attribute attribute2 : attributes2) {
+            attributeMap2.put(attribute2.getShortName(), attribute2);
+        }
+        for (Attribute attribute1 : attributes1) {
+            String attributeName = attribute1.getShortName();
+            Attribute attribute2 = attributeMap2.remove(attributeName);
+            if (this.ignoredAttributes.contains(attributeName)) {
+                continue;
+            }
+            if (attribute2 == null) {
+                result.addSchemaDifference(String.format("Attribute %s:%s only in the first file", owner, attributeName));
+            } else if (!attribute1.equals(attribute2)) {
+                result.addSchemaDifference(String.format("Attribute %s:%s differs: %s / %s", owner, attributeName, attribute1, attribute2));
+            }
+        }
+        for (String attributeName : attributeMap2.keySet()) {
+            if (!this.ignoredAttributes.contains(attributeName)) {
+                result.addSchemaDifference(String.format("Attribute %s:%s only in the second file", owner, attributeName));
+            }
+        }
+    }
+
+    // Compare the data of a variable in blocks of records (along its first dimension).
+    //     Return null if the data is identical.
+    private VariableDifference compareData(Variable variable1, Variable variable2) throws IOException, InvalidRangeException {
+        VariableDifference difference = new VariableDifference(variable1);
+        int[] shape = variable1.getShape();
+
+        if (shape.length == 0) {
+            this.compareBlock(variable1.read(), variable2.read(), new int[0], new int[0], difference);
+        } else if (shape[0] > 0) {
+            int nbRecords = shape[0];
+            long recordSize = variable1.getSize() / nbRecords * variable1.getElementSize();
+            int blockRecords = (int)Math.max(1, Math.min(nbRecords, BLOCK_SIZE / Math.max(1, recordSize)));
+
+            int[] origin = new int[shape.length];
+            int[] blockShape = shape.clone();
+            for (int recordIndex=0; recordIndex<nbRecords; recordIndex+=blockRecords) {
+                origin[0] = recordIndex;
+                blockShape[0] = Math.min(blockRecords, nbRecords - recordIndex);
+                boolean identical = this.compareBlock(variable1.read(origin, blockShape), variable2.read(origin, blockShape),
+                        origin, blockShape, difference);
+                if (!identical && this.quick) {
+                    break;
+                }
+            }
+        }
+
+        return difference.differentValueCount > 0 ? difference : null;
+    }
+
+    // Compare two blocks of values, in file order. Return true if the blocks are identical.
+    private boolean compareBlock(Array data1, Array data2, int[] origin, int[] blockShape, VariableDifference difference) {
+        boolean numeric = data1.getDataType().isNumeric();
+        boolean identical = true;
+        long size = data1.getSize();
+        for (int i=0; i<size; i++) {
+            double valueDifference;
+            if (numeric) {
+                double value1 = data1.getDouble(i);
+                double value2 = data2.getDouble(i);
+                // NaN values (missing data) are equal to each other
+                if (value1 == value2 || (Double.isNaN(value1) && Double.isNaN(value2))) {
+                    continue;
+                }
+                valueDifference = Math.abs(value1 - value2);
+                if (Double.isNaN(valueDifference)) {
+                    // A missing value and a value
+                    valueDifference = Double.POSITIVE_INFINITY;
+                } else if (valueDifference <= this.tolerance) {
+                    continue;
+                }
+            } else {
+                Object value1 = data1.getObject(i);
+                Object value2 = data2.getObject(i);
+                if (value1 == null ? value2 == null : value1.equals(value2)) {
+                    continue;
+                }
+                valueDifference = Double.POSITIVE_INFINITY;
+            }
+
+            difference.add(origin, blockShape, i, valueDifference);
+            identical = false;
+            if (this.quick) {
+                break;
+            }
+        }
+        return identical;
+    }
+
+    private static List<String> getDimensionNames(Variable variable) {
+        List<String> dimensionNames = new ArrayList<String>();
+        for (Dimension dimension : variable.getDimensions()) {
+            dimensionNames.add(dimension.getShortName());
+        }
+        return dimensionNames;
+    }
+
+    public static void main(String ... args) throws Exception {
+        NetCDFDiff netCDFDiff = new NetCDFDiff();
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            if ("--quick".equals(arg)) {
+                netCDFDiff.setQuick(true);
+            } else if (arg.startsWith("--tolerance=")) {
+                netCDFDiff.setTolerance(Double.parseDouble(arg.substring("--tolerance=".length())));
+            } else {
+                files.add(new File(arg));
+            }
+        }
+        if (files.size() != 2) {
+            System.err.println("Usage: NetCDFDiff [--quick] [--tolerance=<tolerance>] <file 1> <file 2>");
+            System.exit(2);
+        }
+
+        Result result = netCDFDiff.diff(files.get(0), files.get(1));
+        System.out.println(result);
+        System.exit(result.isIdentical() ? 0 : 1);
+    }
+
+
+    /**
+     * Differences between two NetCDF files.
+     */
+    public static class Result {
+        private List<String> schemaDifferences;
+        private Map<String, VariableDifference> variableDifferences;
+        private boolean complete;
+
+        private Result() {
+            this.schemaDifferences = new ArrayList<String>();
+            this.variableDifferences = new LinkedHashMap<String, VariableDifference>();
+        }
+
+        private void addSchemaDifference(String schemaDifference) {
+            this.schemaDifferences.add(schemaDifference);
+        }
+
+        public boolean isIdentical() {
+            return this.schemaDifferences.isEmpty() && this.variableDifferences.isEmpty();
+        }
+
+        /**
+         * @return False if the comparison stopped at the first difference (quick mode).
+         */
+        public boolean isComplete() {
+            return this.complete;
+        }
+
+        /**
+         * @return The differences of dimensions, variables declarations and attributes.
+         */
+        public List<String> getSchemaDifferences() {
+            return this.schemaDifferences;
+        }
+
+        /**
+         * @return The data differences, keyed by variable name.
+         */
+        public Map<String, VariableDifference> getVariableDifferences() {
+            return this.variableDifferences;
+        }
+
+        @Override
+        public String toString() {
+            if (this.isIdentical()) {
+                return "The files are identical";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String schemaDifference : this.schemaDifferences) {
+                sb.append(schemaDifference).append(System.lineSeparator());
+            }
+            for (VariableDifference variableDifference : this.variableDifferences.values()) {
+                sb.append(variableDifference).append(System.lineSeparator());
+            }
+            if (!this.complete) {
+                sb.append("Comparison stopped at the first difference").append(System.lineSeparator());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Differences in the data of a variable, summarised by region.
+     * The indexes of the differing values are kept for each dimension,
+     * so the memory used depends on the size of the axes, not on the size of the data.
+     */
+    public static class VariableDifference {
+        private String variableName;
+        private List<String> dimensionNames;
+        private long differentValueCount;
+        private double maxDifference;
+
+        // Indexes of the differing values, for each dimension
+        private BitSet[] differentIndexes;
+        private int[] indexBuffer;
+
+        // Values of the coordinate variables, at the differing indexes. Key: dimension name
+        private Map<String, double[]> coordinates;
+        private List<DateTime> dates;
+        private double[] heights;
+        private double[] boundingBox;
+
+        private VariableDifference(Variable variable) {
+            this.variableName = variable.getShortName();
+            this.dimensionNames = NetCDFDiff.getDimensionNames(variable);
+            this.differentIndexes = new BitSet[this.dimensionNames.size()];
+            for (int i=0; i<this.differentIndexes.length; i++) {
+                this.differentIndexes[i] = new BitSet();
+            }
+            this.indexBuffer = new int[this.dimensionNames.size()];
+            this.coordinates = new LinkedHashMap<String, double[]>();
+            this.dates = new ArrayList<DateTime>();
+        }
+
+        // Add a differing value, at the given offset of a block
+        private void add(int[] origin, int[] blockShape, int offset, double difference) {
+            this.differentValueCount++;
+            this.maxDifference = Math.max(this.maxDifference, difference);
+
+            int remainder = offset;
+            for (int i=blockShape.length-1; i>=0; i--) {
+                this.indexBuffer[i] = origin[i] + remainder % blockShape[i];
+                remainder /= blockShape[i];
+            }
+            for (int i=0; i<this.indexBuffer.length; i++) {
+                this.differentIndexes[i].set(this.indexBuffer[i]);
+            }
+        }
+
+        // Find the coordinate values of the differing indexes, using the coordinate variables of the file
+        private void resolve(NetcdfFile netcdfFile) throws IOException {
+            Double minLat = null, maxLat = null, minLon = null, maxLon = null;
+            for (int i=0; i<this.dimensionNames.size(); i++) {
+                String dimensionName = this.dimensionNames.get(i);
+                Variable coordinateVariable = netcdfFile.findVariable(dimensionName);
+                if (coordinateVariable == null || coordinateVariable.getRank() != 1 ||
+                        this.variableName.equals(coordinateVariable.getShortName())) {
+                    continue;
+                }
+
+                Array coordinateData = coordinateVariable.read();
+                int[] indexes = this.getIndexes(dimensionName);
+                double[] values = new double[indexes.length];
+                for (int j=0; j<indexes.length; j++) {
+                    values[j] = coordinateData.getDouble(indexes[j]);
+                }
+                this.coordinates.put(dimensionName, values);
+
+                NetCDFSubsetter.AxisType axisType = NetCDFSubsetter.getAxisType(coordinateVariable);
+                if (axisType == NetCDFSubsetter.AxisType.TIME) {
+                    Attribute unitsAttribute = coordinateVariable.findAttribute("units");
+                    NetCDFLoader.TimeUnit timeUnit = NetCDFLoader.parseTimeUnit(
+                            unitsAttribute == null ? null : unitsAttribute.getStringValue());
+                    if (timeUnit != null) {
+                        for (double value : values) {
+                            this.dates.add(timeUnit.getDate(value));
+                        }
+                    }
+                } else if (axisType == NetCDFSubsetter.AxisType.HEIGHT) {
+                    this.heights = values;
+                } else if (axisType == NetCDFSubsetter.AxisType.LATITUDE && values.length > 0) {
+                    minLat = NetCDFDiff.min(values);
+                    maxLat = NetCDFDiff.max(values);
+                } else if (axisType == NetCDFSubsetter.AxisType.LONGITUDE && values.length > 0) {
+                    minLon = NetCDFDiff.min(values);
+                    maxLon = NetCDFDiff.max(values);
+                }
+            }
+            if (minLat != null && minLon != null) {
+                this.boundingBox = new double[] {minLat, minLon, maxLat, maxLon};
+            }
+        }
+
+        public String getVariableName() {
+            return this.variableName;
+        }
+
+        public List<String> getDimensionNames() {
+            return this.dimensionNames;
+        }
+
+        /**
+         * @return The number of values which differ.
+         *     In quick mode, the comparison stops at the first differing value.
+         */
+        public long getDifferentValueCount() {
+            return this.differentValueCount;
+        }
+
+        /**
+         * @return The largest absolute difference. Infinity when a value is missing in one of the files.
+         */
+        public double getMaxDifference() {
+            return this.maxDifference;
+        }
+
+        /**
+         * @param dimensionName The name of a dimension of the variable.
+         * @return The indexes, along the dimension, of the values which differ. Null if the variable has no such dimension.
+         */
+        public int[] getIndexes(String dimensionName) {
+            int dimensionIndex = this.dimensionNames.indexOf(dimensionName);
+            if (dimensionIndex < 0) {
+                return null;
+            }
+            BitSet bitSet = this.differentIndexes[dimensionIndex];
+            int[] indexes = new int[bitSet.cardinality()];
+            int i = 0;
+            for (int index = bitSet.nextSetBit(0); index >= 0; index = bitSet.nextSetBit(index + 1)) {
+                indexes[i++] = index;
+            }
+            return indexes;
+        }
+
+        /**
+         * @param dimensionName The name of a dimension of the variable.
+         * @return The coordinate values, along the dimension, of the values which differ.
+         *     Null if the dimension has no coordinate variable.
+         */
+        public double[] getCoordinates(String dimensionName) {
+            return this.coordinates.get(dimensionName);
+        }
+
+        /**
+         * @return The dates of the records which differ. Empty if the variable has no time.
+         */
+        public List<DateTime> getDates() {
+            return this.dates;
+        }
+
+        /**
+         * @return The heights (depths) which differ, or null if the variable has no height.
+         */
+        public double[] getHeights() {
+            return this.heights;
+        }
+
+        /**
+         * @return The bounding box of the values which differ: {minLat, minLon, maxLat, maxLon},
+         *     or null if the variable has no lat / lon axes.
+         */
+        public double[] getBoundingBox() {
+            return this.boundingBox;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Variable %s: %d value(s) differ, max difference: %s",
+                    this.variableName, this.differentValueCount, this.maxDifference));
+            if (!this.dates.isEmpty()) {
+                sb.append(String.format(", %d record(s) from %s to %s",
+                        this.dates.size(), this.dates.get(0), this.dates.get(this.dates.size() - 1)));
+            }
+            if (this.heights != null) {
+                sb.append(String.format(", heights: %s", Arrays.toString(this.heights)));
+            }
+            if (this.boundingBox != null) {
+                sb.append(String.format(", bbox: [%s, %s, %s, %s]",
+                        this.boundingBox[0], this.boundingBox[1], this.boundingBox[2], this.boundingBox[3]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static double min(double[] values) {
+        double min = Double.POSITIVE_INFINITY;
+        for (double value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static double max(double[] values) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFFrame;
+import au.gov.aims.netcdf.bean.NetCDFLazyVariable;
+import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
+import au.gov.aims.netcdf.bean.NetCDFTimeVariable;
+import au.gov.aims.netcdf.bean.NetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Create lower resolution copies of a dataset, to test different zoom levels
+ * without generating the synthetic data again.
+ *
+ * The source data is read once: each record of each variable is downsampled
+ * at every factor before moving to the next record.
+ * The lower resolution datasets are populated with frames (see {@link au.gov.aims.netcdf.bean.NetCDFFrameBuilder}).
+ *
+ * Lazy variables are not downsampled: their expression is evaluated on the lower resolution axes.
+ */
+public class NetCDFDownsampler {
+
+    public enum Method {
+        // Average of the values of each block of cells, ignoring missing values.
+        //     The coordinates are the average of the block coordinates.
+        BLOCK_AVERAGE,
+
+        // Value and coordinates of the first cell of each block
+        DECIMATE
+    }
+
+    private NetCDFDownsampler() {}
+
+    /**
+     * Downsample a dataset, in a single pass over its data.
+     * @param dataset The source dataset.
+     * @param method How the cells of a block are combined.
+     * @param factors The downsampling factors. A factor of 2 combines blocks of 2 x 2 cells.
+     *     The height axis is not downsampled.
+     * @return One dataset per factor, in the same order as the factors.
+     */
+    public static List<NetCDFDataset> downsample(NetCDFDataset dataset, Method method, int ... factors) {
+        if (dataset == null) {
+            throw new IllegalArgumentException("No dataset provided");
+        }
+        if (method == null) {
+            throw new IllegalArgumentException("No downsampling method provided");
+        }
+        if (factors == null || factors.length < 1) {
+            throw new IllegalArgumentException("No downsampling factor provided");
+        }
+        for (int factor : factors) {
+            if (factor < 1) {
+                throw new IllegalArgumentException(String.format("Invalid downsampling factor: %d", factor));
+            }
+        }
+
+        NetCDFDataset.Dimensions dimensions = dataset.getDimensions();
+        float[] lats = dimensions.getLatitudes();
+        float[] lons = dimensions.getLongitudes();
+        double[] heights = dimensions.getHeights();
+        if (lats == null || lons == null) {
+            throw new IllegalArgumentException("The dataset has no data");
+        }
+
+        // Axes of each level
+        float[][] levelLats = new float[factors.length][];
+        float[][] levelLons = new float[factors.length][];
+        List<NetCDFDataset> levels = new ArrayList<NetCDFDataset>();
+        for (int level=0; level<factors.length; level++) {
+            levelLats[level] = NetCDFDownsampler.downsampleAxis(lats, factors[level], method);
+            levelLons[level] = NetCDFDownsampler.downsampleAxis(lons, factors[level], method);
+
+            NetCDFDataset levelDataset = new NetCDFDataset();
+            levelDataset.setTimeUnit(dataset.getTimeUnit(), dataset.getTimeEpoch());
+            for (Map.Entry<String, String> attributeEntry : dataset.getGlobalAttributes().entrySet()) {
+                levelDataset.setGlobalAttribute(attributeEntry.getKey(), attributeEntry.getValue());
+            }
+            levels.add(levelDataset);
+        }
+
+        // Variables, in the same order as the source dataset
+        for (AbstractNetCDFVariable variable : dataset.getVariables()) {
+            List<AbstractNetCDFVariable> levelVariables = NetCDFDownsampler.downsampleVariable(
+                    variable, lats, lons, heights, levelLats, levelLons, factors, method);
+            for (int level=0; level<factors.length; level++) {
+                levels.get(level).addVariable(levelVariables.get(level));
+            }
+        }
+
+        for (NetCDFVectorVariable<?> vectorVariable : dataset.getVectorVariables()) {
+            List<AbstractNetCDFVariable> levelUs = NetCDFDownsampler.downsampleVariable(
+                    vectorVariable.getU(), lats, lons, heights, levelLats, levelLons, factors, method);
+            List<AbstractNetCDFVariable> levelVs = NetCDFDownsampler.downsampleVariable(
+                    vectorVariable.getV(), lats, lons, heights, levelLats, levelLons, factors, method);
+            for (int level=0; level<factors.length; level++) {
+                levels.get(level).addVectorVariable(new NetCDFVectorVariable<AbstractNetCDFVariable>(
+                        vectorVariable.getGroupName(), levelUs.get(level), levelVs.get(level)));
+            }
+        }
+
+        return levels;
+    }
+
+    private static List<AbstractNetCDFVariable> downsampleVariable(
+            AbstractNetCDFVariable variable, float[] lats, float[] lons, double[] heights,
+            float[][] levelLats, float[][] levelLons, int[] factors, Method method) {
+
+        List<AbstractNetCDFVariable> levelVariables = new ArrayList<AbstractNetCDFVariable>();
+        for (int level=0; level<factors.length; level++) {
+            levelVariables.add(NetCDFDownsampler.copyVariable(variable));
+        }
+        if (variable instanceof NetCDFLazyVariable) {
+            if (((NetCDFLazyVariable)variable).getLats() != null) {
+                for (int level=0; level<factors.length; level++) {
+                    ((NetCDFLazyVariable)levelVariables.get(level)).setAxes(levelLats[level], levelLons[level]);
+                }
+            }
+            return levelVariables;
+        }
+
+        boolean hasTime = variable.hasTime();
+        double[] variableHeights = variable.hasHeight() ? heights : null;
+        int nbHeight = variableHeights == null ? 1 : variableHeights.length;
+
+        // Records are filled one at the time
+        SortedSet<DateTime> dates = variable.getDates();
+        RecordReaders.RecordReader recordReader = RecordReaders.getRecordReader(variable, lats, lons, variableHeights,
+                hasTime ? RecordIndex.getRecordMillis(dates) : null, 0, null);
+        double[] data = new double[RecordReaders.getRecordSize(lats, lons, variableHeights)];
+
+        int recordIndex = 0;
+        for (DateTime date : hasTime ? dates : Collections.<DateTime>singleton(null)) {
+            recordReader.read(recordIndex, data);
+            for (int level=0; level<factors.length; level++) {
+                double[] levelValues = NetCDFDownsampler.downsampleRecord(data, 0,
+                        lats.length, lons.length, nbHeight, factors[level], method);
+                levelVariables.get(level).addFrame(new NetCDFFrame(date, levelLats[level], levelLons[level],
+                        variableHeights, levelValues));
+            }
+            recordIndex++;
+        }
+
+        return levelVariables;
+    }
+
+    // Downsample a record indexed [lat][lon][height]
+    private static double[] downsampleRecord(double[] data, int offset, int nbLat, int nbLon, int nbHeight,
+            int factor, Method method) {
+
+        int levelNbLat = (nbLat + factor - 1) / factor;
+        int levelNbLon = (nbLon + factor - 1) / factor;
+        double[] levelValues = new double[levelNbLat * levelNbLon * nbHeight];
+
+        for (int levelLatIndex=0; levelLatIndex<levelNbLat; levelLatIndex++) {
+            for (int levelLonIndex=0; levelLonIndex<levelNbLon; levelLonIndex++) {
+                for (int heightIndex=0; heightIndex<nbHeight; heightIndex++) {
+                    int levelIndex = (levelLatIndex * levelNbLon + levelLonIndex) * nbHeight + heightIndex;
+
+                    if (method == Method.DECIMATE) {
+                        levelValues[levelIndex] = data[offset + ((levelLatIndex * factor) * nbLon + levelLonIndex * factor) * nbHeight + heightIndex];
+                        continue;
+                    }
+
+                    double sum = 0;
+                    int count = 0;
+                    int latEnd = Math.min((levelLatIndex + 1) * factor, nbLat);
+                    int lonEnd = Math.min((levelLonIndex + 1) * factor, nbLon);
+                    for (int latIndex=levelLatIndex * factor; latIndex<latEnd; latIndex++) {
+                        for (int lonIndex=levelLonIndex * factor; lonIndex<lonEnd; lonIndex++) {
+                            double value = data[offset + (latIndex * nbLon + lonIndex) * nbHeight + heightIndex];
+                            if (!Double.isNaN(value)) {
+                                sum += value;
+                                count++;
+                            }
+                        }
+                    }
+                    levelValues[levelIndex] = count > 0 ? sum / count : Double.NaN;
+                }
+            }
+        }
+
+        return levelValues;
+    }
+
+    private static float[] downsampleAxis(float[] axis, int factor, Method method) {
+        float[] levelAxis = new float[(axis.length + factor - 1) / factor];
+        for (int levelIndex=0; levelIndex<levelAxis.length; levelIndex++) {
+            int start = levelIndex * factor;
+            if (method == Method.DECIMATE) {
+                levelAxis[levelIndex] = axis[start];
+            } else {
+                int end = Math.min(start + factor, axis.length);
+                double sum = 0;
+                for (int index=start; index<end; index++) {
+                    sum += axis[index];
+                }
+                levelAxis[levelIndex] = (float)(sum / (end - start));
+            }
+        }
+        return levelAxis;
+    }
+
+    /**
+     * Return the file of a lower resolution level, next to the full resolution file.
+     * Example: "gbr4.nc" with factor 2 => "gbr4_2x.nc"
+     * @param outputFile The full resolution file.
+     * @param factor The downsampling factor of the level.
+     * @return The level file.
+     */
+    static File getLevelFile(File outputFile, int factor) {
+        String filename = outputFile.getName();
+        int extensionIndex = filename.lastIndexOf('.');
+        String basename = extensionIndex > 0 ? filename.substring(0, extensionIndex) : filename;
+        String extension = extensionIndex > 0 ? filename.substring(extensionIndex) : "";
+        return new File(outputFile.getParentFile(), String.format("%s_%dx%s", basename, factor, extension));
+    }
+
+    // Create an empty variable of the same type, with the same attributes
+    private static AbstractNetCDFVariable copyVariable(AbstractNetCDFVariable variable) {
+        String name = variable.getName();
+        String units = variable.getAttributes().get("units");
+
+        AbstractNetCDFVariable copy;
+        if (variable instanceof NetCDFLazyVariable) {
+            copy = new NetCDFLazyVariable(name, units, ((NetCDFLazyVariable)variable).getExpression());
+        } else if (variable instanceof NetCDFVariable) {
+            copy = new NetCDFVariable(name, units);
+        } else if (variable instanceof NetCDFTimeVariable) {
+            copy = new NetCDFTimeVariable(name, units);
+        } else if (variable instanceof NetCDFTimeDepthVariable) {
+            copy = new NetCDFTimeDepthVariable(name, units);
+        } else {
+            throw new IllegalArgumentException(String.format("Unsupported variable type: %s", variable.getClass().getName()));
+        }
+
+        for (Map.Entry<String, String> attributeEntry : variable.getAttributes().entrySet()) {
+            copy.setAttribute(attributeEntry.getKey(), attributeEntry.getValue());
+        }
+        return copy;
+    }
+}
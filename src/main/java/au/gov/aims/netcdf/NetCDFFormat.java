@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import ucar.nc2.NetcdfFileWriter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Format of the generated NetCDF files.
+ * See {@link Generator#setFormat(NetCDFFormat)}
+ *
+ * NetCDF 3 formats are written in pure Java.
+ * NetCDF 4 formats are written by the native libnetcdf library (loaded through JNA),
+ * which must be installed on the system.
+ */
+public enum NetCDFFormat {
+    // Classic NetCDF 3 format, limited to 2 GB files
+    NETCDF3(NetcdfFileWriter.Version.netcdf3, false),
+
+    // NetCDF 3 format with 64-bit offsets, for files larger than 2 GB
+    NETCDF3_64BIT_OFFSET(NetcdfFileWriter.Version.netcdf3, true),
+
+    // NetCDF 4 format (HDF5)
+    NETCDF4(NetcdfFileWriter.Version.netcdf4, false),
+
+    // NetCDF 4 format (HDF5), restricted to the NetCDF 3 data model
+    NETCDF4_CLASSIC(NetcdfFileWriter.Version.netcdf4_classic, false);
+
+    private NetcdfFileWriter.Version version;
+    private boolean largeFile;
+
+    NetCDFFormat(NetcdfFileWriter.Version version, boolean largeFile) {
+        this.version = version;
+        this.largeFile = largeFile;
+    }
+
+    public NetcdfFileWriter.Version getVersion() {
+        return this.version;
+    }
+
+    public boolean isLargeFile() {
+        return this.largeFile;
+    }
+
+    /**
+     * @return True if the format is written using the native libnetcdf library.
+     */
+    public boolean isNative() {
+        return this.version != NetcdfFileWriter.Version.netcdf3;
+    }
+
+    /**
+     * Space can only be reserved in the header of NetCDF 3 files, see {@link NetcdfFileWriter#setExtraHeaderSize(int)}.
+     * The native library ignores it.
+     * @return True if attributes can be added once the data is written, without moving the data.
+     */
+    public boolean isExtraHeaderSizeSupported() {
+        return this.version == NetcdfFileWriter.Version.netcdf3;
+    }
+
+    /**
+     * Create a UCAR writer for this format.
+     * @param outputFile Where the NetCDF file will be saved.
+     * @return The writer, in "define mode".
+     * @throws IOException
+     */
+    public NetcdfFileWriter createWriter(File outputFile) throws IOException {
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(this.version, outputFile.getAbsolutePath());
+        if (this.largeFile) {
+            writer.setLargeFile(true);
+        }
+        return writer;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled NetCDF header: dimensions, variables and attributes.
+ *
+ * A template is compiled once using {@link Generator#compileTemplate(NetCDFDataset...)},
+ * then replayed for each file generated with
+ * {@link Generator#generate(java.io.File, NetCDFHeaderTemplate, NetCDFDataset...)}.
+ * The template also holds the lat / lon / height axes of each hypercube, and the type of each variable.
+ * The datasets must match the template: same variables, variable types and time unit,
+ * and coordinates found on the template axes.
+ * Only the data and the length of the time dimension change between files.
+ */
+public class NetCDFHeaderTemplate {
+    private Map<String, Attribute> globalAttributes;
+    private List<DimensionDeclaration> dimensions;
+    private Map<String, VariableDeclaration> variables;
+    private List<Hypercube> hypercubes;
+
+    protected NetCDFHeaderTemplate() {
+        this.globalAttributes = new LinkedHashMap<String, Attribute>();
+        this.dimensions = new ArrayList<DimensionDeclaration>();
+        this.variables = new LinkedHashMap<String, VariableDeclaration>();
+        this.hypercubes = new ArrayList<Hypercube>();
+    }
+
+    /**
+     * Declare the dimensions, variables and attributes of the template in a NetCDF file.
+     * The writer must be in "define mode".
+     * @param writer The NetCDF file writer.
+     */
+    public void apply(NetcdfFileWriter writer) {
+        this.apply(writer, Collections.<String, Integer>emptyMap());
+    }
+
+    /**
+     * Declare the dimensions, variables and attributes of the template in a NetCDF file.
+     * The writer must be in "define mode".
+     *
+     * The classic data model (NetCDF 3 and NetCDF 4 classic) only allows one unlimited dimension.
+     * With those formats, the time dimension of the first hypercube is unlimited
+     * and the time dimensions of the other hypercubes are declared with a fixed length.
+     *
+     * @param writer The NetCDF file writer.
+     * @param unlimitedDimensionLengths Length of the unlimited dimensions,
+     *     used when they need to be declared with a fixed length.
+     */
+    public void apply(NetcdfFileWriter writer, Map<String, Integer> unlimitedDimensionLengths) {
+        for (Attribute attribute : this.globalAttributes.values()) {
+            writer.addGlobalAttribute(attribute);
+        }
+
+        boolean multipleUnlimited = writer.getVersion().isExtendedModel();
+        boolean hasUnlimited = false;
+        Map<String, Dimension> dimensionMap = new HashMap<String, Dimension>();
+        for (DimensionDeclaration dimension : this.dimensions) {
+            if (dimension.unlimited && (multipleUnlimited || !hasUnlimited)) {
+                dimensionMap.put(dimension.name, writer.addUnlimitedDimension(dimension.name));
+                hasUnlimited = true;
+            } else if (dimension.unlimited) {
+                Integer length = unlimitedDimensionLengths.get(dimension.name);
+                if (length == null) {
+                    throw new IllegalArgumentException(String.format(
+                            "Dimension %s can not be unlimited in format %s and its length is unknown",
+                            dimension.name, writer.getVersion()));
+                }
+                dimensionMap.put(dimension.name, writer.addDimension(dimension.name, length));
+            } else {
+                dimensionMap.put(dimension.name, writer.addDimension(dimension.name, dimension.length));
+            }
+        }
+
+        for (VariableDeclaration variable : this.variables.values()) {
+            List<Dimension> variableDimensions = new ArrayList<Dimension>();
+            for (String dimensionName : variable.dimensionNames) {
+                variableDimensions.add(dimensionMap.get(dimensionName));
+            }
+
+            Variable ncVariable = writer.addVariable(variable.name, variable.dataType, variableDimensions);
+            for (Attribute attribute : variable.attributes.values()) {
+                writer.addVariableAttribute(ncVariable, attribute);
+            }
+        }
+    }
+
+    protected void addGlobalAttribute(String key, String value) {
+        this.addGlobalAttribute(new Attribute(key, value));
+    }
+
+    // Attributes of any type (string, numeric, array), replacing the attribute of the same name
+    protected void addGlobalAttribute(Attribute attribute) {
+        this.globalAttributes.put(attribute.getShortName(), attribute);
+    }
+
+    protected void addDimension(String name, int length) {
+        this.dimensions.add(new DimensionDeclaration(name, length, false));
+    }
+
+    protected void addUnlimitedDimension(String name) {
+        this.dimensions.add(new DimensionDeclaration(name, 0, true));
+    }
+
+    protected void addVariable(String name, DataType dataType, List<String> dimensionNames) {
+        this.variables.put(name, new VariableDeclaration(name, dataType, dimensionNames));
+    }
+
+    protected void addVariableAttribute(String variableName, String key, String value) {
+        this.addVariableAttribute(variableName, new Attribute(key, value));
+    }
+
+    protected void addVariableAttribute(String variableName, Attribute attribute) {
+        VariableDeclaration variable = this.variables.get(variableName);
+        if (variable == null) {
+            throw new IllegalArgumentException(String.format("Variable %s is not declared", variableName));
+        }
+        variable.attributes.put(attribute.getShortName(), attribute);
+    }
+
+    protected void addHypercube(NetCDFDataset.Dimensions axes, String timeUnit, String timeVariableName,
+            DimensionOrder dimensionOrder, List<String> variableNames, List<String> variableTypes) {
+        this.hypercubes.add(new Hypercube(axes, timeUnit, timeVariableName, dimensionOrder, variableNames, variableTypes));
+    }
+
+    protected List<Hypercube> getHypercubes() {
+        return this.hypercubes;
+    }
+
+
+    // Layout of a hypercube, used to check that a dataset matches the template
+    protected static class Hypercube {
+        private NetCDFDataset.Dimensions axes;
+        private String timeUnit;
+        private String timeVariableName;
+        private DimensionOrder dimensionOrder;
+        private List<String> variableNames;
+        private List<String> variableTypes;
+
+        public Hypercube(NetCDFDataset.Dimensions axes, String timeUnit, String timeVariableName,
+                DimensionOrder dimensionOrder, List<String> variableNames, List<String> variableTypes) {
+            this.axes = axes;
+            this.timeUnit = timeUnit;
+            this.timeVariableName = timeVariableName;
+            this.dimensionOrder = dimensionOrder;
+            this.variableNames = variableNames;
+            this.variableTypes = variableTypes;
+        }
+
+        public NetCDFDataset.Dimensions getAxes() {
+            return this.axes;
+        }
+
+        public String getTimeUnit() {
+            return this.timeUnit;
+        }
+
+        // Name of the time axis, which may be shared with a previous hypercube
+        public String getTimeVariableName() {
+            return this.timeVariableName;
+        }
+
+        public DimensionOrder getDimensionOrder() {
+            return this.dimensionOrder;
+        }
+
+        public List<String> getVariableNames() {
+            return this.variableNames;
+        }
+
+        // Type of each variable (with or without time and height), in the same order as the variable names
+        public List<String> getVariableTypes() {
+            return this.variableTypes;
+        }
+    }
+
+    private static class DimensionDeclaration {
+        private String name;
+        private int length;
+        private boolean unlimited;
+
+        public DimensionDeclaration(String name, int length, boolean unlimited) {
+            this.name = name;
+            this.length = length;
+            this.unlimited = unlimited;
+        }
+    }
+
+    private static class VariableDeclaration {
+        private String name;
+        private DataType dataType;
+        private List<String> dimensionNames;
+        private Map<String, Attribute> attributes;
+
+        public VariableDeclaration(String name, DataType dataType, List<String> dimensionNames) {
+            this.name = name;
+            this.dataType = dataType;
+            this.dimensionNames = dimensionNames;
+            this.attributes = new LinkedHashMap<String, Attribute>();
+        }
+    }
+}
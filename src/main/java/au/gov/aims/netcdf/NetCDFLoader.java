@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFFrame;
+import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
+import au.gov.aims.netcdf.bean.NetCDFTimeVariable;
+import au.gov.aims.netcdf.bean.NetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.time.CalendarDateUnit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load a NetCDF file created by the {@link Generator} back into the bean model,
+ * to compare values of generated files in tests.
+ *
+ * Each hypercube is loaded into its own {@link NetCDFDataset},
+ * following the {@link Generator} naming scheme:
+ *     1st hypercube: lat, lon, time, zc
+ *     2nd hypercube: lat1, lon1, time1, zc1
+ *     etc.
+ * Hypercubes are found from the dimensions of the variables, since they may share some of their axes.
+ * Hypercubes which share all their axes are loaded as a single dataset.
+ *
+ * Variable values are read one record at the time, using a single hyperslab read per record.
+ *
+ * NOTE: NaN values are considered as missing data. They are not loaded in the dataset.
+ *     Records which only contain NaN values are therefore lost.
+ */
+public class NetCDFLoader {
+    private static final long HOUR_MILLIS = 60L * 60 * 1000;
+
+    // Axes names used by the Generator. Example: "lat", "lon1", "time2", "zc"
+    private static final Pattern AXIS_NAME_PATTERN = Pattern.compile("(lat|lon|time|zc)[0-9]*");
+
+    /**
+     * Load all the data hypercubes of a NetCDF file.
+     * @param inputFile The NetCDF file to load.
+     * @return One dataset per hypercube.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public static List<NetCDFDataset> load(File inputFile) throws IOException, InvalidRangeException {
+        if (inputFile == null) {
+            throw new IllegalArgumentException("No input file provided");
+        }
+
+        try (NetcdfFile netcdfFile = NetcdfFile.open(inputFile.getAbsolutePath())) {
+            return NetCDFLoader.load(netcdfFile);
+        }
+    }
+
+    /**
+     * Load all the data hypercubes of a NetCDF file held in memory.
+     * See {@link Generator#generateInMemory(NetCDFDataset...)}.
+     * @param name Name given to the NetCDF file, used in error messages.
+     * @param content The content of the NetCDF file.
+     * @return One dataset per hypercube.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public static List<NetCDFDataset> load(String name, byte[] content) throws IOException, InvalidRangeException {
+        if (content == null) {
+            throw new IllegalArgumentException("No content provided");
+        }
+
+        try (NetcdfFile netcdfFile = NetcdfFile.openInMemory(name, content)) {
+            return NetCDFLoader.load(netcdfFile);
+        }
+    }
+
+    /**
+     * Load all the data hypercubes of an opened NetCDF file.
+     * @param netcdfFile The NetCDF file to load.
+     * @return One dataset per hypercube.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public static List<NetCDFDataset> load(NetcdfFile netcdfFile) throws IOException, InvalidRangeException {
+        List<NetCDFDataset> datasets = new ArrayList<NetCDFDataset>();
+
+        List<Hypercube> hypercubes = Hypercube.findAll(netcdfFile);
+        for (int hypercubeIndex=0; hypercubeIndex<hypercubes.size(); hypercubeIndex++) {
+            NetCDFDataset dataset = NetCDFLoader.loadHypercube(hypercubes.get(hypercubeIndex));
+
+            // Global attributes are shared by all hypercubes. Only set them once.
+            if (hypercubeIndex == 0) {
+                for (Attribute attribute : netcdfFile.getGlobalAttributes()) {
+                    if (attribute.isString()) {
+                        dataset.setGlobalAttribute(attribute.getShortName(), attribute.getStringValue());
+                    }
+                }
+            }
+
+            datasets.add(dataset);
+        }
+
+        return datasets;
+    }
+
+    private static NetCDFDataset loadHypercube(Hypercube hypercube)
+            throws IOException, InvalidRangeException {
+
+        NetCDFDataset dataset = new NetCDFDataset();
+        if (hypercube.timeUnit != null) {
+            dataset.setTimeUnit(hypercube.timeUnit, hypercube.timeEpoch);
+        }
+
+        List<AbstractNetCDFVariable> variables = new ArrayList<AbstractNetCDFVariable>();
+        for (Variable ncVariable : hypercube.variables) {
+            AbstractNetCDFVariable variable = NetCDFLoader.loadVariable(ncVariable, hypercube);
+            if (variable != null) {
+                variables.add(variable);
+            }
+        }
+        NetCDFLoader.addVariables(dataset, variables);
+
+        return dataset;
+    }
+
+    /**
+     * Add variables to a dataset, pairing vector components
+     * using their "standard_name" attribute (i.e. "eastward_wind" and "northward_wind").
+     */
+    static void addVariables(NetCDFDataset dataset, List<AbstractNetCDFVariable> loadedVariables) {
+        // Vector variable components
+        //     Key: vector group name (i.e. "wind" for "eastward_wind" and "northward_wind")
+        Map<String, AbstractNetCDFVariable> eastwardVariables = new LinkedHashMap<String, AbstractNetCDFVariable>();
+        Map<String, AbstractNetCDFVariable> northwardVariables = new LinkedHashMap<String, AbstractNetCDFVariable>();
+        List<AbstractNetCDFVariable> variables = new ArrayList<AbstractNetCDFVariable>();
+
+        for (AbstractNetCDFVariable variable : loadedVariables) {
+            String standardName = variable.getAttributes().get("standard_name");
+            if (standardName != null && standardName.startsWith("eastward_")) {
+                eastwardVariables.put(standardName.substring("eastward_".length()), variable);
+            } else if (standardName != null && standardName.startsWith("northward_")) {
+                northwardVariables.put(standardName.substring("northward_".length()), variable);
+            } else {
+                variables.add(variable);
+            }
+        }
+
+        for (AbstractNetCDFVariable variable : variables) {
+            dataset.addVariable(variable);
+        }
+
+        for (Map.Entry<String, AbstractNetCDFVariable> eastwardEntry : eastwardVariables.entrySet()) {
+            String groupName = eastwardEntry.getKey();
+            AbstractNetCDFVariable u = eastwardEntry.getValue();
+            AbstractNetCDFVariable v = northwardVariables.remove(groupName);
+            if (v != null && u.getClass().equals(v.getClass())) {
+                dataset.addVectorVariable(new NetCDFVectorVariable<AbstractNetCDFVariable>(groupName, u, v));
+            } else {
+                dataset.addVariable(u);
+                if (v != null) {
+                    dataset.addVariable(v);
+                }
+            }
+        }
+        // Northward components without eastward component
+        for (AbstractNetCDFVariable v : northwardVariables.values()) {
+            dataset.addVariable(v);
+        }
+    }
+
+    private static AbstractNetCDFVariable loadVariable(Variable ncVariable, Hypercube hypercube)
+            throws IOException, InvalidRangeException {
+
+        List<String> dimensionNames = new ArrayList<String>();
+        for (Dimension dimension : ncVariable.getDimensions()) {
+            dimensionNames.add(dimension.getShortName());
+        }
+
+        String name = ncVariable.getShortName();
+        Attribute unitsAttribute = ncVariable.findAttribute("units");
+        String units = unitsAttribute == null ? null : unitsAttribute.getStringValue();
+
+        int nbLat = hypercube.lats.length;
+        int nbLon = hypercube.lons.length;
+
+        // Values are loaded as frames (one per record), without creating an object per data point
+        AbstractNetCDFVariable variable;
+        if (dimensionNames.equals(hypercube.getDimensionNames(false, false))) {
+            NetCDFVariable staticVariable = new NetCDFVariable(name, units);
+            staticVariable.addFrame(new NetCDFFrame(null, hypercube.lats, hypercube.lons, null,
+                    NetCDFLoader.readDoubles(ncVariable.read())));
+            variable = staticVariable;
+
+        } else if (hypercube.dates != null && dimensionNames.equals(hypercube.getDimensionNames(true, false))) {
+            NetCDFTimeVariable timeVariable = new NetCDFTimeVariable(name, units);
+            int[] shape = new int[] {1, nbLat, nbLon};
+            for (int recordIndex=0; recordIndex<hypercube.dates.length; recordIndex++) {
+                Array data = ncVariable.read(new int[] {recordIndex, 0, 0}, shape);
+                timeVariable.addFrame(new NetCDFFrame(hypercube.dates[recordIndex], hypercube.lats, hypercube.lons, null,
+                        NetCDFLoader.readDoubles(data)));
+            }
+            variable = timeVariable;
+
+        } else if (hypercube.dates != null && hypercube.heights != null && hypercube.getDimensionOrder(dimensionNames) != null) {
+            // Frames are indexed [lat][lon][height], whatever the order of the dimensions in the file
+            DimensionOrder dimensionOrder = hypercube.getDimensionOrder(dimensionNames);
+            NetCDFTimeDepthVariable depthVariable = new NetCDFTimeDepthVariable(name, units);
+            int nbHeight = hypercube.heights.length;
+            int[] shape = dimensionOrder.isHeightFirst() ?
+                    new int[] {1, nbHeight, nbLat, nbLon} :
+                    new int[] {1, nbLat, nbLon, nbHeight};
+            for (int recordIndex=0; recordIndex<hypercube.dates.length; recordIndex++) {
+                Array data = ncVariable.read(new int[] {recordIndex, 0, 0, 0}, shape);
+                double[] fileValues = NetCDFLoader.readDoubles(data);
+                double[] values = new double[fileValues.length];
+                dimensionOrder.toMemoryLayout(fileValues, values, nbHeight);
+                depthVariable.addFrame(new NetCDFFrame(hypercube.dates[recordIndex], hypercube.lats, hypercube.lons, hypercube.heights,
+                        values));
+            }
+            variable = depthVariable;
+
+        } else {
+            // Coordinate variable, or variable from another hypercube
+            return null;
+        }
+
+        if (units == null) {
+            variable.getAttributes().remove("units");
+        }
+        for (Attribute attribute : ncVariable.getAttributes()) {
+            if (attribute.isString()) {
+                variable.setAttribute(attribute.getShortName(), attribute.getStringValue());
+            }
+        }
+
+        return variable;
+    }
+
+    /**
+     * Parse a NetCDF time unit, such as "hours since 1990-01-01".
+     * @param timeUnit The time unit, as found in the "units" attribute of the time variable.
+     * @return The time epoch (the date represented by time = 0) and the duration of a time unit.
+     */
+    public static TimeUnit parseTimeUnit(String timeUnit) {
+        if (timeUnit == null) {
+            return null;
+        }
+
+        // Parsed by the UCAR library, using the default (gregorian) calendar.
+        //     Example: "hours since 1990-01-01", "Hour since 2014-12-01T00:00:00.000+10:00", "days since 1990-01-01 00:00:00 +10"
+        CalendarDateUnit calendarDateUnit;
+        try {
+            calendarDateUnit = CalendarDateUnit.of(null, timeUnit.trim());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (calendarDateUnit == null) {
+            return null;
+        }
+
+        return new TimeUnit(calendarDateUnit);
+    }
+
+    // The Generator records time in hours. Time units in other units are converted.
+    static String getHoursTimeUnit(TimeUnit timeUnit, String timeUnitString) {
+        return timeUnit.getUnitMillis() == HOUR_MILLIS ?
+                timeUnitString :
+                String.format("hours since %s", timeUnit.getEpoch().toString("yyyy-MM-dd HH:mm:ss ZZ"));
+    }
+
+    // The date represented by time = 0, and the duration of a time unit
+    public static class TimeUnit {
+        private CalendarDateUnit calendarDateUnit;
+        private DateTime epoch;
+        private long unitMillis;
+
+        public TimeUnit(CalendarDateUnit calendarDateUnit) {
+            this.calendarDateUnit = calendarDateUnit;
+            long epochMillis = calendarDateUnit.getBaseCalendarDate().getMillis();
+            this.epoch = new DateTime(epochMillis, DateTimeZone.UTC);
+            this.unitMillis = calendarDateUnit.makeCalendarDate(1).getMillis() - epochMillis;
+        }
+
+        public DateTime getEpoch() {
+            return this.epoch;
+        }
+
+        public long getUnitMillis() {
+            return this.unitMillis;
+        }
+
+        public DateTime getDate(double timeValue) {
+            return new DateTime(this.calendarDateUnit.makeCalendarDate(timeValue).getMillis(), DateTimeZone.UTC);
+        }
+    }
+
+    // Axes of a data hypercube
+    private static class Hypercube {
+        public String latVariableName;
+        public String lonVariableName;
+        public String timeVariableName;
+        public String heightVariableName;
+
+        public float[] lats;
+        public float[] lons;
+        public double[] heights;
+        public DateTime[] dates;
+
+        public String timeUnit;
+        public DateTime timeEpoch;
+
+        public List<Variable> variables = new ArrayList<Variable>();
+
+        // Find the hypercubes of a file, from the dimensions of its data variables.
+        //     Variables which only differ by a missing time or height dimension belong to the same hypercube.
+        //     Variables with time are grouped first, so variables without time join
+        //     the first hypercube which uses their lat / lon axes.
+        public static List<Hypercube> findAll(NetcdfFile netcdfFile) throws IOException {
+            List<Hypercube> hypercubes = new ArrayList<Hypercube>();
+            List<Variable> staticVariables = new ArrayList<Variable>();
+            for (Variable ncVariable : netcdfFile.getVariables()) {
+                Hypercube axes = Hypercube.getAxes(ncVariable);
+                if (axes != null) {
+                    if (axes.timeVariableName == null) {
+                        staticVariables.add(ncVariable);
+                    } else {
+                        Hypercube.add(hypercubes, axes, ncVariable);
+                    }
+                }
+            }
+            for (Variable ncVariable : staticVariables) {
+                Hypercube.add(hypercubes, Hypercube.getAxes(ncVariable), ncVariable);
+            }
+
+            for (Hypercube hypercube : hypercubes) {
+                hypercube.readAxes(netcdfFile);
+            }
+            return hypercubes;
+        }
+
+        // Axes of a data variable, using the same naming scheme as the Generator.
+        //     Null for coordinate variables, and variables with other dimensions.
+        private static Hypercube getAxes(Variable ncVariable) {
+            Hypercube axes = new Hypercube();
+            for (Dimension dimension : ncVariable.getDimensions()) {
+                String dimensionName = dimension.getShortName();
+                Matcher matcher = dimensionName == null ? null : AXIS_NAME_PATTERN.matcher(dimensionName);
+                if (matcher == null || !matcher.matches()) {
+                    return null;
+                }
+                String axisName = matcher.group(1);
+                if ("lat".equals(axisName)) {
+                    axes.latVariableName = dimensionName;
+                } else if ("lon".equals(axisName)) {
+                    axes.lonVariableName = dimensionName;
+                } else if ("time".equals(axisName)) {
+                    axes.timeVariableName = dimensionName;
+                } else {
+                    axes.heightVariableName = dimensionName;
+                }
+            }
+            if (axes.latVariableName == null || axes.lonVariableName == null) {
+                return null;
+            }
+            return axes;
+        }
+
+        private static void add(List<Hypercube> hypercubes, Hypercube axes, Variable ncVariable) {
+            for (Hypercube hypercube : hypercubes) {
+                if (hypercube.matches(axes)) {
+                    if (hypercube.heightVariableName == null) {
+                        hypercube.heightVariableName = axes.heightVariableName;
+                    }
+                    hypercube.variables.add(ncVariable);
+                    return;
+                }
+            }
+            axes.variables.add(ncVariable);
+            hypercubes.add(axes);
+        }
+
+        private boolean matches(Hypercube axes) {
+            return this.latVariableName.equals(axes.latVariableName) &&
+                    this.lonVariableName.equals(axes.lonVariableName) &&
+                    (axes.timeVariableName == null || axes.timeVariableName.equals(this.timeVariableName)) &&
+                    (axes.heightVariableName == null || this.heightVariableName == null ||
+                            axes.heightVariableName.equals(this.heightVariableName));
+        }
+
+        private void readAxes(NetcdfFile netcdfFile) throws IOException {
+            Variable latVariable = netcdfFile.findVariable(this.latVariableName);
+            Variable lonVariable = netcdfFile.findVariable(this.lonVariableName);
+            if (latVariable == null || lonVariable == null) {
+                throw new IOException(String.format("Coordinate variables %s and %s not found",
+                        this.latVariableName, this.lonVariableName));
+            }
+
+            this.lats = NetCDFLoader.readFloats(latVariable);
+            this.lons = NetCDFLoader.readFloats(lonVariable);
+
+            Variable heightVariable = this.heightVariableName == null ? null : netcdfFile.findVariable(this.heightVariableName);
+            if (heightVariable != null) {
+                Array heightData = heightVariable.read();
+                this.heights = new double[(int)heightData.getSize()];
+                for (int i=0; i<this.heights.length; i++) {
+                    this.heights[i] = heightData.getDouble(i);
+                }
+            }
+
+            Variable timeVariable = this.timeVariableName == null ? null : netcdfFile.findVariable(this.timeVariableName);
+            if (timeVariable != null) {
+                Attribute timeUnitAttribute = timeVariable.findAttribute("units");
+                TimeUnit timeUnit = NetCDFLoader.parseTimeUnit(timeUnitAttribute == null ? null : timeUnitAttribute.getStringValue());
+                if (timeUnit == null) {
+                    throw new IOException(String.format("Unsupported time unit for variable %s: %s",
+                            this.timeVariableName, timeUnitAttribute == null ? null : timeUnitAttribute.getStringValue()));
+                }
+                // The Generator records time in hours. Other units are converted.
+                this.timeEpoch = timeUnit.getEpoch();
+                this.timeUnit = NetCDFLoader.getHoursTimeUnit(timeUnit, timeUnitAttribute.getStringValue());
+
+                Array timeData = timeVariable.read();
+                this.dates = new DateTime[(int)timeData.getSize()];
+                for (int i=0; i<this.dates.length; i++) {
+                    this.dates[i] = timeUnit.getDate(timeData.getDouble(i));
+                }
+            }
+        }
+
+        // Order of the dimensions of a variable with time and height, or null if the dimensions are not the hypercube dimensions
+        public DimensionOrder getDimensionOrder(List<String> dimensionNames) {
+            for (DimensionOrder dimensionOrder : DimensionOrder.values()) {
+                if (dimensionNames.equals(dimensionOrder.getDimensionNames(this.timeVariableName, this.heightVariableName,
+                        this.latVariableName, this.lonVariableName))) {
+                    return dimensionOrder;
+                }
+            }
+            return null;
+        }
+
+        public List<String> getDimensionNames(boolean withTime, boolean withHeight) {
+            List<String> dimensionNames = new ArrayList<String>();
+            if (withTime) {
+                dimensionNames.add(this.timeVariableName);
+            }
+            dimensionNames.add(this.latVariableName);
+            dimensionNames.add(this.lonVariableName);
+            if (withHeight) {
+                dimensionNames.add(this.heightVariableName);
+            }
+            return dimensionNames;
+        }
+    }
+
+    private static float[] readFloats(Variable variable) throws IOException {
+        Array data = variable.read();
+        float[] values = new float[(int)data.getSize()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = data.getFloat(i);
+        }
+        return values;
+    }
+
+    private static double[] readDoubles(Array data) {
+        double[] values = new double[(int)data.getSize()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = data.getDouble(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import org.joda.time.DateTime;
+import ucar.ma2.Array;
+import ucar.ma2.Index;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Concatenate NetCDF files created by the {@link Generator} along their time dimensions,
+ * to combine daily files (such as {@code gbr4_v2_2014-12-01.nc} and {@code gbr4_v2_2014-12-02.nc})
+ * without having to generate the whole date range again.
+ * It's the reverse operation of {@link Generator#generatePartitions(File, String, PartitionPolicy, au.gov.aims.netcdf.bean.NetCDFDataset)}
+ * with {@link PartitionPolicy#DAY} or {@link PartitionPolicy#MONTH}.
+ *
+ * All the files must have the same dimensions (except the time dimensions),
+ * the same lat / lon / height axis values and the same variables.
+ * Files are concatenated in chronological order and must not overlap.
+ *
+ * Data is copied in blocks of records, using large contiguous reads and writes.
+ * Values are not decoded: the data type of each variable is preserved.
+ * Time values are converted to the time unit of the first file.
+ *
+ * Attributes of the first file are copied with their type. The range attributes
+ * "actual_range", "valid_min" and "valid_max" are combined, to cover the values of every file.
+ */
+public class NetCDFMerger {
+    // Maximum size of a block of records copied at once
+    private static final long BLOCK_SIZE = 64L * 1024 * 1024; // 64 MB
+
+    private NetCDFFormat format;
+
+    public NetCDFMerger() {
+        this(Generator.DEFAULT_FORMAT);
+    }
+
+    public NetCDFMerger(NetCDFFormat format) {
+        this.setFormat(format);
+    }
+
+    public NetCDFFormat getFormat() {
+        return this.format;
+    }
+
+    public void setFormat(NetCDFFormat format) {
+        if (format == null) {
+            throw new IllegalArgumentException("No format provided");
+        }
+        this.format = format;
+    }
+
+    /**
+     * Concatenate NetCDF files along their time dimensions.
+     * @param outputFile The merged file.
+     * @param inputFiles The NetCDF files to merge, in any order.
+     * @return The time values of the merged file.
+     * @throws IOException If the files can not be merged.
+     * @throws InvalidRangeException
+     */
+    public GeneratorResult merge(File outputFile, File ... inputFiles) throws IOException, InvalidRangeException {
+        if (outputFile == null) {
+            throw new IllegalArgumentException("No output file provided");
+        }
+        if (inputFiles == null || inputFiles.length < 1) {
+            throw new IllegalArgumentException("No input file provided");
+        }
+
+        List<Source> sources = new ArrayList<Source>();
+        try {
+            for (File inputFile : inputFiles) {
+                NetcdfFile netcdfFile = NetcdfFile.open(inputFile.getAbsolutePath());
+                try {
+                    sources.add(new Source(netcdfFile));
+                } catch (IOException ex) {
+                    netcdfFile.close();
+                    throw ex;
+                }
+            }
+            return this.merge(outputFile, sources);
+        } finally {
+            for (Source source : sources) {
+                source.netcdfFile.close();
+            }
+        }
+    }
+
+    private GeneratorResult merge(File outputFile, List<Source> sources) throws IOException, InvalidRangeException {
+        // The first file defines the time units of the merged file
+        Source reference = sources.get(0);
+        for (Source source : sources) {
+            NetCDFMerger.validate(reference, source);
+        }
+        NetCDFMerger.sort(sources);
+
+        // Length of the time dimensions in the merged file
+        Map<String, Integer> timeLengths = new LinkedHashMap<String, Integer>();
+        for (String timeDimensionName : reference.timeUnits.keySet()) {
+            int length = 0;
+            for (Source source : sources) {
+                length += source.netcdfFile.findDimension(timeDimensionName).getLength();
+            }
+            timeLengths.put(timeDimensionName, length);
+        }
+
+        GeneratorResult result = new GeneratorResult(outputFile);
+        boolean success = false;
+        try (NetcdfFileWriter writer = this.format.createWriter(outputFile)) {
+            NetCDFMerger.compileTemplate(reference, sources).apply(writer, timeLengths);
+            writer.create();
+
+            for (Variable variable : reference.netcdfFile.getVariables()) {
+                String variableName = variable.getShortName();
+                int timeDimensionIndex = NetCDFMerger.getTimeDimensionIndex(variable, reference);
+
+                if (reference.timeUnits.containsKey(variableName)) {
+                    result.setTimeValues(variableName, reference.timeUnitStrings.get(variableName),
+                            NetCDFMerger.writeTimeValues(writer, variable, reference, sources));
+                } else if (timeDimensionIndex < 0) {
+                    // Variable without time, such as "lat", "lon", "zc" or "botz"
+                    writer.write(variableName, variable.read());
+                } else {
+                    NetCDFMerger.copyRecords(writer, variableName, timeDimensionIndex, sources);
+                }
+            }
+
+            writer.flush();
+            success = true;
+        } finally {
+            if (!success) {
+                Files.deleteIfExists(outputFile.toPath());
+            }
+        }
+
+        return result;
+    }
+
+    // Copy the records of a variable from every source file, in blocks of records
+    private static void copyRecords(NetcdfFileWriter writer, String variableName, int timeDimensionIndex, List<Source> sources)
+            throws IOException, InvalidRangeException {
+
+        int outputRecordIndex = 0;
+        for (Source source : sources) {
+            Variable variable = source.netcdfFile.findVariable(variableName);
+            int[] shape = variable.getShape();
+            int nbRecords = shape[timeDimensionIndex];
+
+            long recordSize = variable.getSize() / Math.max(1, nbRecords) * variable.getElementSize();
+            int blockRecords = (int)Math.max(1, Math.min(nbRecords, BLOCK_SIZE / Math.max(1, recordSize)));
+
+            int[] origin = new int[shape.length];
+            int[] outputOrigin = new int[shape.length];
+            for (int recordIndex=0; recordIndex<nbRecords; recordIndex+=blockRecords) {
+                shape[timeDimensionIndex] = Math.min(blockRecords, nbRecords - recordIndex);
+                origin[timeDimensionIndex] = recordIndex;
+                outputOrigin[timeDimensionIndex] = outputRecordIndex + recordIndex;
+
+                writer.write(variableName, outputOrigin, variable.read(origin, shape));
+            }
+            outputRecordIndex += nbRecords;
+        }
+    }
+
+    // Write the time values of every source file, converted to the time unit of the reference file
+    private static int[] writeTimeValues(NetcdfFileWriter writer, Variable variable, Source reference, List<Source> sources)
+            throws IOException, InvalidRangeException {
+
+        String timeVariableName = variable.getShortName();
+        NetCDFLoader.TimeUnit outputTimeUnit = reference.timeUnits.get(timeVariableName);
+
+        List<Integer> timeValues = new ArrayList<Integer>();
+        for (Source source : sources) {
+            NetCDFLoader.TimeUnit timeUnit = source.timeUnits.get(timeVariableName);
+            Array data = source.netcdfFile.findVariable(timeVariableName).read();
+            for (int i=0; i<data.getSize(); i++) {
+                DateTime date = timeUnit.getDate(data.getDouble(i));
+                timeValues.add((int)Math.round((date.getMillis() - outputTimeUnit.getEpoch().getMillis()) /
+                        (double)outputTimeUnit.getUnitMillis()));
+            }
+        }
+
+        int[] values = new int[timeValues.size()];
+        Array timeData = Array.factory(variable.getDataType(), new int[] {values.length});
+        Index index = timeData.getIndex();
+        for (int i=0; i<values.length; i++) {
+            values[i] = timeValues.get(i);
+            timeData.setDouble(index.set(i), values[i]);
+        }
+        writer.write(timeVariableName, timeData);
+
+        return values;
+    }
+
+    // Declare the header of the reference file, with unlimited time dimensions
+    private static NetCDFHeaderTemplate compileTemplate(Source reference, List<Source> sources) {
+        NetCDFHeaderTemplate template = new NetCDFHeaderTemplate();
+        NetcdfFile netcdfFile = reference.netcdfFile;
+
+        for (Attribute attribute : netcdfFile.getGlobalAttributes()) {
+            template.addGlobalAttribute(attribute);
+        }
+
+        for (Dimension dimension : netcdfFile.getDimensions()) {
+            String dimensionName = dimension.getShortName();
+            if (reference.timeUnits.containsKey(dimensionName)) {
+                template.addUnlimitedDimension(dimensionName);
+            } else {
+                template.addDimension(dimensionName, dimension.getLength());
+            }
+        }
+
+        for (Variable variable : netcdfFile.getVariables()) {
+            String variableName = variable.getShortName();
+            template.addVariable(variableName, variable.getDataType(), NetCDFMerger.getDimensionNames(variable));
+            for (Attribute attribute : variable.getAttributes()) {
+                if (NetCDFMerger.isRangeAttribute(attribute)) {
+                    template.addVariableAttribute(variableName, NetCDFMerger.combineRange(variableName, attribute, sources));
+                } else {
+                    template.addVariableAttribute(variableName, attribute);
+                }
+            }
+        }
+
+        return template;
+    }
+
+    // Statistics written by the Generator, which only describe the values of a single file
+    private static boolean isRangeAttribute(Attribute attribute) {
+        String attributeName = attribute.getShortName();
+        return !attribute.isString() &&
+                ("actual_range".equals(attributeName) ||
+                "valid_min".equals(attributeName) ||
+                "valid_max".equals(attributeName));
+    }
+
+    // Combine a range attribute of every file: the min of the mins and the max of the maxes.
+    //     Files without the attribute have no values for the variable, and are ignored.
+    private static Attribute combineRange(String variableName, Attribute attribute, List<Source> sources) {
+        String attributeName = attribute.getShortName();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Source source : sources) {
+            Attribute sourceAttribute = source.netcdfFile.findVariable(variableName).findAttribute(attributeName);
+            if (sourceAttribute != null && !sourceAttribute.isString()) {
+                for (int i=0; i<sourceAttribute.getLength(); i++) {
+                    double value = sourceAttribute.getNumericValue(i).doubleValue();
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+        }
+
+        double[] values;
+        if ("valid_min".equals(attributeName)) {
+            values = new double[] {min};
+        } else if ("valid_max".equals(attributeName)) {
+            values = new double[] {max};
+        } else {
+            values = new double[] {min, max};
+        }
+
+        // Keep the data type of the reference attribute
+        Array data = Array.factory(attribute.getDataType(), new int[] {values.length});
+        Index index = data.getIndex();
+        for (int i=0; i<values.length; i++) {
+            data.setDouble(index.set(i), values[i]);
+        }
+        return new Attribute(attributeName, data);
+    }
+
+    // Check that a file has the same structure as the reference file
+    private static void validate(Source reference, Source source) throws IOException {
+        NetcdfFile referenceFile = reference.netcdfFile;
+        NetcdfFile netcdfFile = source.netcdfFile;
+
+        if (!reference.timeUnits.keySet().equals(source.timeUnits.keySet())) {
+            throw new IOException(String.format("Time dimensions of %s %s doesn't match the time dimensions of %s %s",
+                    netcdfFile.getLocation(), source.timeUnits.keySet(), referenceFile.getLocation(), reference.timeUnits.keySet()));
+        }
+
+        Map<String, Integer> referenceDimensions = NetCDFMerger.getFixedDimensions(reference);
+        Map<String, Integer> dimensions = NetCDFMerger.getFixedDimensions(source);
+        if (!referenceDimensions.equals(dimensions)) {
+            throw new IOException(String.format("Dimensions of %s %s doesn't match the dimensions of %s %s",
+                    netcdfFile.getLocation(), dimensions, referenceFile.getLocation(), referenceDimensions));
+        }
+
+        if (referenceFile.getVariables().size() != netcdfFile.getVariables().size()) {
+            throw new IOException(String.format("%s doesn't have the same variables as %s",
+                    netcdfFile.getLocation(), referenceFile.getLocation()));
+        }
+        for (Variable referenceVariable : referenceFile.getVariables()) {
+            String variableName = referenceVariable.getShortName();
+            Variable variable = netcdfFile.findVariable(variableName);
+            if (variable == null) {
+                throw new IOException(String.format("Variable %s not found in %s", variableName, netcdfFile.getLocation()));
+            }
+            if (variable.getDataType() != referenceVariable.getDataType() ||
+                    !NetCDFMerger.getDimensionNames(variable).equals(NetCDFMerger.getDimensionNames(referenceVariable))) {
+                throw new IOException(String.format("Variable %s of %s doesn't match the variable of %s",
+                        variableName, netcdfFile.getLocation(), referenceFile.getLocation()));
+            }
+
+            // The lat / lon / height axes must have the same values
+            if (referenceVariable.getRank() == 1 && referenceDimensions.containsKey(variableName) &&
+                    !Arrays.equals(NetCDFMerger.readDoubles(referenceVariable), NetCDFMerger.readDoubles(variable))) {
+                throw new IOException(String.format("Axis %s of %s doesn't match the axis of %s",
+                        variableName, netcdfFile.getLocation(), referenceFile.getLocation()));
+            }
+        }
+    }
+
+    // Sort the files chronologically, and check that they do not overlap
+    private static void sort(List<Source> sources) throws IOException {
+        Collections.sort(sources, new Comparator<Source>() {
+            @Override
+            public int compare(Source source1, Source source2) {
+                return Long.compare(source1.firstDate, source2.firstDate);
+            }
+        });
+
+        for (int i=1; i<sources.size(); i++) {
+            Source previous = sources.get(i - 1);
+            Source source = sources.get(i);
+            if (source.firstDate <= previous.lastDate) {
+                throw new IOException(String.format("The time range of %s overlaps the time range of %s",
+                        source.netcdfFile.getLocation(), previous.netcdfFile.getLocation()));
+            }
+        }
+    }
+
+    private static int getTimeDimensionIndex(Variable variable, Source source) {
+        List<Dimension> dimensions = variable.getDimensions();
+        for (int i=0; i<dimensions.size(); i++) {
+            if (source.timeUnits.containsKey(dimensions.get(i).getShortName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, Integer> getFixedDimensions(Source source) {
+        Map<String, Integer> dimensions = new HashMap<String, Integer>();
+        for (Dimension dimension : source.netcdfFile.getDimensions()) {
+            if (!source.timeUnits.containsKey(dimension.getShortName())) {
+                dimensions.put(dimension.getShortName(), dimension.getLength());
+            }
+        }
+        return dimensions;
+    }
+
+    private static List<String> getDimensionNames(Variable variable) {
+        List<String> dimensionNames = new ArrayList<String>();
+        for (Dimension dimension : variable.getDimensions()) {
+            dimensionNames.add(dimension.getShortName());
+        }
+        return dimensionNames;
+    }
+
+    private static double[] readDoubles(Variable variable) throws IOException {
+        Array data = variable.read();
+        double[] values = new double[(int)data.getSize()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = data.getDouble(i);
+        }
+        return values;
+    }
+
+    // An opened input file, with its time axes
+    private static class Source {
+        public NetcdfFile netcdfFile;
+
+        // Time unit of each time dimension (a dimension which has a coordinate variable with a time unit)
+        //     Key: time dimension name (i.e. "time", "time1", etc)
+        public Map<String, NetCDFLoader.TimeUnit> timeUnits;
+        public Map<String, String> timeUnitStrings;
+
+        // Time range of the file, in milliseconds since 1970, used to sort the files
+        public long firstDate;
+        public long lastDate;
+
+        public Source(NetcdfFile netcdfFile) throws IOException {
+            this.netcdfFile = netcdfFile;
+            this.timeUnits = new LinkedHashMap<String, NetCDFLoader.TimeUnit>();
+            this.timeUnitStrings = new HashMap<String, String>();
+            this.firstDate = Long.MAX_VALUE;
+            this.lastDate = Long.MIN_VALUE;
+
+            for (Dimension dimension : netcdfFile.getDimensions()) {
+                String dimensionName = dimension.getShortName();
+                Variable variable = netcdfFile.findVariable(dimensionName);
+                Attribute unitsAttribute = variable == null ? null : variable.findAttribute("units");
+                NetCDFLoader.TimeUnit timeUnit = unitsAttribute == null || !unitsAttribute.isString() ? null :
+                        NetCDFLoader.parseTimeUnit(unitsAttribute.getStringValue());
+                if (timeUnit == null) {
+                    continue;
+                }
+
+                this.timeUnits.put(dimensionName, timeUnit);
+                this.timeUnitStrings.put(dimensionName, unitsAttribute.getStringValue());
+                Array data = variable.read();
+                for (int i=0; i<data.getSize(); i++) {
+                    long date = timeUnit.getDate(data.getDouble(i)).getMillis();
+                    this.firstDate = Math.min(this.firstDate, date);
+                    this.lastDate = Math.max(this.lastDate, date);
+                }
+            }
+        }
+    }
+}
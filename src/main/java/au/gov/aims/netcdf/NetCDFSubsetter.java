@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFFrame;
+import au.gov.aims.netcdf.bean.NetCDFPointCoordinate;
+import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
+import au.gov.aims.netcdf.bean.NetCDFTimeVariable;
+import au.gov.aims.netcdf.bean.NetCDFVariable;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extract a small fixture out of a large real NetCDF file (i.e. an eReefs file),
+ * given a bounding box, a time range, a list of depths and a list of variables.
+ *
+ * The source file is read one record at the time, using a single contiguous hyperslab read
+ * per record and per variable. The extracted data is loaded into the bean model,
+ * so the fixture can be written using the {@link Generator}.
+ *
+ * Example:
+ *     NetCDFSubsetter subsetter = new NetCDFSubsetter();
+ *     subsetter.setBoundingBox(-19.5f, 146.5f, -18.5f, 147.5f);
+ *     subsetter.setTimeRange(new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC), new DateTime(2019, 1, 2, 0, 0, DateTimeZone.UTC));
+ *     subsetter.setHeights(-1.5, -17.75);
+ *     subsetter.setVariables("temp", "u", "v");
+ *     subsetter.subset(new File("gbr4_v2_2019-01.nc"), new File("gbr4_v2_fixture.nc"), new Generator());
+ *
+ * Axes are found using their CF attributes. Only rectilinear grids are supported
+ * (1D latitude and longitude coordinate variables). Variables which do not fit
+ * the bean model are ignored.
+ *
+ * NOTE: The {@link Generator} records time in hours. Sub-hour time values are rounded.
+ */
+public class NetCDFSubsetter {
+    private static final Logger LOGGER = Logger.getLogger(NetCDFSubsetter.class);
+
+    // Type of a coordinate axis, also used by NetCDFDiff
+    enum AxisType {
+        LATITUDE, LONGITUDE, TIME, HEIGHT
+    }
+
+    // Bounding box, null for the whole grid
+    private Float minLat;
+    private Float minLon;
+    private Float maxLat;
+    private Float maxLon;
+
+    // Time range, null for no bound. The end date is exclusive.
+    private DateTime startDate;
+    private DateTime endDate;
+
+    // Heights (depths) to extract, null for all heights
+    private double[] heights;
+
+    // Variables to extract, null for all variables
+    private Set<String> variableNames;
+
+    public void setBoundingBox(float minLat, float minLon, float maxLat, float maxLon) {
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+    }
+
+    public void setTimeRange(DateTime startDate, DateTime endDate) {
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public void setHeights(double ... heights) {
+        this.heights = heights;
+    }
+
+    public void setVariables(String ... variableNames) {
+        this.variableNames = variableNames == null ? null : new HashSet<String>(Arrays.asList(variableNames));
+    }
+
+    /**
+     * Extract a fixture from a NetCDF file and write it using the {@link Generator}.
+     * @param sourceFile The large NetCDF file to subset.
+     * @param outputFile The fixture file to create.
+     * @param generator The generator used to write the fixture.
+     * @return The generator result.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public GeneratorResult subset(File sourceFile, File outputFile, Generator generator)
+            throws IOException, InvalidRangeException {
+
+        if (sourceFile == null) {
+            throw new IllegalArgumentException("No source file provided");
+        }
+        if (generator == null) {
+            throw new IllegalArgumentException("No generator provided");
+        }
+
+        NetCDFDataset[] datasets;
+        NetCDFHeaderTemplate template;
+        // Open as a dataset, to apply "scale_factor", "add_offset" and convert missing values to NaN
+        try (NetcdfFile netcdfFile = NetcdfDataset.openDataset(sourceFile.getAbsolutePath())) {
+            datasets = this.subset(netcdfFile).toArray(new NetCDFDataset[0]);
+            if (datasets.length == 0) {
+                throw new IOException(String.format("No variable could be extracted from %s", sourceFile));
+            }
+
+            // The bean model only holds string attributes. Copy the attributes of the source file, with their type.
+            template = generator.compileTemplate(datasets);
+            NetCDFSubsetter.copyAttributes(netcdfFile, template, datasets);
+        }
+
+        return generator.generate(outputFile, template, datasets);
+    }
+
+    // Copy the global attributes and the attributes of the extracted variables as-is (numeric and array attributes included)
+    private static void copyAttributes(NetcdfFile netcdfFile, NetCDFHeaderTemplate template, NetCDFDataset[] datasets) {
+        for (Attribute attribute : netcdfFile.getGlobalAttributes()) {
+            if (!attribute.getShortName().startsWith("_")) {
+                template.addGlobalAttribute(attribute);
+            }
+        }
+
+        for (NetCDFDataset dataset : datasets) {
+            for (AbstractNetCDFVariable variable : dataset) {
+                Variable ncVariable = netcdfFile.findVariable(variable.getName());
+                if (ncVariable != null) {
+                    for (Attribute attribute : ncVariable.getAttributes()) {
+                        if (NetCDFSubsetter.isCopied(attribute)) {
+                            template.addVariableAttribute(variable.getName(), attribute);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Internal attributes (i.e. "_CoordinateAxes", "_FillValue") and "coordinates" refer to the source file structure and data type.
+    //     Packing attributes don't apply to the extracted values, which are unpacked when read.
+    //     Range attributes are computed from the extracted values by the generator.
+    private static boolean isCopied(Attribute attribute) {
+        String attributeName = attribute.getShortName();
+        return !attributeName.startsWith("_") &&
+                !"coordinates".equals(attributeName) &&
+                !"scale_factor".equals(attributeName) &&
+                !"add_offset".equals(attributeName) &&
+                !"actual_range".equals(attributeName) &&
+                !"valid_min".equals(attributeName) &&
+                !"valid_max".equals(attributeName);
+    }
+
+    /**
+     * Extract a fixture from an opened NetCDF file.
+     * @param netcdfFile The NetCDF file to subset.
+     * @return One dataset per hypercube found in the source file.
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    public List<NetCDFDataset> subset(NetcdfFile netcdfFile) throws IOException, InvalidRangeException {
+        // Key: dimension name
+        Map<String, Axis> axes = this.findAxes(netcdfFile);
+
+        // Variables are grouped by hypercube
+        //     Key: hypercube key (i.e. "latitude,longitude")
+        Map<String, List<AbstractNetCDFVariable>> hypercubeVariables = new LinkedHashMap<String, List<AbstractNetCDFVariable>>();
+        Map<String, Axis> hypercubeTimeAxes = new LinkedHashMap<String, Axis>();
+        Map<String, String> hypercubeHeightDimensions = new LinkedHashMap<String, String>();
+
+        for (Variable ncVariable : netcdfFile.getVariables()) {
+            String name = ncVariable.getShortName();
+            if (ncVariable.getRank() == 1 && axes.containsKey(ncVariable.getDimension(0).getShortName())) {
+                // Coordinate variable
+                continue;
+            }
+            if (this.variableNames != null && !this.variableNames.contains(name)) {
+                continue;
+            }
+
+            Axis[] variableAxes = NetCDFSubsetter.getVariableAxes(ncVariable, axes);
+            if (variableAxes == null) {
+                LOGGER.warn(String.format("Unsupported dimensions for variable %s: %s", name, ncVariable.getDimensionsString()));
+                continue;
+            }
+            Axis latAxis = NetCDFSubsetter.findAxis(variableAxes, AxisType.LATITUDE);
+            Axis lonAxis = NetCDFSubsetter.findAxis(variableAxes, AxisType.LONGITUDE);
+            Axis timeAxis = NetCDFSubsetter.findAxis(variableAxes, AxisType.TIME);
+            Axis heightAxis = NetCDFSubsetter.findAxis(variableAxes, AxisType.HEIGHT);
+            if (latAxis.indexes.length == 0 || lonAxis.indexes.length == 0 ||
+                    (timeAxis != null && timeAxis.indexes.length == 0) ||
+                    (heightAxis != null && heightAxis.indexes.length == 0)) {
+                LOGGER.warn(String.format("No data selected for variable %s", name));
+                continue;
+            }
+
+            // Static variables (without time) are added to the hypercube which share their lat / lon axes.
+            //     A hypercube only has one time dimension and one height dimension.
+            String hypercubeKey = String.format("%s,%s", latAxis.dimensionName, lonAxis.dimensionName);
+            if (timeAxis != null) {
+                Axis hypercubeTimeAxis = hypercubeTimeAxes.get(hypercubeKey);
+                if (hypercubeTimeAxis == null) {
+                    hypercubeTimeAxes.put(hypercubeKey, timeAxis);
+                } else if (hypercubeTimeAxis != timeAxis) {
+                    hypercubeKey = hypercubeKey + "," + timeAxis.dimensionName;
+                    hypercubeTimeAxes.put(hypercubeKey, timeAxis);
+                }
+            }
+            if (heightAxis != null) {
+                String hypercubeHeightDimension = hypercubeHeightDimensions.get(hypercubeKey);
+                if (hypercubeHeightDimension == null) {
+                    hypercubeHeightDimensions.put(hypercubeKey, heightAxis.dimensionName);
+                } else if (!hypercubeHeightDimension.equals(heightAxis.dimensionName)) {
+                    hypercubeKey = hypercubeKey + "," + heightAxis.dimensionName;
+                    if (timeAxis != null) {
+                        hypercubeTimeAxes.put(hypercubeKey, timeAxis);
+                    }
+                }
+            }
+
+            List<AbstractNetCDFVariable> variables = hypercubeVariables.get(hypercubeKey);
+            if (variables == null) {
+                variables = new ArrayList<AbstractNetCDFVariable>();
+                hypercubeVariables.put(hypercubeKey, variables);
+            }
+            variables.add(this.subsetVariable(ncVariable, variableAxes, latAxis, lonAxis, timeAxis, heightAxis));
+        }
+
+        List<NetCDFDataset> datasets = new ArrayList<NetCDFDataset>();
+        for (Map.Entry<String, List<AbstractNetCDFVariable>> hypercubeEntry : hypercubeVariables.entrySet()) {
+            NetCDFDataset dataset = new NetCDFDataset();
+            Axis timeAxis = hypercubeTimeAxes.get(hypercubeEntry.getKey());
+            if (timeAxis != null) {
+                dataset.setTimeUnit(timeAxis.timeUnitString, timeAxis.timeUnit.getEpoch());
+            }
+
+            // Global attributes are shared by all hypercubes. Only set them once.
+            if (datasets.isEmpty()) {
+                for (Attribute attribute : netcdfFile.getGlobalAttributes()) {
+                    if (attribute.isString()) {
+                        dataset.setGlobalAttribute(attribute.getShortName(), attribute.getStringValue());
+                    }
+                }
+            }
+
+            NetCDFLoader.addVariables(dataset, hypercubeEntry.getValue());
+            datasets.add(dataset);
+        }
+
+        return datasets;
+    }
+
+    private AbstractNetCDFVariable subsetVariable(Variable ncVariable, Axis[] variableAxes,
+            Axis latAxis, Axis lonAxis, Axis timeAxis, Axis heightAxis) throws IOException, InvalidRangeException {
+
+        String name = ncVariable.getShortName();
+        Attribute unitsAttribute = ncVariable.findAttribute("units");
+        String units = unitsAttribute == null ? null : unitsAttribute.getStringValue();
+
+        int rank = variableAxes.length;
+        int nbLat = latAxis.indexes.length;
+        int nbLon = lonAxis.indexes.length;
+        int nbHeight = heightAxis == null ? 1 : heightAxis.indexes.length;
+
+        // Hyperslab read for a record: a single record, and the contiguous span of the selected indexes of other axes
+        int[] origin = new int[rank];
+        int[] shape = new int[rank];
+        int timeDimensionIndex = -1;
+        for (int i=0; i<rank; i++) {
+            Axis axis = variableAxes[i];
+            if (axis.type == AxisType.TIME) {
+                timeDimensionIndex = i;
+                shape[i] = 1;
+            } else {
+                origin[i] = axis.getFirstIndex();
+                shape[i] = axis.getLastIndex() - axis.getFirstIndex() + 1;
+            }
+        }
+
+        // Offset, in the read array, of every selected index of the lat, lon and height axes
+        int[] strides = new int[rank];
+        int stride = 1;
+        for (int i=rank-1; i>=0; i--) {
+            strides[i] = stride;
+            stride *= shape[i];
+        }
+        int[] latOffsets = NetCDFSubsetter.getOffsets(variableAxes, latAxis, strides);
+        int[] lonOffsets = NetCDFSubsetter.getOffsets(variableAxes, lonAxis, strides);
+        int[] heightOffsets = heightAxis == null ? new int[] {0} : NetCDFSubsetter.getOffsets(variableAxes, heightAxis, strides);
+
+        AbstractNetCDFVariable variable;
+        if (timeAxis == null) {
+            variable = new NetCDFVariable(name, units);
+        } else if (heightAxis == null) {
+            variable = new NetCDFTimeVariable(name, units);
+        } else {
+            variable = new NetCDFTimeDepthVariable(name, units);
+        }
+
+        int[] timeIndexes = timeAxis == null ? new int[] {0} : timeAxis.indexes;
+        for (int recordIndex=0; recordIndex<timeIndexes.length; recordIndex++) {
+            if (timeDimensionIndex >= 0) {
+                origin[timeDimensionIndex] = timeIndexes[recordIndex];
+            }
+            Array data = ncVariable.read(origin, shape);
+
+            double[] values = new double[nbLat * nbLon * nbHeight];
+            for (int latIndex=0; latIndex<nbLat; latIndex++) {
+                for (int lonIndex=0; lonIndex<nbLon; lonIndex++) {
+                    int offset = latOffsets[latIndex] + lonOffsets[lonIndex];
+                    for (int heightIndex=0; heightIndex<nbHeight; heightIndex++) {
+                        values[(latIndex * nbLon + lonIndex) * nbHeight + heightIndex] =
+                                data.getDouble(offset + heightOffsets[heightIndex]);
+                    }
+                }
+            }
+
+            variable.addFrame(new NetCDFFrame(
+                    timeAxis == null ? null : timeAxis.dates[recordIndex],
+                    latAxis.coordinates, lonAxis.coordinates,
+                    heightAxis == null ? null : heightAxis.heights,
+                    values));
+        }
+
+        if (units == null) {
+            variable.getAttributes().remove("units");
+        }
+        // String attributes, for the bean model. The attributes of other types are copied in the template.
+        for (Attribute attribute : ncVariable.getAttributes()) {
+            if (attribute.isString() && NetCDFSubsetter.isCopied(attribute)) {
+                variable.setAttribute(attribute.getShortName(), attribute.getStringValue());
+            }
+        }
+
+        return variable;
+    }
+
+    // Offsets of the selected indexes of an axis, in the array returned by the hyperslab read
+    private static int[] getOffsets(Axis[] variableAxes, Axis axis, int[] strides) {
+        int dimensionIndex = Arrays.asList(variableAxes).indexOf(axis);
+        int firstIndex = axis.getFirstIndex();
+        int[] offsets = new int[axis.indexes.length];
+        for (int i=0; i<offsets.length; i++) {
+            offsets[i] = (axis.indexes[i] - firstIndex) * strides[dimensionIndex];
+        }
+        return offsets;
+    }
+
+    // The axis of each dimension of a variable, or null if the variable do not fit the bean model
+    private static Axis[] getVariableAxes(Variable ncVariable, Map<String, Axis> axes) {
+        List<Dimension> dimensions = ncVariable.getDimensions();
+        Axis[] variableAxes = new Axis[dimensions.size()];
+        Set<AxisType> axisTypes = new HashSet<AxisType>();
+        for (int i=0; i<variableAxes.length; i++) {
+            Axis axis = axes.get(dimensions.get(i).getShortName());
+            if (axis == null || !axisTypes.add(axis.type)) {
+                return null;
+            }
+            variableAxes[i] = axis;
+        }
+
+        if (!axisTypes.contains(AxisType.LATITUDE) || !axisTypes.contains(AxisType.LONGITUDE)) {
+            return null;
+        }
+        // The bean model do not have variables with height but without time
+        if (axisTypes.contains(AxisType.HEIGHT) && !axisTypes.contains(AxisType.TIME)) {
+            return null;
+        }
+        return variableAxes;
+    }
+
+    private static Axis findAxis(Axis[] axes, AxisType type) {
+        for (Axis axis : axes) {
+            if (axis.type == type) {
+                return axis;
+            }
+        }
+        return null;
+    }
+
+    // Find the coordinate variables of the file, and select the indexes within the requested bounds
+    private Map<String, Axis> findAxes(NetcdfFile netcdfFile) throws IOException {
+        Map<String, Axis> axes = new LinkedHashMap<String, Axis>();
+        for (Variable ncVariable : netcdfFile.getVariables()) {
+            if (ncVariable.getRank() != 1) {
+                continue;
+            }
+            String dimensionName = ncVariable.getDimension(0).getShortName();
+            AxisType type = NetCDFSubsetter.getAxisType(ncVariable);
+            if (type == null || axes.containsKey(dimensionName)) {
+                continue;
+            }
+
+            Axis axis = new Axis(type, dimensionName);
+            Array data = ncVariable.read();
+            int size = (int)data.getSize();
+            List<Integer> indexes = new ArrayList<Integer>();
+
+            switch (type) {
+                case LATITUDE:
+                case LONGITUDE:
+                    Float min = type == AxisType.LATITUDE ? this.minLat : this.minLon;
+                    Float max = type == AxisType.LATITUDE ? this.maxLat : this.maxLon;
+                    for (int i=0; i<size; i++) {
+                        float coordinate = data.getFloat(i);
+                        if (min == null || (coordinate >= min - NetCDFPointCoordinate.COORDINATE_EPSILON &&
+                                coordinate <= max + NetCDFPointCoordinate.COORDINATE_EPSILON)) {
+                            indexes.add(i);
+                        }
+                    }
+                    axis.setIndexes(indexes);
+                    axis.coordinates = new float[axis.indexes.length];
+                    for (int i=0; i<axis.indexes.length; i++) {
+                        axis.coordinates[i] = data.getFloat(axis.indexes[i]);
+                    }
+                    break;
+
+                case HEIGHT:
+                    for (int i=0; i<size; i++) {
+                        if (this.heights == null || NetCDFSubsetter.containsHeight(this.heights, data.getDouble(i))) {
+                            indexes.add(i);
+                        }
+                    }
+                    axis.setIndexes(indexes);
+                    axis.heights = new double[axis.indexes.length];
+                    for (int i=0; i<axis.indexes.length; i++) {
+                        axis.heights[i] = data.getDouble(axis.indexes[i]);
+                    }
+                    break;
+
+                case TIME:
+                    String timeUnitString = NetCDFSubsetter.getStringAttribute(ncVariable, "units");
+                    axis.timeUnit = NetCDFLoader.parseTimeUnit(timeUnitString);
+                    if (axis.timeUnit == null) {
+                        LOGGER.warn(String.format("Unsupported time unit for variable %s: %s",
+                                ncVariable.getShortName(), timeUnitString));
+                        continue;
+                    }
+                    axis.timeUnitString = NetCDFLoader.getHoursTimeUnit(axis.timeUnit, timeUnitString);
+
+                    List<DateTime> dates = new ArrayList<DateTime>();
+                    for (int i=0; i<size; i++) {
+                        DateTime date = axis.timeUnit.getDate(data.getDouble(i));
+                        if ((this.startDate == null || !date.isBefore(this.startDate)) &&
+                                (this.endDate == null || date.isBefore(this.endDate))) {
+                            indexes.add(i);
+                            dates.add(date);
+                        }
+                    }
+                    axis.setIndexes(indexes);
+                    axis.dates = dates.toArray(new DateTime[0]);
+                    break;
+            }
+
+            axes.put(dimensionName, axis);
+        }
+
+        return axes;
+    }
+
+    private static boolean containsHeight(double[] heights, double height) {
+        for (double requestedHeight : heights) {
+            if (Math.abs(requestedHeight - height) <= NetCDFPointCoordinate.HEIGHT_EPSILON) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Find the type of a coordinate variable, using its CF attributes
+    static AxisType getAxisType(Variable ncVariable) {
+        String units = NetCDFSubsetter.getStringAttribute(ncVariable, "units");
+        String standardName = NetCDFSubsetter.getStringAttribute(ncVariable, "standard_name");
+        String axisType = NetCDFSubsetter.getStringAttribute(ncVariable, "_CoordinateAxisType");
+        String axis = NetCDFSubsetter.getStringAttribute(ncVariable, "axis");
+
+        if ("latitude".equals(standardName) || "Lat".equals(axisType) || "degrees_north".equals(units)) {
+            return AxisType.LATITUDE;
+        }
+        if ("longitude".equals(standardName) || "Lon".equals(axisType) || "degrees_east".equals(units)) {
+            return AxisType.LONGITUDE;
+        }
+        if ("time".equals(standardName) || "Time".equals(axisType) || "T".equals(axis) ||
+                (units != null && units.toLowerCase().contains(" since "))) {
+            return AxisType.TIME;
+        }
+        if ("depth".equals(standardName) || "height".equals(standardName) ||
+                "Height".equals(axisType) || "GeoZ".equals(axisType) || "Z".equals(axis) ||
+                NetCDFSubsetter.getStringAttribute(ncVariable, "positive") != null) {
+            return AxisType.HEIGHT;
+        }
+        return null;
+    }
+
+    private static String getStringAttribute(Variable ncVariable, String attributeName) {
+        Attribute attribute = ncVariable.findAttribute(attributeName);
+        return attribute == null || !attribute.isString() ? null : attribute.getStringValue();
+    }
+
+    // Coordinate axis of the source file, with the indexes selected for the fixture
+    private static class Axis {
+        public AxisType type;
+        public String dimensionName;
+
+        // Selected indexes, in increasing order
+        public int[] indexes;
+
+        public float[] coordinates;
+        public double[] heights;
+        public DateTime[] dates;
+
+        public NetCDFLoader.TimeUnit timeUnit;
+        public String timeUnitString;
+
+        public Axis(AxisType type, String dimensionName) {
+            this.type = type;
+            this.dimensionName = dimensionName;
+        }
+
+        public void setIndexes(List<Integer> indexes) {
+            this.indexes = new int[indexes.size()];
+            for (int i=0; i<this.indexes.length; i++) {
+                this.indexes[i] = indexes.get(i);
+            }
+        }
+
+        public int getFirstIndex() {
+            return this.indexes.length == 0 ? 0 : this.indexes[0];
+        }
+
+        public int getLastIndex() {
+            return this.indexes.length == 0 ? 0 : this.indexes[this.indexes.length - 1];
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Define how a dataset is split into multiple NetCDF files.
+ * See {@link Generator#generatePartitions(java.io.File, String, PartitionPolicy, au.gov.aims.netcdf.bean.NetCDFDataset)}
+ */
+public enum PartitionPolicy {
+    // One file per day, named after the date. Example: "2018-10-01"
+    DAY("yyyy-MM-dd"),
+
+    // One file per month, named after the month. Example: "2018-10"
+    MONTH("yyyy-MM"),
+
+    // One file per variable (or vector variable), named after the variable.
+    VARIABLE(null);
+
+    private String datePattern;
+
+    PartitionPolicy(String datePattern) {
+        this.datePattern = datePattern;
+    }
+
+    public boolean isByDate() {
+        return this.datePattern != null;
+    }
+
+    /**
+     * Return the partition key of the values of a variable, at a given date.
+     * @param date The date of a time record. Only used by DAY and MONTH partitions.
+     * @param variableName The name of the variable, or the group name of a vector variable.
+     *     Only used by VARIABLE partitions.
+     * @return The key used in the output file name.
+     */
+    public String getKey(DateTime date, String variableName) {
+        if (this.isByDate()) {
+            if (date == null) {
+                throw new IllegalArgumentException(String.format("Partition policy %s requires a date", this.name()));
+            }
+            return date.toString(this.datePattern);
+        }
+
+        if (variableName == null) {
+            throw new IllegalArgumentException(String.format("Partition policy %s requires a variable name", this.name()));
+        }
+        return variableName;
+    }
+
+    /**
+     * Split a hypercube into partitions, sharing its axes and its records.
+     * The partitions share the readers of the variables (see {@link SharedRecordReaders}),
+     * so the data points of a variable are indexed once, for all the partitions which contain the variable.
+     * @param bundle The hypercube of the whole dataset.
+     * @return The partitions, keyed by partition key, in partition order.
+     */
+    Map<String, Bundle> partition(Bundle bundle) {
+        Map<String, Bundle> partitions = this.isByDate() ? this.partitionByDate(bundle) : this.partitionByVariable(bundle);
+        SharedRecordReaders readers = new SharedRecordReaders(partitions.values());
+        for (Bundle partition : partitions.values()) {
+            partition.readers = readers;
+        }
+        return partitions;
+    }
+
+    private Map<String, Bundle> partitionByDate(Bundle bundle) {
+        if (bundle.dates.isEmpty()) {
+            throw new IllegalArgumentException("The dataset has no time record to partition");
+        }
+
+        DateTimeZone timezone = bundle.dataset.getTimeEpoch().getZone();
+
+        // Group dates per partition key. Dates are sorted, so are the partitions:
+        //     the records of each partition are a contiguous slice of the records of the dataset.
+        Map<String, SortedSet<DateTime>> partitionDates = new LinkedHashMap<String, SortedSet<DateTime>>();
+        for (DateTime date : bundle.dates) {
+            String partitionKey = this.getKey(date.withZone(timezone), null);
+            SortedSet<DateTime> dates = partitionDates.get(partitionKey);
+            if (dates == null) {
+                dates = new TreeSet<DateTime>();
+                partitionDates.put(partitionKey, dates);
+            }
+            dates.add(date);
+        }
+
+        Map<String, Bundle> partitions = new LinkedHashMap<String, Bundle>();
+        for (Map.Entry<String, SortedSet<DateTime>> partitionDatesEntry : partitionDates.entrySet()) {
+            partitions.put(partitionDatesEntry.getKey(),
+                    new Bundle(bundle, partitionDatesEntry.getValue(), bundle.variables));
+        }
+        return partitions;
+    }
+
+    private Map<String, Bundle> partitionByVariable(Bundle bundle) {
+        // Vector variables components (U and V) must stay in the same file
+        Map<AbstractNetCDFVariable, String> vectorGroups = new HashMap<AbstractNetCDFVariable, String>();
+        for (NetCDFVectorVariable<?> vectorVariable : bundle.dataset.getVectorVariables()) {
+            vectorGroups.put(vectorVariable.getU(), vectorVariable.getGroupName());
+            vectorGroups.put(vectorVariable.getV(), vectorVariable.getGroupName());
+        }
+
+        Map<String, List<AbstractNetCDFVariable>> partitionVariables = new LinkedHashMap<String, List<AbstractNetCDFVariable>>();
+        for (AbstractNetCDFVariable variable : bundle.variables) {
+            String partitionKey = this.getKey(null,
+                    vectorGroups.containsKey(variable) ? vectorGroups.get(variable) : variable.getName());
+            List<AbstractNetCDFVariable> variables = partitionVariables.get(partitionKey);
+            if (variables == null) {
+                variables = new ArrayList<AbstractNetCDFVariable>();
+                partitionVariables.put(partitionKey, variables);
+            }
+            variables.add(variable);
+        }
+
+        Map<String, Bundle> partitions = new LinkedHashMap<String, Bundle>();
+        for (Map.Entry<String, List<AbstractNetCDFVariable>> partitionVariablesEntry : partitionVariables.entrySet()) {
+            // Every partition uses all the dates of the dataset, so the time axes of the files
+            //     are identical and can be combined in a "union" aggregation.
+            //     Partitions without time variables have no time axis.
+            Bundle partition = new Bundle(bundle, bundle.dates, partitionVariablesEntry.getValue());
+            if (!partition.hasTime()) {
+                partition.dates = new TreeSet<DateTime>();
+            }
+            partitions.put(partitionVariablesEntry.getKey(), partition);
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+// Progress of the generation of a file, shared by the hypercubes written concurrently.
+//     Also checks the cancellation token and the time limit of the generator.
+class ProgressTracker {
+    private Generator generator;
+    private File outputFile;
+    private String operation;
+    private long startTime;
+
+    private int recordCount;
+    private int totalRecordCount;
+    private int variableCount;
+    private int totalVariableCount;
+    private long byteCount;
+
+    public ProgressTracker(Generator generator, File outputFile, List<Bundle> bundleList) {
+        this.generator = generator;
+        this.outputFile = outputFile;
+        this.operation = String.format("Generation of %s", outputFile);
+        this.startTime = System.nanoTime();
+
+        for (Bundle bundle : bundleList) {
+            for (AbstractNetCDFVariable variable : bundle.variables) {
+                this.totalRecordCount += variable.hasTime() ? bundle.dates.size() : 1;
+                this.totalVariableCount++;
+            }
+        }
+
+        this.check();
+    }
+
+    public synchronized void recordWritten(int valueCount) {
+        this.recordCount++;
+        this.byteCount += valueCount * 8L; // double values
+        this.notifyListener();
+        this.check();
+    }
+
+    public synchronized void variableWritten() {
+        this.variableCount++;
+        this.notifyListener();
+    }
+
+    private void notifyListener() {
+        GeneratorProgress.Listener listener = this.generator.getProgressListener();
+        if (listener != null) {
+            listener.progress(new GeneratorProgress(this.outputFile,
+                    this.recordCount, this.totalRecordCount, this.variableCount, this.totalVariableCount,
+                    this.byteCount, this.getElapsedMillis()));
+        }
+    }
+
+    // Cancellation check, run while the variables are filled
+    public Runnable getCheckpoint() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ProgressTracker.this.check();
+            }
+        };
+    }
+
+    private void check() {
+        this.generator.checkCancelled(this.operation);
+        long timeLimit = this.generator.getTimeLimit();
+        if (timeLimit > 0 && this.getElapsedMillis() > timeLimit) {
+            throw new CancellationException(String.format("Generation of %s exceeded the time limit of %d ms",
+                    this.outputFile, timeLimit));
+        }
+    }
+
+    private long getElapsedMillis() {
+        return (System.nanoTime() - this.startTime) / 1000000;
+    }
+}
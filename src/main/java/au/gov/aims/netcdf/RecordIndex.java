@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.NetCDFPointCoordinate;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.joda.time.DateTime;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Data points of a variable, grouped by record, with their offset in the record.
+ *
+ * The index is built in a single pass over the data points: the record of each data point
+ * is found using a binary search on the record dates, and its coordinates are snapped
+ * to the axes using {@link AxisIndex}. Records are then filled one at the time,
+ * so a variable is never held in memory as a dense array of all its records.
+ * The index retains an offset and a value per component for each data point
+ * (12 bytes for a variable, 20 bytes for the u and v components of a vector variable).
+ */
+class RecordIndex {
+    // Number of data points processed between cancellation checks
+    public static final int CHECKPOINT_INTERVAL = 65536;
+
+    // The data points of record r are found between recordStarts[r] (inclusive) and recordStarts[r+1] (exclusive)
+    private int[] recordStarts;
+    private int[] offsets;
+    // Values of each component, indexed [component][data point]. NaN when a component has no value.
+    private double[][] values;
+
+    private RecordIndex(int[] recordStarts, int[] offsets, double[][] values) {
+        this.recordStarts = recordStarts;
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    /**
+     * Index the data points of a variable.
+     * Data points which are not on the axes, not in a record, or which have no value, are ignored.
+     *
+     * @param dataPoints The data points of the variable.
+     * @param lats The latitude axis.
+     * @param lons The longitude axis.
+     * @param heights The height axis, or null if the variable has no height.
+     * @param recordMillis The date of each record, in milliseconds, or null if the variable has no time.
+     *     See {@link #getRecordMillis(SortedSet)}.
+     * @param checkpoint Cancellation check, run every {@link #CHECKPOINT_INTERVAL} data points, or null.
+     * @return The index.
+     */
+    public static RecordIndex build(Map<NetCDFPointCoordinate, Double> dataPoints,
+            float[] lats, float[] lons, double[] heights, long[] recordMillis, Runnable checkpoint) {
+
+        Builder builder = new Builder(1, dataPoints.size(), recordMillis);
+        long iteration = 0;
+        for (Map.Entry<NetCDFPointCoordinate, Double> dataPoint : dataPoints.entrySet()) {
+            RecordIndex.checkpoint(++iteration, checkpoint);
+            NetCDFPointCoordinate coordinate = dataPoint.getKey();
+            Double value = dataPoint.getValue();
+            if (coordinate == null || value == null || value.isNaN()) {
+                continue;
+            }
+
+            int position = builder.add(coordinate, lats, lons, heights);
+            if (position >= 0) {
+                builder.pointValues[0][position] = value;
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Index the data points of the u and v components of a vector variable, in a single pass.
+     * Both values of a data point are stored together (see {@link NetCDFVectorVariable#getPairedData()}),
+     * so its coordinate is resolved once and both values are indexed as a single data point.
+     *
+     * @param pairedDataPoints The u and v values of the data points. NaN when a component has no value.
+     * @see #build(Map, float[], float[], double[], long[], Runnable)
+     * @return The index, with the u values as component 0 and the v values as component 1.
+     */
+    public static RecordIndex buildVector(Map<NetCDFPointCoordinate, double[]> pairedDataPoints,
+            float[] lats, float[] lons, double[] heights, long[] recordMillis, Runnable checkpoint) {
+
+        Builder builder = new Builder(2, pairedDataPoints.size(), recordMillis);
+        long iteration = 0;
+        for (Map.Entry<NetCDFPointCoordinate, double[]> dataPoint : pairedDataPoints.entrySet()) {
+            RecordIndex.checkpoint(++iteration, checkpoint);
+            NetCDFPointCoordinate coordinate = dataPoint.getKey();
+            double[] values = dataPoint.getValue();
+            if (coordinate == null || values == null || (Double.isNaN(values[0]) && Double.isNaN(values[1]))) {
+                continue;
+            }
+
+            int position = builder.add(coordinate, lats, lons, heights);
+            if (position >= 0) {
+                builder.pointValues[0][position] = values[0];
+                builder.pointValues[1][position] = values[1];
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Copy the values of the data points of a record.
+     * Other values of the record are left untouched.
+     * @param recordIndex The record index.
+     * @param recordData The record, indexed [lat][lon][height].
+     */
+    public void fill(int recordIndex, double[] recordData) {
+        this.fill(0, recordIndex, recordData);
+    }
+
+    /**
+     * Copy the values of a component of the data points of a record.
+     * Other values of the record, and the data points which have no value for the component, are left untouched.
+     * @param component The component index (0 for u, 1 for v, see {@link #buildVector}).
+     * @param recordIndex The record index.
+     * @param recordData The record of the component, indexed [lat][lon][height].
+     */
+    public void fill(int component, int recordIndex, double[] recordData) {
+        double[] componentValues = this.values[component];
+        int end = this.recordStarts[recordIndex + 1];
+        for (int i=this.recordStarts[recordIndex]; i<end; i++) {
+            double value = componentValues[i];
+            if (!Double.isNaN(value)) {
+                recordData[this.offsets[i]] = value;
+            }
+        }
+    }
+
+    // Run the cancellation check every CHECKPOINT_INTERVAL iterations
+    static void checkpoint(long iteration, Runnable checkpoint) {
+        if (checkpoint != null && iteration % CHECKPOINT_INTERVAL == 0) {
+            checkpoint.run();
+        }
+    }
+
+    // Number of indexed data points
+    public int size() {
+        return this.offsets.length;
+    }
+
+    // Dates of the records, in milliseconds, sorted
+    public static long[] getRecordMillis(SortedSet<DateTime> dates) {
+        long[] recordMillis = new long[dates.size()];
+        int recordIndex = 0;
+        for (DateTime date : dates) {
+            recordMillis[recordIndex] = date.getMillis();
+            recordIndex++;
+        }
+        return recordMillis;
+    }
+
+    /**
+     * Find the record of a date, using a binary search.
+     * @param date The date.
+     * @param recordMillis The date of each record, in milliseconds, or null if the variable has no time.
+     * @return The record index, 0 when the variable has no time, or -1 if the date is not in a record.
+     */
+    public static int getRecordIndex(DateTime date, long[] recordMillis) {
+        if (recordMillis == null) {
+            return 0;
+        }
+        if (date == null) {
+            return -1;
+        }
+        int recordIndex = Arrays.binarySearch(recordMillis, date.getMillis());
+        return recordIndex < 0 ? -1 : recordIndex;
+    }
+
+    // Record and offset of the data points, in the order they are found, before they are grouped by record
+    private static class Builder {
+        private long[] recordMillis;
+        private int nbRecords;
+        private int capacity;
+        private int count;
+
+        private int[] pointRecords;
+        private int[] pointOffsets;
+        private double[][] pointValues;
+        private int[] recordStarts;
+
+        public Builder(int nbComponents, int capacity, long[] recordMillis) {
+            this.recordMillis = recordMillis;
+            this.nbRecords = recordMillis == null ? 1 : recordMillis.length;
+            this.capacity = capacity;
+            this.pointRecords = new int[capacity];
+            this.pointOffsets = new int[capacity];
+            this.pointValues = new double[nbComponents][capacity];
+            this.recordStarts = new int[this.nbRecords + 1];
+        }
+
+        /**
+         * Resolve the record and the offset of a data point.
+         * @return The position of the data point, where its values are set,
+         *     or -1 if the data point is not on the axes or not in a record.
+         */
+        public int add(NetCDFPointCoordinate coordinate, float[] lats, float[] lons, double[] heights) {
+            int recordIndex = RecordIndex.getRecordIndex(coordinate.getDate(), this.recordMillis);
+            int offset = recordIndex < 0 ? -1 : RecordReaders.getRecordOffset(coordinate, lats, lons, heights);
+            if (offset < 0) {
+                return -1;
+            }
+
+            // Concurrent maps may return more data points than their size
+            if (this.count == this.capacity) {
+                this.capacity = this.capacity * 2 + 16;
+                this.pointRecords = Arrays.copyOf(this.pointRecords, this.capacity);
+                this.pointOffsets = Arrays.copyOf(this.pointOffsets, this.capacity);
+                for (int component=0; component<this.pointValues.length; component++) {
+                    this.pointValues[component] = Arrays.copyOf(this.pointValues[component], this.capacity);
+                }
+            }
+            this.pointRecords[this.count] = recordIndex;
+            this.pointOffsets[this.count] = offset;
+            this.recordStarts[recordIndex + 1]++;
+            return this.count++;
+        }
+
+        // Group the data points by record (counting sort).
+        //     The sort is stable: when 2 data points have the same offset, the last one wins, as in the data map.
+        public RecordIndex build() {
+            for (int recordIndex=0; recordIndex<this.nbRecords; recordIndex++) {
+                this.recordStarts[recordIndex + 1] += this.recordStarts[recordIndex];
+            }
+            int[] nextPositions = Arrays.copyOf(this.recordStarts, this.nbRecords);
+            int[] offsets = new int[this.count];
+            double[][] values = new double[this.pointValues.length][this.count];
+            for (int i=0; i<this.count; i++) {
+                int position = nextPositions[this.pointRecords[i]]++;
+                offsets[position] = this.pointOffsets[i];
+                for (int component=0; component<values.length; component++) {
+                    values[component][position] = this.pointValues[component][i];
+                }
+            }
+
+            return new RecordIndex(this.recordStarts, offsets, values);
+        }
+    }
+}
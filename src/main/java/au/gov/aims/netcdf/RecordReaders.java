@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFFrame;
+import au.gov.aims.netcdf.bean.NetCDFLazyVariable;
+import au.gov.aims.netcdf.bean.NetCDFPointCoordinate;
+import au.gov.aims.netcdf.bean.NetCDFSpillingData;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read the values of the variables one record at the time, as dense arrays indexed [lat][lon][height],
+ * from their data points and their frames.
+ * Records are read in record order, so a variable is never held in memory as a dense array of all its records.
+ */
+class RecordReaders {
+
+    private RecordReaders() {}
+
+    // Number of values in a record of a variable, indexed [lat][lon][height].
+    //     Records are held in Java arrays, so their size must fit in an int.
+    static int getRecordSize(float[] lats, float[] lons, double[] heights) {
+        long recordSize = (long)lats.length * lons.length * (heights == null ? 1 : heights.length);
+        if (recordSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Records of %d values are too large, the maximum is %d",
+                    recordSize, Integer.MAX_VALUE));
+        }
+        return (int)recordSize;
+    }
+
+    // Offset of a data point in a record, indexed [lat][lon][height], or -1 if the data point is not on the axes
+    static int getRecordOffset(NetCDFPointCoordinate coordinate, float[] lats, float[] lons, double[] heights) {
+        int latIndex = AxisIndex.indexOf(lats, coordinate.getLat(), NetCDFPointCoordinate.COORDINATE_EPSILON);
+        int lonIndex = AxisIndex.indexOf(lons, coordinate.getLon(), NetCDFPointCoordinate.COORDINATE_EPSILON);
+        if (latIndex < 0 || lonIndex < 0) {
+            return -1;
+        }
+
+        int nbHeight = 1;
+        int heightIndex = 0;
+        if (heights != null) {
+            Double height = coordinate.getHeight();
+            heightIndex = height == null ? -1 : AxisIndex.indexOf(heights, height, NetCDFPointCoordinate.HEIGHT_EPSILON);
+            if (heightIndex < 0) {
+                return -1;
+            }
+            nbHeight = heights.length;
+        }
+
+        return (latIndex * lons.length + lonIndex) * nbHeight + heightIndex;
+    }
+
+    // Copy the values of a frame in a record, using an index map from the frame axes to the hypercube axes
+    static void fillFrame(double[] data, int recordOffset, NetCDFFrame frame, float[] lats, float[] lons, double[] heights) {
+        int[][] frameIndexes = RecordReaders.getFrameIndexes(frame, lats, lons, heights);
+        if (frameIndexes != null) {
+            RecordReaders.copyFrame(data, recordOffset, frame.getValues(), frameIndexes, lons.length, heights == null ? 1 : heights.length);
+        }
+    }
+
+    // Index of the frame axes values in the hypercube axes: {latIndexes, lonIndexes, heightIndexes}.
+    //     Null if the frame can not be copied in the hypercube.
+    private static int[][] getFrameIndexes(NetCDFFrame frame, float[] lats, float[] lons, double[] heights) {
+        if (heights != null && frame.getHeights() == null) {
+            return null;
+        }
+
+        float[] frameLats = frame.getLats();
+        float[] frameLons = frame.getLons();
+        double[] frameHeights = heights == null ? null : frame.getHeights();
+
+        int[] latIndexes = new int[frameLats.length];
+        for (int i=0; i<frameLats.length; i++) {
+            latIndexes[i] = AxisIndex.indexOf(lats, frameLats[i], NetCDFPointCoordinate.COORDINATE_EPSILON);
+        }
+        int[] lonIndexes = new int[frameLons.length];
+        for (int i=0; i<frameLons.length; i++) {
+            lonIndexes[i] = AxisIndex.indexOf(lons, frameLons[i], NetCDFPointCoordinate.COORDINATE_EPSILON);
+        }
+        int[] heightIndexes = new int[frameHeights == null ? 1 : frameHeights.length];
+        for (int i=0; frameHeights != null && i<frameHeights.length; i++) {
+            heightIndexes[i] = AxisIndex.indexOf(heights, frameHeights[i], NetCDFPointCoordinate.HEIGHT_EPSILON);
+        }
+
+        return new int[][] {latIndexes, lonIndexes, heightIndexes};
+    }
+
+    private static void copyFrame(double[] data, int recordOffset, double[] frameValues, int[][] frameIndexes, int nbLon, int nbHeight) {
+        int frameIndex = 0;
+        for (int latIndex : frameIndexes[0]) {
+            for (int lonIndex : frameIndexes[1]) {
+                for (int heightIndex : frameIndexes[2]) {
+                    double value = frameValues[frameIndex++];
+                    if (latIndex >= 0 && lonIndex >= 0 && heightIndex >= 0 && !Double.isNaN(value)) {
+                        data[recordOffset + (latIndex * nbLon + lonIndex) * nbHeight + heightIndex] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    // Frames created by the same NetCDFFrameBuilder share their axes arrays
+    private static boolean isSameAxes(NetCDFFrame frame1, NetCDFFrame frame2) {
+        return (frame1.getLats() == frame2.getLats() || Arrays.equals(frame1.getLats(), frame2.getLats())) &&
+                (frame1.getLons() == frame2.getLons() || Arrays.equals(frame1.getLons(), frame2.getLons())) &&
+                (frame1.getHeights() == frame2.getHeights() || Arrays.equals(frame1.getHeights(), frame2.getHeights()));
+    }
+
+    // Read the values of a variable, one record at the time, in record order
+    interface RecordReader {
+        void read(int recordIndex, double[] recordData);
+    }
+
+    /**
+     * Return a reader for the records of a variable.
+     * Data points held in memory are indexed by record (see {@link RecordIndex}),
+     * then each record is filled when it's read.
+     * Data points spilled to disk (see {@link NetCDFSpillingData}) are iterated in record order,
+     * starting at the first record read: the records must be read in order.
+     * In both cases, only one record is held in memory as a dense array.
+     *
+     * @param variable The variable.
+     * @param lats The latitude axis.
+     * @param lons The longitude axis.
+     * @param heights The height axis, or null if the variable has no height.
+     * @param recordMillis The date of each record, in milliseconds, or null if the variable has no time.
+     * @param firstRecordIndex The first record read. The spilled data points of the previous records are not read.
+     * @param checkpoint Cancellation check, run every {@link RecordIndex#CHECKPOINT_INTERVAL} data points, or null.
+     */
+    static RecordReader getRecordReader(final AbstractNetCDFVariable variable,
+            final float[] lats, final float[] lons, final double[] heights, final long[] recordMillis,
+            int firstRecordIndex, final Runnable checkpoint) {
+
+        final Map<Integer, List<NetCDFFrame>> recordFrames = RecordReaders.getRecordFrames(variable, recordMillis);
+        if (!(variable.getData() instanceof NetCDFSpillingData)) {
+            final RecordIndex index = RecordIndex.build(variable.getData(), lats, lons, heights, recordMillis, checkpoint);
+            return new RecordReader() {
+                @Override
+                public void read(int recordIndex, double[] recordData) {
+                    Arrays.fill(recordData, Generator.NULL_VALUE);
+                    index.fill(recordIndex, recordData);
+                    RecordReaders.fillFrames(recordData, recordFrames.get(recordIndex), lats, lons, heights);
+                }
+            };
+        }
+
+        DateTime firstDate = recordMillis == null || firstRecordIndex == 0 ? null :
+                new DateTime(recordMillis[firstRecordIndex], DateTimeZone.UTC);
+        final Iterator<Map.Entry<NetCDFPointCoordinate, Double>> dataPoints =
+                ((NetCDFSpillingData)variable.getData()).iterator(firstDate);
+        return new RecordReader() {
+            // First data point of the next record
+            private Map.Entry<NetCDFPointCoordinate, Double> nextDataPoint;
+            private int nextRecordIndex = -1;
+            private long iteration = 0;
+
+            @Override
+            public void read(int recordIndex, double[] recordData) {
+                Arrays.fill(recordData, Generator.NULL_VALUE);
+
+                while (this.nextDataPoint != null || dataPoints.hasNext()) {
+                    if (this.nextDataPoint == null) {
+                        RecordIndex.checkpoint(++this.iteration, checkpoint);
+                        Map.Entry<NetCDFPointCoordinate, Double> dataPoint = dataPoints.next();
+                        int dataPointRecordIndex = RecordIndex.getRecordIndex(dataPoint.getKey().getDate(), recordMillis);
+                        if (dataPointRecordIndex < recordIndex) {
+                            continue;
+                        }
+                        this.nextDataPoint = dataPoint;
+                        this.nextRecordIndex = dataPointRecordIndex;
+                    }
+                    if (this.nextRecordIndex > recordIndex) {
+                        break;
+                    }
+
+                    int offset = RecordReaders.getRecordOffset(this.nextDataPoint.getKey(), lats, lons, heights);
+                    if (offset >= 0) {
+                        recordData[offset] = this.nextDataPoint.getValue();
+                    }
+                    this.nextDataPoint = null;
+                }
+
+                RecordReaders.fillFrames(recordData, recordFrames.get(recordIndex), lats, lons, heights);
+            }
+        };
+    }
+
+    // Read the values of the u and v components of a vector variable, one record at the time
+    interface VectorRecordReader {
+        void read(int recordIndex, double[] uRecordData, double[] vRecordData);
+    }
+
+    /**
+     * Return a reader for the records of the u and v components of a vector variable.
+     * The values of both components are indexed together, in a single pass over their pairs (see {@link RecordIndex#buildVector}):
+     * the coordinate of a data point is snapped to the axes once for both components.
+     * The frames of a record which share the same axes are copied using the same index map.
+     * Only one record per component is held in memory as a dense array.
+     *
+     * NOTE: The data points of both components must be stored together (see {@link NetCDFVectorVariable#isPaired()}).
+     *
+     * @see #getRecordReader(AbstractNetCDFVariable, float[], float[], double[], long[], int, Runnable)
+     */
+    static VectorRecordReader getVectorRecordReader(NetCDFVectorVariable<?> vectorVariable,
+            final float[] lats, final float[] lons, final double[] heights, final long[] recordMillis,
+            final Runnable checkpoint) {
+
+        AbstractNetCDFVariable u = vectorVariable.getU();
+        AbstractNetCDFVariable v = vectorVariable.getV();
+        final Map<Integer, List<NetCDFFrame>> uRecordFrames = RecordReaders.getRecordFrames(u, recordMillis);
+        final Map<Integer, List<NetCDFFrame>> vRecordFrames = RecordReaders.getRecordFrames(v, recordMillis);
+        final RecordIndex index = RecordIndex.buildVector(vectorVariable.getPairedData(), lats, lons, heights, recordMillis, checkpoint);
+        final int nbHeight = heights == null ? 1 : heights.length;
+
+        return new VectorRecordReader() {
+            @Override
+            public void read(int recordIndex, double[] uRecordData, double[] vRecordData) {
+                Arrays.fill(uRecordData, Generator.NULL_VALUE);
+                Arrays.fill(vRecordData, Generator.NULL_VALUE);
+                index.fill(0, recordIndex, uRecordData);
+                index.fill(1, recordIndex, vRecordData);
+
+                // Frames of both components, paired in the order they were added
+                List<NetCDFFrame> uFrames = uRecordFrames.get(recordIndex);
+                List<NetCDFFrame> vFrames = vRecordFrames.get(recordIndex);
+                int nbUFrames = uFrames == null ? 0 : uFrames.size();
+                int nbVFrames = vFrames == null ? 0 : vFrames.size();
+                for (int i=0; i<Math.max(nbUFrames, nbVFrames); i++) {
+                    NetCDFFrame uFrame = i < nbUFrames ? uFrames.get(i) : null;
+                    NetCDFFrame vFrame = i < nbVFrames ? vFrames.get(i) : null;
+                    if (uFrame != null && vFrame != null && RecordReaders.isSameAxes(uFrame, vFrame)) {
+                        int[][] frameIndexes = RecordReaders.getFrameIndexes(uFrame, lats, lons, heights);
+                        if (frameIndexes != null) {
+                            RecordReaders.copyFrame(uRecordData, 0, uFrame.getValues(), frameIndexes, lons.length, nbHeight);
+                            RecordReaders.copyFrame(vRecordData, 0, vFrame.getValues(), frameIndexes, lons.length, nbHeight);
+                        }
+                    } else {
+                        if (uFrame != null) {
+                            RecordReaders.fillFrame(uRecordData, 0, uFrame, lats, lons, heights);
+                        }
+                        if (vFrame != null) {
+                            RecordReaders.fillFrame(vRecordData, 0, vFrame, lats, lons, heights);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    // Frames of a variable, grouped by record
+    private static Map<Integer, List<NetCDFFrame>> getRecordFrames(AbstractNetCDFVariable variable, long[] recordMillis) {
+        Map<Integer, List<NetCDFFrame>> recordFrames = new HashMap<Integer, List<NetCDFFrame>>();
+        for (NetCDFFrame frame : variable.getFrames()) {
+            int recordIndex = RecordIndex.getRecordIndex(frame.getDate(), recordMillis);
+            if (recordIndex >= 0) {
+                List<NetCDFFrame> frames = recordFrames.get(recordIndex);
+                if (frames == null) {
+                    frames = new ArrayList<NetCDFFrame>();
+                    recordFrames.put(recordIndex, frames);
+                }
+                frames.add(frame);
+            }
+        }
+        return recordFrames;
+    }
+
+    private static void fillFrames(double[] recordData, List<NetCDFFrame> frames, float[] lats, float[] lons, double[] heights) {
+        if (frames != null) {
+            for (NetCDFFrame frame : frames) {
+                RecordReaders.fillFrame(recordData, 0, frame, lats, lons, heights);
+            }
+        }
+    }
+
+    // Variables computed from the coordinates (such as bathymetry "botz")
+    static RecordReader getLazyRecordReader(final NetCDFLazyVariable variable, final float[] lats, final float[] lons) {
+        return new RecordReader() {
+            @Override
+            public void read(int recordIndex, double[] recordData) {
+                for (int latIndex=0; latIndex<lats.length; latIndex++) {
+                    float latValue = lats[latIndex];
+                    for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                        Double value = variable.getValue(latValue, lons[lonIndex]);
+                        recordData[latIndex * lons.length + lonIndex] = value == null ? Generator.NULL_VALUE : value;
+                    }
+                }
+            }
+        };
+    }
+
+}
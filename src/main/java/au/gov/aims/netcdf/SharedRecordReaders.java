@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFSpillingData;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Readers of the records of the variables, shared by the hypercubes of a file,
+ * or by the partitions of a dataset (see {@link PartitionPolicy}).
+ *
+ * The data points of a variable held in memory are indexed once (see {@link RecordIndex}),
+ * against the records of the whole dataset, by the first hypercube which reads the variable.
+ * The reader is thread safe: each partition reads its own slice of the records.
+ * The reader is released once every hypercube containing the variable is done with it.
+ *
+ * Data points spilled to disk (see {@link NetCDFSpillingData}) are not shared:
+ * each hypercube iterates its own records, starting at its first record.
+ */
+class SharedRecordReaders {
+    private Map<AbstractNetCDFVariable, SharedReader> sharedReaders;
+
+    /**
+     * @param bundles The hypercubes which read the variables.
+     *     Used to count the hypercubes which read each variable.
+     */
+    public SharedRecordReaders(Collection<Bundle> bundles) {
+        this.sharedReaders = new HashMap<AbstractNetCDFVariable, SharedReader>();
+        for (Bundle bundle : bundles) {
+            for (AbstractNetCDFVariable variable : bundle.variables) {
+                SharedReader sharedReader = this.sharedReaders.get(variable);
+                if (sharedReader == null) {
+                    sharedReader = new SharedReader();
+                    this.sharedReaders.put(variable, sharedReader);
+                }
+                sharedReader.userCount++;
+            }
+        }
+    }
+
+    /**
+     * Return the reader of a variable, created by the first hypercube which reads the variable.
+     * See {@link RecordReaders#getRecordReader(AbstractNetCDFVariable, float[], float[], double[], long[], int, Runnable)}.
+     * @param firstRecordIndex The first record read by the hypercube.
+     */
+    public RecordReaders.RecordReader getRecordReader(AbstractNetCDFVariable variable,
+            float[] lats, float[] lons, double[] heights, long[] recordMillis, int firstRecordIndex, Runnable checkpoint) {
+
+        if (variable.getData() instanceof NetCDFSpillingData) {
+            return RecordReaders.getRecordReader(variable, lats, lons, heights, recordMillis, firstRecordIndex, checkpoint);
+        }
+
+        SharedReader sharedReader = this.sharedReaders.get(variable);
+        synchronized (sharedReader) {
+            if (sharedReader.reader == null) {
+                sharedReader.reader = RecordReaders.getRecordReader(variable, lats, lons, heights, recordMillis, 0, checkpoint);
+            }
+            return (RecordReaders.RecordReader)sharedReader.reader;
+        }
+    }
+
+    /**
+     * Return the reader of the u and v components of a vector variable,
+     * created by the first hypercube which reads the variable.
+     * See {@link RecordReaders#getVectorRecordReader(NetCDFVectorVariable, float[], float[], double[], long[], Runnable)}.
+     */
+    public RecordReaders.VectorRecordReader getVectorRecordReader(NetCDFVectorVariable<?> vectorVariable,
+            float[] lats, float[] lons, double[] heights, long[] recordMillis, Runnable checkpoint) {
+
+        SharedReader sharedReader = this.sharedReaders.get(vectorVariable.getU());
+        synchronized (sharedReader) {
+            if (sharedReader.reader == null) {
+                sharedReader.reader = RecordReaders.getVectorRecordReader(vectorVariable, lats, lons, heights, recordMillis, checkpoint);
+            }
+            return (RecordReaders.VectorRecordReader)sharedReader.reader;
+        }
+    }
+
+    /**
+     * Called by each hypercube once it's done with a variable (or with the u component of a vector variable).
+     * The reader, and its index, is released when the last hypercube is done with it.
+     */
+    public void release(AbstractNetCDFVariable variable) {
+        SharedReader sharedReader = this.sharedReaders.get(variable);
+        synchronized (sharedReader) {
+            sharedReader.userCount--;
+            if (sharedReader.userCount <= 0) {
+                sharedReader.reader = null;
+            }
+        }
+    }
+
+    private static class SharedReader {
+        // RecordReader or VectorRecordReader
+        private Object reader;
+        private int userCount;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+/**
+ * Statistics of the values of a variable: min, max, mean and number of missing values.
+ * Accumulated by the Generator while the records are written,
+ * and available in {@link GeneratorResult#getStatistics(String)}.
+ */
+public class VariableStatistics {
+    private double min;
+    private double max;
+    private double sum;
+    private long count;
+    private long nanCount;
+
+    public VariableStatistics() {
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
+        this.sum = 0;
+        this.count = 0;
+        this.nanCount = 0;
+    }
+
+    public void update(double[] values) {
+        this.update(values, 0, values.length);
+    }
+
+    public void update(double[] values, int offset, int length) {
+        for (int i=offset; i<offset+length; i++) {
+            double value = values[i];
+            if (Double.isNaN(value)) {
+                this.nanCount++;
+            } else {
+                if (value < this.min) {
+                    this.min = value;
+                }
+                if (value > this.max) {
+                    this.max = value;
+                }
+                this.sum += value;
+                this.count++;
+            }
+        }
+    }
+
+    /**
+     * @return The smallest value, or NaN if the variable has no value.
+     */
+    public double getMin() {
+        return this.count > 0 ? this.min : Double.NaN;
+    }
+
+    /**
+     * @return The largest value, or NaN if the variable has no value.
+     */
+    public double getMax() {
+        return this.count > 0 ? this.max : Double.NaN;
+    }
+
+    /**
+     * @return The average of the values, or NaN if the variable has no value.
+     */
+    public double getMean() {
+        return this.count > 0 ? this.sum / this.count : Double.NaN;
+    }
+
+    // Number of values, excluding missing values
+    public long getCount() {
+        return this.count;
+    }
+
+    // Number of missing values (NaN)
+    public long getNaNCount() {
+        return this.nanCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("min: %s, max: %s, mean: %s, count: %d, NaN count: %d",
+                this.getMin(), this.getMax(), this.getMean(), this.count, this.nanCount);
+    }
+}
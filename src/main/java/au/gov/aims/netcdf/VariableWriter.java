@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFLazyVariable;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.joda.time.DateTime;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.NetcdfFileWriter;
+
+import java.io.IOException;
+import java.util.SortedSet;
+
+// Write the records of a variable, or of the u and v components of a fused vector variable,
+//     computing their digest and statistics while the data is written.
+//     The reader (and its record index) is created when the first record is filled,
+//     and released once the last record is filled. Readers are shared by the partitions
+//     of a dataset (see SharedRecordReaders): the records of the writer are a slice of the
+//     records of the dataset, starting at the record offset of the bundle.
+class VariableWriter {
+    private NetcdfFileWriter writer;
+    private AbstractNetCDFVariable[] variables;
+    // Vector variable which components are written together, or null
+    private NetCDFVectorVariable<?> fusedVector;
+    private float[] lats;
+    private float[] lons;
+    private double[] heights;
+    private long[] recordMillis;
+    private int recordOffset;
+    private SharedRecordReaders readers;
+    private boolean released;
+    private Runnable checkpoint;
+    // Reader of the variable, or of both components of a fused vector variable
+    private RecordReaders.RecordReader reader;
+    private RecordReaders.VectorRecordReader vectorReader;
+    private double[][] recordData;
+    private double[][] fileRecordData;
+    private Array[] arrays;
+    private ContentDigest[] digests;
+    private VariableStatistics[] statistics;
+    private int[] origin;
+    private boolean hasTime;
+    private int recordCount;
+    private DimensionOrder dimensionOrder;
+    private int nbHeight;
+
+    public VariableWriter(NetcdfFileWriter writer, Bundle bundle, AbstractNetCDFVariable variable,
+            NetCDFVectorVariable<?> fusedVector, Runnable checkpoint) {
+
+        this.writer = writer;
+        this.fusedVector = fusedVector;
+        this.variables = fusedVector == null ?
+                new AbstractNetCDFVariable[] {variable} :
+                new AbstractNetCDFVariable[] {fusedVector.getU(), fusedVector.getV()};
+        this.hasTime = variable.hasTime();
+        this.recordCount = this.hasTime ? bundle.dates.size() : 1;
+
+        float[] lats = bundle.lats;
+        float[] lons = bundle.lons;
+        double[] heights = variable.hasHeight() ? bundle.heights : null;
+        this.lats = lats;
+        this.lons = lons;
+        this.heights = heights;
+        this.recordMillis = this.hasTime ? bundle.recordMillis : null;
+        this.recordOffset = this.hasTime ? bundle.recordOffset : 0;
+        this.readers = bundle.readers;
+        this.checkpoint = checkpoint;
+        int nbLat = lats.length;
+        int nbLon = lons.length;
+        this.nbHeight = heights == null ? 1 : heights.length;
+        this.dimensionOrder = bundle.dimensionOrder;
+        int recordSize = RecordReaders.getRecordSize(lats, lons, heights);
+
+        int[] shape;
+        String variableType;
+        if (variable.hasHeight()) {
+            // Variables with time and depth (such as salinity, temperature, current)
+            shape = this.dimensionOrder.isHeightFirst() ?
+                    new int[] {1, this.nbHeight, nbLat, nbLon} :
+                    new int[] {1, nbLat, nbLon, this.nbHeight};
+            variableType = "time-depth";
+        } else if (variable.hasTime()) {
+            // Variables with time, but no depth (such as wind)
+            shape = new int[] {1, nbLat, nbLon};
+            variableType = "time";
+        } else {
+            // Variables without time nor depth (such as bathymetry "botz")
+            shape = new int[] {nbLat, nbLon};
+            variableType = "static";
+        }
+
+        int nbVariables = this.variables.length;
+        this.recordData = new double[nbVariables][];
+        this.fileRecordData = new double[nbVariables][];
+        this.arrays = new Array[nbVariables];
+        this.digests = new ContentDigest[nbVariables];
+        this.statistics = new VariableStatistics[nbVariables];
+        for (int i=0; i<nbVariables; i++) {
+            this.recordData[i] = new double[recordSize];
+            // Records are filled in memory layout [lat][lon][height], and copied in the file layout when it differs
+            this.fileRecordData[i] = this.dimensionOrder.isHeightFirst() && this.nbHeight > 1 ?
+                    new double[recordSize] : this.recordData[i];
+            this.arrays[i] = Array.factory(DataType.DOUBLE, shape, this.fileRecordData[i]);
+            this.digests[i] = new ContentDigest();
+            this.statistics[i] = new VariableStatistics();
+            VariableWriter.digestAxes(this.digests[i], variableType, lats, lons, heights, this.hasTime ? bundle.dates : null);
+        }
+        this.origin = new int[shape.length];
+    }
+
+    public boolean hasTime() {
+        return this.hasTime;
+    }
+
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    public void writeRecord(int recordIndex, ProgressTracker progress) throws IOException, InvalidRangeException {
+        this.fillRecord(recordIndex);
+        this.writeFilledRecord(recordIndex, progress);
+    }
+
+    // Fill the record data of the variable. Records must be filled in order.
+    public void fillRecord(int recordIndex) {
+        if (this.reader == null && this.vectorReader == null) {
+            this.createReader();
+        }
+        if (this.vectorReader != null) {
+            this.vectorReader.read(this.recordOffset + recordIndex, this.recordData[0], this.recordData[1]);
+        } else {
+            this.reader.read(this.recordOffset + recordIndex, this.recordData[0]);
+        }
+
+        // Release the record index once the last record is filled
+        if (recordIndex == this.recordCount - 1) {
+            this.releaseReader();
+        }
+    }
+
+    // Write the record data, filled by fillRecord
+    public void writeFilledRecord(int recordIndex, ProgressTracker progress) throws IOException, InvalidRangeException {
+        if (this.hasTime) {
+            this.origin[0] = recordIndex;
+        }
+        for (int i=0; i<this.variables.length; i++) {
+            double[] data = this.recordData[i];
+
+            // Variables without time are digested with their length, as a single array
+            if (this.hasTime) {
+                this.digests[i].update(data, 0, data.length);
+            } else {
+                this.digests[i].update(data);
+            }
+            this.statistics[i].update(data);
+            if (this.fileRecordData[i] != data) {
+                this.dimensionOrder.toFileLayout(data, this.fileRecordData[i], this.nbHeight);
+            }
+            Generator.write(this.writer, this.variables[i].getName(), this.origin, this.arrays[i]);
+            progress.recordWritten(data.length);
+        }
+    }
+
+    private void createReader() {
+        AbstractNetCDFVariable variable = this.variables[0];
+        if (this.fusedVector != null) {
+            this.vectorReader = this.readers.getVectorRecordReader(this.fusedVector,
+                    this.lats, this.lons, this.heights, this.recordMillis, this.checkpoint);
+        } else if (variable instanceof NetCDFLazyVariable) {
+            // Lazy variables read their own records from their file: nothing to share
+            this.reader = RecordReaders.getLazyRecordReader((NetCDFLazyVariable)variable, this.lats, this.lons);
+        } else {
+            this.reader = this.readers.getRecordReader(variable,
+                    this.lats, this.lons, this.heights, this.recordMillis, this.recordOffset, this.checkpoint);
+        }
+    }
+
+    // Release the reader, once: the shared reader is released when every partition is done with it
+    private void releaseReader() {
+        this.reader = null;
+        this.vectorReader = null;
+        if (!this.released) {
+            this.released = true;
+            this.readers.release(this.variables[0]);
+        }
+    }
+
+    public void finish(GeneratorResult result, ProgressTracker progress) {
+        this.releaseReader();
+        for (int i=0; i<this.variables.length; i++) {
+            result.setDigest(this.variables[i].getName(), this.digests[i].getHexDigest());
+            result.setStatistics(this.variables[i].getName(), this.statistics[i]);
+            progress.variableWritten();
+        }
+    }
+
+    /**
+     * Digest the axes of a variable, before its values.
+     * Values are digested in canonical order: time, lat, lon, height.
+     * Dates are digested as milliseconds since 1970-01-01 UTC,
+     * to be independent of the dataset time unit.
+     */
+    private static void digestAxes(ContentDigest digest, String variableType, float[] lats, float[] lons, double[] heights, SortedSet<DateTime> dates) {
+        digest.update(variableType);
+        digest.update(lats);
+        digest.update(lons);
+        digest.update(heights);
+        if (dates == null) {
+            digest.update(-1);
+        } else {
+            digest.update(dates.size());
+            for (DateTime date : dates) {
+                digest.update(date.getMillis());
+            }
+        }
+    }
+}
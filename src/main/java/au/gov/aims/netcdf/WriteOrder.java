@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+/**
+ * Order in which the generator writes the records of the variables.
+ * See {@link Generator#setWriteOrder(WriteOrder)}
+ *
+ * Both orders produce the same file content, and the same digests.
+ */
+public enum WriteOrder {
+    // All the records of a variable, then all the records of the next variable.
+    //     Only one variable is filled in memory at the time,
+    //     and the hypercubes are written concurrently.
+    VARIABLE_MAJOR,
+
+    // For each time record, the record of every variable, before the next record.
+    //     NetCDF 3 files store the records of all the variables together (record layout),
+    //     so the file is written sequentially, one record at the time.
+    //     All the variables are filled in memory before the first record is written,
+    //     except the ones which data was spilled to disk, which are read one record at the time.
+    RECORD_MAJOR
+}
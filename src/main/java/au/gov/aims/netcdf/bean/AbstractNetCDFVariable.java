@@ -4,24 +4,45 @@
  */
 package au.gov.aims.netcdf.bean;
 
+import au.gov.aims.netcdf.AxisIndex;
 import org.joda.time.DateTime;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class AbstractNetCDFVariable {
+public class AbstractNetCDFVariable implements Closeable {
     private String name;
 
     private Map<String, String> attributes;
 
     private Map<NetCDFPointCoordinate, Double> data;
 
+    // Values added one time record at the time, see NetCDFFrameBuilder
+    private List<NetCDFFrame> frames;
+
+    // Axes of the data points, used by getValue to snap coordinates.
+    //     Rebuilt when the data points storage or its size change.
+    private NetCDFDataset.Dimensions dataAxes;
+    private Map<NetCDFPointCoordinate, Double> dataAxesData;
+    private int dataAxesSize;
+
     protected AbstractNetCDFVariable(String name, String units) {
         this.name = name;
         this.attributes = new HashMap<String, String>();
         this.data = new HashMap<NetCDFPointCoordinate, Double>();
+        this.frames = new ArrayList<NetCDFFrame>();
 
         this.setAttribute("units", units);
     }
@@ -30,6 +51,20 @@ public class AbstractNetCDFVariable {
         return this.name;
     }
 
+    /**
+     * @return True if the variable has a time dimension (see {@link NetCDFTimeVariable} and {@link NetCDFTimeDepthVariable}).
+     */
+    public boolean hasTime() {
+        return false;
+    }
+
+    /**
+     * @return True if the variable has a height dimension (see {@link NetCDFTimeDepthVariable}).
+     */
+    public boolean hasHeight() {
+        return false;
+    }
+
     public Map<String, String> getAttributes() {
         return this.attributes;
     }
@@ -43,8 +78,234 @@ public class AbstractNetCDFVariable {
         return this.data;
     }
 
+    // Used by NetCDFVectorVariable, to store the data points of its components together
+    void setData(Map<NetCDFPointCoordinate, Double> data) {
+        this.data = data;
+    }
+
+    // Replace the data points storage. The component of a vector variable is removed
+    //     from the pairs of the vector variable (see NetCDFVectorVariable), once copied.
+    private void replaceData(Map<NetCDFPointCoordinate, Double> data) {
+        Map<NetCDFPointCoordinate, Double> previousData = this.data;
+        this.data = data;
+        if (previousData instanceof NetCDFVectorVariable.ComponentData) {
+            previousData.clear();
+        }
+    }
+
+    /**
+     * Limit the heap used by the data points of this variable.
+     * Once the limit is reached, data points are spilled to temporary files
+     * and read back in record order when the file is generated.
+     * See {@link NetCDFSpillingData}.
+     * @param memoryLimit Maximum heap used by the data points, in bytes.
+     * @param spillDirectory Directory of the temporary files, or null for the default temporary directory.
+     */
+    public void setMemoryLimit(long memoryLimit, File spillDirectory) {
+        this.setMemoryLimit(new NetCDFSpillingData.MemoryLimit(memoryLimit, spillDirectory));
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.setMemoryLimit(memoryLimit, null);
+    }
+
+    /**
+     * Limit the heap used by the data points of this variable, using a limit
+     * which may be shared with other variables. See {@link NetCDFDataset#setMemoryLimit(long, File)}.
+     * Data points already added are moved to the new storage.
+     * @param memoryLimit The memory limit.
+     */
+    public void setMemoryLimit(NetCDFSpillingData.MemoryLimit memoryLimit) {
+        if ((this.data instanceof NetCDFSpillingData) && ((NetCDFSpillingData)this.data).getMemoryLimit() == memoryLimit) {
+            return;
+        }
+        if (this.isConcurrent()) {
+            throw new IllegalStateException(String.format("Variable %s is populated concurrently, it can not spill its data points to disk",
+                    this.name));
+        }
+
+        NetCDFSpillingData spillingData = new NetCDFSpillingData(memoryLimit);
+        spillingData.putAll(this.data);
+        try {
+            this.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Error occurred while deleting data points written to disk", ex);
+        }
+        this.replaceData(spillingData);
+    }
+
+    /**
+     * Delete the temporary files of the data points spilled to disk, if any.
+     * The spilled data points are removed from the variable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.data instanceof NetCDFSpillingData) {
+            Map<NetCDFPointCoordinate, Double> spilledData = this.data;
+            this.data = new HashMap<NetCDFPointCoordinate, Double>();
+            ((NetCDFSpillingData)spilledData).close();
+        }
+    }
+
+    public boolean isConcurrent() {
+        return this.data instanceof ConcurrentHashMap;
+    }
+
+    /**
+     * Allow data points and frames to be added from multiple threads,
+     * for example to fill the variable using one task per latitude.
+     * The data points are stored in a {@link ConcurrentHashMap} and the attributes and frames
+     * in synchronised collections. Null values are stored as NaN, which are written as missing values.
+     * The variable must not be read (generated) before all the threads are done.
+     * See {@link NetCDFDataset#setConcurrent(boolean)}
+     * @param concurrent True to allow concurrent population. Default: false.
+     */
+    public void setConcurrent(boolean concurrent) {
+        if (concurrent == this.isConcurrent()) {
+            return;
+        }
+        if (this.data instanceof NetCDFSpillingData) {
+            throw new IllegalStateException(String.format("Variable %s spills its data points to disk, it can not be populated concurrently",
+                    this.name));
+        }
+
+        if (concurrent) {
+            Map<NetCDFPointCoordinate, Double> concurrentData = new ConcurrentHashMap<NetCDFPointCoordinate, Double>();
+            for (Map.Entry<NetCDFPointCoordinate, Double> dataPoint : this.data.entrySet()) {
+                concurrentData.put(dataPoint.getKey(), dataPoint.getValue() == null ? Double.NaN : dataPoint.getValue());
+            }
+            this.replaceData(concurrentData);
+            this.attributes = Collections.synchronizedMap(this.attributes);
+            this.frames = Collections.synchronizedList(this.frames);
+        } else {
+            this.data = new HashMap<NetCDFPointCoordinate, Double>(this.data);
+            this.attributes = new HashMap<String, String>(this.attributes);
+            this.frames = new ArrayList<NetCDFFrame>(this.frames);
+        }
+    }
+
+    public List<NetCDFFrame> getFrames() {
+        return this.frames;
+    }
+
+    /**
+     * Return every data points of the variable, including the values of its frames.
+     * NOTE: The frame values are copied in a new map, which is slow for large variables.
+     * @return Map of values, keyed by coordinate.
+     */
+    public Map<NetCDFPointCoordinate, Double> getAllDataPoints() {
+        if (this.frames.isEmpty()) {
+            return this.data;
+        }
+
+        Map<NetCDFPointCoordinate, Double> dataPoints = new HashMap<NetCDFPointCoordinate, Double>();
+        for (NetCDFFrame frame : this.frames) {
+            float[] lats = frame.getLats();
+            float[] lons = frame.getLons();
+            double[] heights = frame.getHeights();
+            int nbHeight = heights == null ? 1 : heights.length;
+            for (int latIndex=0; latIndex<lats.length; latIndex++) {
+                for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                    for (int heightIndex=0; heightIndex<nbHeight; heightIndex++) {
+                        double value = frame.getValue(latIndex, lonIndex, heightIndex);
+                        if (!Double.isNaN(value)) {
+                            dataPoints.put(new NetCDFPointCoordinate(lats[latIndex], lons[lonIndex], frame.getDate(),
+                                    heights == null ? null : heights[heightIndex]), value);
+                        }
+                    }
+                }
+            }
+        }
+        dataPoints.putAll(this.data);
+        return dataPoints;
+    }
+
+    /**
+     * @return The number of data points, including the values of the frames.
+     */
+    public int getDataPointCount() {
+        int count = this.data.size();
+        for (NetCDFFrame frame : this.frames) {
+            count += frame.getValueCount();
+        }
+        return count;
+    }
+
+    /**
+     * Return the value of a data point.
+     * Coordinates which differ from the coordinates of the data points by rounding errors
+     * (see {@link NetCDFPointCoordinate#COORDINATE_EPSILON} and {@link NetCDFPointCoordinate#HEIGHT_EPSILON})
+     * are snapped to the axes of the data points, like the coordinates of the frames.
+     * NOTE: Data points spilled to disk (see {@link NetCDFSpillingData}) are only found
+     *     with their exact coordinate.
+     * @param coordinate The coordinate of the data point.
+     * @return The value, or null if the variable has no value at the coordinate.
+     */
     public Double getValue(NetCDFPointCoordinate coordinate) {
-        return this.data.get(coordinate);
+        Double value = this.data.get(coordinate);
+        if (value == null && !this.data.isEmpty() && !(this.data instanceof NetCDFSpillingData)) {
+            NetCDFPointCoordinate snappedCoordinate = this.snap(coordinate);
+            if (snappedCoordinate != null && snappedCoordinate != coordinate) {
+                value = this.data.get(snappedCoordinate);
+            }
+        }
+        if (value == null) {
+            for (NetCDFFrame frame : this.frames) {
+                value = frame.getValue(coordinate);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return value;
+    }
+
+    // Return the coordinate of the data point axes closest to the coordinate,
+    //     the coordinate itself if it's already on the axes, or null if it's not within epsilon of the axes.
+    private NetCDFPointCoordinate snap(NetCDFPointCoordinate coordinate) {
+        NetCDFDataset.Dimensions axes = this.getDataAxes();
+
+        int latIndex = AxisIndex.indexOf(axes.getLatitudes(), coordinate.getLat(), NetCDFPointCoordinate.COORDINATE_EPSILON);
+        int lonIndex = AxisIndex.indexOf(axes.getLongitudes(), coordinate.getLon(), NetCDFPointCoordinate.COORDINATE_EPSILON);
+        if (latIndex < 0 || lonIndex < 0) {
+            return null;
+        }
+        float lat = axes.getLatitudes()[latIndex];
+        float lon = axes.getLongitudes()[lonIndex];
+
+        Double height = coordinate.getHeight();
+        if (height != null) {
+            int heightIndex = AxisIndex.indexOf(axes.getHeights(), height, NetCDFPointCoordinate.HEIGHT_EPSILON);
+            if (heightIndex < 0) {
+                return null;
+            }
+            height = axes.getHeights()[heightIndex];
+        }
+
+        if (lat == coordinate.getLat() && lon == coordinate.getLon() &&
+                (height == null || height.doubleValue() == coordinate.getHeight().doubleValue())) {
+            return coordinate;
+        }
+        return new NetCDFPointCoordinate(lat, lon, coordinate.getDate(), height);
+    }
+
+    private NetCDFDataset.Dimensions getDataAxes() {
+        if (this.dataAxes == null || this.dataAxesData != this.data || this.dataAxesSize != this.data.size()) {
+            Set<Float> latitudes = new HashSet<Float>();
+            Set<Float> longitudes = new HashSet<Float>();
+            Set<Double> heights = new HashSet<Double>();
+            for (NetCDFPointCoordinate dataPoint : this.data.keySet()) {
+                latitudes.add(dataPoint.getLat());
+                longitudes.add(dataPoint.getLon());
+                if (dataPoint.getHeight() != null) {
+                    heights.add(dataPoint.getHeight());
+                }
+            }
+            this.dataAxes = new NetCDFDataset.Dimensions(latitudes, longitudes, heights);
+            this.dataAxesData = this.data;
+            this.dataAxesSize = this.data.size();
+        }
+        return this.dataAxes;
     }
 
     public SortedSet<DateTime> getDates() {
@@ -54,10 +315,23 @@ public class AbstractNetCDFVariable {
                 dates.add(dataPoint.getDate());
             }
         }
+        for (NetCDFFrame frame : this.frames) {
+            if (frame.getDate() != null) {
+                dates.add(frame.getDate());
+            }
+        }
         return dates;
     }
 
     public void addDataPoint(NetCDFPointCoordinate coordinate, Double value) {
+        // ConcurrentHashMap do not accept null values
+        if (value == null && this.data instanceof ConcurrentHashMap) {
+            value = Double.NaN;
+        }
         this.data.put(coordinate, value);
     }
+
+    public void addFrame(NetCDFFrame frame) {
+        this.frames.add(frame);
+    }
 }
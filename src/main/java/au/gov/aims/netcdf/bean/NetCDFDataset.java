@@ -7,8 +7,12 @@ package au.gov.aims.netcdf.bean;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -16,10 +20,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
+public class NetCDFDataset implements Iterable<AbstractNetCDFVariable>, Closeable {
     private List<AbstractNetCDFVariable> variables;
     private List<NetCDFVectorVariable> vectorVariables;
     private Map<String, String> globalAttributes;
+    private boolean concurrent;
+    private NetCDFSpillingData.MemoryLimit memoryLimit;
 
     // The date represented by time = 0, in NetCDF file
     private String timeUnit;
@@ -50,6 +56,97 @@ public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
         return this.globalAttributes;
     }
 
+    public boolean isConcurrent() {
+        return this.concurrent;
+    }
+
+    /**
+     * Allow the dataset and its variables to be populated from multiple threads,
+     * for example using a parallel stream or a fork-join pool over the latitudes.
+     * Variables added to the dataset afterward are also set to concurrent.
+     * See {@link AbstractNetCDFVariable#setConcurrent(boolean)}
+     * @param concurrent True to allow concurrent population. Default: false.
+     */
+    public void setConcurrent(boolean concurrent) {
+        if (concurrent && this.memoryLimit != null) {
+            throw new IllegalStateException("The dataset spills its data points to disk, it can not be populated concurrently");
+        }
+        this.concurrent = concurrent;
+        if (concurrent) {
+            this.variables = Collections.synchronizedList(this.variables);
+            this.vectorVariables = Collections.synchronizedList(this.vectorVariables);
+            this.globalAttributes = Collections.synchronizedMap(this.globalAttributes);
+        } else {
+            this.variables = new ArrayList<AbstractNetCDFVariable>(this.variables);
+            this.vectorVariables = new ArrayList<NetCDFVectorVariable>(this.vectorVariables);
+            this.globalAttributes = new HashMap<String, String>(this.globalAttributes);
+        }
+        for (AbstractNetCDFVariable variable : this) {
+            variable.setConcurrent(concurrent);
+        }
+    }
+
+    public NetCDFSpillingData.MemoryLimit getMemoryLimit() {
+        return this.memoryLimit;
+    }
+
+    /**
+     * Limit the heap used by the data points of all the variables of the dataset, as a whole.
+     * Once the limit is reached, the data points of the variable which buffers the most
+     * are spilled to temporary files, and read back in record order when the file is generated.
+     * Variables added to the dataset afterward share the same limit.
+     * The limit should be set before the dataset is populated: data points already added are moved,
+     * one variable at the time. Close the dataset to delete the temporary files.
+     * See {@link NetCDFSpillingData}.
+     * @param memoryLimit Maximum heap used by the data points, in bytes.
+     * @param spillDirectory Directory of the temporary files, or null for the default temporary directory.
+     */
+    public void setMemoryLimit(long memoryLimit, File spillDirectory) {
+        if (this.concurrent) {
+            throw new IllegalStateException("The dataset is populated concurrently, it can not spill its data points to disk");
+        }
+        this.memoryLimit = new NetCDFSpillingData.MemoryLimit(memoryLimit, spillDirectory);
+        for (AbstractNetCDFVariable variable : this) {
+            variable.setMemoryLimit(this.memoryLimit);
+        }
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.setMemoryLimit(memoryLimit, null);
+    }
+
+    /**
+     * Delete the temporary files of the data points spilled to disk, if any.
+     * See {@link #setMemoryLimit(long, File)}.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (AbstractNetCDFVariable variable : this) {
+            try {
+                variable.close();
+            } catch (IOException ex) {
+                if (exception == null) {
+                    exception = ex;
+                } else {
+                    exception.addSuppressed(ex);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    // Variables added to the dataset use the memory limit and the concurrency of the dataset
+    private void configure(AbstractNetCDFVariable variable, boolean concurrent) {
+        if (this.memoryLimit != null) {
+            variable.setMemoryLimit(this.memoryLimit);
+        } else {
+            variable.setConcurrent(concurrent);
+        }
+    }
+
     public void setGlobalAttribute(String key, String value) {
         this.globalAttributes.put(key, value);
     }
@@ -63,6 +160,32 @@ public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
         Set<Double> heights = new HashSet<Double>();
 
         for (AbstractNetCDFVariable variable : this) {
+            if (variable instanceof NetCDFLazyVariable) {
+                NetCDFLazyVariable lazyVariable = (NetCDFLazyVariable)variable;
+                if (lazyVariable.getLats() != null && lazyVariable.getLons() != null) {
+                    for (float lat : lazyVariable.getLats()) {
+                        latitudes.add(lat);
+                    }
+                    for (float lon : lazyVariable.getLons()) {
+                        longitudes.add(lon);
+                    }
+                }
+            }
+
+            for (NetCDFFrame frame : variable.getFrames()) {
+                for (float lat : frame.getLats()) {
+                    latitudes.add(lat);
+                }
+                for (float lon : frame.getLons()) {
+                    longitudes.add(lon);
+                }
+                if (frame.getHeights() != null) {
+                    for (double height : frame.getHeights()) {
+                        heights.add(height);
+                    }
+                }
+            }
+
             Map<NetCDFPointCoordinate, Double> variableData = variable.getData();
             if (variableData != null && !variableData.isEmpty()) {
                 for (NetCDFPointCoordinate coordinate : variableData.keySet()) {
@@ -90,11 +213,15 @@ public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
         if (variables == null) {
             this.variables.clear();
         } else {
-            this.variables = variables;
+            this.variables = this.concurrent ? Collections.synchronizedList(variables) : variables;
+            for (AbstractNetCDFVariable variable : variables) {
+                this.configure(variable, this.concurrent);
+            }
         }
     }
 
     public void addVariable(AbstractNetCDFVariable variable) {
+        this.configure(variable, this.concurrent || variable.isConcurrent());
         this.variables.add(variable);
     }
 
@@ -107,11 +234,17 @@ public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
         if (vectorVariables == null) {
             this.vectorVariables.clear();
         } else {
-            this.vectorVariables = vectorVariables;
+            this.vectorVariables = this.concurrent ? Collections.synchronizedList(vectorVariables) : vectorVariables;
+            for (NetCDFVectorVariable vectorVariable : vectorVariables) {
+                this.configure(vectorVariable.getU(), this.concurrent);
+                this.configure(vectorVariable.getV(), this.concurrent);
+            }
         }
     }
 
     public void addVectorVariable(NetCDFVectorVariable vectorVariable) {
+        this.configure(vectorVariable.getU(), this.concurrent || vectorVariable.getU().isConcurrent());
+        this.configure(vectorVariable.getV(), this.concurrent || vectorVariable.getV().isConcurrent());
         this.vectorVariables.add(vectorVariable);
     }
 
@@ -137,19 +270,10 @@ public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
         }
 
         public Dimensions(float[] latitudes, float[] longitudes, double[] heights) {
-            this.latitudes = latitudes;
-            this.longitudes = longitudes;
-            this.heights = heights;
-
-            if (this.latitudes != null) {
-                Arrays.sort(this.latitudes);
-            }
-            if (this.longitudes != null) {
-                Arrays.sort(this.longitudes);
-            }
-            if (this.heights != null) {
-                Arrays.sort(this.heights);
-            }
+            // Sort the axes and merge values which only differ by rounding errors
+            this.latitudes = mergeSorted(latitudes, NetCDFPointCoordinate.COORDINATE_EPSILON);
+            this.longitudes = mergeSorted(longitudes, NetCDFPointCoordinate.COORDINATE_EPSILON);
+            this.heights = mergeSorted(heights, NetCDFPointCoordinate.HEIGHT_EPSILON);
         }
 
         public float[] getLatitudes() {
@@ -165,6 +289,37 @@ public class NetCDFDataset implements Iterable<AbstractNetCDFVariable> {
         }
 
 
+        private static float[] mergeSorted(float[] values, float epsilon) {
+            if (values == null) {
+                return null;
+            }
+            Arrays.sort(values);
+
+            int length = 0;
+            for (int i=0; i<values.length; i++) {
+                if (length == 0 || values[i] - values[length-1] > NetCDFPointCoordinate.getEpsilon(values[i], values[length-1], epsilon)) {
+                    values[length] = values[i];
+                    length++;
+                }
+            }
+            return length == values.length ? values : Arrays.copyOf(values, length);
+        }
+        private static double[] mergeSorted(double[] values, double epsilon) {
+            if (values == null) {
+                return null;
+            }
+            Arrays.sort(values);
+
+            int length = 0;
+            for (int i=0; i<values.length; i++) {
+                if (length == 0 || values[i] - values[length-1] > NetCDFPointCoordinate.getEpsilon(values[i], values[length-1], epsilon)) {
+                    values[length] = values[i];
+                    length++;
+                }
+            }
+            return length == values.length ? values : Arrays.copyOf(values, length);
+        }
+
         private static float[] floatSetToArray(Set<Float> floats) {
             float[] floatArray = null;
             if (floats != null && !floats.isEmpty()) {
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf.bean;
+
+import org.joda.time.DateTime;
+
+/**
+ * Values of a variable for one time record, stored in a primitive array.
+ * Created with {@link NetCDFFrameBuilder}.
+ *
+ * Values are indexed [lat][lon] for variables without depth,
+ * and [lat][lon][height] for variables with depth.
+ * NaN values are considered as missing.
+ */
+public class NetCDFFrame {
+    private DateTime date;
+    private float[] lats;
+    private float[] lons;
+    private double[] heights;
+    private double[] values;
+
+    public NetCDFFrame(DateTime date, float[] lats, float[] lons, double[] heights, double[] values) {
+        int expectedLength = lats.length * lons.length * (heights == null ? 1 : heights.length);
+        if (values.length != expectedLength) {
+            throw new IllegalArgumentException(String.format("Invalid frame length. Expected %d, found %d",
+                    expectedLength, values.length));
+        }
+
+        this.date = date;
+        this.lats = lats;
+        this.lons = lons;
+        this.heights = heights;
+        this.values = values;
+    }
+
+    public DateTime getDate() {
+        return this.date;
+    }
+
+    public float[] getLats() {
+        return this.lats;
+    }
+
+    public float[] getLons() {
+        return this.lons;
+    }
+
+    public double[] getHeights() {
+        return this.heights;
+    }
+
+    public double[] getValues() {
+        return this.values;
+    }
+
+    public double getValue(int latIndex, int lonIndex, int heightIndex) {
+        int nbHeight = this.heights == null ? 1 : this.heights.length;
+        return this.values[(latIndex * this.lons.length + lonIndex) * nbHeight + heightIndex];
+    }
+
+    /**
+     * Find the value at a coordinate, within the coordinate epsilons.
+     * NOTE: This is a linear search, the Generator doesn't use it.
+     * @param coordinate The coordinate of the value.
+     * @return The value, or null if the coordinate is not in this frame.
+     */
+    public Double getValue(NetCDFPointCoordinate coordinate) {
+        DateTime coordinateDate = coordinate.getDate();
+        if (this.date == null ? coordinateDate != null : (coordinateDate == null || !this.date.isEqual(coordinateDate))) {
+            return null;
+        }
+
+        int latIndex = NetCDFFrame.indexOf(this.lats, coordinate.getLat());
+        int lonIndex = NetCDFFrame.indexOf(this.lons, coordinate.getLon());
+        if (latIndex < 0 || lonIndex < 0) {
+            return null;
+        }
+
+        int heightIndex = 0;
+        if (this.heights != null) {
+            Double height = coordinate.getHeight();
+            heightIndex = -1;
+            for (int i=0; height != null && i<this.heights.length; i++) {
+                if (Math.abs(this.heights[i] - height) <= NetCDFPointCoordinate.HEIGHT_EPSILON) {
+                    heightIndex = i;
+                    break;
+                }
+            }
+            if (heightIndex < 0) {
+                return null;
+            }
+        }
+
+        double value = this.getValue(latIndex, lonIndex, heightIndex);
+        return Double.isNaN(value) ? null : value;
+    }
+
+    /**
+     * @return The number of values which are not NaN.
+     */
+    public int getValueCount() {
+        int count = 0;
+        for (double value : this.values) {
+            if (!Double.isNaN(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Axes of frames are not necessarily sorted (depths are often listed from the surface)
+    private static int indexOf(float[] axis, float value) {
+        for (int i=0; i<axis.length; i++) {
+            if (Math.abs(axis[i] - value) <= NetCDFPointCoordinate.COORDINATE_EPSILON) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
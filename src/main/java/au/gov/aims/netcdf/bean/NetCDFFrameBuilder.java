@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf.bean;
+
+import org.joda.time.DateTime;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Populate variables one time record at the time, using primitive arrays,
+ * instead of adding data points one by one.
+ *
+ * Example:
+ *     NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons, depths);
+ *     NetCDFFrameBuilder.Record record = frameBuilder.openRecord(date);
+ *     double[] tempFrame = record.getFrame(tempVar);
+ *     for (int latIndex=0; latIndex<lats.length; latIndex++) {
+ *         for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+ *             for (int depthIndex=0; depthIndex<depths.length; depthIndex++) {
+ *                 tempFrame[frameBuilder.getIndex(latIndex, lonIndex, depthIndex)] = ...;
+ *             }
+ *         }
+ *     }
+ *     record.commit();
+ *
+ * Frames are filled with NaN (missing values) when they are created.
+ * Multiple records can be opened at the same time.
+ * A record can be filled by multiple threads (i.e. one task per latitude),
+ * as long as they write different indexes. It must be committed once all the threads are done.
+ */
+public class NetCDFFrameBuilder {
+    private float[] lats;
+    private float[] lons;
+    private double[] heights;
+
+    public NetCDFFrameBuilder(float[] lats, float[] lons) {
+        this(lats, lons, null);
+    }
+
+    public NetCDFFrameBuilder(float[] lats, float[] lons, double[] heights) {
+        if (lats == null || lons == null) {
+            throw new IllegalArgumentException("Latitude and longitude axes are mandatory");
+        }
+        this.lats = lats;
+        this.lons = lons;
+        this.heights = heights;
+    }
+
+    public float[] getLats() {
+        return this.lats;
+    }
+
+    public float[] getLons() {
+        return this.lons;
+    }
+
+    public double[] getHeights() {
+        return this.heights;
+    }
+
+    // Index of a value in a frame of a variable without depth
+    public int getIndex(int latIndex, int lonIndex) {
+        return latIndex * this.lons.length + lonIndex;
+    }
+
+    // Index of a value in a frame of a variable with depth
+    public int getIndex(int latIndex, int lonIndex, int heightIndex) {
+        return (latIndex * this.lons.length + lonIndex) * this.heights.length + heightIndex;
+    }
+
+    /**
+     * Open a time record.
+     * The frames are added to the variables when the record is committed.
+     * @param date The date of the record.
+     * @return The record.
+     */
+    public Record openRecord(DateTime date) {
+        if (date == null) {
+            throw new IllegalArgumentException("No date provided");
+        }
+        return new Record(date);
+    }
+
+    public class Record {
+        private DateTime date;
+        private Map<AbstractNetCDFVariable, NetCDFFrame> frames;
+
+        private Record(DateTime date) {
+            this.date = date;
+            this.frames = new LinkedHashMap<AbstractNetCDFVariable, NetCDFFrame>();
+        }
+
+        public DateTime getDate() {
+            return this.date;
+        }
+
+        /**
+         * @param variable A variable without depth.
+         * @return The frame of the variable for this record, indexed [lat][lon].
+         */
+        public double[] getFrame(NetCDFTimeVariable variable) {
+            return this.getFrame(variable, null);
+        }
+
+        /**
+         * @param variable A variable with depth.
+         * @return The frame of the variable for this record, indexed [lat][lon][height].
+         */
+        public double[] getFrame(NetCDFTimeDepthVariable variable) {
+            if (NetCDFFrameBuilder.this.heights == null) {
+                throw new IllegalStateException("The frame builder has no height axis");
+            }
+            return this.getFrame(variable, NetCDFFrameBuilder.this.heights);
+        }
+
+        // Synchronised, so a record can be filled by multiple threads (see NetCDFDataset.setConcurrent)
+        private synchronized double[] getFrame(AbstractNetCDFVariable variable, double[] heights) {
+            if (this.frames == null) {
+                throw new IllegalStateException(String.format("Record %s is already committed", this.date));
+            }
+
+            NetCDFFrame frame = this.frames.get(variable);
+            if (frame == null) {
+                float[] lats = NetCDFFrameBuilder.this.lats;
+                float[] lons = NetCDFFrameBuilder.this.lons;
+                double[] values = new double[lats.length * lons.length * (heights == null ? 1 : heights.length)];
+                Arrays.fill(values, Double.NaN);
+
+                frame = new NetCDFFrame(this.date, lats, lons, heights, values);
+                this.frames.put(variable, frame);
+            }
+            return frame.getValues();
+        }
+
+        /**
+         * Add the frames of this record to their variables.
+         */
+        public synchronized void commit() {
+            if (this.frames == null) {
+                throw new IllegalStateException(String.format("Record %s is already committed", this.date));
+            }
+            for (Map.Entry<AbstractNetCDFVariable, NetCDFFrame> frameEntry : this.frames.entrySet()) {
+                frameEntry.getKey().addFrame(frameEntry.getValue());
+            }
+            this.frames = null;
+        }
+    }
+}
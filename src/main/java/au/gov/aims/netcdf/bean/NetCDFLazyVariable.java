@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf.bean;
+
+import org.joda.time.DateTime;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Variable without time nor depth, which values are computed from the coordinates.
+ * The values are not stored: the expression is evaluated by the Generator
+ * when the variable is written.
+ *
+ * Example (bathymetry):
+ *     new NetCDFLazyVariable("botz", "metre", new NetCDFLazyVariable.Expression() {
+ *         public double getValue(float lat, float lon) {
+ *             return lat % 10 + lon % 10;
+ *         }
+ *     });
+ *
+ * The variable is evaluated on the lat / lon axes of the other variables of the dataset,
+ * unless axes are set with {@link #setAxes(float[], float[])}.
+ */
+public class NetCDFLazyVariable extends NetCDFVariable {
+    private Expression expression;
+
+    // Optional lat / lon axes, used when the dataset doesn't have other variables
+    private float[] lats;
+    private float[] lons;
+
+    public NetCDFLazyVariable(String name, String units, Expression expression) {
+        super(name, units);
+        if (expression == null) {
+            throw new IllegalArgumentException("No expression provided");
+        }
+        this.expression = expression;
+    }
+
+    public Expression getExpression() {
+        return this.expression;
+    }
+
+    public float[] getLats() {
+        return this.lats;
+    }
+
+    public float[] getLons() {
+        return this.lons;
+    }
+
+    /**
+     * Set the coordinates where the variable is defined.
+     * The axes are added to the dimensions of the dataset.
+     * @param lats Latitude axis.
+     * @param lons Longitude axis.
+     */
+    public void setAxes(float[] lats, float[] lons) {
+        this.lats = lats;
+        this.lons = lons;
+    }
+
+    @Override
+    public Double getValue(float lat, float lon) {
+        double value = this.expression.getValue(lat, lon);
+        return Double.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public Double getValue(NetCDFPointCoordinate coordinate) {
+        return this.getValue(coordinate.getLat(), coordinate.getLon());
+    }
+
+    // The values are not stored
+    @Override
+    public Map<NetCDFPointCoordinate, Double> getData() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public SortedSet<DateTime> getDates() {
+        return new TreeSet<DateTime>();
+    }
+
+    @Override
+    public void addDataPoint(NetCDFPointCoordinate coordinate, Double value) {
+        throw new UnsupportedOperationException(String.format("Can not add data point to lazy variable %s", this.getName()));
+    }
+
+    @Override
+    public void addFrame(NetCDFFrame frame) {
+        throw new UnsupportedOperationException(String.format("Can not add frame to lazy variable %s", this.getName()));
+    }
+
+    /**
+     * Value of the variable at a given coordinate.
+     */
+    public interface Expression {
+        /**
+         * @param lat Latitude of the coordinate.
+         * @param lon Longitude of the coordinate.
+         * @return The value, or NaN if there is no value at this coordinate.
+         */
+        double getValue(float lat, float lon);
+    }
+}
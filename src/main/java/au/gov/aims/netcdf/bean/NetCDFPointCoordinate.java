@@ -9,8 +9,10 @@ import org.joda.time.DateTime;
 import java.util.Objects;
 
 public class NetCDFPointCoordinate implements Comparable<NetCDFPointCoordinate> {
-    private static final float COORDINATE_EPSILON = 0.00001f; // about 1 metre on the equator
-    private static final double HEIGHT_EPSILON = 0.0000001;
+    // Coordinates closer than the epsilons are considered equal.
+    //     The epsilons are scaled up to the precision of the values (their ulp), see getEpsilon.
+    public static final float COORDINATE_EPSILON = 0.00001f; // about 1 metre on the equator
+    public static final double HEIGHT_EPSILON = 0.0000001;
 
     private float lat;
     private float lon;
@@ -70,18 +72,20 @@ public class NetCDFPointCoordinate implements Comparable<NetCDFPointCoordinate>
         if (this == o) return 0;
 
         float latCmp = this.lat - o.lat;
-        if (latCmp > COORDINATE_EPSILON) {
+        float latEpsilon = getEpsilon(this.lat, o.lat, COORDINATE_EPSILON);
+        if (latCmp > latEpsilon) {
             return 1;
         }
-        if (latCmp < -COORDINATE_EPSILON) {
+        if (latCmp < -latEpsilon) {
             return -1;
         }
 
         float lonCmp = this.lon - o.lon;
-        if (lonCmp > COORDINATE_EPSILON) {
+        float lonEpsilon = getEpsilon(this.lon, o.lon, COORDINATE_EPSILON);
+        if (lonCmp > lonEpsilon) {
             return 1;
         }
-        if (lonCmp < -COORDINATE_EPSILON) {
+        if (lonCmp < -lonEpsilon) {
             return -1;
         }
 
@@ -108,14 +112,28 @@ public class NetCDFPointCoordinate implements Comparable<NetCDFPointCoordinate>
             }
 
             double heightCmp = this.height - o.height;
-            if (heightCmp > HEIGHT_EPSILON) {
+            double heightEpsilon = getEpsilon(this.height, o.height, HEIGHT_EPSILON);
+            if (heightCmp > heightEpsilon) {
                 return 1;
             }
-            if (heightCmp < -HEIGHT_EPSILON) {
+            if (heightCmp < -heightEpsilon) {
                 return -1;
             }
         }
 
         return 0;
     }
+
+    /**
+     * Epsilon used to compare 2 coordinates.
+     * The epsilon can not be smaller than the precision of the values:
+     * floats >= 128 are 1.5E-5 apart, more than COORDINATE_EPSILON.
+     */
+    public static float getEpsilon(float value1, float value2, float epsilon) {
+        return Math.max(epsilon, Math.max(Math.ulp(value1), Math.ulp(value2)));
+    }
+
+    public static double getEpsilon(double value1, double value2, double epsilon) {
+        return Math.max(epsilon, Math.max(Math.ulp(value1), Math.ulp(value2)));
+    }
 }
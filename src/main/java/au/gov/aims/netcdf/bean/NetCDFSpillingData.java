@@ -0,0 +1,604 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf.bean;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Data points of a variable, with a heap ceiling.
+ * See {@link AbstractNetCDFVariable#setMemoryLimit(long, File)}
+ * and {@link NetCDFDataset#setMemoryLimit(long, File)}.
+ *
+ * Data points are buffered in memory. When the buffers sharing a {@link MemoryLimit} reach the limit,
+ * the largest buffer is sorted in record order (date, lat, lon, height) and written to a temporary file (a "run").
+ * Runs are memory-mapped, and merged when the data points are iterated,
+ * so the data points are always iterated in record order. When the same coordinate
+ * is found in multiple runs, the value added last wins, as with a {@link HashMap}.
+ *
+ * NOTE: Dates are restored in UTC. Null values are stored as NaN.
+ *     Lookups ({@link #get(Object)}) use a binary search in each run.
+ *     {@link #size()} iterates through all the data points.
+ *     Records can be iterated from a given date, see {@link #iterator(DateTime)}.
+ *     The runs are deleted when the data is closed or cleared.
+ */
+public class NetCDFSpillingData extends AbstractMap<NetCDFPointCoordinate, Double> implements Closeable {
+    // Size of a data point in a run file: date (8 bytes), lat (4), lon (4), height (8), value (8)
+    private static final int POINT_SIZE = 32;
+
+    // Approximate heap used by a buffered data point: coordinate, value and hash map entry
+    private static final int BUFFERED_POINT_SIZE = 128;
+
+    // Date value used for data points without date, sorted first
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // Record order: date, lat, lon, height
+    private static final Comparator<NetCDFPointCoordinate> RECORD_ORDER = new Comparator<NetCDFPointCoordinate>() {
+        @Override
+        public int compare(NetCDFPointCoordinate coordinate1, NetCDFPointCoordinate coordinate2) {
+            return NetCDFSpillingData.compare(
+                    NetCDFSpillingData.getDateMillis(coordinate1), coordinate1.getLat(), coordinate1.getLon(), NetCDFSpillingData.getHeight(coordinate1),
+                    NetCDFSpillingData.getDateMillis(coordinate2), coordinate2.getLat(), coordinate2.getLon(), NetCDFSpillingData.getHeight(coordinate2));
+        }
+    };
+
+    private MemoryLimit limit;
+
+    private Map<NetCDFPointCoordinate, Double> buffer;
+    private List<Run> runs;
+
+    // Memory buffer sorted in record order, kept until the buffer changes
+    private List<Map.Entry<NetCDFPointCoordinate, Double>> sortedBuffer;
+
+    /**
+     * @param memoryLimit Maximum heap used by the buffered data points, in bytes.
+     * @param directory Directory of the temporary files, or null for the default temporary directory.
+     */
+    public NetCDFSpillingData(long memoryLimit, File directory) {
+        this(new MemoryLimit(memoryLimit, directory));
+    }
+
+    /**
+     * @param limit Memory limit, which may be shared with the data of other variables.
+     */
+    public NetCDFSpillingData(MemoryLimit limit) {
+        if (limit == null) {
+            throw new IllegalArgumentException("No memory limit provided");
+        }
+        this.limit = limit;
+        this.buffer = new HashMap<NetCDFPointCoordinate, Double>();
+        this.runs = new ArrayList<Run>();
+        limit.datas.add(this);
+    }
+
+    public MemoryLimit getMemoryLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return The number of runs written to disk.
+     */
+    public int getRunCount() {
+        return this.runs.size();
+    }
+
+    /**
+     * Add a data point. The previous value is only returned if it's still in the memory buffer.
+     */
+    @Override
+    public Double put(NetCDFPointCoordinate coordinate, Double value) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("No coordinate provided");
+        }
+        this.sortedBuffer = null;
+        Double previousValue = this.buffer.put(coordinate, value == null ? Double.NaN : value);
+        if (previousValue == null) {
+            this.limit.bufferedPoints++;
+        }
+        if (this.limit.bufferedPoints >= this.limit.maxBufferedPoints) {
+            try {
+                this.limit.spillLargest();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Error occurred while writing data points to disk", ex);
+            }
+        }
+        return previousValue;
+    }
+
+    @Override
+    public Double get(Object key) {
+        if (!(key instanceof NetCDFPointCoordinate)) {
+            return null;
+        }
+        Double value = this.buffer.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        NetCDFPointCoordinate coordinate = (NetCDFPointCoordinate)key;
+        long date = NetCDFSpillingData.getDateMillis(coordinate);
+        double height = NetCDFSpillingData.getHeight(coordinate);
+        // Newest run first
+        for (int i=this.runs.size()-1; i>=0; i--) {
+            value = this.runs.get(i).find(date, coordinate.getLat(), coordinate.getLon(), height);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.get(key) != null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.buffer.isEmpty() && this.runs.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        try {
+            this.clearData();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Error occurred while deleting data points written to disk", ex);
+        }
+    }
+
+    /**
+     * Delete the data points, and their temporary files.
+     * The memory limit is released for the other variables sharing it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.clearData();
+        } finally {
+            this.limit.datas.remove(this);
+        }
+    }
+
+    private void clearData() throws IOException {
+        this.limit.bufferedPoints -= this.buffer.size();
+        this.buffer.clear();
+        this.sortedBuffer = null;
+
+        IOException exception = null;
+        for (Run run : this.runs) {
+            try {
+                run.delete();
+            } catch (IOException ex) {
+                if (exception == null) {
+                    exception = ex;
+                } else {
+                    exception.addSuppressed(ex);
+                }
+            }
+        }
+        this.runs.clear();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<NetCDFPointCoordinate, Double>> entrySet() {
+        return new AbstractSet<Map.Entry<NetCDFPointCoordinate, Double>>() {
+            @Override
+            public Iterator<Map.Entry<NetCDFPointCoordinate, Double>> iterator() {
+                return new MergeIterator(NO_DATE);
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                Iterator<Map.Entry<NetCDFPointCoordinate, Double>> iterator = this.iterator();
+                while (iterator.hasNext()) {
+                    iterator.next();
+                    size++;
+                }
+                return size;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return NetCDFSpillingData.this.isEmpty();
+            }
+        };
+    }
+
+    // Sort the buffered data points and write them to a memory-mapped temporary file
+    private void spill() throws IOException {
+        List<Map.Entry<NetCDFPointCoordinate, Double>> entries = NetCDFSpillingData.sort(this.buffer);
+
+        File runFile = File.createTempFile("netcdf-spill-", ".bin", this.limit.directory);
+        MappedByteBuffer mappedBuffer;
+        boolean success = false;
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1024 * 1024))) {
+                for (Map.Entry<NetCDFPointCoordinate, Double> entry : entries) {
+                    NetCDFPointCoordinate coordinate = entry.getKey();
+                    output.writeLong(NetCDFSpillingData.getDateMillis(coordinate));
+                    output.writeFloat(coordinate.getLat());
+                    output.writeFloat(coordinate.getLon());
+                    output.writeDouble(NetCDFSpillingData.getHeight(coordinate));
+                    output.writeDouble(entry.getValue());
+                }
+            }
+
+            try (RandomAccessFile file = new RandomAccessFile(runFile, "r"); FileChannel channel = file.getChannel()) {
+                // The mapping stays valid after the channel is closed
+                mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                Files.deleteIfExists(runFile.toPath());
+            }
+        }
+
+        this.runs.add(new Run(runFile, mappedBuffer, entries.size()));
+        this.limit.bufferedPoints -= this.buffer.size();
+        this.buffer = new HashMap<NetCDFPointCoordinate, Double>();
+        this.sortedBuffer = null;
+    }
+
+    /**
+     * Iterate the data points in record order, starting at the first data point
+     * dated on or after a given date. Data points without date are only iterated from the start.
+     * Used to read a slice of the records without merging the previous records.
+     *
+     * @param fromDate The date of the first data point, or null to iterate all the data points.
+     */
+    public Iterator<Map.Entry<NetCDFPointCoordinate, Double>> iterator(DateTime fromDate) {
+        return new MergeIterator(fromDate == null ? NO_DATE : fromDate.getMillis());
+    }
+
+    // The buffer is sorted once, for all the iterators reading it
+    private synchronized List<Map.Entry<NetCDFPointCoordinate, Double>> getSortedBuffer() {
+        if (this.sortedBuffer == null) {
+            this.sortedBuffer = NetCDFSpillingData.sort(this.buffer);
+        }
+        return this.sortedBuffer;
+    }
+
+    private static List<Map.Entry<NetCDFPointCoordinate, Double>> sort(Map<NetCDFPointCoordinate, Double> data) {
+        List<Map.Entry<NetCDFPointCoordinate, Double>> entries = new ArrayList<Map.Entry<NetCDFPointCoordinate, Double>>(data.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<NetCDFPointCoordinate, Double>>() {
+            @Override
+            public int compare(Map.Entry<NetCDFPointCoordinate, Double> entry1, Map.Entry<NetCDFPointCoordinate, Double> entry2) {
+                return RECORD_ORDER.compare(entry1.getKey(), entry2.getKey());
+            }
+        });
+        return entries;
+    }
+
+    private static long getDateMillis(NetCDFPointCoordinate coordinate) {
+        DateTime date = coordinate.getDate();
+        return date == null ? NO_DATE : date.getMillis();
+    }
+
+    private static double getHeight(NetCDFPointCoordinate coordinate) {
+        Double height = coordinate.getHeight();
+        return height == null ? Double.NaN : height;
+    }
+
+    private static int compare(long date1, float lat1, float lon1, double height1, long date2, float lat2, float lon2, double height2) {
+        int cmp = Long.compare(date1, date2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Float.compare(lat1, lat2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Float.compare(lon1, lon2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return Double.compare(height1, height2);
+    }
+
+    // Sorted data points written to disk
+    private static class Run {
+        private File file;
+        private MappedByteBuffer buffer;
+        private int count;
+
+        public Run(File file, MappedByteBuffer buffer, int count) {
+            this.file = file;
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        public long getDate(int index) {
+            return this.buffer.getLong(index * POINT_SIZE);
+        }
+
+        public float getLat(int index) {
+            return this.buffer.getFloat(index * POINT_SIZE + 8);
+        }
+
+        public float getLon(int index) {
+            return this.buffer.getFloat(index * POINT_SIZE + 12);
+        }
+
+        public double getHeight(int index) {
+            return this.buffer.getDouble(index * POINT_SIZE + 16);
+        }
+
+        public double getValue(int index) {
+            return this.buffer.getDouble(index * POINT_SIZE + 24);
+        }
+
+        public int compare(int index, long date, float lat, float lon, double height) {
+            return NetCDFSpillingData.compare(this.getDate(index), this.getLat(index), this.getLon(index), this.getHeight(index),
+                    date, lat, lon, height);
+        }
+
+        // Binary search
+        public Double find(long date, float lat, float lon, double height) {
+            int low = 0;
+            int high = this.count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = this.compare(middle, date, lat, lon, height);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    return this.getValue(middle);
+                }
+            }
+            return null;
+        }
+
+        public void delete() throws IOException {
+            this.buffer = null;
+            Files.deleteIfExists(this.file.toPath());
+        }
+    }
+
+    /**
+     * Heap ceiling shared by the data points of one or more variables.
+     * The data points buffered by all the variables sharing the limit are counted together.
+     * When the limit is reached, the largest buffer is spilled to disk.
+     *
+     * NOTE: Like the data points, the limit is not thread safe.
+     */
+    public static class MemoryLimit {
+        private long memoryLimit;
+        private File directory;
+        private int maxBufferedPoints;
+
+        // Data sharing the limit, and their number of buffered data points
+        private List<NetCDFSpillingData> datas;
+        private long bufferedPoints;
+
+        /**
+         * @param memoryLimit Maximum heap used by the buffered data points, in bytes.
+         * @param directory Directory of the temporary files, or null for the default temporary directory.
+         */
+        public MemoryLimit(long memoryLimit, File directory) {
+            if (memoryLimit <= 0) {
+                throw new IllegalArgumentException(String.format("Invalid memory limit: %d", memoryLimit));
+            }
+            this.memoryLimit = memoryLimit;
+            this.directory = directory;
+            // A run is memory-mapped in a single buffer, limited to 2 GB
+            this.maxBufferedPoints = (int)Math.max(1, Math.min(memoryLimit / BUFFERED_POINT_SIZE, Integer.MAX_VALUE / POINT_SIZE));
+            this.datas = new ArrayList<NetCDFSpillingData>();
+        }
+
+        public long getMemoryLimit() {
+            return this.memoryLimit;
+        }
+
+        public File getDirectory() {
+            return this.directory;
+        }
+
+        private void spillLargest() throws IOException {
+            NetCDFSpillingData largest = null;
+            for (NetCDFSpillingData data : this.datas) {
+                if (largest == null || data.buffer.size() > largest.buffer.size()) {
+                    largest = data;
+                }
+            }
+            if (largest != null && !largest.buffer.isEmpty()) {
+                largest.spill();
+            }
+        }
+    }
+
+    // Position in a run (or in the sorted memory buffer) while merging
+    private static class Cursor {
+        // Runs added last have a higher priority
+        private int priority;
+        private Run run;
+        private List<Map.Entry<NetCDFPointCoordinate, Double>> entries;
+        private int size;
+        private int index;
+
+        private long date;
+        private float lat;
+        private float lon;
+        private double height;
+
+        public Cursor(int priority, Run run, long fromDate) {
+            this.priority = priority;
+            this.run = run;
+            this.size = run.count;
+            this.index = this.lowerBound(fromDate);
+            this.load();
+        }
+
+        public Cursor(int priority, List<Map.Entry<NetCDFPointCoordinate, Double>> entries, long fromDate) {
+            this.priority = priority;
+            this.entries = entries;
+            this.size = entries.size();
+            this.index = this.lowerBound(fromDate);
+            this.load();
+        }
+
+        private long getDate(int index) {
+            return this.run != null ? this.run.getDate(index) : NetCDFSpillingData.getDateMillis(this.entries.get(index).getKey());
+        }
+
+        // Binary search of the first data point dated on or after the date
+        private int lowerBound(long date) {
+            if (date == NO_DATE) {
+                return 0;
+            }
+            int low = 0;
+            int high = this.size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.getDate(middle) < date) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        public boolean hasValue() {
+            return this.index < this.size;
+        }
+
+        public double getValue() {
+            return this.run != null ? this.run.getValue(this.index) : this.entries.get(this.index).getValue();
+        }
+
+        public void next() {
+            this.index++;
+            this.load();
+        }
+
+        private void load() {
+            if (!this.hasValue()) {
+                return;
+            }
+            if (this.run != null) {
+                this.date = this.run.getDate(this.index);
+                this.lat = this.run.getLat(this.index);
+                this.lon = this.run.getLon(this.index);
+                this.height = this.run.getHeight(this.index);
+            } else {
+                NetCDFPointCoordinate coordinate = this.entries.get(this.index).getKey();
+                this.date = NetCDFSpillingData.getDateMillis(coordinate);
+                this.lat = coordinate.getLat();
+                this.lon = coordinate.getLon();
+                this.height = NetCDFSpillingData.getHeight(coordinate);
+            }
+        }
+
+        public int compareTo(Cursor other) {
+            int cmp = NetCDFSpillingData.compare(this.date, this.lat, this.lon, this.height,
+                    other.date, other.lat, other.lon, other.height);
+            return cmp != 0 ? cmp : Integer.compare(other.priority, this.priority);
+        }
+    }
+
+    // Merge the runs and the memory buffer, in record order
+    private class MergeIterator implements Iterator<Map.Entry<NetCDFPointCoordinate, Double>> {
+        private PriorityQueue<Cursor> cursors;
+
+        // Dates are shared by consecutive data points
+        private DateTime lastDate;
+
+        public MergeIterator(long fromDate) {
+            this.cursors = new PriorityQueue<Cursor>(NetCDFSpillingData.this.runs.size() + 1, new Comparator<Cursor>() {
+                @Override
+                public int compare(Cursor cursor1, Cursor cursor2) {
+                    return cursor1.compareTo(cursor2);
+                }
+            });
+
+            int priority = 0;
+            for (Run run : NetCDFSpillingData.this.runs) {
+                this.add(new Cursor(priority++, run, fromDate));
+            }
+            this.add(new Cursor(priority, NetCDFSpillingData.this.getSortedBuffer(), fromDate));
+        }
+
+        private void add(Cursor cursor) {
+            if (cursor.hasValue()) {
+                this.cursors.add(cursor);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.cursors.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<NetCDFPointCoordinate, Double> next() {
+            Cursor cursor = this.cursors.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+
+            DateTime date = null;
+            if (cursor.date != NO_DATE) {
+                if (this.lastDate == null || this.lastDate.getMillis() != cursor.date) {
+                    this.lastDate = new DateTime(cursor.date, DateTimeZone.UTC);
+                }
+                date = this.lastDate;
+            }
+            NetCDFPointCoordinate coordinate = new NetCDFPointCoordinate(cursor.lat, cursor.lon, date,
+                    Double.isNaN(cursor.height) ? null : cursor.height);
+            Map.Entry<NetCDFPointCoordinate, Double> entry = new SimpleImmutableEntry<NetCDFPointCoordinate, Double>(coordinate, cursor.getValue());
+
+            // Skip older values of the same coordinate
+            Cursor other = this.cursors.peek();
+            while (other != null && NetCDFSpillingData.compare(cursor.date, cursor.lat, cursor.lon, cursor.height,
+                    other.date, other.lat, other.lon, other.height) == 0) {
+                this.cursors.poll();
+                other.next();
+                this.add(other);
+                other = this.cursors.peek();
+            }
+
+            cursor.next();
+            this.add(cursor);
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Data points can not be removed");
+        }
+    }
+}
@@ -12,6 +12,16 @@ public class NetCDFTimeDepthVariable extends AbstractNetCDFVariable {
         super(name, units);
     }
 
+    @Override
+    public boolean hasTime() {
+        return true;
+    }
+
+    @Override
+    public boolean hasHeight() {
+        return true;
+    }
+
     public Double getValue(float lat, float lon, DateTime date, double height) {
         return this.getValue(new NetCDFPointCoordinate(lat, lon, date, height));
     }
@@ -11,6 +11,11 @@ public class NetCDFTimeVariable extends AbstractNetCDFVariable {
         super(name, units);
     }
 
+    @Override
+    public boolean hasTime() {
+        return true;
+    }
+
     public Double getValue(float lat, float lon, DateTime date) {
         return this.getValue(new NetCDFPointCoordinate(lat, lon, date));
     }
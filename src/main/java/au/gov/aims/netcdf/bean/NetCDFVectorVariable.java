@@ -4,11 +4,37 @@
  */
 package au.gov.aims.netcdf.bean;
 
+import org.joda.time.DateTime;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Vector variable, made of an u (eastward) and a v (northward) component.
+ *
+ * The data points of both components are stored together, once per coordinate,
+ * as a pair of values {u, v} (see {@link #getPairedData()}).
+ * The data of the u and v variables are views of the pairs, so they can still be used as any other variable.
+ *
+ * NOTE: The components are stored separately once they spill to disk or are populated concurrently
+ *     (see {@link AbstractNetCDFVariable#setMemoryLimit(NetCDFSpillingData.MemoryLimit)}
+ *     and {@link AbstractNetCDFVariable#setConcurrent(boolean)}).
+ */
 public class NetCDFVectorVariable<V extends AbstractNetCDFVariable> {
     private String groupName;
     private V u;
     private V v;
 
+    // Values of the data points: {u value, v value}. NaN when a component has no value.
+    private Map<NetCDFPointCoordinate, double[]> pairedData;
+    private ComponentData uData;
+    private ComponentData vData;
+
     public NetCDFVectorVariable(String groupName, V u, V v) {
         this.groupName = groupName;
 
@@ -17,6 +43,21 @@ public class NetCDFVectorVariable<V extends AbstractNetCDFVariable> {
 
         this.v = v;
         this.v.setAttribute("standard_name", String.format("northward_%s", this.groupName));
+
+        // Move the data points already added to the pairs
+        this.pairedData = new HashMap<NetCDFPointCoordinate, double[]>();
+        this.uData = new ComponentData(this.pairedData, 0);
+        this.vData = new ComponentData(this.pairedData, 1);
+        if (u != v && ComponentData.canPair(u) && ComponentData.canPair(v)) {
+            this.uData.putAll(u.getData());
+            this.vData.putAll(v.getData());
+            u.setData(this.uData);
+            v.setData(this.vData);
+        }
+    }
+
+    public String getGroupName() {
+        return this.groupName;
     }
 
     public V getU() {
@@ -26,4 +67,228 @@ public class NetCDFVectorVariable<V extends AbstractNetCDFVariable> {
     public V getV() {
         return this.v;
     }
+
+    /**
+     * @return True if the data points of the u and v components are stored together.
+     */
+    public boolean isPaired() {
+        return this.u.getData() == this.uData && this.v.getData() == this.vData;
+    }
+
+    /**
+     * Return the values of both components, keyed by coordinate: {u value, v value}.
+     * A component which has no value for the coordinate is NaN.
+     * NOTE: The values of the frames are not included, see {@link AbstractNetCDFVariable#getFrames()}.
+     * @return The values, or null if the components are not stored together (see {@link #isPaired()}).
+     */
+    public Map<NetCDFPointCoordinate, double[]> getPairedData() {
+        return this.isPaired() ? this.pairedData : null;
+    }
+
+    /**
+     * Add the u and v values of a data point.
+     * Both values are stored once, as a pair.
+     * @param coordinate The coordinate of the data point.
+     * @param uValue The u (eastward) value.
+     * @param vValue The v (northward) value.
+     */
+    public void addDataPoint(NetCDFPointCoordinate coordinate, double uValue, double vValue) {
+        if (!this.isPaired()) {
+            this.u.addDataPoint(coordinate, uValue);
+            this.v.addDataPoint(coordinate, vValue);
+            return;
+        }
+
+        double[] previousPair = Double.isNaN(uValue) && Double.isNaN(vValue) ?
+                this.pairedData.remove(coordinate) :
+                this.pairedData.put(coordinate, new double[] {uValue, vValue});
+        this.uData.count(previousPair == null ? Double.NaN : previousPair[0], uValue);
+        this.vData.count(previousPair == null ? Double.NaN : previousPair[1], vValue);
+    }
+
+    public void addDataPoint(float lat, float lon, DateTime date, double uValue, double vValue) {
+        this.addDataPoint(new NetCDFPointCoordinate(lat, lon, date), uValue, vValue);
+    }
+
+    public void addDataPoint(float lat, float lon, DateTime date, double height, double uValue, double vValue) {
+        this.addDataPoint(new NetCDFPointCoordinate(lat, lon, date, height), uValue, vValue);
+    }
+
+    /**
+     * Data points of a component, viewed from the pairs.
+     * Missing values (null or NaN) are not stored: adding one removes the value of the component.
+     */
+    static class ComponentData extends AbstractMap<NetCDFPointCoordinate, Double> {
+        private Map<NetCDFPointCoordinate, double[]> pairedData;
+        private int component;
+        private int size;
+
+        public ComponentData(Map<NetCDFPointCoordinate, double[]> pairedData, int component) {
+            this.pairedData = pairedData;
+            this.component = component;
+        }
+
+        // Spilled and concurrent data are not paired
+        private static boolean canPair(AbstractNetCDFVariable variable) {
+            return !(variable.getData() instanceof NetCDFSpillingData) && !variable.isConcurrent();
+        }
+
+        // Update the number of values, after the value of a coordinate is replaced
+        private void count(double previousValue, double value) {
+            if (!Double.isNaN(previousValue)) {
+                this.size--;
+            }
+            if (!Double.isNaN(value)) {
+                this.size++;
+            }
+        }
+
+        @Override
+        public Double put(NetCDFPointCoordinate coordinate, Double value) {
+            double newValue = value == null ? Double.NaN : value;
+            double[] pair = this.pairedData.get(coordinate);
+            if (pair == null) {
+                if (Double.isNaN(newValue)) {
+                    return null;
+                }
+                pair = new double[] {Double.NaN, Double.NaN};
+                this.pairedData.put(coordinate, pair);
+            }
+
+            double previousValue = pair[this.component];
+            pair[this.component] = newValue;
+            this.count(previousValue, newValue);
+            if (Double.isNaN(pair[0]) && Double.isNaN(pair[1])) {
+                this.pairedData.remove(coordinate);
+            }
+            return Double.isNaN(previousValue) ? null : previousValue;
+        }
+
+        @Override
+        public Double get(Object key) {
+            double[] pair = this.pairedData.get(key);
+            return pair == null || Double.isNaN(pair[this.component]) ? null : pair[this.component];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return this.get(key) != null;
+        }
+
+        @Override
+        public Double remove(Object key) {
+            return key instanceof NetCDFPointCoordinate && this.containsKey(key) ?
+                    this.put((NetCDFPointCoordinate)key, null) : null;
+        }
+
+        @Override
+        public void clear() {
+            Iterator<Map.Entry<NetCDFPointCoordinate, Double>> iterator = this.entrySet().iterator();
+            while (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public Set<Map.Entry<NetCDFPointCoordinate, Double>> entrySet() {
+            return new AbstractSet<Map.Entry<NetCDFPointCoordinate, Double>>() {
+                @Override
+                public Iterator<Map.Entry<NetCDFPointCoordinate, Double>> iterator() {
+                    return new ComponentIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ComponentData.this.size;
+                }
+            };
+        }
+
+        // The coordinates are iterated without boxing the values (see NetCDFDataset.getDimensions)
+        @Override
+        public Set<NetCDFPointCoordinate> keySet() {
+            return new AbstractSet<NetCDFPointCoordinate>() {
+                @Override
+                public Iterator<NetCDFPointCoordinate> iterator() {
+                    final ComponentIterator iterator = new ComponentIterator();
+                    return new Iterator<NetCDFPointCoordinate>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public NetCDFPointCoordinate next() {
+                            return iterator.nextPair().getKey();
+                        }
+
+                        @Override
+                        public void remove() {
+                            iterator.remove();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ComponentData.this.size;
+                }
+            };
+        }
+
+        // Iterate the pairs which have a value for the component
+        private class ComponentIterator implements Iterator<Map.Entry<NetCDFPointCoordinate, Double>> {
+            private Iterator<Map.Entry<NetCDFPointCoordinate, double[]>> pairs = ComponentData.this.pairedData.entrySet().iterator();
+            private Map.Entry<NetCDFPointCoordinate, double[]> nextPair;
+            private Map.Entry<NetCDFPointCoordinate, double[]> lastPair;
+
+            @Override
+            public boolean hasNext() {
+                while (this.nextPair == null && this.pairs.hasNext()) {
+                    Map.Entry<NetCDFPointCoordinate, double[]> pair = this.pairs.next();
+                    if (!Double.isNaN(pair.getValue()[ComponentData.this.component])) {
+                        this.nextPair = pair;
+                    }
+                }
+                return this.nextPair != null;
+            }
+
+            @Override
+            public Map.Entry<NetCDFPointCoordinate, Double> next() {
+                Map.Entry<NetCDFPointCoordinate, double[]> pair = this.nextPair();
+                return new SimpleImmutableEntry<NetCDFPointCoordinate, Double>(
+                        pair.getKey(), pair.getValue()[ComponentData.this.component]);
+            }
+
+            public Map.Entry<NetCDFPointCoordinate, double[]> nextPair() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.lastPair = this.nextPair;
+                this.nextPair = null;
+                return this.lastPair;
+            }
+
+            // The pair is removed once both components have no value
+            @Override
+            public void remove() {
+                if (this.lastPair == null || this.nextPair != null) {
+                    throw new IllegalStateException();
+                }
+                double[] pair = this.lastPair.getValue();
+                pair[ComponentData.this.component] = Double.NaN;
+                ComponentData.this.size--;
+                if (Double.isNaN(pair[0]) && Double.isNaN(pair[1])) {
+                    this.pairs.remove();
+                }
+                this.lastPair = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
+import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.InvalidRangeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Check the number of bytes allocated per data point on the generation hot path,
+ * against the budget in "allocation-budget.properties".
+ * Allocations are measured on the current thread, so the generator uses a single thread.
+ *
+ * Each measure is taken after a warm up run, to exclude class loading and static initialisation,
+ * and the lowest figure of a few runs is kept.
+ * The generation is measured on two time ranges of the same scenario, and only the difference
+ * is checked: the fixed cost of creating a file doesn't depend on the number of data points.
+ */
+public class AllocationBudgetTest {
+    private static final Logger LOGGER = Logger.getLogger(AllocationBudgetTest.class);
+
+    private static final int RUNS = 3;
+
+    private static Properties budget;
+    private static com.sun.management.ThreadMXBean threadMXBean;
+
+    private static final float[] LATS = Generator.getCoordinates(-20, -18, 20);
+    private static final float[] LONS = Generator.getCoordinates(145, 147, 20);
+    private static final double[] DEPTHS = {-10, -1.5};
+    private static final DateTime START_DATE = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+    private static final int NB_HOURS = 24;
+    private static final int NB_HOURS_SHORT = 6;
+
+    @BeforeClass
+    public static void init() throws IOException {
+        Assume.assumeTrue("Thread allocation measurement is not supported by this JVM",
+                ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Thread allocation measurement is not supported by this JVM",
+                threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        budget = new Properties();
+        try (InputStream inputStream = AllocationBudgetTest.class.getResourceAsStream("allocation-budget.properties")) {
+            Assert.assertNotNull("Allocation budget file not found", inputStream);
+            budget.load(inputStream);
+        }
+    }
+
+    @Test
+    public void testAddDataPoint() {
+        long minBytes = Long.MAX_VALUE;
+        for (int run=0; run<=RUNS; run++) {
+            DateTime[] dates = AllocationBudgetTest.getDates();
+            NetCDFTimeDepthVariable variable = new NetCDFTimeDepthVariable("temp", "degrees C");
+
+            long before = AllocationBudgetTest.getAllocatedBytes();
+            AllocationBudgetTest.addDataPoints(variable, dates);
+            long bytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            // Run 0 is the warm up
+            if (run > 0) {
+                minBytes = Math.min(minBytes, bytes);
+            }
+        }
+
+        AllocationBudgetTest.assertBudget("addDataPoint", minBytes, AllocationBudgetTest.getDataPointCount());
+    }
+
+    @Test
+    public void testAddVectorDataPoint() {
+        long minBytes = Long.MAX_VALUE;
+        for (int run=0; run<=RUNS; run++) {
+            DateTime[] dates = AllocationBudgetTest.getDates();
+            NetCDFVectorVariable<NetCDFTimeDepthVariable> vectorVariable = new NetCDFVectorVariable<NetCDFTimeDepthVariable>("current",
+                    new NetCDFTimeDepthVariable("u", "ms-1"), new NetCDFTimeDepthVariable("v", "ms-1"));
+
+            long before = AllocationBudgetTest.getAllocatedBytes();
+            for (float lat : LATS) {
+                for (float lon : LONS) {
+                    for (DateTime date : dates) {
+                        for (double depth : DEPTHS) {
+                            vectorVariable.addDataPoint(lat, lon, date, depth, lat + depth, lon + depth);
+                        }
+                    }
+                }
+            }
+            long bytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            if (run > 0) {
+                minBytes = Math.min(minBytes, bytes);
+            }
+        }
+
+        // Per pair of u and v values
+        AllocationBudgetTest.assertBudget("addVectorDataPoint", minBytes, AllocationBudgetTest.getDataPointCount());
+    }
+
+    @Test
+    public void testGetValue() {
+        DateTime[] dates = AllocationBudgetTest.getDates();
+        NetCDFTimeDepthVariable variable = new NetCDFTimeDepthVariable("temp", "degrees C");
+        AllocationBudgetTest.addDataPoints(variable, dates);
+
+        long minBytes = Long.MAX_VALUE;
+        for (int run=0; run<=RUNS; run++) {
+            long before = AllocationBudgetTest.getAllocatedBytes();
+            for (float lat : LATS) {
+                for (float lon : LONS) {
+                    for (DateTime date : dates) {
+                        for (double depth : DEPTHS) {
+                            Assert.assertNotNull(variable.getValue(lat, lon, date, depth));
+                        }
+                    }
+                }
+            }
+            long bytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            if (run > 0) {
+                minBytes = Math.min(minBytes, bytes);
+            }
+        }
+
+        AllocationBudgetTest.assertBudget("getValue", minBytes, AllocationBudgetTest.getDataPointCount());
+    }
+
+    @Test
+    public void testPrepareAndFill() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        netCDFGenerator.setThreadCount(1);
+
+        long minPrepareBytes = Long.MAX_VALUE;
+        long minFillBytes = Long.MAX_VALUE;
+        long minFillVectorBytes = Long.MAX_VALUE;
+        int dataPointCount = 0;
+        int vectorDataPointCount = 0;
+        for (int run=0; run<=RUNS; run++) {
+            NetCDFDataset dataset = GeneratorTest.getSmallDataset(START_DATE, START_DATE.plusHours(NB_HOURS));
+            dataPointCount = AllocationBudgetTest.getDataPointCount(dataset);
+
+            // Axes and dates of the hypercube
+            long before = AllocationBudgetTest.getAllocatedBytes();
+            netCDFGenerator.compileTemplate(dataset);
+            long prepareBytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            NetCDFDataset.Dimensions dimensions = dataset.getDimensions();
+            SortedSet<DateTime> dates = new TreeSet<DateTime>();
+            for (AbstractNetCDFVariable variable : dataset) {
+                dates.addAll(variable.getDates());
+            }
+
+            // Records of every variable, as filled before they are written
+            long[] recordMillis = RecordIndex.getRecordMillis(dates);
+            before = AllocationBudgetTest.getAllocatedBytes();
+            AllocationBudgetTest.fillRecords(dataset, dimensions, recordMillis);
+            long fillBytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            // Records of the u and v components of the vector variable, filled together
+            NetCDFVectorVariable vectorVariable = dataset.getVectorVariables().get(0);
+            vectorDataPointCount = vectorVariable.getU().getDataPointCount() + vectorVariable.getV().getDataPointCount();
+            before = AllocationBudgetTest.getAllocatedBytes();
+            AllocationBudgetTest.fillVectorRecords(vectorVariable, dimensions, recordMillis);
+            long fillVectorBytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            if (run > 0) {
+                minPrepareBytes = Math.min(minPrepareBytes, prepareBytes);
+                minFillBytes = Math.min(minFillBytes, fillBytes);
+                minFillVectorBytes = Math.min(minFillVectorBytes, fillVectorBytes);
+            }
+        }
+
+        AllocationBudgetTest.assertBudget("prepare", minPrepareBytes, dataPointCount);
+        AllocationBudgetTest.assertBudget("fill", minFillBytes, dataPointCount);
+        AllocationBudgetTest.assertBudget("fillVector", minFillVectorBytes, vectorDataPointCount);
+    }
+
+    @Test
+    public void testGenerate() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator(NetCDFFormat.NETCDF3);
+        netCDFGenerator.setThreadCount(1);
+
+        long minShortBytes = Long.MAX_VALUE;
+        long minBytes = Long.MAX_VALUE;
+        int shortDataPointCount = 0;
+        int dataPointCount = 0;
+        for (int run=0; run<=RUNS; run++) {
+            NetCDFDataset shortDataset = GeneratorTest.getSmallDataset(START_DATE, START_DATE.plusHours(NB_HOURS_SHORT));
+            shortDataPointCount = AllocationBudgetTest.getDataPointCount(shortDataset);
+            long before = AllocationBudgetTest.getAllocatedBytes();
+            netCDFGenerator.generateInMemory(shortDataset);
+            long shortBytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            NetCDFDataset dataset = GeneratorTest.getSmallDataset(START_DATE, START_DATE.plusHours(NB_HOURS));
+            dataPointCount = AllocationBudgetTest.getDataPointCount(dataset);
+            before = AllocationBudgetTest.getAllocatedBytes();
+            netCDFGenerator.generateInMemory(dataset);
+            long bytes = AllocationBudgetTest.getAllocatedBytes() - before;
+
+            if (run > 0) {
+                minShortBytes = Math.min(minShortBytes, shortBytes);
+                minBytes = Math.min(minBytes, bytes);
+            }
+        }
+
+        AllocationBudgetTest.assertBudget("generate", minBytes - minShortBytes, dataPointCount - shortDataPointCount);
+    }
+
+    private static void assertBudget(String name, long bytes, int dataPointCount) {
+        String budgetValue = budget.getProperty(name);
+        Assert.assertNotNull(String.format("No allocation budget for %s", name), budgetValue);
+        double maxBytesPerDataPoint = Double.parseDouble(budgetValue.trim());
+        double bytesPerDataPoint = (double)bytes / dataPointCount;
+
+        LOGGER.info(String.format("%s: %.1f bytes allocated per data point (budget: %.1f)",
+                name, bytesPerDataPoint, maxBytesPerDataPoint));
+        Assert.assertTrue(String.format("%s allocates %.1f bytes per data point, over the budget of %.1f bytes",
+                name, bytesPerDataPoint, maxBytesPerDataPoint),
+                bytesPerDataPoint <= maxBytesPerDataPoint);
+    }
+
+    // Fill the records of the variables one at the time, as the Generator does (see VariableWriter)
+    private static void fillRecords(NetCDFDataset dataset, NetCDFDataset.Dimensions dimensions, long[] recordMillis) {
+        float[] lats = dimensions.getLatitudes();
+        float[] lons = dimensions.getLongitudes();
+        for (AbstractNetCDFVariable variable : dataset.getVariables()) {
+            boolean hasTime = variable.hasTime();
+            double[] heights = variable.hasHeight() ? dimensions.getHeights() : null;
+            double[] recordData = new double[RecordReaders.getRecordSize(lats, lons, heights)];
+            RecordReaders.RecordReader recordReader = RecordReaders.getRecordReader(variable, lats, lons, heights,
+                    hasTime ? recordMillis : null, 0, null);
+            for (int recordIndex=0; recordIndex<(hasTime ? recordMillis.length : 1); recordIndex++) {
+                recordReader.read(recordIndex, recordData);
+            }
+        }
+        for (NetCDFVectorVariable vectorVariable : dataset.getVectorVariables()) {
+            AllocationBudgetTest.fillVectorRecords(vectorVariable, dimensions, recordMillis);
+        }
+    }
+
+    private static void fillVectorRecords(NetCDFVectorVariable vectorVariable, NetCDFDataset.Dimensions dimensions, long[] recordMillis) {
+        float[] lats = dimensions.getLatitudes();
+        float[] lons = dimensions.getLongitudes();
+        double[] heights = vectorVariable.getU().hasHeight() ? dimensions.getHeights() : null;
+        int recordSize = RecordReaders.getRecordSize(lats, lons, heights);
+        double[] uRecordData = new double[recordSize];
+        double[] vRecordData = new double[recordSize];
+        RecordReaders.VectorRecordReader recordReader = RecordReaders.getVectorRecordReader(vectorVariable,
+                lats, lons, heights, recordMillis, null);
+        for (int recordIndex=0; recordIndex<recordMillis.length; recordIndex++) {
+            recordReader.read(recordIndex, uRecordData, vRecordData);
+        }
+    }
+
+    private static int getDataPointCount(NetCDFDataset dataset) {
+        int dataPointCount = 0;
+        for (AbstractNetCDFVariable variable : dataset) {
+            dataPointCount += variable.getDataPointCount();
+        }
+        return dataPointCount;
+    }
+
+    private static void addDataPoints(NetCDFTimeDepthVariable variable, DateTime[] dates) {
+        for (float lat : LATS) {
+            for (float lon : LONS) {
+                for (DateTime date : dates) {
+                    for (double depth : DEPTHS) {
+                        variable.addDataPoint(lat, lon, date, depth, lat + lon + depth);
+                    }
+                }
+            }
+        }
+    }
+
+    // Dates are created before the measure, they are shared by the data points
+    private static DateTime[] getDates() {
+        DateTime[] dates = new DateTime[NB_HOURS];
+        for (int hour=0; hour<NB_HOURS; hour++) {
+            dates[hour] = START_DATE.plusHours(hour);
+        }
+        return dates;
+    }
+
+    private static int getDataPointCount() {
+        return LATS.length * LONS.length * NB_HOURS * DEPTHS.length;
+    }
+
+    private static long getAllocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FixtureServerTest {
+    private File cacheDirectory;
+
+    @Before
+    public void createCacheDirectory() throws IOException {
+        this.cacheDirectory = Files.createTempDirectory("test_fixtures").toFile();
+    }
+
+    @After
+    public void deleteCacheDirectory() throws IOException {
+        File[] files = this.cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(this.cacheDirectory.toPath());
+    }
+
+    @Test
+    public void testCoalescedRequests() throws Exception {
+        final String request = "gbr4v2 2019-01-01T00:00Z 2019-01-01T06:00Z 12 false";
+
+        try (CountingFixtureServer server = new CountingFixtureServer(this.cacheDirectory)) {
+            server.start(0, 4);
+            final int port = server.getPort();
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<List<File>>> responses = new ArrayList<Future<List<File>>>();
+                for (int i=0; i<4; i++) {
+                    responses.add(executor.submit(new Callable<List<File>>() {
+                        @Override
+                        public List<File> call() throws IOException {
+                            return FixtureServer.request(port, request);
+                        }
+                    }));
+                }
+
+                File expectedFile = new File(this.cacheDirectory, "gbr4v2_20190101T000000Z_20190101T060000Z_12_false.nc");
+                for (Future<List<File>> response : responses) {
+                    List<File> files = response.get();
+                    Assert.assertEquals("Wrong number of files", 1, files.size());
+                    Assert.assertEquals("Wrong fixture file", expectedFile.getAbsoluteFile(), files.get(0));
+                    Assert.assertTrue("Fixture file not generated", files.get(0).isFile());
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            Assert.assertEquals("Concurrent requests were not coalesced", 1, server.generationCount.get());
+        }
+    }
+
+    @Test
+    public void testDeletedFixture() throws Exception {
+        String request = "gbr4v2 2019-01-01T00:00Z 2019-01-01T03:00Z 12 false";
+
+        try (CountingFixtureServer server = new CountingFixtureServer(this.cacheDirectory)) {
+            server.start(0, 1);
+
+            List<File> files = FixtureServer.request(server.getPort(), request);
+            FixtureServer.request(server.getPort(), request);
+            Assert.assertEquals("The fixture was generated twice", 1, server.generationCount.get());
+
+            // The stale fixture is forgotten, and generated again
+            Files.delete(files.get(0).toPath());
+            List<File> regeneratedFiles = FixtureServer.request(server.getPort(), request);
+            Assert.assertEquals("The deleted fixture was not generated again", 2, server.generationCount.get());
+            Assert.assertTrue("Fixture file not generated", regeneratedFiles.get(0).isFile());
+        }
+    }
+
+    @Test
+    public void testFailedFixture() throws Exception {
+        String request = "gbr4v2 2019-01-01T00:00Z 2019-01-01T03:00Z 12 false";
+
+        try (CountingFixtureServer server = new CountingFixtureServer(this.cacheDirectory)) {
+            server.start(0, 1);
+
+            server.failNextGeneration = true;
+            try {
+                FixtureServer.request(server.getPort(), request);
+                Assert.fail("The failed generation was not reported");
+            } catch (IOException ex) {
+                Assert.assertTrue("Wrong error: " + ex.getMessage(), ex.getMessage().contains("Expected failure"));
+            }
+
+            // The failed fixture is forgotten, and generated again
+            List<File> files = FixtureServer.request(server.getPort(), request);
+            Assert.assertEquals("The failed fixture was not generated again", 2, server.generationCount.get());
+            Assert.assertTrue("Fixture file not generated", files.get(0).isFile());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownScenario() throws IOException {
+        try (FixtureServer server = new FixtureServer(this.cacheDirectory)) {
+            server.start(0, 1);
+            FixtureServer.request(server.getPort(), "unknown 2019-01-01T00:00Z 2019-01-01T06:00Z");
+        }
+    }
+
+    // Fixture server which counts the fixture generations
+    private static class CountingFixtureServer extends FixtureServer {
+        private final AtomicInteger generationCount = new AtomicInteger();
+        private volatile boolean failNextGeneration = false;
+
+        public CountingFixtureServer(File cacheDirectory) {
+            super(cacheDirectory);
+        }
+
+        @Override
+        protected void generateScenario(FixtureRequest request, List<File> outputFiles) throws Exception {
+            this.generationCount.incrementAndGet();
+            if (this.failNextGeneration) {
+                this.failNextGeneration = false;
+                throw new IOException("Expected failure");
+            }
+            super.generateScenario(request, outputFiles);
+        }
+    }
+}
@@ -4,7 +4,13 @@
  */
 package au.gov.aims.netcdf;
 
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
 import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFFrameBuilder;
+import au.gov.aims.netcdf.bean.NetCDFLazyVariable;
+import au.gov.aims.netcdf.bean.NetCDFPointCoordinate;
+import au.gov.aims.netcdf.bean.NetCDFSpillingData;
+import au.gov.aims.netcdf.bean.NetCDFTimeDepthVariable;
 import au.gov.aims.netcdf.bean.NetCDFTimeVariable;
 import au.gov.aims.netcdf.bean.NetCDFVariable;
 import au.gov.aims.netcdf.bean.NetCDFVectorVariable;
@@ -12,20 +18,44 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Hours;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GeneratorTest {
     private static final DateTimeZone TIMEZONE_BRISBANE = DateTimeZone.forID("Australia/Brisbane");
 
+    // Output files of the tests which need a real file, deleted after each test
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testGenerator() throws IOException, InvalidRangeException {
         Generator netCDFGenerator = new Generator();
-        File outputFile = new File("/tmp/test.nc");
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test.nc");
         long expectedFileSize = 10 * 1024 * 1024; // 10 MB
 
         // Test file
@@ -49,6 +79,996 @@ public class GeneratorTest {
                 "https://www.giss.nasa.gov/tools/panoply/"));
     }
 
+    @Test
+    public void testGeneratePartitions() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File outputDirectory = this.temporaryFolder.newFolder("test_partitions");
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 3, 0, 0, DateTimeZone.UTC));
+
+        List<File> dayFiles = netCDFGenerator.generatePartitions(outputDirectory, "test_", PartitionPolicy.DAY, dataset);
+        Assert.assertEquals("Wrong number of daily files", 2, dayFiles.size());
+        Assert.assertEquals(new File(outputDirectory, "test_2019-01-01.nc"), dayFiles.get(0));
+        Assert.assertEquals(new File(outputDirectory, "test_2019-01-02.nc"), dayFiles.get(1));
+
+        List<File> variableFiles = netCDFGenerator.generatePartitions(outputDirectory, "test_", PartitionPolicy.VARIABLE, dataset);
+        Assert.assertEquals("Wrong number of variable files", 3, variableFiles.size());
+        Assert.assertEquals(new File(outputDirectory, "test_botz.nc"), variableFiles.get(0));
+        Assert.assertEquals(new File(outputDirectory, "test_temp.nc"), variableFiles.get(1));
+        Assert.assertEquals(new File(outputDirectory, "test_wind.nc"), variableFiles.get(2));
+
+        // Variables without time are added to every daily file
+        GeneratorTest.assertPartition(dayFiles.get(0), dataset, 24, "botz", "temp", "wspeed_u", "wspeed_v");
+        GeneratorTest.assertPartition(dayFiles.get(1), dataset, 24, "botz", "temp", "wspeed_u", "wspeed_v");
+
+        GeneratorTest.assertPartition(variableFiles.get(0), dataset, 0, "botz");
+        GeneratorTest.assertPartition(variableFiles.get(1), dataset, 48, "temp");
+        GeneratorTest.assertPartition(variableFiles.get(2), dataset, 48, "wspeed_u", "wspeed_v");
+
+        File ncmlFile = new File(outputDirectory, "test.ncml");
+        Assert.assertTrue(String.format("The NcML aggregation file doesn't exists or can not be read: %s", ncmlFile),
+                ncmlFile.canRead());
+
+        // The "union" aggregation combines the variable files into a single consistent dataset
+        try (NetcdfDataset aggregation = NetcdfDataset.openDataset(ncmlFile.getAbsolutePath())) {
+            Assert.assertEquals("Wrong time dimension length", 48, aggregation.findDimension("time").getLength());
+            Assert.assertEquals("Wrong lat dimension length", 5, aggregation.findDimension("lat").getLength());
+            Assert.assertEquals("Wrong lon dimension length", 6, aggregation.findDimension("lon").getLength());
+            Assert.assertEquals("Wrong height dimension length", 2, aggregation.findDimension("zc").getLength());
+
+            float lat = aggregation.findVariable("lat").read().getFloat(0);
+            float lon = aggregation.findVariable("lon").read().getFloat(0);
+            double height = aggregation.findVariable("zc").read().getDouble(0);
+            DateTime date = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+
+            GeneratorTest.assertSampleValue(aggregation, "botz", dataset, new NetCDFPointCoordinate(lat, lon));
+            GeneratorTest.assertSampleValue(aggregation, "temp", dataset, new NetCDFPointCoordinate(lat, lon, date, height));
+            GeneratorTest.assertSampleValue(aggregation, "wspeed_u", dataset, new NetCDFPointCoordinate(lat, lon, date));
+            GeneratorTest.assertSampleValue(aggregation, "wspeed_v", dataset, new NetCDFPointCoordinate(lat, lon, date));
+        }
+    }
+
+    // Check the first value of a variable (at the origin of every dimension)
+    private static void assertSampleValue(NetcdfFile netcdfFile, String variableName, NetCDFDataset dataset,
+            NetCDFPointCoordinate coordinate) throws IOException, InvalidRangeException {
+
+        Variable ncVariable = netcdfFile.findVariable(variableName);
+        Assert.assertNotNull(String.format("Variable %s not found in %s", variableName, netcdfFile.getLocation()), ncVariable);
+
+        int[] origin = new int[ncVariable.getRank()];
+        int[] shape = new int[ncVariable.getRank()];
+        Arrays.fill(shape, 1);
+        double value = ncVariable.read(origin, shape).getDouble(0);
+
+        Double expectedValue = null;
+        for (AbstractNetCDFVariable variable : dataset) {
+            if (variableName.equals(variable.getName())) {
+                expectedValue = variable.getValue(coordinate);
+            }
+        }
+        Assert.assertNotNull(String.format("No value for variable %s at %s", variableName, coordinate), expectedValue);
+        Assert.assertEquals(String.format("Wrong value for variable %s", variableName), expectedValue, value, 0);
+    }
+
+    // Check that a partition file contains the expected variables, with the values of the partitioned dataset
+    private static void assertPartition(File partitionFile, NetCDFDataset dataset, int nbRecords, String ... variableNames)
+            throws IOException, InvalidRangeException {
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load(partitionFile);
+        Assert.assertEquals(String.format("Wrong number of hypercubes in %s", partitionFile), 1, loadedDatasets.size());
+
+        List<String> loadedVariableNames = new ArrayList<String>();
+        for (AbstractNetCDFVariable loadedVariable : loadedDatasets.get(0)) {
+            String variableName = loadedVariable.getName();
+            loadedVariableNames.add(variableName);
+
+            AbstractNetCDFVariable variable = null;
+            for (AbstractNetCDFVariable datasetVariable : dataset) {
+                if (variableName.equals(datasetVariable.getName())) {
+                    variable = datasetVariable;
+                }
+            }
+            Assert.assertNotNull(String.format("Unexpected variable %s in %s", variableName, partitionFile), variable);
+            Assert.assertEquals(String.format("Wrong number of records for variable %s in %s", variableName, partitionFile),
+                    variable.getDates().isEmpty() ? 0 : nbRecords, loadedVariable.getDates().size());
+
+            Map<NetCDFPointCoordinate, Double> loadedDataPoints = loadedVariable.getAllDataPoints();
+            Assert.assertEquals(String.format("Wrong number of data points for variable %s in %s", variableName, partitionFile),
+                    variable.getDataPointCount() / Math.max(1, variable.getDates().size()) * Math.max(1, loadedVariable.getDates().size()),
+                    loadedDataPoints.size());
+            for (Map.Entry<NetCDFPointCoordinate, Double> dataPoint : loadedDataPoints.entrySet()) {
+                Assert.assertEquals(String.format("Wrong value for variable %s in %s", variableName, partitionFile),
+                        variable.getValue(dataPoint.getKey()), dataPoint.getValue(), 0);
+            }
+        }
+        Assert.assertEquals(String.format("Wrong variables in %s", partitionFile), Arrays.asList(variableNames), loadedVariableNames);
+    }
+
+    @Test
+    public void testConcurrentFailure() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        netCDFGenerator.setThreadCount(2);
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_concurrent_failure.nc");
+        float[] lats = Generator.getCoordinates(-20, -10, 10);
+        float[] lons = Generator.getCoordinates(140, 150, 10);
+
+        final CountDownLatch slowTaskStarted = new CountDownLatch(1);
+        final AtomicInteger runningSlowTasks = new AtomicInteger();
+
+        // First hypercube: still being written when the second hypercube fails
+        NetCDFDataset slowDataset = new NetCDFDataset();
+        NetCDFLazyVariable slowVar = new NetCDFLazyVariable("slow_botz", "metre", new NetCDFLazyVariable.Expression() {
+            @Override
+            public double getValue(float lat, float lon) {
+                runningSlowTasks.incrementAndGet();
+                slowTaskStarted.countDown();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    runningSlowTasks.decrementAndGet();
+                }
+                return lat + lon;
+            }
+        });
+        slowVar.setAxes(lats, lons);
+        slowDataset.addVariable(slowVar);
+
+        // Second hypercube: fails while the first hypercube is written
+        NetCDFDataset failingDataset = new NetCDFDataset();
+        NetCDFLazyVariable failingVar = new NetCDFLazyVariable("failing_botz", "metre", new NetCDFLazyVariable.Expression() {
+            @Override
+            public double getValue(float lat, float lon) {
+                try {
+                    slowTaskStarted.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("Expected failure");
+            }
+        });
+        failingVar.setAxes(lats, lons);
+        failingDataset.addVariable(failingVar);
+
+        try {
+            netCDFGenerator.generate(outputFile, slowDataset, failingDataset);
+            Assert.fail("The failure of a hypercube was not reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Wrong exception reported", "Expected failure", ex.getMessage());
+        }
+
+        // The first hypercube was cancelled, and stopped before the writer was closed
+        Assert.assertEquals("A hypercube is still being written", 0, runningSlowTasks.get());
+        Assert.assertFalse("The partial file was not deleted", outputFile.exists());
+    }
+
+    @Test
+    public void testConcurrentHypercubes() throws IOException, InvalidRangeException {
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, startDate.plusHours(12));
+
+        // Second hypercube, with its own axes
+        NetCDFDataset saltDataset = new NetCDFDataset();
+        NetCDFTimeDepthVariable saltVar = new NetCDFTimeDepthVariable("salt", "PSU");
+        saltDataset.addVariable(saltVar);
+        for (float lat : Generator.getCoordinates(-30, -20, 8)) {
+            for (float lon : Generator.getCoordinates(150, 160, 9)) {
+                for (int hour=0; hour<6; hour++) {
+                    saltVar.addDataPoint(lat, lon, startDate.plusHours(hour), -5, 35 + hour * 0.1 + lat * 0.01);
+                }
+            }
+        }
+
+        Generator sequentialGenerator = new Generator();
+        sequentialGenerator.setThreadCount(1);
+        File sequentialFile = new File(this.temporaryFolder.getRoot(), "test_sequential_hypercubes.nc");
+        GeneratorResult sequentialResult = sequentialGenerator.generate(sequentialFile, dataset, saltDataset);
+
+        Generator concurrentGenerator = new Generator();
+        concurrentGenerator.setThreadCount(4);
+        File concurrentFile = new File(this.temporaryFolder.getRoot(), "test_concurrent_hypercubes.nc");
+        GeneratorResult concurrentResult = concurrentGenerator.generate(concurrentFile, dataset, saltDataset);
+
+        Assert.assertEquals("Wrong number of variable digests", 5, concurrentResult.getDigests().size());
+        Assert.assertEquals("The concurrent generation changed the digests",
+                sequentialResult.getDigests(), concurrentResult.getDigests());
+
+        NetCDFDiff.Result diff = new NetCDFDiff().diff(sequentialFile, concurrentFile);
+        Assert.assertTrue(String.format("The concurrent generation changed the file: %s", diff), diff.isIdentical());
+
+        // Records of the hypercubes filled concurrently, one record at the time
+        concurrentGenerator.setWriteOrder(WriteOrder.RECORD_MAJOR);
+        File recordMajorFile = new File(this.temporaryFolder.getRoot(), "test_concurrent_record_major_hypercubes.nc");
+        GeneratorResult recordMajorResult = concurrentGenerator.generate(recordMajorFile, dataset, saltDataset);
+
+        Assert.assertEquals("The concurrent record major generation changed the digests",
+                sequentialResult.getDigests(), recordMajorResult.getDigests());
+        diff = new NetCDFDiff().diff(sequentialFile, recordMajorFile);
+        Assert.assertTrue(String.format("The concurrent record major generation changed the file: %s", diff), diff.isIdentical());
+    }
+
+    @Test
+    public void testConcurrentPrepareFailure() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        netCDFGenerator.setThreadCount(4);
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_concurrent_prepare_failure.nc");
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+
+        // The time union of the second hypercube fails, while the first hypercube is prepared
+        NetCDFDataset failingDataset = new NetCDFDataset();
+        NetCDFVariable failingVar = new NetCDFVariable("failing_botz", "metre") {
+            @Override
+            public SortedSet<DateTime> getDates() {
+                throw new IllegalStateException("Expected failure");
+            }
+        };
+        failingVar.addDataPoint(-20, 140, 10.0);
+        failingDataset.addVariable(failingVar);
+
+        try {
+            netCDFGenerator.generate(outputFile, GeneratorTest.getSmallDataset(startDate, startDate.plusHours(6)), failingDataset);
+            Assert.fail("The failure of a hypercube preparation was not reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Wrong exception reported", "Expected failure", ex.getMessage());
+        }
+        Assert.assertFalse("A file was created", outputFile.exists());
+    }
+
+    @Test
+    public void testDigest() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        DateTime endDate = new DateTime(2019, 1, 1, 12, 0, DateTimeZone.UTC);
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(
+                GeneratorTest.getSmallDataset(startDate, endDate));
+        GeneratorResult sameResult = netCDFGenerator.generateInMemory(
+                GeneratorTest.getSmallDataset(startDate, endDate));
+
+        Assert.assertEquals("Wrong number of variable digests", 4, result.getDigests().size());
+        Assert.assertEquals("Digests of identical datasets differ", result.getDigests(), sameResult.getDigests());
+        Assert.assertEquals("File digests of identical datasets differ", result.getDigest(), sameResult.getDigest());
+
+        // Change a single value
+        NetCDFDataset modifiedDataset = GeneratorTest.getSmallDataset(startDate, endDate);
+        NetCDFVariable modifiedBotzVar = (NetCDFVariable)modifiedDataset.getVariables().get(0);
+        modifiedBotzVar.addDataPoint(-20, 140, 1000);
+
+        GeneratorResult modifiedResult = netCDFGenerator.generateInMemory(modifiedDataset);
+        Assert.assertNotEquals("Digest of modified variable didn't change",
+                result.getDigest("botz"), modifiedResult.getDigest("botz"));
+        Assert.assertEquals("Digest of unmodified variable changed",
+                result.getDigest("temp"), modifiedResult.getDigest("temp"));
+        Assert.assertNotEquals("File digest didn't change", result.getDigest(), modifiedResult.getDigest());
+    }
+
+    @Test
+    public void testHeaderTemplate() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+
+        NetCDFDataset firstDataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+        NetCDFHeaderTemplate template = netCDFGenerator.compileTemplate(firstDataset);
+
+        // Different time length, same header
+        NetCDFDataset secondDataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 2, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 2, 1, 12, 0, DateTimeZone.UTC));
+
+        GeneratorResult templateResult = netCDFGenerator.generateInMemory(template, secondDataset);
+        GeneratorResult result = netCDFGenerator.generateInMemory(secondDataset);
+
+        Assert.assertEquals("Wrong number of time values", 12, templateResult.getTimeValues("time").length);
+        Assert.assertEquals("The file generated with a template differs", result.getDigests(), templateResult.getDigests());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHeaderTemplateMismatch() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+        NetCDFHeaderTemplate template = netCDFGenerator.compileTemplate(dataset);
+
+        dataset.addVariable(new NetCDFVariable("botz2", "metre"));
+        netCDFGenerator.generateInMemory(template, dataset);
+    }
+
+    @Test
+    public void testHeaderTemplateDimensionMismatch() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFHeaderTemplate template = netCDFGenerator.compileTemplate(
+                GeneratorTest.getSmallDataset(startDate, startDate.plusHours(6)));
+
+        // Same variables, with a latitude outside the template axis
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, startDate.plusHours(6));
+        ((NetCDFVariable)dataset.iterator().next()).addDataPoint(-25, 140, 10.0);
+        try {
+            netCDFGenerator.generateInMemory(template, dataset);
+            Assert.fail("The dataset latitude outside the template axis was not reported");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertTrue("Wrong error: " + ex.getMessage(), ex.getMessage().contains("latitude"));
+        }
+
+        // Same variable names, with a different variable type
+        NetCDFDataset typeDataset = GeneratorTest.getSmallDataset(startDate, startDate.plusHours(6));
+        NetCDFDataset mismatchDataset = new NetCDFDataset();
+        for (AbstractNetCDFVariable variable : typeDataset) {
+            mismatchDataset.addVariable("temp".equals(variable.getName()) ?
+                    new NetCDFTimeVariable("temp", "degrees C") : variable);
+        }
+        try {
+            netCDFGenerator.generateInMemory(template, mismatchDataset);
+            Assert.fail("The variable type mismatch was not reported");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertTrue("Wrong error: " + ex.getMessage(), ex.getMessage().contains("types"));
+        }
+    }
+
+    @Test
+    public void testLazyVariable() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+
+        // Same values as "botz", computed when the file is written
+        NetCDFLazyVariable lazyBotzVar = new NetCDFLazyVariable("lazy_botz", "metre", new NetCDFLazyVariable.Expression() {
+            @Override
+            public double getValue(float lat, float lon) {
+                return lat % 10 + lon % 10;
+            }
+        });
+        dataset.addVariable(lazyBotzVar);
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+
+        Assert.assertTrue("The lazy variable stores data", lazyBotzVar.getData().isEmpty());
+        Assert.assertEquals("The lazy variable content differs", result.getDigest("botz"), result.getDigest("lazy_botz"));
+    }
+
+    @Test
+    public void testRoundedCoordinates() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+
+        // Same values as "botz", with coordinates off by rounding errors.
+        //     Longitudes are >= 128, where the float precision (1.5E-5) is larger than the coordinate epsilon.
+        NetCDFVariable botzVar = (NetCDFVariable)dataset.getVariables().get(0);
+        NetCDFVariable roundedBotzVar = new NetCDFVariable("rounded_botz", "metre");
+        for (Map.Entry<NetCDFPointCoordinate, Double> dataPoint : botzVar.getData().entrySet()) {
+            NetCDFPointCoordinate coordinate = dataPoint.getKey();
+            Assert.assertTrue("The longitude is too small to test the float precision", coordinate.getLon() >= 128);
+            roundedBotzVar.addDataPoint(coordinate.getLat() + 0.000004f, Math.nextDown(coordinate.getLon()), dataPoint.getValue());
+        }
+        dataset.addVariable(roundedBotzVar);
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load("test_rounded", result.getContent());
+
+        Assert.assertEquals("Rounding errors added values to the axes", 5,
+                loadedDatasets.get(0).getDimensions().getLatitudes().length);
+        Assert.assertEquals("Rounding errors added values to the axes", 6,
+                loadedDatasets.get(0).getDimensions().getLongitudes().length);
+        Assert.assertEquals("The variable with rounded coordinates differs", result.getDigest("botz"), result.getDigest("rounded_botz"));
+    }
+
+    @Test
+    public void testGetValueRoundedCoordinates() {
+        DateTime date = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFTimeDepthVariable tempVar = new NetCDFTimeDepthVariable("temp", "C");
+        tempVar.addDataPoint(-20.1f, 150.3f, date, -1.5, 24.5);
+        tempVar.addDataPoint(-20.2f, 150.4f, date, -3.0, 23.5);
+
+        Assert.assertEquals("Wrong value at the exact coordinate", 24.5,
+                tempVar.getValue(new NetCDFPointCoordinate(-20.1f, 150.3f, date, -1.5)), 0);
+        Assert.assertEquals("Wrong value at a coordinate off by rounding errors", 24.5,
+                tempVar.getValue(new NetCDFPointCoordinate(-20.1f + 0.000004f, Math.nextUp(150.3f), date, -1.5 + 0.00000001)), 0);
+
+        // The axes are rebuilt when data points are added
+        tempVar.addDataPoint(-20.3f, 150.5f, date, -4.5, 22.5);
+        Assert.assertEquals("Wrong value of a data point added after a lookup", 22.5,
+                tempVar.getValue(new NetCDFPointCoordinate(Math.nextDown(-20.3f), 150.5f, date, -4.5)), 0);
+
+        Assert.assertNull("Value found at a coordinate not on the axes",
+                tempVar.getValue(new NetCDFPointCoordinate(-20.15f, 150.3f, date, -1.5)));
+        Assert.assertNull("Value found at a coordinate without a data point",
+                tempVar.getValue(new NetCDFPointCoordinate(-20.1f, 150.4f, date, -1.5)));
+    }
+
+    @Test
+    public void testFrameBuilder() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+
+        float[] lats = Generator.getCoordinates(-20, -10, 5);
+        float[] lons = Generator.getCoordinates(140, 150, 6);
+        double[] depths = {-1.5, -10};
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+
+        // Same values, added one point at the time and one frame at the time
+        NetCDFDataset dataset = new NetCDFDataset();
+        NetCDFTimeDepthVariable pointVar = new NetCDFTimeDepthVariable("point_temp", "degrees C");
+        dataset.addVariable(pointVar);
+        NetCDFTimeDepthVariable frameVar = new NetCDFTimeDepthVariable("frame_temp", "degrees C");
+        dataset.addVariable(frameVar);
+
+        NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons, depths);
+        for (int hour=0; hour<6; hour++) {
+            DateTime date = startDate.plusHours(hour);
+            NetCDFFrameBuilder.Record record = frameBuilder.openRecord(date);
+            double[] frame = record.getFrame(frameVar);
+            for (int latIndex=0; latIndex<lats.length; latIndex++) {
+                for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                    for (int depthIndex=0; depthIndex<depths.length; depthIndex++) {
+                        double value = lats[latIndex] + lons[lonIndex] * hour + depths[depthIndex];
+                        pointVar.addDataPoint(lats[latIndex], lons[lonIndex], date, depths[depthIndex], value);
+                        frame[frameBuilder.getIndex(latIndex, lonIndex, depthIndex)] = value;
+                    }
+                }
+            }
+            record.commit();
+        }
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+
+        Assert.assertEquals("Wrong number of data points", pointVar.getDataPointCount(), frameVar.getDataPointCount());
+        Assert.assertEquals("The variable populated with frames differs", result.getDigest("point_temp"), result.getDigest("frame_temp"));
+    }
+
+    @Test
+    public void testStatistics() throws IOException, InvalidRangeException {
+        // NetCDF 3 is used to verify that the attributes fit in the reserved header space
+        Generator netCDFGenerator = new Generator(NetCDFFormat.NETCDF3);
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_statistics.nc");
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+
+        double expectedMin = Double.POSITIVE_INFINITY;
+        double expectedMax = Double.NEGATIVE_INFINITY;
+        NetCDFVariable botzVar = (NetCDFVariable)dataset.getVariables().get(0);
+        for (Double value : botzVar.getData().values()) {
+            expectedMin = Math.min(expectedMin, value);
+            expectedMax = Math.max(expectedMax, value);
+        }
+
+        GeneratorResult result = netCDFGenerator.generate(outputFile, dataset);
+
+        VariableStatistics botzStatistics = result.getStatistics("botz");
+        Assert.assertEquals("Wrong min", expectedMin, botzStatistics.getMin(), 0);
+        Assert.assertEquals("Wrong max", expectedMax, botzStatistics.getMax(), 0);
+        Assert.assertEquals("Wrong number of values", 30, botzStatistics.getCount());
+        Assert.assertEquals("Wrong number of missing values", 0, botzStatistics.getNaNCount());
+
+        try (NetcdfFile netcdfFile = NetcdfFile.open(outputFile.getAbsolutePath())) {
+            Attribute actualRange = netcdfFile.findVariable("botz").findAttribute("actual_range");
+            Assert.assertNotNull("Missing actual_range attribute", actualRange);
+            Assert.assertEquals("Wrong actual_range min", expectedMin, actualRange.getNumericValue(0).doubleValue(), 0);
+            Assert.assertEquals("Wrong actual_range max", expectedMax, actualRange.getNumericValue(1).doubleValue(), 0);
+
+            Attribute validMax = netcdfFile.findVariable("temp").findAttribute("valid_max");
+            Assert.assertEquals("Wrong valid_max", result.getStatistics("temp").getMax(), validMax.getNumericValue().doubleValue(), 0);
+        }
+
+        // NetCDF 4 can not reserve header space: the attributes are not written by default,
+        //     but the statistics are still available in the result.
+        Generator netCDF4Generator = new Generator(NetCDFFormat.NETCDF4);
+        Assert.assertFalse("Statistics written by default in NetCDF 4", netCDF4Generator.isWriteStatistics());
+        File netCDF4File = new File(this.temporaryFolder.getRoot(), "test_statistics_netcdf4.nc");
+        GeneratorResult netCDF4Result = netCDF4Generator.generate(netCDF4File, dataset);
+        Assert.assertEquals("Wrong max", expectedMax, netCDF4Result.getStatistics("botz").getMax(), 0);
+        try (NetcdfFile netcdfFile = NetcdfFile.open(netCDF4File.getAbsolutePath())) {
+            Assert.assertNull("Unexpected actual_range attribute",
+                    netcdfFile.findVariable("botz").findAttribute("actual_range"));
+        }
+    }
+
+    @Test
+    public void testPyramid() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_pyramid.nc");
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+
+        List<GeneratorResult> results = netCDFGenerator.generatePyramid(outputFile,
+                NetCDFDownsampler.Method.BLOCK_AVERAGE, new int[] {2, 4}, dataset);
+        Assert.assertEquals("Wrong number of files", 3, results.size());
+        Assert.assertEquals(new File(this.temporaryFolder.getRoot(), "test_pyramid_2x.nc"), results.get(1).getOutputFile());
+
+        // 5 x 6 cells => 3 x 3 cells
+        NetCDFDataset loadedDataset = NetCDFLoader.load(results.get(1).getOutputFile()).get(0);
+        NetCDFDataset.Dimensions dimensions = loadedDataset.getDimensions();
+        Assert.assertEquals("Wrong number of latitudes", 3, dimensions.getLatitudes().length);
+        Assert.assertEquals("Wrong number of longitudes", 3, dimensions.getLongitudes().length);
+        Assert.assertEquals("Wrong number of time values", 6, results.get(1).getTimeValues("time").length);
+
+        // First block: average of 2 x 2 cells
+        float[] lats = dataset.getDimensions().getLatitudes();
+        float[] lons = dataset.getDimensions().getLongitudes();
+        NetCDFVariable botzVar = (NetCDFVariable)dataset.getVariables().get(0);
+        double expectedBotz = (botzVar.getValue(lats[0], lons[0]) + botzVar.getValue(lats[0], lons[1]) +
+                botzVar.getValue(lats[1], lons[0]) + botzVar.getValue(lats[1], lons[1])) / 4;
+
+        NetCDFVariable loadedBotzVar = (NetCDFVariable)loadedDataset.getVariables().get(0);
+        Assert.assertEquals("Wrong block average", expectedBotz,
+                loadedBotzVar.getValue(dimensions.getLatitudes()[0], dimensions.getLongitudes()[0]), 0.00001);
+    }
+
+    @Test
+    public void testProgressAndCancellation() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_progress.nc");
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 1, 6, 0, DateTimeZone.UTC));
+
+        final List<GeneratorProgress> progressList = new ArrayList<GeneratorProgress>();
+        netCDFGenerator.setProgressListener(new GeneratorProgress.Listener() {
+            @Override
+            public void progress(GeneratorProgress progress) {
+                progressList.add(progress);
+            }
+        });
+        netCDFGenerator.generate(outputFile, dataset);
+
+        // botz: 1 record, temp, wspeed_u, wspeed_v: 6 records each
+        GeneratorProgress lastProgress = progressList.get(progressList.size() - 1);
+        Assert.assertEquals("Wrong number of records", 19, lastProgress.getTotalRecordCount());
+        Assert.assertEquals("Wrong number of records written", 19, lastProgress.getRecordCount());
+        Assert.assertEquals("Wrong number of variables written", 4, lastProgress.getVariableCount());
+        Assert.assertEquals("Wrong ETA", 0, lastProgress.getEstimatedRemainingMillis());
+
+        // Cancel after the first record
+        final CancellationToken token = new CancellationToken();
+        netCDFGenerator.setCancellationToken(token);
+        netCDFGenerator.setProgressListener(new GeneratorProgress.Listener() {
+            @Override
+            public void progress(GeneratorProgress progress) {
+                token.cancel();
+            }
+        });
+        try {
+            netCDFGenerator.generate(outputFile, dataset);
+            Assert.fail("The generation was not cancelled");
+        } catch (CancellationException ex) {
+            // Expected
+        }
+        Assert.assertFalse("The partial file was not deleted", outputFile.exists());
+    }
+
+    @Test
+    public void testCancelledPreparation() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_cancelled_preparation.nc");
+        final CancellationToken token = new CancellationToken();
+        netCDFGenerator.setCancellationToken(token);
+
+        // Cancelled while the dates of the hypercube are computed, before the file is created
+        NetCDFDataset dataset = new NetCDFDataset();
+        NetCDFVariable botzVar = new NetCDFVariable("botz", "metre") {
+            @Override
+            public SortedSet<DateTime> getDates() {
+                token.cancel();
+                return super.getDates();
+            }
+        };
+        botzVar.addDataPoint(-20, 140, 10.0);
+        dataset.addVariable(botzVar);
+
+        try {
+            netCDFGenerator.generate(outputFile, dataset);
+            Assert.fail("The preparation was not cancelled");
+        } catch (CancellationException ex) {
+            Assert.assertTrue("Wrong cancellation: " + ex.getMessage(), ex.getMessage().startsWith("Preparation"));
+        }
+        Assert.assertFalse("A file was created", outputFile.exists());
+    }
+
+    @Test
+    public void testCancellationCheckpoints() {
+        // 2 checkpoints worth of data points
+        int nbLat = 512;
+        int nbLon = 2 * RecordIndex.CHECKPOINT_INTERVAL / nbLat;
+        float[] lats = new float[nbLat];
+        float[] lons = new float[nbLon];
+        Map<NetCDFPointCoordinate, Double> dataPoints = new HashMap<NetCDFPointCoordinate, Double>();
+        for (int latIndex=0; latIndex<nbLat; latIndex++) {
+            lats[latIndex] = latIndex;
+            for (int lonIndex=0; lonIndex<nbLon; lonIndex++) {
+                lons[lonIndex] = lonIndex;
+                dataPoints.put(new NetCDFPointCoordinate(latIndex, lonIndex), (double)latIndex);
+            }
+        }
+
+        final AtomicInteger checkpointCount = new AtomicInteger();
+        RecordIndex index = RecordIndex.build(dataPoints, lats, lons, null, null, new Runnable() {
+            @Override
+            public void run() {
+                checkpointCount.incrementAndGet();
+            }
+        });
+        Assert.assertEquals("Wrong number of data points", nbLat * nbLon, index.size());
+        Assert.assertEquals("Wrong number of cancellation checks", 2, checkpointCount.get());
+
+        // A cancelled check stops the fill
+        try {
+            RecordIndex.build(dataPoints, lats, lons, null, null, new Runnable() {
+                @Override
+                public void run() {
+                    throw new CancellationException("Expected cancellation");
+                }
+            });
+            Assert.fail("The fill was not cancelled");
+        } catch (CancellationException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSpillToDisk() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        DateTime endDate = new DateTime(2019, 1, 1, 12, 0, DateTimeZone.UTC);
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(
+                GeneratorTest.getSmallDataset(startDate, endDate));
+
+        // Spill the data points to disk, 20 data points at the time across all the variables.
+        //     The limit is set before the dataset is populated, and applies to the variables added afterward.
+        File spillDirectory = Files.createTempDirectory("test_spill").toFile();
+        try (NetCDFDataset spilledDataset = new NetCDFDataset()) {
+            spilledDataset.setMemoryLimit(20 * 128, spillDirectory);
+            GeneratorTest.getSmallDataset(spilledDataset, startDate, endDate);
+            for (AbstractNetCDFVariable variable : spilledDataset) {
+                Assert.assertTrue(String.format("The memory limit was not applied to the variable %s", variable.getName()),
+                        variable.getData() instanceof NetCDFSpillingData);
+            }
+            NetCDFSpillingData tempData = (NetCDFSpillingData)spilledDataset.getVariables().get(1).getData();
+            Assert.assertTrue("The data points were not spilled to disk", tempData.getRunCount() > 1);
+
+            // Overwrite a value spilled to disk
+            NetCDFVariable botzVar = (NetCDFVariable)spilledDataset.getVariables().get(0);
+            Double botz = botzVar.getValue(-20, 140);
+            botzVar.addDataPoint(-20, 140, 1000);
+            Assert.assertEquals(1000, botzVar.getValue(-20, 140), 0);
+            botzVar.addDataPoint(-20, 140, botz);
+
+            GeneratorResult spilledResult = netCDFGenerator.generateInMemory(spilledDataset);
+            Assert.assertEquals("Digests of spilled dataset differ", result.getDigests(), spilledResult.getDigests());
+        }
+
+        // Closing the dataset deletes the temporary files
+        Assert.assertEquals("The temporary files were not deleted", 0, spillDirectory.list().length);
+        Files.delete(spillDirectory.toPath());
+    }
+
+    @Test
+    public void testRecordMajorWriteOrder() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        DateTime endDate = new DateTime(2019, 1, 1, 12, 0, DateTimeZone.UTC);
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, endDate);
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+
+        netCDFGenerator.setWriteOrder(WriteOrder.RECORD_MAJOR);
+        GeneratorResult recordMajorResult = netCDFGenerator.generateInMemory(dataset);
+
+        Assert.assertEquals("The write order changed the digests", result.getDigests(), recordMajorResult.getDigests());
+        NetCDFDataset loadedDataset = NetCDFLoader.load("test_record_major", recordMajorResult.getContent()).get(0);
+        NetCDFLoaderTest.assertSameData(dataset, loadedDataset);
+    }
+
+    @Test
+    public void testDimensionOrder() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        DateTime endDate = new DateTime(2019, 1, 1, 12, 0, DateTimeZone.UTC);
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, endDate);
+
+        Assert.assertEquals("Wrong default dimension order", DimensionOrder.TIME_HEIGHT_LAT_LON, netCDFGenerator.getDimensionOrder());
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+
+        netCDFGenerator.setDimensionOrder(DimensionOrder.TIME_LAT_LON_HEIGHT);
+        GeneratorResult heightLastResult = netCDFGenerator.generateInMemory(dataset);
+
+        // Digests are computed in canonical order
+        Assert.assertEquals("The dimension order changed the digests", result.getDigests(), heightLastResult.getDigests());
+
+        NetCDFLoaderTest.assertSameData(dataset, NetCDFLoader.load("test_height_first", result.getContent()).get(0));
+        NetCDFLoaderTest.assertSameData(dataset, NetCDFLoader.load("test_height_last", heightLastResult.getContent()).get(0));
+    }
+
+    @Test
+    public void testSharedAxes() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator(NetCDFFormat.NETCDF3);
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, startDate.plusHours(6));
+
+        // Same lat / lon / height axes, but different dates
+        NetCDFDataset saltDataset = GeneratorTest.getSaltDataset(startDate.plusHours(6), startDate.plusHours(12));
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset, saltDataset);
+        try (NetcdfFile netcdfFile = NetcdfFile.openInMemory("test_shared_axes", result.getContent())) {
+            Assert.assertNotNull("Time axis of the second hypercube not found", netcdfFile.findVariable("time1"));
+            Assert.assertNull("Latitude axis declared twice", netcdfFile.findVariable("lat1"));
+            Assert.assertNull("Longitude axis declared twice", netcdfFile.findVariable("lon1"));
+            Assert.assertNull("Height axis declared twice", netcdfFile.findVariable("zc1"));
+        }
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load("test_shared_axes", result.getContent());
+        Assert.assertEquals("Wrong number of hypercubes", 2, loadedDatasets.size());
+        NetCDFLoaderTest.assertSameData(dataset, loadedDatasets.get(0));
+        NetCDFLoaderTest.assertSameData(saltDataset, loadedDatasets.get(1));
+    }
+
+    @Test
+    public void testSharedAxesTemplate() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator(NetCDFFormat.NETCDF3);
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, startDate.plusHours(6));
+
+        // Template with 2 time axes, used by hypercubes which have the same dates
+        NetCDFHeaderTemplate template = netCDFGenerator.compileTemplate(dataset,
+                GeneratorTest.getSaltDataset(startDate.plusHours(6), startDate.plusHours(12)));
+        NetCDFDataset saltDataset = GeneratorTest.getSaltDataset(startDate, startDate.plusHours(6));
+        GeneratorResult result = netCDFGenerator.generateInMemory(template, dataset, saltDataset);
+        try (NetcdfFile netcdfFile = NetcdfFile.openInMemory("test_shared_axes_template", result.getContent())) {
+            Assert.assertNotNull("Time axis of the template not found", netcdfFile.findVariable("time1"));
+            Assert.assertNull("Latitude axis declared twice", netcdfFile.findVariable("lat1"));
+        }
+        NetCDFLoaderTest.assertSameData(saltDataset, NetCDFLoader.load("test_shared_axes_template", result.getContent()).get(1));
+
+        // Template with a shared time axis, used by hypercubes which have different dates
+        NetCDFHeaderTemplate sharedTemplate = netCDFGenerator.compileTemplate(dataset,
+                GeneratorTest.getSaltDataset(startDate, startDate.plusHours(6)));
+        try {
+            netCDFGenerator.generateInMemory(sharedTemplate, dataset,
+                    GeneratorTest.getSaltDataset(startDate.plusHours(6), startDate.plusHours(12)));
+            Assert.fail("The time axis mismatch was not reported");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertTrue("Wrong error: " + ex.getMessage(), ex.getMessage().contains("shared in the template"));
+        }
+    }
+
+    // Salinity, on the axes of the small dataset, with an hourly record between start date (inclusive) and end date (exclusive)
+    private static NetCDFDataset getSaltDataset(DateTime startDate, DateTime endDate) {
+        NetCDFDataset saltDataset = new NetCDFDataset();
+        NetCDFTimeDepthVariable saltVar = new NetCDFTimeDepthVariable("salt", "PSU");
+        saltDataset.addVariable(saltVar);
+        for (float lat : Generator.getCoordinates(-20, -10, 5)) {
+            for (float lon : Generator.getCoordinates(140, 150, 6)) {
+                for (DateTime date = startDate; date.isBefore(endDate); date = date.plusHours(1)) {
+                    double hour = date.getHourOfDay();
+                    saltVar.addDataPoint(lat, lon, date, -10, 35 + hour * 0.1);
+                    saltVar.addDataPoint(lat, lon, date, -1.5, 34 + hour * 0.1);
+                }
+            }
+        }
+        return saltDataset;
+    }
+
+    @Test
+    public void testConcurrentPopulation() throws Exception {
+        Generator netCDFGenerator = new Generator();
+        final DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        final float[] lats = Generator.getCoordinates(-20, -10, 20);
+        final float[] lons = Generator.getCoordinates(140, 150, 30);
+        final int nbHours = 6;
+
+        NetCDFDataset sequentialDataset = new NetCDFDataset();
+        NetCDFTimeDepthVariable sequentialTempVar = new NetCDFTimeDepthVariable("temp", "degrees C");
+        sequentialDataset.addVariable(sequentialTempVar);
+        for (float lat : lats) {
+            GeneratorTest.addTemperatures(sequentialTempVar, lat, lons, startDate, nbHours);
+        }
+
+        NetCDFDataset concurrentDataset = new NetCDFDataset();
+        concurrentDataset.setConcurrent(true);
+        final NetCDFTimeDepthVariable concurrentTempVar = new NetCDFTimeDepthVariable("temp", "degrees C");
+        concurrentDataset.addVariable(concurrentTempVar);
+        Assert.assertTrue("The variable is not concurrent", concurrentTempVar.isConcurrent());
+
+        // One task per latitude
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final float lat : lats) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    GeneratorTest.addTemperatures(concurrentTempVar, lat, lons, startDate, nbHours);
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals("Wrong number of data points",
+                sequentialTempVar.getDataPointCount(), concurrentTempVar.getDataPointCount());
+        Assert.assertEquals("The concurrent population changed the data",
+                netCDFGenerator.generateInMemory(sequentialDataset).getDigests(),
+                netCDFGenerator.generateInMemory(concurrentDataset).getDigests());
+    }
+
+    private static void addTemperatures(NetCDFTimeDepthVariable tempVar, float lat, float[] lons, DateTime startDate, int nbHours) {
+        for (float lon : lons) {
+            for (int hour=0; hour<nbHours; hour++) {
+                tempVar.addDataPoint(lat, lon, startDate.plusHours(hour), -1.5, 25 + lat * 0.1 + lon * 0.01 + hour);
+                tempVar.addDataPoint(lat, lon, startDate.plusHours(hour), -10, 20 + lat * 0.1 + lon * 0.01 + hour);
+            }
+        }
+    }
+
+    @Test
+    public void testFusedVector() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime date = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        float[] lats = Generator.getCoordinates(-20, -10, 3);
+        float[] lons = Generator.getCoordinates(140, 150, 4);
+
+        NetCDFDataset dataset = new NetCDFDataset();
+        NetCDFTimeVariable uVar = new NetCDFTimeVariable("u", "ms-1");
+        NetCDFTimeVariable vVar = new NetCDFTimeVariable("v", "ms-1");
+        NetCDFVectorVariable<NetCDFTimeVariable> currentVar = new NetCDFVectorVariable<NetCDFTimeVariable>("current", uVar, vVar);
+        dataset.addVectorVariable(currentVar);
+
+        // First record: data points, some of them only having a v component
+        for (float lat : lats) {
+            for (float lon : lons) {
+                if (lon == lons[0]) {
+                    vVar.addDataPoint(lat, lon, date, lat);
+                } else {
+                    currentVar.addDataPoint(lat, lon, date, lon, lat);
+                }
+            }
+        }
+
+        // Second record: frames sharing the same axes
+        NetCDFFrameBuilder frameBuilder = new NetCDFFrameBuilder(lats, lons);
+        NetCDFFrameBuilder.Record record = frameBuilder.openRecord(date.plusHours(1));
+        double[] uFrame = record.getFrame(uVar);
+        double[] vFrame = record.getFrame(vVar);
+        for (int latIndex=0; latIndex<lats.length; latIndex++) {
+            for (int lonIndex=0; lonIndex<lons.length; lonIndex++) {
+                uFrame[frameBuilder.getIndex(latIndex, lonIndex)] = lonIndex;
+                vFrame[frameBuilder.getIndex(latIndex, lonIndex)] = latIndex;
+            }
+        }
+        record.commit();
+
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+        NetCDFDataset loadedDataset = NetCDFLoader.load("test_fused_vector", result.getContent()).get(0);
+        NetCDFLoaderTest.assertSameData(dataset, loadedDataset);
+        Assert.assertEquals("Wrong number of v values", 2 * 3 * 4, result.getStatistics("v").getCount());
+        Assert.assertEquals("Wrong number of missing u values", 3, result.getStatistics("u").getNaNCount());
+    }
+
+    @Test
+    public void testDiff() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        DateTime endDate = new DateTime(2019, 1, 1, 12, 0, DateTimeZone.UTC);
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_diff.nc");
+        File sameOutputFile = new File(this.temporaryFolder.getRoot(), "test_diff_same.nc");
+        File modifiedOutputFile = new File(this.temporaryFolder.getRoot(), "test_diff_modified.nc");
+
+        netCDFGenerator.generate(outputFile, GeneratorTest.getSmallDataset(startDate, endDate));
+        netCDFGenerator.generate(sameOutputFile, GeneratorTest.getSmallDataset(startDate, endDate));
+
+        // Change a single temperature value, by a small amount
+        NetCDFDataset modifiedDataset = GeneratorTest.getSmallDataset(startDate, endDate);
+        NetCDFTimeDepthVariable modifiedTempVar = (NetCDFTimeDepthVariable)modifiedDataset.getVariables().get(1);
+        DateTime modifiedDate = startDate.plusHours(3);
+        Double temp = modifiedTempVar.getValue(-20, 140, modifiedDate, -1.5);
+        modifiedTempVar.addDataPoint(-20, 140, modifiedDate, -1.5, temp + 0.5);
+        netCDFGenerator.generate(modifiedOutputFile, modifiedDataset);
+
+        NetCDFDiff netCDFDiff = new NetCDFDiff();
+        NetCDFDiff.Result sameResult = netCDFDiff.diff(outputFile, sameOutputFile);
+        Assert.assertTrue("Identical files differ: " + sameResult, sameResult.isIdentical());
+        Assert.assertTrue("The comparison is incomplete", sameResult.isComplete());
+
+        NetCDFDiff.Result result = netCDFDiff.diff(outputFile, modifiedOutputFile);
+        Assert.assertFalse("The modified value was not found", result.isIdentical());
+        Assert.assertTrue("Unexpected schema differences", result.getSchemaDifferences().isEmpty());
+        Assert.assertEquals("Wrong variables differ", 1, result.getVariableDifferences().size());
+
+        NetCDFDiff.VariableDifference tempDifference = result.getVariableDifferences().get("temp");
+        Assert.assertNotNull("The temp variable doesn't differ", tempDifference);
+        Assert.assertEquals("Wrong number of different values", 1, tempDifference.getDifferentValueCount());
+        Assert.assertEquals("Wrong max difference", 0.5, tempDifference.getMaxDifference(), 0.0001);
+        Assert.assertEquals("Wrong date", 1, tempDifference.getDates().size());
+        Assert.assertEquals("Wrong date", modifiedDate, tempDifference.getDates().get(0).withZone(DateTimeZone.UTC));
+        Assert.assertArrayEquals("Wrong height", new double[] {-1.5}, tempDifference.getHeights(), 0.0001);
+        Assert.assertArrayEquals("Wrong bounding box", new double[] {-20, 140, -20, 140}, tempDifference.getBoundingBox(), 0.0001);
+
+        // The difference is within the tolerance
+        netCDFDiff.setTolerance(1);
+        Assert.assertTrue("The difference is not within the tolerance", netCDFDiff.diff(outputFile, modifiedOutputFile).isIdentical());
+
+        // Quick mode stops at the first difference
+        netCDFDiff.setTolerance(0);
+        netCDFDiff.setQuick(true);
+        NetCDFDiff.Result quickResult = netCDFDiff.diff(outputFile, modifiedOutputFile);
+        Assert.assertFalse("The modified value was not found in quick mode", quickResult.isIdentical());
+        Assert.assertFalse("The quick comparison is complete", quickResult.isComplete());
+        Assert.assertEquals("Wrong number of different values in quick mode",
+                1, quickResult.getVariableDifferences().get("temp").getDifferentValueCount());
+    }
+
+    /**
+     * Small dataset containing a variable of each type,
+     * used to test the library without generating large files.
+     * @param startDate The start date, inclusive
+     * @param endDate The end date, exclusive
+     * @return A dataset containing hourly data.
+     */
+    public static NetCDFDataset getSmallDataset(DateTime startDate, DateTime endDate) {
+        return GeneratorTest.getSmallDataset(new NetCDFDataset(), startDate, endDate);
+    }
+
+    // Populate a dataset configured by the caller (for example with a memory limit)
+    public static NetCDFDataset getSmallDataset(NetCDFDataset dataset, DateTime startDate, DateTime endDate) {
+        Random rng = new Random(1234);
+
+        float[] lats = Generator.getCoordinates(-20, -10, 5);
+        float[] lons = Generator.getCoordinates(140, 150, 6);
+        double[] depths = {-10, -1.5};
+
+        dataset.setGlobalAttribute("title", "Small test dataset");
+
+        NetCDFVariable botzVar = new NetCDFVariable("botz", "metre");
+        dataset.addVariable(botzVar);
+
+        NetCDFTimeDepthVariable tempVar = new NetCDFTimeDepthVariable("temp", "degrees C");
+        dataset.addVariable(tempVar);
+
+        NetCDFTimeVariable windUVar = new NetCDFTimeVariable("wspeed_u", "ms-1");
+        NetCDFTimeVariable windVVar = new NetCDFTimeVariable("wspeed_v", "ms-1");
+        NetCDFVectorVariable<NetCDFTimeVariable> windVar = new NetCDFVectorVariable<NetCDFTimeVariable>("wind", windUVar, windVVar);
+        dataset.addVectorVariable(windVar);
+
+        int nbHours = Hours.hoursBetween(startDate, endDate).getHours();
+        for (float lat : lats) {
+            for (float lon : lons) {
+                botzVar.addDataPoint(lat, lon, lat % 10 + lon % 10);
+
+                for (int hour=0; hour<nbHours; hour++) {
+                    DateTime frameDate = startDate.plusHours(hour);
+
+                    windVar.addDataPoint(lat, lon, frameDate,
+                            Generator.drawLinearGradient(rng, lat, lon - hour, -10, -8, 100, 70, 0),
+                            Generator.drawLinearGradient(rng, lat - hour, lon, 2, 17, 50, -20, 0));
+
+                    for (double depth : depths) {
+                        tempVar.addDataPoint(lat, lon, frameDate, depth, Generator.drawRadialGradient(rng, lat, lon, 20, 30, 10, 0.1));
+                    }
+                }
+            }
+        }
+
+        return dataset;
+    }
+
     /**
      * Used to test this library
      * @param netCDFGenerator The NetCDF file generator
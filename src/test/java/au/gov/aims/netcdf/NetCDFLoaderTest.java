@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.netcdf;
+
+import au.gov.aims.netcdf.bean.AbstractNetCDFVariable;
+import au.gov.aims.netcdf.bean.NetCDFDataset;
+import au.gov.aims.netcdf.bean.NetCDFPointCoordinate;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class NetCDFLoaderTest {
+    // Files of the tests which can't be generated in memory, deleted after each test
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 2, 0, 0, DateTimeZone.UTC));
+        GeneratorResult result = netCDFGenerator.generateInMemory(dataset);
+        Assert.assertNull("Output file set for in memory generation", result.getOutputFile());
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load("test_loader", result.getContent());
+        Assert.assertEquals("Wrong number of hypercubes", 1, loadedDatasets.size());
+        NetCDFDataset loadedDataset = loadedDatasets.get(0);
+
+        Assert.assertEquals("Wrong number of vector variables", 1, loadedDataset.getVectorVariables().size());
+        Assert.assertEquals("Small test dataset", loadedDataset.getGlobalAttributes().get("title"));
+
+        NetCDFLoaderTest.assertSameData(dataset, loadedDataset);
+    }
+
+    @Test
+    public void testMultiHypercubes() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_loader_multiHypercubes.nc");
+
+        NcAnimateGenerator.generateGbr4v2MultiHypercubes(netCDFGenerator,
+                new DateTime(2000, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2000, 1, 1, 6, 0, DateTimeZone.UTC),
+                outputFile);
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load(outputFile);
+        Assert.assertEquals("Wrong number of hypercubes", 2, loadedDatasets.size());
+
+        Assert.assertNotNull("Variable temp not found in the first hypercube", NetCDFLoaderTest.findVariable(loadedDatasets.get(0), "temp"));
+        Assert.assertNotNull("Variable salt not found in the second hypercube", NetCDFLoaderTest.findVariable(loadedDatasets.get(1), "salt"));
+        Assert.assertNull("Variable salt found in the first hypercube", NetCDFLoaderTest.findVariable(loadedDatasets.get(0), "salt"));
+    }
+
+    @Test
+    public void testMultiHypercubesNetCDF3() throws IOException, InvalidRangeException {
+        // NetCDF 3 only allows one unlimited dimension: the second time dimension has a fixed length
+        Generator netCDFGenerator = new Generator(NetCDFFormat.NETCDF3);
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_loader_multiHypercubes_netcdf3.nc");
+
+        NcAnimateGenerator.generateGbr4v2MultiHypercubes(netCDFGenerator,
+                new DateTime(2000, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2000, 1, 1, 6, 0, DateTimeZone.UTC),
+                outputFile);
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load(outputFile);
+        Assert.assertEquals("Wrong number of hypercubes", 2, loadedDatasets.size());
+        Assert.assertNotNull("Variable salt not found in the second hypercube", NetCDFLoaderTest.findVariable(loadedDatasets.get(1), "salt"));
+    }
+
+    @Test
+    public void testMerge() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File outputDirectory = this.temporaryFolder.newFolder("test_merge");
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_merge.nc");
+
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(
+                new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC),
+                new DateTime(2019, 1, 3, 0, 0, DateTimeZone.UTC));
+        List<File> dayFiles = netCDFGenerator.generatePartitions(outputDirectory, "test_", PartitionPolicy.DAY, dataset);
+        Assert.assertEquals("Wrong number of daily files", 2, dayFiles.size());
+
+        // Files are sorted chronologically
+        NetCDFMerger merger = new NetCDFMerger();
+        GeneratorResult result = merger.merge(outputFile, dayFiles.get(1), dayFiles.get(0));
+        Assert.assertEquals("Wrong number of records", 48, result.getTimeValues("time").length);
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load(outputFile);
+        Assert.assertEquals("Wrong number of hypercubes", 1, loadedDatasets.size());
+        NetCDFLoaderTest.assertSameData(dataset, loadedDatasets.get(0));
+
+        // The range attributes cover the values of both files
+        double expectedMin = Double.POSITIVE_INFINITY;
+        double expectedMax = Double.NEGATIVE_INFINITY;
+        for (File dayFile : dayFiles) {
+            try (NetcdfFile netcdfFile = NetcdfFile.open(dayFile.getAbsolutePath())) {
+                Attribute actualRange = netcdfFile.findVariable("temp").findAttribute("actual_range");
+                expectedMin = Math.min(expectedMin, actualRange.getNumericValue(0).doubleValue());
+                expectedMax = Math.max(expectedMax, actualRange.getNumericValue(1).doubleValue());
+            }
+        }
+        Assert.assertTrue("Invalid range in the daily files", expectedMin < expectedMax);
+        try (NetcdfFile netcdfFile = NetcdfFile.open(outputFile.getAbsolutePath())) {
+            Variable temp = netcdfFile.findVariable("temp");
+            Attribute actualRange = temp.findAttribute("actual_range");
+            Assert.assertEquals(DataType.DOUBLE, actualRange.getDataType());
+            Assert.assertEquals(expectedMin, actualRange.getNumericValue(0).doubleValue(), 0);
+            Assert.assertEquals(expectedMax, actualRange.getNumericValue(1).doubleValue(), 0);
+            Assert.assertEquals(expectedMin, temp.findAttribute("valid_min").getNumericValue().doubleValue(), 0);
+            Assert.assertEquals(expectedMax, temp.findAttribute("valid_max").getNumericValue().doubleValue(), 0);
+            Assert.assertEquals("Small test dataset", netcdfFile.findGlobalAttribute("title").getStringValue());
+        }
+
+        // Overlapping files
+        try {
+            merger.merge(new File(this.temporaryFolder.getRoot(), "test_merge_overlap.nc"), dayFiles.get(0), dayFiles.get(0));
+            Assert.fail("Overlapping files were merged");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSubset() throws IOException, InvalidRangeException {
+        Generator netCDFGenerator = new Generator();
+        File sourceFile = new File(this.temporaryFolder.getRoot(), "test_subset_source.nc");
+        File outputFile = new File(this.temporaryFolder.getRoot(), "test_subset.nc");
+
+        DateTime startDate = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC);
+        NetCDFDataset dataset = GeneratorTest.getSmallDataset(startDate, startDate.plusDays(1));
+
+        // Numeric attributes, which can't be set on the beans
+        NetCDFHeaderTemplate template = netCDFGenerator.compileTemplate(dataset);
+        template.addGlobalAttribute(new Attribute("geospatial_lat_resolution", 2.5f));
+        template.addVariableAttribute("temp", new Attribute("flag_values",
+                Array.factory(DataType.INT, new int[] {3}, new int[] {1, 2, 4})));
+        netCDFGenerator.generate(sourceFile, template, dataset);
+
+        NetCDFSubsetter subsetter = new NetCDFSubsetter();
+        subsetter.setBoundingBox(-17.5f, 142, -12.5f, 146);
+        subsetter.setTimeRange(startDate.plusHours(6), startDate.plusHours(12));
+        subsetter.setHeights(-1.5);
+        subsetter.setVariables("botz", "temp", "wspeed_u", "wspeed_v");
+        subsetter.subset(sourceFile, outputFile, netCDFGenerator);
+
+        List<NetCDFDataset> loadedDatasets = NetCDFLoader.load(outputFile);
+        Assert.assertEquals("Wrong number of hypercubes", 1, loadedDatasets.size());
+        NetCDFDataset loadedDataset = loadedDatasets.get(0);
+
+        Assert.assertEquals("Wrong number of vector variables", 1, loadedDataset.getVectorVariables().size());
+        Assert.assertEquals("Small test dataset", loadedDataset.getGlobalAttributes().get("title"));
+
+        NetCDFDataset.Dimensions dimensions = loadedDataset.getDimensions();
+        Assert.assertArrayEquals(new float[] {-17.5f, -15, -12.5f}, dimensions.getLatitudes(), 0);
+        Assert.assertArrayEquals(new float[] {142, 144, 146}, dimensions.getLongitudes(), 0);
+        Assert.assertArrayEquals(new double[] {-1.5}, dimensions.getHeights(), 0);
+
+        AbstractNetCDFVariable loadedTemp = NetCDFLoaderTest.findVariable(loadedDataset, "temp");
+        Assert.assertNotNull("Variable temp not found", loadedTemp);
+        Assert.assertEquals("Wrong number of records", 6, loadedTemp.getDates().size());
+        Assert.assertEquals("Wrong number of data points", 3 * 3 * 6, loadedTemp.getDataPointCount());
+
+        AbstractNetCDFVariable sourceTemp = NetCDFLoaderTest.findVariable(dataset, "temp");
+        for (Map.Entry<NetCDFPointCoordinate, Double> dataPoint : loadedTemp.getAllDataPoints().entrySet()) {
+            Assert.assertEquals(sourceTemp.getValue(dataPoint.getKey()), dataPoint.getValue(), 0);
+        }
+
+        // The attributes are copied with their type
+        try (NetcdfFile netcdfFile = NetcdfFile.open(outputFile.getAbsolutePath())) {
+            Attribute resolution = netcdfFile.findGlobalAttribute("geospatial_lat_resolution");
+            Assert.assertNotNull("Global attribute not copied", resolution);
+            Assert.assertEquals(DataType.FLOAT, resolution.getDataType());
+            Assert.assertEquals(2.5f, resolution.getNumericValue().floatValue(), 0);
+
+            Attribute flagValues = netcdfFile.findVariable("temp").findAttribute("flag_values");
+            Assert.assertNotNull("Variable attribute not copied", flagValues);
+            Assert.assertEquals(DataType.INT, flagValues.getDataType());
+            Assert.assertEquals(3, flagValues.getLength());
+            Assert.assertEquals(4, flagValues.getNumericValue(2).intValue());
+        }
+    }
+
+    @Test
+    public void testParseTimeUnit() {
+        NetCDFLoader.TimeUnit timeUnit = NetCDFLoader.parseTimeUnit("days since 1990-01-01 00:00:00 +10");
+        Assert.assertNotNull(timeUnit);
+        Assert.assertEquals(new DateTime(1990, 1, 1, 0, 0, DateTimeZone.forOffsetHours(10)).getMillis(), timeUnit.getEpoch().getMillis());
+        Assert.assertEquals(new DateTime(1990, 1, 3, 12, 0, DateTimeZone.forOffsetHours(10)).getMillis(), timeUnit.getDate(2.5).getMillis());
+
+        Assert.assertNull(NetCDFLoader.parseTimeUnit("degrees C"));
+    }
+
+    /**
+     * Check that every data point of the expected dataset is found in the actual dataset.
+     */
+    public static void assertSameData(NetCDFDataset expected, NetCDFDataset actual) {
+        Iterator<AbstractNetCDFVariable> actualVariables = actual.iterator();
+        for (AbstractNetCDFVariable expectedVariable : expected) {
+            Assert.assertTrue(String.format("Variable %s not found", expectedVariable.getName()), actualVariables.hasNext());
+            AbstractNetCDFVariable actualVariable = actualVariables.next();
+            Assert.assertEquals(expectedVariable.getName(), actualVariable.getName());
+            Assert.assertEquals(expectedVariable.getClass(), actualVariable.getClass());
+            Assert.assertEquals(expectedVariable.getAttributes().get("units"), actualVariable.getAttributes().get("units"));
+
+            Map<NetCDFPointCoordinate, Double> expectedData = expectedVariable.getAllDataPoints();
+            Assert.assertEquals(String.format("Wrong number of data points for variable %s", expectedVariable.getName()),
+                    expectedData.size(), actualVariable.getDataPointCount());
+
+            for (Map.Entry<NetCDFPointCoordinate, Double> expectedEntry : expectedData.entrySet()) {
+                Double actualValue = actualVariable.getValue(expectedEntry.getKey());
+                Assert.assertNotNull(String.format("Missing value for variable %s", expectedVariable.getName()), actualValue);
+                Assert.assertEquals(expectedEntry.getValue(), actualValue, 0);
+            }
+        }
+        Assert.assertFalse("Unexpected variable found", actualVariables.hasNext());
+    }
+
+    private static AbstractNetCDFVariable findVariable(NetCDFDataset dataset, String variableName) {
+        for (AbstractNetCDFVariable variable : dataset) {
+            if (variableName.equals(variable.getName())) {
+                return variable;
+            }
+        }
+        return null;
+    }
+}